@@ -142,13 +142,19 @@ inline bool operator>>= (const CORBA::Any& a, frontendX::default_frontend_audio_
         if (!strcmp("FRONTEND::audio_status::enabled", props[idx].id)) {
             if (!(props[idx].value >>= s.enabled)) return false;
         }
+        if (!strcmp("FRONTEND::audio_status::quarantined", props[idx].id)) {
+            if (!(props[idx].value >>= s.quarantined)) return false;
+        }
+        if (!strcmp("FRONTEND::audio_status::tuning_failures", props[idx].id)) {
+            if (!(props[idx].value >>= s.tuning_failures)) return false;
+        }
     }
     return true;
 }
 
 inline void operator<<= (CORBA::Any& a, const frontendX::default_frontend_audio_status_struct_struct& s) {
     CF::Properties props;
-    props.length(6);
+    props.length(8);
     props[0].id = CORBA::string_dup("FRONTEND::audio_status::audio_type");
     props[0].value <<= s.audio_type;
     props[1].id = CORBA::string_dup("FRONTEND::audio_status::allocation_id_csv");
@@ -161,6 +167,10 @@ inline void operator<<= (CORBA::Any& a, const frontendX::default_frontend_audio_
     props[4].value <<= s.sample_rate;
     props[5].id = CORBA::string_dup("FRONTEND::audio_status::enabled");
     props[5].value <<= s.enabled;
+    props[6].id = CORBA::string_dup("FRONTEND::audio_status::quarantined");
+    props[6].value <<= s.quarantined;
+    props[7].id = CORBA::string_dup("FRONTEND::audio_status::tuning_failures");
+    props[7].value <<= s.tuning_failures;
     a <<= props;
 }
 
@@ -177,6 +187,10 @@ inline bool operator== (const frontendX::default_frontend_audio_status_struct_st
         return false;
     if (s1.enabled!=s2.enabled)
         return false;
+    if (s1.quarantined!=s2.quarantined)
+        return false;
+    if (s1.tuning_failures!=s2.tuning_failures)
+        return false;
     return true;
 }
 
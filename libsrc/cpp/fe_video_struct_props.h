@@ -151,13 +151,19 @@ inline bool operator>>= (const CORBA::Any& a, frontendX::default_frontend_video_
         if (!strcmp("FRONTEND::video_status::fps", props[idx].id)) {
             if (!(props[idx].value >>= s.fps)) return false;
         }
+        if (!strcmp("FRONTEND::video_status::quarantined", props[idx].id)) {
+            if (!(props[idx].value >>= s.quarantined)) return false;
+        }
+        if (!strcmp("FRONTEND::video_status::tuning_failures", props[idx].id)) {
+            if (!(props[idx].value >>= s.tuning_failures)) return false;
+        }
     }
     return true;
 }
 
 inline void operator<<= (CORBA::Any& a, const frontendX::default_frontend_video_status_struct_struct& s) {
     CF::Properties props;
-    props.length(7);
+    props.length(9);
     props[0].id = CORBA::string_dup("FRONTEND::video_status::video_type");
     props[0].value <<= s.video_type;
     props[1].id = CORBA::string_dup("FRONTEND::video_status::allocation_id_csv");
@@ -172,6 +178,10 @@ inline void operator<<= (CORBA::Any& a, const frontendX::default_frontend_video_
     props[5].value <<= s.frame_width;
     props[6].id = CORBA::string_dup("FRONTEND::video_status::fps");
     props[6].value <<= s.fps;
+    props[7].id = CORBA::string_dup("FRONTEND::video_status::quarantined");
+    props[7].value <<= s.quarantined;
+    props[8].id = CORBA::string_dup("FRONTEND::video_status::tuning_failures");
+    props[8].value <<= s.tuning_failures;
     a <<= props;
 }
 
@@ -190,6 +200,10 @@ inline bool operator== (const frontendX::default_frontend_video_status_struct_st
         return false;
     if (s1.fps!=s2.fps)
         return false;
+    if (s1.quarantined!=s2.quarantined)
+        return false;
+    if (s1.tuning_failures!=s2.tuning_failures)
+        return false;
     return true;
 }
 
@@ -57,6 +57,8 @@ namespace frontendX {
             low_frequency_effect_channels = 0;
             sample_rate = 0.0;
             enabled = false;
+            quarantined = false;
+            tuning_failures = 0;
         }
         
         static std::string getId() {
@@ -69,6 +71,8 @@ namespace frontendX {
         unsigned short low_frequency_effect_channels;
         double sample_rate;
         bool enabled;
+        bool quarantined;
+        CORBA::Long tuning_failures;
     };
 
     struct frontend_video_allocation_struct {
@@ -104,6 +108,8 @@ namespace frontendX {
             frame_width = 0;
             fps = 0.0;
             enabled = false;
+            quarantined = false;
+            tuning_failures = 0;
         }
 
         static std::string getId() {
@@ -117,6 +123,8 @@ namespace frontendX {
         double fps;
         std::string video_type;
         bool enabled;
+        bool quarantined;
+        CORBA::Long tuning_failures;
     };
 
 }
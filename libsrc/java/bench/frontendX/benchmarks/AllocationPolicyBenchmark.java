@@ -0,0 +1,180 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frontendX.FrontendAffinityAllocationPolicy;
+import frontendX.FrontendAllocationPolicy;
+
+/* AllocationPolicyBenchmark compares the allocation policies on a SimulatedVideoDevice whose
+ * tuning takes TUNE_US, so a retune shows up in the numbers. The audio allocation engine ranks
+ * its candidates the same way.
+ *
+ *   controlCycle  allocates a video device for device control at one of two fps, alternating,
+ *                 and deallocates it. Every video device has been tuned to one of the two fps
+ *                 and freed, keeping its tuning, so an allocation on a video device tuned to
+ *                 the other fps retunes it and one on a video device tuned to the same fps
+ *                 does not.
+ *   listenerCycle attaches a listener to one of the controlled video devices and detaches it,
+ *                 while every client keeps LISTENERS_HELD listeners attached.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AllocationPolicyBenchmark {
+
+    static final double[] FPS = {25.0, 30.0};
+    static final long TUNE_US = 200;
+    static final int LISTENERS_HELD = 4;
+
+    /* policy returns the allocation policy of a given name: first_fit, best_fit, least_loaded or
+     * affinity (affinity hints that fall back to best fit)
+     */
+    static FrontendAllocationPolicy policy(final String name) {
+        if (name.equals("first_fit"))
+            return FrontendAllocationPolicy.FIRST_FIT;
+        if (name.equals("best_fit"))
+            return FrontendAllocationPolicy.BEST_FIT;
+        if (name.equals("least_loaded"))
+            return FrontendAllocationPolicy.LEAST_LOADED;
+        if (name.equals("affinity"))
+            return new FrontendAffinityAllocationPolicy(FrontendAllocationPolicy.BEST_FIT);
+        throw new IllegalArgumentException("unknown allocation policy: " + name);
+    }
+
+    /* Pool is a device whose video devices were last tuned to FPS[0] and FPS[1] in turn */
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"first_fit", "best_fit", "least_loaded", "affinity"})
+        public String policy;
+
+        @Param({"16", "256"})
+        public int video_devices;
+
+        SimulatedVideoDevice device;
+        FrontendAllocationPolicy allocation_policy;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            device = new SimulatedVideoDevice(video_devices, InMemoryVideoDevice.VIDEO_TYPE);
+            for (int video_device_id = 0; video_device_id < video_devices; video_device_id++) {
+                if (!device.allocate("warmup-" + video_device_id, true, FPS[video_device_id % FPS.length]))
+                    throw new IllegalStateException("Pool: unable to tune video device " + video_device_id);
+            }
+            for (int video_device_id = 0; video_device_id < video_devices; video_device_id++)
+                device.deallocate("warmup-" + video_device_id, true, FPS[video_device_id % FPS.length]);
+            device.tuning().set(TUNE_US, 0, 0.0);
+            allocation_policy = policy(policy);
+            device.setAllocationPolicy(allocation_policy);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            device.releaseObject();
+        }
+    }
+
+    /* ControlledPool is a Pool whose video devices are all allocated for device control */
+    @State(Scope.Benchmark)
+    public static class ControlledPool extends Pool {
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            super.setUp();
+            for (int video_device_id = 0; video_device_id < video_devices; video_device_id++) {
+                if (!device.allocate("control-" + video_device_id, true, FPS[0]))
+                    throw new IllegalStateException("ControlledPool: unable to allocate video device " + video_device_id);
+            }
+        }
+    }
+
+    /* Client is a benchmark thread. With the affinity policy it is hinted at a video device of
+     * its own, last tuned to FPS[0].
+     */
+    public abstract static class Client {
+        private static final AtomicInteger next_client = new AtomicInteger();
+
+        String name;
+        int cycle = 0;
+
+        void join(final Pool pool) {
+            int client = next_client.getAndIncrement();
+            name = "client-" + client;
+            if (pool.allocation_policy instanceof FrontendAffinityAllocationPolicy)
+                ((FrontendAffinityAllocationPolicy) pool.allocation_policy).prefer(name + "-", (2 * client) % pool.video_devices);
+        }
+    }
+
+    /* ControlClient is a Client of a Pool */
+    @State(Scope.Thread)
+    public static class ControlClient extends Client {
+        @Setup(Level.Trial)
+        public void setUp(final Pool pool) {
+            join(pool);
+        }
+    }
+
+    /* ListenerClient is a Client of a ControlledPool that keeps LISTENERS_HELD listeners attached */
+    @State(Scope.Thread)
+    public static class ListenerClient extends Client {
+        @Setup(Level.Trial)
+        public void setUp(final ControlledPool pool) throws Exception {
+            join(pool);
+            for (int listener = 0; listener < LISTENERS_HELD; listener++)
+                pool.device.allocate(name + "-held-" + listener, false, FPS[0]);
+        }
+    }
+
+    @Benchmark
+    public boolean controlCycle(final Pool pool, final ControlClient client) throws Exception {
+        double fps = FPS[client.cycle++ % FPS.length];
+        String allocation_id = client.name + "-control";
+        if (!pool.device.allocate(allocation_id, true, fps))
+            return false;
+        pool.device.deallocate(allocation_id, true, fps);
+        return true;
+    }
+
+    @Benchmark
+    public boolean listenerCycle(final ControlledPool pool, final ListenerClient client) throws Exception {
+        String allocation_id = client.name + "-listener";
+        if (!pool.device.allocate(allocation_id, false, FPS[0]))
+            return false;
+        pool.device.deallocate(allocation_id, false, FPS[0]);
+        return true;
+    }
+}
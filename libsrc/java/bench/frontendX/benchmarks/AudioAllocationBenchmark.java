@@ -0,0 +1,183 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import frontendX.FEXTypes;
+
+/* AudioAllocationBenchmark drives an InMemoryAudioDevice through the allocate/deallocate cycles
+ * of its clients, for pools of 1 to 1024 audio devices and 0 to 16 listeners per audio device:
+ *
+ *   controlCycle  allocates an audio device for device control and deallocates it
+ *   listenerCycle attaches a listener to one of the controlled audio devices and detaches it
+ *   sessionCycle  allocates an audio device for device control, attaches the listeners to it, and
+ *                 deallocates it together with its listeners
+ *
+ * Each benchmark thread is a client with its own allocation ids; the number of threads is set
+ * with -t (see the benchmarks target in libsrc/Makefile.am). Throughput and the latency
+ * percentiles (sample mode) are reported; run with -prof gc for the allocation rate.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AudioAllocationBenchmark {
+
+    static final double SAMPLE_RATE = 48000.0;
+
+    /* FreePool is a device whose audio devices are all free */
+    @State(Scope.Benchmark)
+    public static class FreePool {
+        @Param({"1", "4", "16", "64", "256", "1024"})
+        public int audio_devices;
+
+        @Param({"0", "1", "16"})
+        public int listeners;
+
+        InMemoryAudioDevice device;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            device = new InMemoryAudioDevice(audio_devices);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            device.releaseObject();
+        }
+    }
+
+    /* ControlledPool is a device whose audio devices are all allocated for device control,
+     * each with the given number of listeners attached
+     */
+    @State(Scope.Benchmark)
+    public static class ControlledPool {
+        @Param({"1", "4", "16", "64", "256", "1024"})
+        public int audio_devices;
+
+        @Param({"0", "1", "16"})
+        public int listeners;
+
+        InMemoryAudioDevice device;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            device = new InMemoryAudioDevice(audio_devices);
+            for (int audio_device_id = 0; audio_device_id < audio_devices; audio_device_id++) {
+                String control_allocation_id = "control-" + audio_device_id;
+                if (!device.allocateAudioDevice(InMemoryAudioDevice.request(control_allocation_id, true, SAMPLE_RATE)))
+                    throw new IllegalStateException("ControlledPool: unable to allocate " + control_allocation_id);
+                for (int listener = 0; listener < listeners; listener++) {
+                    String listener_allocation_id = control_allocation_id + "-listener-" + listener;
+                    if (!device.allocateAudioDevice(InMemoryAudioDevice.request(listener_allocation_id, false, SAMPLE_RATE)))
+                        throw new IllegalStateException("ControlledPool: unable to allocate " + listener_allocation_id);
+                }
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            device.releaseObject();
+        }
+    }
+
+    /* Requests are the requests of one benchmark thread. They are built once: an allocation id
+     * is reused once it has been deallocated, so building them does not add to the allocation rate.
+     */
+    public abstract static class Requests {
+        private static final AtomicInteger next_client = new AtomicInteger();
+
+        FEXTypes.frontend_audio_allocation_struct control_request;
+        FEXTypes.frontend_audio_allocation_struct[] listener_requests;
+
+        void build(final int listeners) {
+            String client = "client-" + next_client.getAndIncrement();
+            control_request = InMemoryAudioDevice.request(client, true, SAMPLE_RATE);
+            listener_requests = new FEXTypes.frontend_audio_allocation_struct[Math.max(listeners, 1)];
+            for (int listener = 0; listener < listener_requests.length; listener++)
+                listener_requests[listener] = InMemoryAudioDevice.request(client + "-listener-" + listener, false, SAMPLE_RATE);
+        }
+    }
+
+    /* Client is a benchmark thread allocating from a FreePool */
+    @State(Scope.Thread)
+    public static class Client extends Requests {
+        @Setup(Level.Trial)
+        public void setUp(final FreePool pool) {
+            build(pool.listeners);
+        }
+    }
+
+    /* ListenerClient is a benchmark thread attaching listeners in a ControlledPool */
+    @State(Scope.Thread)
+    public static class ListenerClient extends Requests {
+        @Setup(Level.Trial)
+        public void setUp(final ControlledPool pool) {
+            build(1);
+        }
+    }
+
+    @Benchmark
+    public boolean controlCycle(final FreePool pool, final Client client) throws Exception {
+        if (!pool.device.allocateAudioDevice(client.control_request))
+            return false;
+        pool.device.deallocateAudioDevice(client.control_request);
+        return true;
+    }
+
+    @Benchmark
+    public boolean listenerCycle(final ControlledPool pool, final ListenerClient client) throws Exception {
+        if (!pool.device.allocateAudioDevice(client.listener_requests[0]))
+            return false;
+        pool.device.deallocateAudioDevice(client.listener_requests[0]);
+        return true;
+    }
+
+    @Benchmark
+    public int sessionCycle(final FreePool pool, final Client client) throws Exception {
+        if (!pool.device.allocateAudioDevice(client.control_request))
+            return 0;
+        int attached = 0;
+        for (int listener = 0; listener < pool.listeners; listener++) {
+            if (pool.device.allocateAudioDevice(client.listener_requests[listener]))
+                attached++;
+        }
+        // deallocating the device control allocation detaches its listeners
+        pool.device.deallocateAudioDevice(client.control_request);
+        return attached;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/* FrontendSoakLoad runs a SimulatedVideoDevice or SimulatedAudioDevice under the load of many
+ * clients for a long time, all in process:
+ *
+ *   java -cp frontendX-benchmarks.jar:... frontendX.benchmarks.FrontendSoakLoad --clients=5000 --duration_s=7200
+ *
+ * Each client alternates between idle and holding one allocation: a device control allocation,
+ * or with probability listener_ratio a listener allocation, at one of three rates. Hold and idle
+ * times are exponentially distributed around hold_ms and think_ms. The simulated hardware takes
+ * tune_us, enable_us or disable_us plus up to jitter_us per operation and fails with probability
+ * failure_rate. The device allocates with the named allocation policy (first_fit, best_fit,
+ * least_loaded or affinity).
+ *
+ * Every checkpoint_s the clients are paused and the device is checked against them: an
+ * allocation the device holds that no client holds is leaked, a device control allocation a
+ * client holds that the device does not is lost, and the published usage state must match the
+ * one recounted from the allocations held. Listeners detached with their device control
+ * allocation are expected and only counted. Latency percentiles of allocate and deallocate are
+ * reported at each checkpoint. When the run ends every client deallocates, the device must be
+ * left idle and empty, and the exit status is 1 if any check failed.
+ */
+public class FrontendSoakLoad {
+
+    private static final double[] VIDEO_RATES = {25.0, 30.0, 60.0};
+    private static final double[] AUDIO_RATES = {44100.0, 48000.0, 96000.0};
+
+    /* Client holds at most one allocation at a time; it is queued until it acts next */
+    private static class Client implements Delayed {
+        final String name;
+        long generation = 0;
+        String allocation_id = null;
+        boolean device_control;
+        double rate;
+        long due_ns = System.nanoTime();
+
+        Client(final String name) {
+            this.name = name;
+        }
+
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(due_ns - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(final Delayed other) {
+            long difference = due_ns - ((Client) other).due_ns;
+            return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+        }
+    }
+
+    /* Latency is a histogram of latencies in microseconds with eight linear sub-buckets per power
+     * of two, so percentiles are exact to within 12.5%
+     */
+    private static class Latency {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max_us = new AtomicLong();
+
+        void record(final long start_ns) {
+            long value = Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start_ns));
+            buckets.incrementAndGet(bucketOf(value));
+            long current = max_us.get();
+            while (value > current && !max_us.compareAndSet(current, value)) {
+                current = max_us.get();
+            }
+        }
+
+        String summary() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts[bucket] = buckets.get(bucket);
+                total += counts[bucket];
+            }
+            return "n=" + total + " p50=" + percentile(counts, total, 0.5) + "us p99=" + percentile(counts, total, 0.99) +
+                   "us p99.9=" + percentile(counts, total, 0.999) + "us max=" + max_us.get() + "us";
+        }
+
+        private long percentile(final long[] counts, final long total, final double quantile) {
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank)
+                    return Math.min(lowerBoundOf(bucket), max_us.get());
+            }
+            return max_us.get();
+        }
+
+        private static int bucketOf(final long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+        }
+
+        private static long lowerBoundOf(final int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+
+    private final SimulatedFrontendDevice device;
+    private final double[] rates;
+    private final double listener_ratio;
+    private final long hold_ms;
+    private final long think_ms;
+
+    private final DelayQueue<Client> due_clients = new DelayQueue<Client>();
+    private final List<Client> clients = new ArrayList<Client>();
+    // held shared around each client action, exclusively by a checkpoint
+    private final ReentrantReadWriteLock pause_lock = new ReentrantReadWriteLock();
+    private volatile boolean stopped = false;
+
+    private final Latency control_latency = new Latency();
+    private final Latency listener_latency = new Latency();
+    private final Latency deallocate_latency = new Latency();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong detached = new AtomicLong();
+
+    private long leaked = 0;
+    private long lost = 0;
+    private long usage_mismatches = 0;
+
+    FrontendSoakLoad(final SimulatedFrontendDevice device, final double[] rates, final int client_count,
+                     final double listener_ratio, final long hold_ms, final long think_ms) {
+        this.device = device;
+        this.rates = rates;
+        this.listener_ratio = listener_ratio;
+        this.hold_ms = hold_ms;
+        this.think_ms = think_ms;
+        for (int client = 0; client < client_count; client++) {
+            Client created = new Client("soak-" + client);
+            created.due_ns = System.nanoTime() + delayNs(think_ms);
+            clients.add(created);
+            due_clients.add(created);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        options.put("audio", "false");
+        options.put("devices", "64");
+        options.put("clients", "2000");
+        options.put("threads", "16");
+        options.put("listener_ratio", "0.75");
+        options.put("hold_ms", "200");
+        options.put("think_ms", "50");
+        options.put("tune_us", "500");
+        options.put("enable_us", "200");
+        options.put("disable_us", "200");
+        options.put("jitter_us", "500");
+        options.put("failure_rate", "0.01");
+        options.put("policy", "first_fit");
+        options.put("duration_s", "3600");
+        options.put("checkpoint_s", "60");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = (arg.startsWith("--") && separator > 2) ? arg.substring(2, separator) : null;
+            if (name == null || !options.containsKey(name)) {
+                System.err.println("usage: FrontendSoakLoad [--<option>=<value>]..., options and defaults: " + options);
+                System.exit(2);
+            }
+            options.put(name, arg.substring(separator + 1));
+        }
+        System.out.println("FrontendSoakLoad: " + options);
+
+        boolean audio = Boolean.parseBoolean(options.get("audio"));
+        int devices = Integer.parseInt(options.get("devices"));
+        SimulatedFrontendDevice device = audio ? new SimulatedAudioDevice(devices, "CAPTURE") : new SimulatedVideoDevice(devices, "CAPTURE");
+        long jitter_us = Long.parseLong(options.get("jitter_us"));
+        double failure_rate = Double.parseDouble(options.get("failure_rate"));
+        device.tuning().set(Long.parseLong(options.get("tune_us")), jitter_us, failure_rate);
+        device.enabling().set(Long.parseLong(options.get("enable_us")), jitter_us, failure_rate);
+        device.disabling().set(Long.parseLong(options.get("disable_us")), jitter_us, failure_rate);
+        device.setAllocationPolicy(AllocationPolicyBenchmark.policy(options.get("policy")));
+
+        FrontendSoakLoad soak = new FrontendSoakLoad(device, audio ? AUDIO_RATES : VIDEO_RATES,
+                                                     Integer.parseInt(options.get("clients")),
+                                                     Double.parseDouble(options.get("listener_ratio")),
+                                                     Long.parseLong(options.get("hold_ms")),
+                                                     Long.parseLong(options.get("think_ms")));
+        boolean passed = soak.run(Integer.parseInt(options.get("threads")),
+                                  TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("duration_s"))),
+                                  TimeUnit.SECONDS.toMillis(Long.parseLong(options.get("checkpoint_s"))));
+        device.releaseObject();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /* Runs the clients on the given number of threads for duration_ms, checking the device every
+     * checkpoint_ms, then deallocates everything. Returns true if every check passed.
+     */
+    boolean run(final int threads, final long duration_ms, final long checkpoint_ms) throws InterruptedException {
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int worker = 0; worker < threads; worker++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "soak-client-" + worker);
+            thread.setDaemon(true);
+            thread.start();
+            workers.add(thread);
+        }
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration_ms);
+        while (true) {
+            long remaining_ms = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+            if (remaining_ms <= 0)
+                break;
+            Thread.sleep(Math.min(remaining_ms, checkpoint_ms));
+            checkpoint(start);
+        }
+        stopped = true;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (Client client : clients) {
+            if (client.allocation_id != null)
+                release(client);
+        }
+        checkpoint(start);
+        Set<String> remaining = device.heldAllocationIds();
+        CF.DevicePackage.UsageType usage = device.publishedUsageState();
+        if (!remaining.isEmpty() || usage != CF.DevicePackage.UsageType.IDLE) {
+            System.out.println("FrontendSoakLoad: device not idle after every client deallocated: usage " + usageName(usage) + ", held " + remaining);
+            leaked += remaining.size();
+        }
+        System.out.println("FrontendSoakLoad: hardware tuning " + device.tuning().failed() + "/" + device.tuning().performed() +
+                           " enabling " + device.enabling().failed() + "/" + device.enabling().performed() +
+                           " disabling " + device.disabling().failed() + "/" + device.disabling().performed() + " failed");
+        boolean passed = leaked == 0 && lost == 0 && usage_mismatches == 0;
+        System.out.println("FrontendSoakLoad: " + (passed ? "PASSED" : "FAILED") + " leaked " + leaked + " lost " + lost + " usage mismatches " + usage_mismatches);
+        return passed;
+    }
+
+    private void work() {
+        while (!stopped) {
+            Client client;
+            try {
+                client = due_clients.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (client == null)
+                continue;
+            pause_lock.readLock().lock();
+            try {
+                if (client.allocation_id == null) {
+                    boolean holding = allocate(client);
+                    client.due_ns = System.nanoTime() + delayNs(holding ? hold_ms : think_ms);
+                } else {
+                    release(client);
+                    client.due_ns = System.nanoTime() + delayNs(think_ms);
+                }
+            } finally {
+                pause_lock.readLock().unlock();
+            }
+            due_clients.add(client);
+        }
+    }
+
+    private boolean allocate(final Client client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean device_control = random.nextDouble() >= listener_ratio;
+        double rate = rates[random.nextInt(rates.length)];
+        String allocation_id = client.name + "-" + client.generation++;
+        long start = System.nanoTime();
+        boolean allocated_now;
+        try {
+            allocated_now = device.allocate(allocation_id, device_control, rate);
+        } catch (Exception e) {
+            errors.incrementAndGet();
+            allocated_now = false;
+        }
+        (device_control ? control_latency : listener_latency).record(start);
+        if (!allocated_now) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        allocated.incrementAndGet();
+        client.allocation_id = allocation_id;
+        client.device_control = device_control;
+        client.rate = rate;
+        return true;
+    }
+
+    private void release(final Client client) {
+        long start = System.nanoTime();
+        if (!device.deallocate(client.allocation_id, client.device_control, client.rate))
+            detached.incrementAndGet();
+        deallocate_latency.record(start);
+        client.allocation_id = null;
+    }
+
+    private void checkpoint(final long start) {
+        pause_lock.writeLock().lock();
+        try {
+            Set<String> held = device.heldAllocationIds();
+            Set<String> owned = new HashSet<String>();
+            long lost_now = 0;
+            for (Client client : clients) {
+                if (client.allocation_id == null)
+                    continue;
+                owned.add(client.allocation_id);
+                if (client.device_control && !held.contains(client.allocation_id))
+                    lost_now++;
+            }
+            long leaked_now = 0;
+            for (String allocation_id : held) {
+                if (!owned.contains(allocation_id))
+                    leaked_now++;
+            }
+            CF.DevicePackage.UsageType published = device.publishedUsageState();
+            CF.DevicePackage.UsageType counted = device.countedUsageState();
+            if (published != counted)
+                usage_mismatches++;
+            leaked += leaked_now;
+            lost += lost_now;
+            System.out.println("FrontendSoakLoad: " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s" +
+                               " allocated " + allocated.get() + " rejected " + rejected.get() + " errors " + errors.get() +
+                               " detached " + detached.get() + " held " + held.size() +
+                               " leaked " + leaked_now + " lost " + lost_now +
+                               " usage " + usageName(published) + ((published == counted) ? "" : " (counted " + usageName(counted) + ")"));
+            System.out.println("    control  " + control_latency.summary());
+            System.out.println("    listener " + listener_latency.summary());
+            System.out.println("    dealloc  " + deallocate_latency.summary());
+        } finally {
+            pause_lock.writeLock().unlock();
+        }
+    }
+
+    private static String usageName(final CF.DevicePackage.UsageType usage) {
+        switch (usage.value()) {
+            case CF.DevicePackage.UsageType._IDLE:
+                return "IDLE";
+            case CF.DevicePackage.UsageType._ACTIVE:
+                return "ACTIVE";
+            case CF.DevicePackage.UsageType._BUSY:
+                return "BUSY";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    private static long delayNs(final long mean_ms) {
+        if (mean_ms <= 0)
+            return 0;
+        double exponential = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+        return (long) (exponential * TimeUnit.MILLISECONDS.toNanos(mean_ms));
+    }
+}
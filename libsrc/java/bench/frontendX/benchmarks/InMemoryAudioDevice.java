@@ -0,0 +1,84 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import frontendX.FEXTypes;
+import frontendX.FrontendAudioDevice;
+
+/* InMemoryAudioDevice is a FrontendAudioDevice whose audio devices exist only in
+ * frontend_audio_status. Tuning, enabling and disabling an audio device only update its status,
+ * so the benchmarks measure the allocation engine and not the hardware.
+ */
+public class InMemoryAudioDevice extends FrontendAudioDevice<FEXTypes.default_frontend_audio_status_struct_struct> {
+
+    public static final String AUDIO_TYPE = "CAPTURE";
+
+    public InMemoryAudioDevice(final int audio_devices) {
+        super();
+        List<FEXTypes.default_frontend_audio_status_struct_struct> status = new ArrayList<FEXTypes.default_frontend_audio_status_struct_struct>();
+        audio_allocation_ids = new ArrayList<audioAllocationIdsStruct>();
+        for (int audio_device_id = 0; audio_device_id < audio_devices; audio_device_id++) {
+            FEXTypes.default_frontend_audio_status_struct_struct fts = new FEXTypes.default_frontend_audio_status_struct_struct();
+            fts.audio_type.setValue(AUDIO_TYPE);
+            fts.allocation_id_csv.setValue("");
+            status.add(fts);
+            audio_allocation_ids.add(new audioAllocationIdsStruct());
+        }
+        frontend_audio_status.setValue(status);
+    }
+
+    /* request returns a device control or listener request for an audio device of AUDIO_TYPE */
+    public static FEXTypes.frontend_audio_allocation_struct request(final String allocation_id, final boolean device_control, final double sample_rate) {
+        FEXTypes.frontend_audio_allocation_struct request = new FEXTypes.frontend_audio_allocation_struct();
+        request.allocation_id.setValue(allocation_id);
+        request.audio_type.setValue(AUDIO_TYPE);
+        request.device_control.setValue(device_control);
+        request.sample_rate.setValue(sample_rate);
+        request.full_bandwidth_channels.setValue((short)2);
+        request.low_frequency_effect_channels.setValue((short)0);
+        return request;
+    }
+
+    protected int serviceFunction() {
+        return NOOP;
+    }
+
+    protected void audioDeviceEnable(FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        fts.enabled.setValue(true);
+    }
+
+    protected void audioDeviceDisable(FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        fts.enabled.setValue(false);
+    }
+
+    protected boolean audioDeviceSetTuning(final FEXTypes.frontend_audio_allocation_struct request, FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        return true;
+    }
+
+    protected boolean audioDeviceDeleteTuning(FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        return true;
+    }
+
+    protected void removeAllocationIdRouting(final int audio_device_id) {
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import frontendX.FEXTypes;
+import frontendX.FrontendVideoDevice;
+
+/* InMemoryVideoDevice is a FrontendVideoDevice whose video devices exist only in
+ * frontend_video_status. Tuning, enabling and disabling a video device only update its status,
+ * so the benchmarks measure the allocation engine and not the hardware.
+ */
+public class InMemoryVideoDevice extends FrontendVideoDevice<FEXTypes.default_frontend_video_status_struct_struct> {
+
+    public static final String VIDEO_TYPE = "CAPTURE";
+
+    public InMemoryVideoDevice(final int video_devices) {
+        super();
+        List<FEXTypes.default_frontend_video_status_struct_struct> status = new ArrayList<FEXTypes.default_frontend_video_status_struct_struct>();
+        video_allocation_ids = new ArrayList<videoAllocationIdsStruct>();
+        for (int video_device_id = 0; video_device_id < video_devices; video_device_id++) {
+            FEXTypes.default_frontend_video_status_struct_struct fts = new FEXTypes.default_frontend_video_status_struct_struct();
+            fts.video_type.setValue(VIDEO_TYPE);
+            fts.allocation_id_csv.setValue("");
+            status.add(fts);
+            video_allocation_ids.add(new videoAllocationIdsStruct());
+        }
+        frontend_video_status.setValue(status);
+    }
+
+    /* request returns a device control or listener request for a video device of VIDEO_TYPE */
+    public static FEXTypes.frontend_video_allocation_struct request(final String allocation_id, final boolean device_control, final double fps) {
+        FEXTypes.frontend_video_allocation_struct request = new FEXTypes.frontend_video_allocation_struct();
+        request.allocation_id.setValue(allocation_id);
+        request.video_type.setValue(VIDEO_TYPE);
+        request.device_control.setValue(device_control);
+        request.fps.setValue(fps);
+        request.channels.setValue(1);
+        request.frame_height.setValue(480);
+        request.frame_width.setValue(640);
+        return request;
+    }
+
+    protected int serviceFunction() {
+        return NOOP;
+    }
+
+    protected void videoDeviceEnable(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        fts.enabled.setValue(true);
+    }
+
+    protected void videoDeviceDisable(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        fts.enabled.setValue(false);
+    }
+
+    protected boolean videoDeviceSetTuning(final FEXTypes.frontend_video_allocation_struct request, FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        return true;
+    }
+
+    protected boolean videoDeviceDeleteTuning(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        return true;
+    }
+
+    protected void removeAllocationIdRouting(final int video_device_id) {
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import frontendX.FEXTypes;
+import frontendX.FrontendAllocationPolicy;
+import frontendX.FrontendAudioDevice;
+
+/* SimulatedAudioDevice is a FrontendAudioDevice whose audio devices are simulated in process.
+ * Tuning, enabling and disabling an audio device take the time of, and fail as often as, the
+ * SimulatedOperation configured for them. An audio device whose enabling fails stays disabled,
+ * and one whose disabling fails stays enabled, as hardware would.
+ */
+public class SimulatedAudioDevice extends FrontendAudioDevice<FEXTypes.default_frontend_audio_status_struct_struct> implements SimulatedFrontendDevice {
+
+    private final String audio_type;
+    private final SimulatedOperation tuning = new SimulatedOperation();
+    private final SimulatedOperation enabling = new SimulatedOperation();
+    private final SimulatedOperation disabling = new SimulatedOperation();
+
+    public SimulatedAudioDevice(final int audio_devices, final String audio_type) {
+        super();
+        this.audio_type = audio_type;
+        List<FEXTypes.default_frontend_audio_status_struct_struct> status = new ArrayList<FEXTypes.default_frontend_audio_status_struct_struct>();
+        audio_allocation_ids = new ArrayList<audioAllocationIdsStruct>();
+        for (int audio_device_id = 0; audio_device_id < audio_devices; audio_device_id++) {
+            FEXTypes.default_frontend_audio_status_struct_struct fts = new FEXTypes.default_frontend_audio_status_struct_struct();
+            fts.audio_type.setValue(audio_type);
+            fts.allocation_id_csv.setValue("");
+            status.add(fts);
+            audio_allocation_ids.add(new audioAllocationIdsStruct());
+        }
+        frontend_audio_status.setValue(status);
+    }
+
+    public void setAllocationPolicy(final FrontendAllocationPolicy policy) {
+        setAudioAllocationPolicy(policy);
+    }
+
+    public SimulatedOperation tuning() {
+        return tuning;
+    }
+
+    public SimulatedOperation enabling() {
+        return enabling;
+    }
+
+    public SimulatedOperation disabling() {
+        return disabling;
+    }
+
+    public boolean allocate(final String allocation_id, final boolean device_control, final double sample_rate) throws Exception {
+        return allocateAudioDevice(request(allocation_id, device_control, sample_rate));
+    }
+
+    public boolean deallocate(final String allocation_id, final boolean device_control, final double sample_rate) {
+        // a listener may have been detached with its device control allocation
+        if (getAudioDeviceMapping(allocation_id) < 0)
+            return false;
+        deallocateAudioDevice(request(allocation_id, device_control, sample_rate));
+        return true;
+    }
+
+    public Set<String> heldAllocationIds() {
+        Set<String> held = new HashSet<String>();
+        for (int audio_device_id = 0; audio_device_id < audio_allocation_ids.size(); audio_device_id++) {
+            synchronized(audioDeviceLock(audio_device_id)) {
+                String control_allocation_id = getControlAllocationId(audio_device_id);
+                if (control_allocation_id != null && !control_allocation_id.isEmpty())
+                    held.add(control_allocation_id);
+                held.addAll(getListenerAllocationIds(audio_device_id));
+            }
+        }
+        return held;
+    }
+
+    public CF.DevicePackage.UsageType countedUsageState() {
+        int controlled = 0;
+        for (int audio_device_id = 0; audio_device_id < audio_allocation_ids.size(); audio_device_id++) {
+            String control_allocation_id = getControlAllocationId(audio_device_id);
+            if (control_allocation_id != null && !control_allocation_id.isEmpty())
+                controlled++;
+        }
+        if (controlled == 0)
+            return CF.DevicePackage.UsageType.IDLE;
+        if (controlled == audio_allocation_ids.size())
+            return CF.DevicePackage.UsageType.BUSY;
+        return CF.DevicePackage.UsageType.ACTIVE;
+    }
+
+    public CF.DevicePackage.UsageType publishedUsageState() {
+        return usageState();
+    }
+
+    private FEXTypes.frontend_audio_allocation_struct request(final String allocation_id, final boolean device_control, final double sample_rate) {
+        FEXTypes.frontend_audio_allocation_struct request = new FEXTypes.frontend_audio_allocation_struct();
+        request.allocation_id.setValue(allocation_id);
+        request.audio_type.setValue(audio_type);
+        request.device_control.setValue(device_control);
+        request.sample_rate.setValue(sample_rate);
+        request.full_bandwidth_channels.setValue((short)2);
+        request.low_frequency_effect_channels.setValue((short)0);
+        return request;
+    }
+
+    protected int serviceFunction() {
+        return NOOP;
+    }
+
+    protected boolean enableAudioDevice(int audio_device_id, boolean enable) {
+        FEXTypes.default_frontend_audio_status_struct_struct fts = frontend_audio_status.getValue().get(audio_device_id);
+        if (enable && !fts.enabled.getValue() && !enabling.perform())
+            return false;
+        return super.enableAudioDevice(audio_device_id, enable);
+    }
+
+    protected void audioDeviceEnable(FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        fts.enabled.setValue(true);
+    }
+
+    protected void audioDeviceDisable(FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        if (disabling.perform())
+            fts.enabled.setValue(false);
+    }
+
+    protected boolean audioDeviceSetTuning(final FEXTypes.frontend_audio_allocation_struct request, FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        return tuning.perform();
+    }
+
+    protected boolean audioDeviceDeleteTuning(FEXTypes.default_frontend_audio_status_struct_struct fts, int audio_device_id) {
+        return true;
+    }
+
+    protected void removeAllocationIdRouting(final int audio_device_id) {
+    }
+}
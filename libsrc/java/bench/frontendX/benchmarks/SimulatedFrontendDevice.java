@@ -0,0 +1,59 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.Set;
+
+import frontendX.FrontendAllocationPolicy;
+
+/* SimulatedFrontendDevice is what FrontendSoakLoad needs of a SimulatedVideoDevice or
+ * SimulatedAudioDevice: allocation by device type and rate (fps or sample_rate), and a view of
+ * the allocations and usage state of the device to check them against its clients.
+ */
+public interface SimulatedFrontendDevice {
+
+    /* Allocates a device control or listener allocation; false if it could not be satisfied */
+    boolean allocate(String allocation_id, boolean device_control, double rate) throws Exception;
+
+    /* Deallocates an allocation; false if the device did not hold it, e.g. a listener detached
+     * when its device control allocation was deallocated
+     */
+    boolean deallocate(String allocation_id, boolean device_control, double rate);
+
+    /* Returns the allocation ids of every device control and listener allocation held */
+    Set<String> heldAllocationIds();
+
+    /* Returns the usage state recounted from the allocations held */
+    CF.DevicePackage.UsageType countedUsageState();
+
+    /* Returns the usage state as last published by the device */
+    CF.DevicePackage.UsageType publishedUsageState();
+
+    /* Sets the allocation policy of the device; null restores first fit */
+    void setAllocationPolicy(FrontendAllocationPolicy policy);
+
+    SimulatedOperation tuning();
+
+    SimulatedOperation enabling();
+
+    SimulatedOperation disabling();
+
+    void releaseObject() throws CF.LifeCyclePackage.ReleaseError;
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* SimulatedOperation stands in for one hardware operation of a simulated device (tuning,
+ * enabling or disabling a video or audio device). perform() takes latency_us plus a uniformly
+ * distributed jitter of up to jitter_us, and fails with probability failure_rate. The settings
+ * may be changed while the device is in use.
+ */
+public class SimulatedOperation {
+
+    private volatile long latency_us;
+    private volatile long jitter_us;
+    private volatile double failure_rate;
+
+    private final AtomicLong performed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SimulatedOperation() {
+        this(0, 0, 0.0);
+    }
+
+    public SimulatedOperation(final long latency_us, final long jitter_us, final double failure_rate) {
+        set(latency_us, jitter_us, failure_rate);
+    }
+
+    public void set(final long latency_us, final long jitter_us, final double failure_rate) {
+        if (latency_us < 0 || jitter_us < 0 || failure_rate < 0 || failure_rate > 1)
+            throw new IllegalArgumentException("SimulatedOperation: latency and jitter must not be negative and the failure rate must lie in [0, 1]");
+        this.latency_us = latency_us;
+        this.jitter_us = jitter_us;
+        this.failure_rate = failure_rate;
+    }
+
+    /* Takes the simulated time of the operation and returns false if it failed */
+    public boolean perform() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay_us = latency_us;
+        if (jitter_us > 0)
+            delay_us += random.nextLong(jitter_us + 1);
+        if (delay_us > 0) {
+            try {
+                TimeUnit.MICROSECONDS.sleep(delay_us);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        performed.incrementAndGet();
+        if (failure_rate > 0 && random.nextDouble() < failure_rate) {
+            failed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public long performed() {
+        return performed.get();
+    }
+
+    public long failed() {
+        return failed.get();
+    }
+}
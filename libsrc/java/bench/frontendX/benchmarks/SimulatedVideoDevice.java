@@ -0,0 +1,159 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import frontendX.FEXTypes;
+import frontendX.FrontendAllocationPolicy;
+import frontendX.FrontendVideoDevice;
+
+/* SimulatedVideoDevice is a FrontendVideoDevice whose video devices are simulated in process.
+ * Tuning, enabling and disabling a video device take the time of, and fail as often as, the
+ * SimulatedOperation configured for them. A video device whose enabling fails stays disabled,
+ * and one whose disabling fails stays enabled, as hardware would.
+ */
+public class SimulatedVideoDevice extends FrontendVideoDevice<FEXTypes.default_frontend_video_status_struct_struct> implements SimulatedFrontendDevice {
+
+    private final String video_type;
+    private final SimulatedOperation tuning = new SimulatedOperation();
+    private final SimulatedOperation enabling = new SimulatedOperation();
+    private final SimulatedOperation disabling = new SimulatedOperation();
+
+    public SimulatedVideoDevice(final int video_devices, final String video_type) {
+        super();
+        this.video_type = video_type;
+        List<FEXTypes.default_frontend_video_status_struct_struct> status = new ArrayList<FEXTypes.default_frontend_video_status_struct_struct>();
+        video_allocation_ids = new ArrayList<videoAllocationIdsStruct>();
+        for (int video_device_id = 0; video_device_id < video_devices; video_device_id++) {
+            FEXTypes.default_frontend_video_status_struct_struct fts = new FEXTypes.default_frontend_video_status_struct_struct();
+            fts.video_type.setValue(video_type);
+            fts.allocation_id_csv.setValue("");
+            status.add(fts);
+            video_allocation_ids.add(new videoAllocationIdsStruct());
+        }
+        frontend_video_status.setValue(status);
+    }
+
+    public void setAllocationPolicy(final FrontendAllocationPolicy policy) {
+        setVideoAllocationPolicy(policy);
+    }
+
+    public SimulatedOperation tuning() {
+        return tuning;
+    }
+
+    public SimulatedOperation enabling() {
+        return enabling;
+    }
+
+    public SimulatedOperation disabling() {
+        return disabling;
+    }
+
+    public boolean allocate(final String allocation_id, final boolean device_control, final double fps) throws Exception {
+        return allocateVideo(request(allocation_id, device_control, fps));
+    }
+
+    public boolean deallocate(final String allocation_id, final boolean device_control, final double fps) {
+        // a listener may have been detached with its device control allocation
+        if (getVideoDeviceMapping(allocation_id) < 0)
+            return false;
+        deallocateVideo(request(allocation_id, device_control, fps));
+        return true;
+    }
+
+    public Set<String> heldAllocationIds() {
+        Set<String> held = new HashSet<String>();
+        for (int video_device_id = 0; video_device_id < video_allocation_ids.size(); video_device_id++) {
+            synchronized(videoDeviceLock(video_device_id)) {
+                String control_allocation_id = getControlAllocationId(video_device_id);
+                if (control_allocation_id != null && !control_allocation_id.isEmpty())
+                    held.add(control_allocation_id);
+                held.addAll(getListenerAllocationIds(video_device_id));
+            }
+        }
+        return held;
+    }
+
+    public CF.DevicePackage.UsageType countedUsageState() {
+        int controlled = 0;
+        for (int video_device_id = 0; video_device_id < video_allocation_ids.size(); video_device_id++) {
+            String control_allocation_id = getControlAllocationId(video_device_id);
+            if (control_allocation_id != null && !control_allocation_id.isEmpty())
+                controlled++;
+        }
+        if (controlled == 0)
+            return CF.DevicePackage.UsageType.IDLE;
+        if (controlled == video_allocation_ids.size())
+            return CF.DevicePackage.UsageType.BUSY;
+        return CF.DevicePackage.UsageType.ACTIVE;
+    }
+
+    public CF.DevicePackage.UsageType publishedUsageState() {
+        return usageState();
+    }
+
+    private FEXTypes.frontend_video_allocation_struct request(final String allocation_id, final boolean device_control, final double fps) {
+        FEXTypes.frontend_video_allocation_struct request = new FEXTypes.frontend_video_allocation_struct();
+        request.allocation_id.setValue(allocation_id);
+        request.video_type.setValue(video_type);
+        request.device_control.setValue(device_control);
+        request.fps.setValue(fps);
+        request.channels.setValue(1);
+        request.frame_height.setValue(480);
+        request.frame_width.setValue(640);
+        return request;
+    }
+
+    protected int serviceFunction() {
+        return NOOP;
+    }
+
+    protected boolean enableVideoDevice(int video_device_id, boolean enable) {
+        FEXTypes.default_frontend_video_status_struct_struct fts = frontend_video_status.getValue().get(video_device_id);
+        if (enable && !fts.enabled.getValue() && !enabling.perform())
+            return false;
+        return super.enableVideoDevice(video_device_id, enable);
+    }
+
+    protected void videoDeviceEnable(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        fts.enabled.setValue(true);
+    }
+
+    protected void videoDeviceDisable(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        if (disabling.perform())
+            fts.enabled.setValue(false);
+    }
+
+    protected boolean videoDeviceSetTuning(final FEXTypes.frontend_video_allocation_struct request, FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        return tuning.perform();
+    }
+
+    protected boolean videoDeviceDeleteTuning(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        return true;
+    }
+
+    protected void removeAllocationIdRouting(final int video_device_id) {
+    }
+}
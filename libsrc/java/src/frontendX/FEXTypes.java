@@ -28,6 +28,7 @@ import org.ossie.properties.Kind;
 import org.ossie.properties.Mode;
 import org.ossie.properties.BooleanProperty;
 import org.ossie.properties.DoubleProperty;
+import org.ossie.properties.LongLongProperty;
 import org.ossie.properties.LongProperty;
 import org.ossie.properties.StringProperty;
 import org.ossie.properties.StructDef;
@@ -181,6 +182,24 @@ public class FEXTypes {
                 Action.EXTERNAL, //action
                 new Kind[] {Kind.CONFIGURE} //kind
                 );
+        public final BooleanProperty quarantined =
+            new BooleanProperty(
+                "FRONTEND::audio_status::quarantined", //id
+                "quarantined", //name
+                false, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final LongProperty tuning_failures =
+            new LongProperty(
+                "FRONTEND::audio_status::tuning_failures", //id
+                "tuning_failures", //name
+                0, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
     
         /**
          * @generated
@@ -192,6 +211,8 @@ public class FEXTypes {
             addElement(this.low_frequency_effect_channels);
             addElement(this.enabled);
             addElement(this.sample_rate);
+            addElement(this.quarantined);
+            addElement(this.tuning_failures);
         }
     
         public String getId() {
@@ -363,6 +384,24 @@ public class FEXTypes {
                 Action.EXTERNAL, //action
                 new Kind[] {Kind.CONFIGURE} //kind
                 );
+        public final BooleanProperty quarantined =
+            new BooleanProperty(
+                "FRONTEND::video_status::quarantined", //id
+                "quarantined", //name
+                false, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final LongProperty tuning_failures =
+            new LongProperty(
+                "FRONTEND::video_status::tuning_failures", //id
+                "tuning_failures", //name
+                0, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
     
         /**
          * @generated
@@ -375,10 +414,85 @@ public class FEXTypes {
             addElement(this.frame_width);
             addElement(this.fps);
             addElement(this.enabled);
+            addElement(this.quarantined);
+            addElement(this.tuning_failures);
         }
     
         public String getId() {
             return "frontend_video_status_struct";
         }
     }
+
+    public static class frontend_allocation_metric_struct extends StructDef {
+        public final StringProperty name =
+            new StringProperty(
+                "FRONTEND::allocation_metric::name", //id
+                "name", //name
+                null, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final LongLongProperty count =
+            new LongLongProperty(
+                "FRONTEND::allocation_metric::count", //id
+                "count", //name
+                0L, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final DoubleProperty mean_us =
+            new DoubleProperty(
+                "FRONTEND::allocation_metric::mean_us", //id
+                "mean_us", //name
+                0.0, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final DoubleProperty p50_us =
+            new DoubleProperty(
+                "FRONTEND::allocation_metric::p50_us", //id
+                "p50_us", //name
+                0.0, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final DoubleProperty p99_us =
+            new DoubleProperty(
+                "FRONTEND::allocation_metric::p99_us", //id
+                "p99_us", //name
+                0.0, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+        public final DoubleProperty max_us =
+            new DoubleProperty(
+                "FRONTEND::allocation_metric::max_us", //id
+                "max_us", //name
+                0.0, //default value
+                Mode.READWRITE, //mode
+                Action.EXTERNAL, //action
+                new Kind[] {Kind.CONFIGURE} //kind
+                );
+    
+        /**
+         * @generated
+         */
+        public frontend_allocation_metric_struct() {
+            addElement(this.name);
+            addElement(this.count);
+            addElement(this.mean_us);
+            addElement(this.p50_us);
+            addElement(this.p99_us);
+            addElement(this.max_us);
+        }
+    
+        public String getId() {
+            return "frontend_allocation_metric_struct";
+        }
+    }
 }
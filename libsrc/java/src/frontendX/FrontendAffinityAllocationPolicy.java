@@ -0,0 +1,81 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* FrontendAffinityAllocationPolicy places allocations on the device their caller hinted at. A
+ * hint maps an allocation id prefix to a device id; an allocation whose id starts with the prefix
+ * tries that device first, and the longest matching prefix wins. The other candidates, and all
+ * of them for an allocation without a hint, are ranked by the fallback policy.
+ */
+public class FrontendAffinityAllocationPolicy implements FrontendAllocationPolicy {
+
+    private final FrontendAllocationPolicy fallback;
+    private final ConcurrentHashMap<String, Integer> preferred_devices = new ConcurrentHashMap<String, Integer>();
+
+    public FrontendAffinityAllocationPolicy() {
+        this(FIRST_FIT);
+    }
+
+    public FrontendAffinityAllocationPolicy(final FrontendAllocationPolicy fallback) {
+        this.fallback = (fallback == null) ? FIRST_FIT : fallback;
+    }
+
+    /* prefer hints that allocations whose allocation id starts with allocation_id_prefix should
+     * be placed on device_id, replacing an earlier hint for the same prefix
+     */
+    public void prefer(final String allocation_id_prefix, final int device_id) {
+        preferred_devices.put(allocation_id_prefix, device_id);
+    }
+
+    public void forget(final String allocation_id_prefix) {
+        preferred_devices.remove(allocation_id_prefix);
+    }
+
+    /* Returns the device hinted for an allocation id, or -1 if there is none */
+    public int preferredDevice(final String allocation_id) {
+        int device_id = -1;
+        int matched_length = -1;
+        for (Map.Entry<String, Integer> hint : preferred_devices.entrySet()) {
+            String prefix = hint.getKey();
+            if (prefix.length() > matched_length && allocation_id.startsWith(prefix)) {
+                device_id = hint.getValue();
+                matched_length = prefix.length();
+            }
+        }
+        return device_id;
+    }
+
+    public void rank(final String allocation_id, final boolean device_control, final List<Candidate> candidates) {
+        fallback.rank(allocation_id, device_control, candidates);
+        int device_id = preferredDevice(allocation_id);
+        if (device_id < 0)
+            return;
+        for (int idx = 0; idx < candidates.size(); idx++) {
+            if (candidates.get(idx).device_id == device_id) {
+                candidates.add(0, candidates.remove(idx));
+                return;
+            }
+        }
+    }
+}
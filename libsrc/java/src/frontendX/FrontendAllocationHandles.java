@@ -0,0 +1,501 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* FrontendAllocationHandles interns the allocation ids of a FrontendVideoDevice or
+ * FrontendAudioDevice into small int handles. An allocation id string is hashed once, where
+ * it enters the device (allocate, deallocate or a port call); the device an allocation is
+ * mapped to is kept in an int table indexed by handle, and the listeners of a device are
+ * kept as a HandleList, an insertion-ordered hash set of handles.
+ *
+ * reserve() hands out a handle for an allocation id that is not in use and marks it PENDING,
+ * map() assigns it to a device, and release() frees it for reuse by a later allocation id.
+ * Lookups do not lock; reserve, map and release are synchronized on the table.
+ *
+ * A mapped handle may hold a lease: a time to live after which expired() reports it, unless it
+ * is renewed first. map() gives every handle the default lease, if one is set.
+ *
+ * The device base classes used to keep a HashMap from allocation id to device and an ArrayList of
+ * listener allocation ids per device, which device implementations could read and write. They
+ * are now the read-only views deviceMap() and allocationIds() of this table: reading them works
+ * as before, but changing them throws UnsupportedOperationException. Allocations are made and
+ * released through the device base classes only.
+ */
+class FrontendAllocationHandles {
+
+    static final int NO_HANDLE = -1;
+    static final int NO_DEVICE = -1;
+    // device of a handle that has been reserved but not yet mapped
+    static final int PENDING = -2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final ConcurrentHashMap<String, Integer> handles = new ConcurrentHashMap<String, Integer>();
+    private volatile AtomicReferenceArray<String> allocation_ids = new AtomicReferenceArray<String>(INITIAL_CAPACITY);
+    private volatile AtomicIntegerArray devices = new AtomicIntegerArray(INITIAL_CAPACITY);
+    // time to live of the lease of each handle in nanoseconds, 0 if it has none, and when it
+    // expires in System.nanoTime() terms
+    private volatile AtomicLongArray lease_ttls = new AtomicLongArray(INITIAL_CAPACITY);
+    private volatile AtomicLongArray lease_deadlines = new AtomicLongArray(INITIAL_CAPACITY);
+    private volatile long default_lease_ns = 0;
+
+    private int[] free_handles = new int[INITIAL_CAPACITY];
+    private int free_handle_count = 0;
+    private int next_handle = 0;
+
+    /* Reserves a handle for allocation_id and returns it, or returns NO_HANDLE if the
+     * allocation id is already reserved or mapped.
+     */
+    synchronized int reserve(final String allocation_id) {
+        if (handles.containsKey(allocation_id))
+            return NO_HANDLE;
+        int handle;
+        if (free_handle_count > 0) {
+            handle = free_handles[--free_handle_count];
+        } else {
+            handle = next_handle++;
+            if (handle == devices.length())
+                grow();
+        }
+        allocation_ids.set(handle, allocation_id);
+        devices.set(handle, PENDING);
+        handles.put(allocation_id, handle);
+        return handle;
+    }
+
+    /* Maps a reserved handle to a device */
+    synchronized void map(final int handle, final int device_id) {
+        devices.set(handle, device_id);
+        if (default_lease_ns > 0)
+            lease(handle, default_lease_ns);
+    }
+
+    /* Sets the lease given to handles as they are mapped; 0 gives none */
+    void setDefaultLease(final long ttl_ns) {
+        default_lease_ns = Math.max(0, ttl_ns);
+    }
+
+    /* Gives a mapped handle a lease of ttl_ns from now, or removes its lease if ttl_ns is 0.
+     * Returns false if the handle is not mapped.
+     */
+    synchronized boolean lease(final int handle, final long ttl_ns) {
+        if (deviceOf(handle) == NO_DEVICE)
+            return false;
+        lease_ttls.set(handle, Math.max(0, ttl_ns));
+        lease_deadlines.set(handle, System.nanoTime() + ttl_ns);
+        return true;
+    }
+
+    /* Extends the lease of a mapped handle to its time to live from now. Returns false if the
+     * handle is not mapped or has no lease.
+     */
+    synchronized boolean renew(final int handle) {
+        if (deviceOf(handle) == NO_DEVICE || lease_ttls.get(handle) == 0)
+            return false;
+        lease_deadlines.set(handle, System.nanoTime() + lease_ttls.get(handle));
+        return true;
+    }
+
+    /* Returns whether the lease of a mapped handle ran out by now, a System.nanoTime() */
+    boolean leaseExpired(final int handle, final long now) {
+        if (deviceOf(handle) == NO_DEVICE)
+            return false;
+        AtomicLongArray ttls = lease_ttls;
+        AtomicLongArray deadlines = lease_deadlines;
+        return ttls.get(handle) > 0 && now - deadlines.get(handle) >= 0;
+    }
+
+    /* Returns the allocation ids of the mapped handles whose lease ran out by now, a
+     * System.nanoTime(), in handle order
+     */
+    List<String> expired(final long now) {
+        List<String> expired_allocation_ids = new ArrayList<String>();
+        AtomicLongArray ttls = lease_ttls;
+        AtomicLongArray deadlines = lease_deadlines;
+        for (int handle = 0; handle < ttls.length(); handle++) {
+            if (ttls.get(handle) == 0 || now - deadlines.get(handle) < 0 || deviceOf(handle) == NO_DEVICE)
+                continue;
+            String allocation_id = allocationIdOf(handle);
+            if (allocation_id != null)
+                expired_allocation_ids.add(allocation_id);
+        }
+        return expired_allocation_ids;
+    }
+
+    /* Frees a handle mapped to device_id. Returns false if it is not mapped to that device. */
+    synchronized boolean release(final int handle, final int device_id) {
+        if (handle < 0 || handle >= next_handle || devices.get(handle) != device_id)
+            return false;
+        free(handle);
+        return true;
+    }
+
+    /* Frees a handle that is still PENDING for the allocation id string it was reserved with.
+     * The id is compared by reference, so a handle that has since been mapped, released and
+     * reserved again for another request is left alone.
+     */
+    synchronized boolean releasePending(final int handle, final String allocation_id) {
+        if (handle < 0 || handle >= next_handle || devices.get(handle) != PENDING || allocation_ids.get(handle) != allocation_id)
+            return false;
+        free(handle);
+        return true;
+    }
+
+    /* Returns the number of reserved and mapped allocation ids */
+    int size() {
+        return handles.size();
+    }
+
+    int handleOf(final String allocation_id) {
+        if (allocation_id == null)
+            return NO_HANDLE;
+        Integer handle = handles.get(allocation_id);
+        return (handle == null) ? NO_HANDLE : handle;
+    }
+
+    String allocationIdOf(final int handle) {
+        AtomicReferenceArray<String> ids = allocation_ids;
+        return (handle < 0 || handle >= ids.length()) ? null : ids.get(handle);
+    }
+
+    /* Returns the device a handle is mapped to, or NO_DEVICE if it is free or PENDING */
+    int deviceOf(final int handle) {
+        AtomicIntegerArray mapped = devices;
+        if (handle < 0 || handle >= mapped.length())
+            return NO_DEVICE;
+        int device_id = mapped.get(handle);
+        return (device_id < 0) ? NO_DEVICE : device_id;
+    }
+
+    /* Returns the device an allocation id is mapped to, or NO_DEVICE if it is not mapped */
+    int deviceOf(final String allocation_id) {
+        int handle = handleOf(allocation_id);
+        if (handle == NO_HANDLE)
+            return NO_DEVICE;
+        int device_id = deviceOf(handle);
+        // the handle may have been released and handed to another allocation id meanwhile
+        if (device_id == NO_DEVICE || !allocation_id.equals(allocationIdOf(handle)))
+            return NO_DEVICE;
+        return device_id;
+    }
+
+    /* Returns a read-only view of the allocation ids of a list of handles. Iterating it follows the
+     * list. get(index) reads an array of the handles in list order, built on the first get() after
+     * the list changed, so looping over get() costs one pass over the list, not one per index.
+     */
+    List<String> allocationIds(final HandleList list) {
+        return new AbstractList<String>() {
+            // the handles of the list in order, as of modification count indexed_at
+            private volatile int[] indexed = null;
+            private volatile int indexed_at = -1;
+            public String get(int index) {
+                int[] indexed_handles = indexed;
+                int modifications = list.modifications();
+                if (indexed_handles == null || indexed_at != modifications) {
+                    indexed_handles = new int[list.size()];
+                    int count = 0;
+                    for (int position = list.first(); position != HandleList.END && count < indexed_handles.length; position = list.next(position)) {
+                        indexed_handles[count++] = list.handleAt(position);
+                    }
+                    indexed_handles = Arrays.copyOf(indexed_handles, count);
+                    indexed = indexed_handles;
+                    indexed_at = modifications;
+                }
+                if (index < 0 || index >= indexed_handles.length)
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + indexed_handles.length);
+                return allocationIdOf(indexed_handles[index]);
+            }
+            public int size() {
+                return list.size();
+            }
+            public Iterator<String> iterator() {
+                return new Iterator<String>() {
+                    private int position = list.first();
+                    public boolean hasNext() {
+                        return position != HandleList.END;
+                    }
+                    public String next() {
+                        if (position == HandleList.END)
+                            throw new NoSuchElementException();
+                        String allocation_id = allocationIdOf(list.handleAt(position));
+                        position = list.next(position);
+                        return allocation_id;
+                    }
+                };
+            }
+        };
+    }
+
+    /* Returns a read-only view of the mapped allocation ids and the device each is mapped to.
+     * get and containsKey are lookups; iterating it, or its size, visits every allocation id.
+     */
+    Map<String, Integer> deviceMap() {
+        return new AbstractMap<String, Integer>() {
+            public Integer get(Object allocation_id) {
+                if (!(allocation_id instanceof String))
+                    return null;
+                int device_id = deviceOf((String) allocation_id);
+                return (device_id == NO_DEVICE) ? null : device_id;
+            }
+            public boolean containsKey(Object allocation_id) {
+                return get(allocation_id) != null;
+            }
+            public Set<Map.Entry<String, Integer>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Integer>>() {
+                    public int size() {
+                        int size = 0;
+                        for (Iterator<Map.Entry<String, Integer>> iter = iterator(); iter.hasNext(); iter.next()) {
+                            size++;
+                        }
+                        return size;
+                    }
+                    public Iterator<Map.Entry<String, Integer>> iterator() {
+                        final Iterator<String> allocation_ids = handles.keySet().iterator();
+                        return new Iterator<Map.Entry<String, Integer>>() {
+                            private Map.Entry<String, Integer> next = advance();
+                            private Map.Entry<String, Integer> advance() {
+                                while (allocation_ids.hasNext()) {
+                                    String allocation_id = allocation_ids.next();
+                                    int device_id = deviceOf(allocation_id);
+                                    // PENDING allocation ids are not mapped yet
+                                    if (device_id != NO_DEVICE)
+                                        return new AbstractMap.SimpleImmutableEntry<String, Integer>(allocation_id, device_id);
+                                }
+                                return null;
+                            }
+                            public boolean hasNext() {
+                                return next != null;
+                            }
+                            public Map.Entry<String, Integer> next() {
+                                if (next == null)
+                                    throw new NoSuchElementException();
+                                Map.Entry<String, Integer> entry = next;
+                                next = advance();
+                                return entry;
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    private void free(final int handle) {
+        handles.remove(allocation_ids.get(handle));
+        allocation_ids.set(handle, null);
+        devices.set(handle, NO_DEVICE);
+        lease_ttls.set(handle, 0);
+        if (free_handle_count == free_handles.length)
+            free_handles = Arrays.copyOf(free_handles, free_handles.length * 2);
+        free_handles[free_handle_count++] = handle;
+    }
+
+    private void grow() {
+        int capacity = devices.length() * 2;
+        AtomicReferenceArray<String> grown_ids = new AtomicReferenceArray<String>(capacity);
+        AtomicIntegerArray grown_devices = new AtomicIntegerArray(capacity);
+        AtomicLongArray grown_lease_ttls = new AtomicLongArray(capacity);
+        AtomicLongArray grown_lease_deadlines = new AtomicLongArray(capacity);
+        for (int handle = 0; handle < devices.length(); handle++) {
+            grown_ids.set(handle, allocation_ids.get(handle));
+            grown_devices.set(handle, devices.get(handle));
+            grown_lease_ttls.set(handle, lease_ttls.get(handle));
+            grown_lease_deadlines.set(handle, lease_deadlines.get(handle));
+        }
+        allocation_ids = grown_ids;
+        devices = grown_devices;
+        lease_ttls = grown_lease_ttls;
+        lease_deadlines = grown_lease_deadlines;
+    }
+
+    /* HandleList is a set of allocation handles that keeps them in insertion order, with constant
+     * time add, remove and contains however many handles it holds. It is a hash table of entries
+     * chained per bucket and linked in insertion order; removed entries are reused. Iterate it with
+     * first(), next() and handleAt(). It is not synchronized; the device base classes guard each
+     * list with its device lock.
+     */
+    static class HandleList {
+
+        // end of a bucket chain or of the insertion order, and the position after the last handle
+        static final int END = -1;
+
+        private static final int INITIAL_CAPACITY = 4;
+
+        // per entry: its handle, the next entry in its bucket (or in the free list), and the
+        // entries before and after it in insertion order
+        private int[] handles = new int[INITIAL_CAPACITY];
+        private int[] chain = new int[INITIAL_CAPACITY];
+        private int[] before = new int[INITIAL_CAPACITY];
+        private int[] after = new int[INITIAL_CAPACITY];
+        private int[] buckets = newBuckets(INITIAL_CAPACITY);
+        private int head = END;
+        private int tail = END;
+        private int free = END;
+        // entries handed out so far, live or free
+        private int used = 0;
+        private int size = 0;
+        // changes made to the list, so a view can tell whether what it indexed is current
+        private int modifications = 0;
+
+        int size() {
+            return size;
+        }
+
+        int modifications() {
+            return modifications;
+        }
+
+        /* Returns the position of the first handle, or END if the list is empty */
+        int first() {
+            return head;
+        }
+
+        /* Returns the position after position, or END */
+        int next(final int position) {
+            return after[position];
+        }
+
+        int handleAt(final int position) {
+            return handles[position];
+        }
+
+        boolean contains(final int handle) {
+            return entryOf(handle) != END;
+        }
+
+        /* Appends handle, returning false if it is already in the list */
+        boolean add(final int handle) {
+            if (entryOf(handle) != END)
+                return false;
+            int entry;
+            if (free != END) {
+                entry = free;
+                free = chain[entry];
+            } else {
+                if (used == handles.length)
+                    grow();
+                entry = used++;
+            }
+            handles[entry] = handle;
+            int bucket = bucketOf(handle, buckets.length);
+            chain[entry] = buckets[bucket];
+            buckets[bucket] = entry;
+            before[entry] = tail;
+            after[entry] = END;
+            if (tail == END)
+                head = entry;
+            else
+                after[tail] = entry;
+            tail = entry;
+            size++;
+            modifications++;
+            return true;
+        }
+
+        /* Removes handle, returning false if it is not in the list */
+        boolean remove(final int handle) {
+            int bucket = bucketOf(handle, buckets.length);
+            int previous = END;
+            for (int entry = buckets[bucket]; entry != END; previous = entry, entry = chain[entry]) {
+                if (handles[entry] != handle)
+                    continue;
+                if (previous == END)
+                    buckets[bucket] = chain[entry];
+                else
+                    chain[previous] = chain[entry];
+                if (before[entry] == END)
+                    head = after[entry];
+                else
+                    after[before[entry]] = after[entry];
+                if (after[entry] == END)
+                    tail = before[entry];
+                else
+                    before[after[entry]] = before[entry];
+                chain[entry] = free;
+                free = entry;
+                size--;
+                modifications++;
+                return true;
+            }
+            return false;
+        }
+
+        void clear() {
+            Arrays.fill(buckets, END);
+            head = END;
+            tail = END;
+            free = END;
+            used = 0;
+            size = 0;
+            modifications++;
+        }
+
+        private int entryOf(final int handle) {
+            for (int entry = buckets[bucketOf(handle, buckets.length)]; entry != END; entry = chain[entry]) {
+                if (handles[entry] == handle)
+                    return entry;
+            }
+            return END;
+        }
+
+        /* Doubles the entries and the buckets. Only called with every entry in use, so the
+         * entries keep their positions and only the bucket chains are rebuilt.
+         */
+        private void grow() {
+            int capacity = handles.length * 2;
+            handles = Arrays.copyOf(handles, capacity);
+            chain = Arrays.copyOf(chain, capacity);
+            before = Arrays.copyOf(before, capacity);
+            after = Arrays.copyOf(after, capacity);
+            buckets = newBuckets(capacity);
+            for (int entry = 0; entry < used; entry++) {
+                int bucket = bucketOf(handles[entry], capacity);
+                chain[entry] = buckets[bucket];
+                buckets[bucket] = entry;
+            }
+        }
+
+        private static int[] newBuckets(final int capacity) {
+            int[] buckets = new int[capacity];
+            Arrays.fill(buckets, END);
+            return buckets;
+        }
+
+        // handles are handed out densely from 0, so the low bits alone spread them well
+        private static int bucketOf(final int handle, final int capacity) {
+            return (handle ^ (handle >>> 16)) & (capacity - 1);
+        }
+    }
+}
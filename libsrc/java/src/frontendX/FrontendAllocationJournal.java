@@ -0,0 +1,583 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/* FrontendAllocationJournal records the allocations of a FrontendVideoDevice or
+ * FrontendAudioDevice in an append-only, memory-mapped file, so that a restarted device can
+ * restore them instead of having every client allocate again.
+ *
+ * A record is a device control allocation with the request it was tuned for, a listener
+ * allocation, the release of an allocation or the release of everything on a device. Opening a
+ * journal reads it back into the allocations still live, in the order they were made; entries()
+ * returns them. Records are written to the mapping and survive the device process going away
+ * without a sync; they do not survive the host going down unless the page cache has been written
+ * back. A record is only counted once its length, written last, is in place and its checksum
+ * matches, so a record torn by a crash ends the journal.
+ *
+ * Once the file holds COMPACT_RATIO times more records than there are live allocations, and at
+ * least COMPACT_MIN_RECORDS, compactionDue() tells the writer to compact() it on a thread of its
+ * own: the live allocations are written to a new file that atomically replaces it. Appends go on
+ * while the new file is written, and are copied over when it replaces the journal.
+ *
+ * A journal that cannot be written is closed; the append functions then return false. A record
+ * whose allocation id is too long to be recorded, see accepts(), is skipped instead.
+ *
+ * One device writes a journal; devices on the same host may follow it as standbys. The writer
+ * counts heartbeats in the header, and a follower maps the file read only and reads the records as
+ * they are appended, without locking: a record it sees before the writer has finished it fails its
+ * checksum and is read again on the next follow(). A follower times the heartbeat with its own
+ * clock, from the last time it saw the count change, and when it stops a follower can takeOver()
+ * the journal.
+ *
+ * Following only keeps the allocations read; a follower that takes over still restores them all
+ * and retunes its devices then, so taking over is a cold recovery that starts from an up to date
+ * journal rather than a hot standby.
+ *
+ * Taking over, or opening a journal to write it, claims the journal: under a lock on the header it
+ * increments the writer epoch, which a follower only does if neither the epoch nor the heartbeat
+ * has changed since it judged the writer gone. The claim comes before any record is touched. A
+ * writer appends each record, from the epoch check to setting the record's length, under the same
+ * lock, and stops writing once the epoch has changed, so no record of the previous writer is
+ * finished after a claim. A compacted journal replaces the file, and is marked superseded, under
+ * the lock too, so followers move on to the file that replaced it and a claim made meanwhile fails.
+ */
+class FrontendAllocationJournal {
+
+    static final byte CONTROL = 1;
+    static final byte LISTENER = 2;
+    static final byte RELEASE = 3;
+    static final byte RELEASE_DEVICE = 4;
+
+    private static final int MAGIC = 0x46454a31;
+    // header: magic, superseded flag, writer epoch, then the writer heartbeat count
+    private static final int SUPERSEDED_OFFSET = 4;
+    private static final int EPOCH_OFFSET = 8;
+    private static final int HEARTBEAT_OFFSET = 16;
+    private static final int HEADER_SIZE = 32;
+    // record: length, then type, device id, allocation id length and bytes, payload length and bytes, crc
+    private static final int RECORD_OVERHEAD = 4 + 1 + 4 + 2 + 4 + 4;
+    private static final int MAX_ALLOCATION_ID_LENGTH = 0xffff;
+    private static final int INITIAL_SIZE = 1 << 20;
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_RECORDS = 4096;
+
+    /* Entry is a live allocation read back from the journal */
+    static class Entry {
+        final byte type;
+        final int device_id;
+        final String allocation_id;
+        // the encoded request of a device control allocation, empty for a listener
+        final byte[] payload;
+
+        Entry(final byte type, final int device_id, final String allocation_id, final byte[] payload) {
+            this.type = type;
+            this.device_id = device_id;
+            this.allocation_id = allocation_id;
+            this.payload = payload;
+        }
+    }
+
+    private final Path path;
+    private final LinkedHashMap<String, Entry> live = new LinkedHashMap<String, Entry>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int records = 0;
+    private boolean closed = false;
+    private boolean writer;
+    // records after which compactionDue() next asks for a compaction, and whether it has
+    private int compact_at = COMPACT_MIN_RECORDS;
+    private boolean compaction_due = false;
+    // the records appended while a compaction writes the new file, null if none is running
+    private List<Entry> appended_while_compacting = null;
+    // the writer epoch this journal wrote under
+    private int epoch = 0;
+    // the epoch and heartbeat count a follower last saw, and when it saw them change
+    private int seen_epoch = 0;
+    private long seen_heartbeat = 0;
+    private long seen_ns = System.nanoTime();
+
+    // serializes the claims made in this process, which the file lock does not
+    private static final Object claims = new Object();
+
+    /* Opens the journal at path to write it, creating it if it does not exist, and reads it back */
+    FrontendAllocationJournal(final Path path) throws IOException {
+        this(path, true);
+    }
+
+    /* Opens the journal at path to write it or, if writer is false, to follow it */
+    FrontendAllocationJournal(final Path path, final boolean writer) throws IOException {
+        this.path = path;
+        this.writer = writer;
+        open();
+        if (writer)
+            claim();
+    }
+
+    /* Returns false for an allocation id too long to be recorded */
+    static boolean accepts(final String allocation_id) {
+        return allocation_id.getBytes(StandardCharsets.UTF_8).length <= MAX_ALLOCATION_ID_LENGTH;
+    }
+
+    /* Returns the live allocations, in the order they were made */
+    synchronized List<Entry> entries() {
+        return new ArrayList<Entry>(live.values());
+    }
+
+    synchronized boolean control(final int device_id, final String allocation_id, final byte[] request) {
+        return append(new Entry(CONTROL, device_id, allocation_id, request));
+    }
+
+    synchronized boolean listener(final int device_id, final String allocation_id) {
+        return append(new Entry(LISTENER, device_id, allocation_id, new byte[0]));
+    }
+
+    synchronized boolean release(final String allocation_id) {
+        return append(new Entry(RELEASE, -1, allocation_id, new byte[0]));
+    }
+
+    /* Records the release of every allocation on a device */
+    synchronized boolean releaseDevice(final int device_id) {
+        return append(new Entry(RELEASE_DEVICE, device_id, "", new byte[0]));
+    }
+
+    /* Records that the writer is alive. Returns false if the journal is closed, or has been taken
+     * over by another writer, in which case it is closed.
+     */
+    synchronized boolean heartbeat() {
+        if (closed || !writer)
+            return false;
+        if (fenced()) {
+            close();
+            return false;
+        }
+        buffer.putLong(HEARTBEAT_OFFSET, buffer.getLong(HEARTBEAT_OFFSET) + 1);
+        return true;
+    }
+
+    /* Returns how long ago a follower last saw the writer record that it was alive, in
+     * milliseconds, as of the last follow()
+     */
+    synchronized long heartbeatAge() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - seen_ns);
+    }
+
+    /* Reads the records appended since the last call. If the journal has been compacted, the file
+     * that replaced it is read from the start. Followers only.
+     */
+    synchronized void follow() throws IOException {
+        if (closed || writer)
+            return;
+        if (channel == null || buffer.capacity() < HEADER_SIZE || buffer.getInt(SUPERSEDED_OFFSET) != 0) {
+            // not started when it was opened, or replaced by a compacted journal
+            if (channel != null)
+                channel.close();
+            open();
+        } else if (channel.size() > buffer.capacity()) {
+            int position = buffer.position();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.position(position);
+        }
+        if (buffer == null || buffer.capacity() < HEADER_SIZE)
+            return;
+        if (buffer.getInt(0) != MAGIC && buffer.getInt(0) != 0)
+            throw new IOException(path + " is not an allocation journal");
+        int current_epoch = buffer.getInt(EPOCH_OFFSET);
+        long current_heartbeat = buffer.getLong(HEARTBEAT_OFFSET);
+        if (current_epoch != seen_epoch || current_heartbeat != seen_heartbeat) {
+            seen_epoch = current_epoch;
+            seen_heartbeat = current_heartbeat;
+            seen_ns = System.nanoTime();
+        }
+        replay();
+    }
+
+    /* Makes a follower the writer of the journal, after reading what the previous writer left.
+     * Returns false, and goes on following, if the writer has recorded a heartbeat or another
+     * device has claimed the journal since the last follow().
+     */
+    synchronized boolean takeOver() throws IOException {
+        if (closed || writer)
+            return writer && !closed;
+        int expected_epoch = seen_epoch;
+        long expected_heartbeat = seen_heartbeat;
+        follow();
+        if (seen_epoch != expected_epoch || seen_heartbeat != expected_heartbeat)
+            return false;
+        FileChannel write_channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer write_buffer;
+        try {
+            write_buffer = write_channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, write_channel.size()));
+            if (!claim(write_channel, write_buffer, expected_epoch, expected_heartbeat)) {
+                write_channel.close();
+                return false;
+            }
+        } catch (IOException e) {
+            write_channel.close();
+            throw e;
+        }
+        int position = (buffer == null) ? HEADER_SIZE : Math.max(HEADER_SIZE, buffer.position());
+        if (channel != null)
+            channel.close();
+        channel = write_channel;
+        buffer = write_buffer;
+        writer = true;
+        // the records the previous writer finished before the claim are read, and whatever it left
+        // half written is truncated; it cannot finish a record once the journal is claimed
+        buffer.position(position);
+        replay();
+        return true;
+    }
+
+    /* Returns true once the journal holds enough records that are no longer live to be compacted,
+     * and then not again until compact() has run
+     */
+    synchronized boolean compactionDue() {
+        if (closed || !writer || compaction_due || records < compact_at || records < COMPACT_RATIO * live.size())
+            return false;
+        compaction_due = true;
+        return true;
+    }
+
+    /* Rewrites the journal with only the live allocations. The new file is written without holding
+     * the journal, so the appends made meanwhile do not wait for it; they are copied over when it
+     * replaces the journal. If it fails, the journal goes on as it is and is compacted again once
+     * another COMPACT_MIN_RECORDS records have been appended.
+     */
+    void compact() throws IOException {
+        List<Entry> snapshot;
+        int compacted_epoch;
+        synchronized(this){
+            if (closed || !writer || appended_while_compacting != null)
+                return;
+            snapshot = new ArrayList<Entry>(live.values());
+            compacted_epoch = epoch;
+            appended_while_compacting = new ArrayList<Entry>();
+        }
+        Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        FileChannel compacted_channel = null;
+        try {
+            int size = HEADER_SIZE;
+            for (Entry entry : snapshot) {
+                size += recordSize(entry);
+            }
+            compacted_channel = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer compacted_buffer = compacted_channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, 2L * size));
+            compacted_buffer.putInt(0, MAGIC);
+            compacted_buffer.putInt(EPOCH_OFFSET, compacted_epoch);
+            compacted_buffer.position(HEADER_SIZE);
+            for (Entry entry : snapshot) {
+                int start = compacted_buffer.position();
+                compacted_buffer.putInt(start, write(compacted_buffer, entry));
+            }
+            compacted_buffer.force();
+            synchronized(this){
+                if (closed)
+                    throw new IOException(path + " was closed while it was compacted");
+                for (Entry entry : appended_while_compacting) {
+                    if (compacted_buffer.remaining() < recordSize(entry) + 4)
+                        compacted_buffer = grow(compacted_channel, compacted_buffer, recordSize(entry));
+                    int start = compacted_buffer.position();
+                    compacted_buffer.putInt(start, write(compacted_buffer, entry));
+                }
+                // the new file replaces the journal under the lock on its header, so it is not
+                // claimed in between
+                synchronized(claims){
+                    FileLock lock = channel.lock(0, HEADER_SIZE, false);
+                    try {
+                        if (fenced())
+                            throw new IOException(path + " was taken over while it was compacted");
+                        compacted_buffer.putLong(HEARTBEAT_OFFSET, buffer.getLong(HEARTBEAT_OFFSET) + 1);
+                        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        buffer.putInt(SUPERSEDED_OFFSET, 1);
+                    } finally {
+                        lock.release();
+                    }
+                }
+                channel.close();
+                channel = compacted_channel;
+                buffer = compacted_buffer;
+                records = snapshot.size() + appended_while_compacting.size();
+                appended_while_compacting = null;
+                compaction_due = false;
+                compact_at = COMPACT_MIN_RECORDS;
+            }
+        } catch (IOException e) {
+            if (compacted_channel != null)
+                compacted_channel.close();
+            Files.deleteIfExists(compacted);
+            synchronized(this){
+                appended_while_compacting = null;
+                compaction_due = false;
+                compact_at = records + COMPACT_MIN_RECORDS;
+            }
+            throw e;
+        }
+    }
+
+    synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (writer)
+                buffer.force();
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            // nothing left to write it to
+        }
+    }
+
+    /* Appends a record under the lock on the header, so a device cannot claim the journal between
+     * the epoch check and the record's length being set
+     */
+    private boolean append(final Entry entry) {
+        if (closed || !writer)
+            return false;
+        // an allocation id too long to be recorded is not journaled, so it is not restored either
+        if (!accepts(entry.allocation_id))
+            return true;
+        try {
+            synchronized(claims){
+                FileLock lock = channel.lock(0, HEADER_SIZE, false);
+                try {
+                    if (fenced()) {
+                        close();
+                        return false;
+                    }
+                    // releasing what the journal does not hold needs no record
+                    if (!apply(entry))
+                        return true;
+                    if (buffer.remaining() < recordSize(entry) + 4)
+                        buffer = grow(channel, buffer, recordSize(entry));
+                    int start = buffer.position();
+                    buffer.putInt(start, write(buffer, entry));
+                } finally {
+                    // closing the channel has already released it
+                    if (lock.isValid())
+                        lock.release();
+                }
+            }
+            records++;
+            if (appended_while_compacting != null)
+                appended_while_compacting.add(entry);
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    /* Applies a record to the live allocations, returning false if it changes nothing */
+    private boolean apply(final Entry entry) {
+        if (entry.type == CONTROL || entry.type == LISTENER) {
+            live.put(entry.allocation_id, entry);
+            return true;
+        }
+        if (entry.type == RELEASE)
+            return live.remove(entry.allocation_id) != null;
+        boolean released = false;
+        Iterator<Entry> iter = live.values().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().device_id == entry.device_id) {
+                iter.remove();
+                released = true;
+            }
+        }
+        return released;
+    }
+
+    /* Maps the file at path and reads it back from the start. A follower maps it read only, as it
+     * is, and waits for the writer to start a journal that does not exist yet.
+     */
+    private void open() throws IOException {
+        live.clear();
+        records = 0;
+        if (writer) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+        } else if (Files.exists(path)) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } else {
+            channel = null;
+            buffer = null;
+            return;
+        }
+        if (buffer.capacity() < HEADER_SIZE)
+            return;
+        if (buffer.getInt(0) != MAGIC && buffer.getInt(0) != 0) {
+            channel.close();
+            throw new IOException(path + " is not an allocation journal");
+        }
+        buffer.position(HEADER_SIZE);
+        replay();
+    }
+
+    // starts a new writer epoch, which fences off the previous writer
+    private void claim() throws IOException {
+        claim(channel, buffer, -1, -1);
+    }
+
+    /* Claims the journal mapped in target for this writer by starting a new writer epoch. Unless
+     * expected_epoch is -1, the claim fails if the epoch or heartbeat count is no longer the one
+     * expected.
+     */
+    private boolean claim(final FileChannel target_channel, final MappedByteBuffer target, final int expected_epoch, final long expected_heartbeat) throws IOException {
+        synchronized(claims){
+            FileLock lock = target_channel.lock(0, HEADER_SIZE, false);
+            try {
+                int current = target.getInt(EPOCH_OFFSET);
+                if (expected_epoch != -1 && (current != expected_epoch || target.getLong(HEARTBEAT_OFFSET) != expected_heartbeat))
+                    return false;
+                // a compacted journal was replaced while it was taken over
+                if (expected_epoch != -1 && target.getInt(SUPERSEDED_OFFSET) != 0)
+                    return false;
+                epoch = current + 1;
+                if (target.getInt(0) != MAGIC)
+                    target.putInt(0, MAGIC);
+                target.putInt(EPOCH_OFFSET, epoch);
+                target.putLong(HEARTBEAT_OFFSET, target.getLong(HEARTBEAT_OFFSET) + 1);
+                return true;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private boolean fenced() {
+        return buffer.getInt(EPOCH_OFFSET) != epoch;
+    }
+
+    /* Reads records from the position of the buffer. A writer truncates the journal at a torn or
+     * corrupt record; a follower stops there and reads it again next time, as the writer may not
+     * have finished it yet.
+     */
+    private void replay() {
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            if (length == 0)
+                return;
+            if (length < RECORD_OVERHEAD - 8 || length > buffer.limit() - start - 8) {
+                stop(start);
+                return;
+            }
+            byte[] body = new byte[length];
+            buffer.position(start + 4);
+            buffer.get(body);
+            crc.reset();
+            crc.update(body, 0, body.length);
+            Entry entry = (buffer.getInt() == (int) crc.getValue()) ? read(body) : null;
+            if (entry == null) {
+                stop(start);
+                return;
+            }
+            apply(entry);
+            records++;
+        }
+    }
+
+    private void stop(final int position) {
+        if (writer)
+            truncate(position);
+        else
+            buffer.position(position);
+    }
+
+    // a torn or corrupt record ends the journal; clear it so later records are not read past it
+    private void truncate(final int position) {
+        for (int idx = position; idx < buffer.limit(); idx++) {
+            buffer.put(idx, (byte) 0);
+        }
+        buffer.position(position);
+    }
+
+    private static Entry read(final byte[] body) {
+        ByteBuffer record = ByteBuffer.wrap(body);
+        byte type = record.get();
+        int device_id = record.getInt();
+        int id_length = record.getShort() & 0xffff;
+        if (type < CONTROL || type > RELEASE_DEVICE || id_length > record.remaining() - 4)
+            return null;
+        byte[] id = new byte[id_length];
+        record.get(id);
+        int payload_length = record.getInt();
+        if (payload_length != record.remaining())
+            return null;
+        byte[] payload = new byte[payload_length];
+        record.get(payload);
+        return new Entry(type, device_id, new String(id, StandardCharsets.UTF_8), payload);
+    }
+
+    private static int recordSize(final Entry entry) {
+        return RECORD_OVERHEAD + entry.allocation_id.getBytes(StandardCharsets.UTF_8).length + entry.payload.length;
+    }
+
+    /* Writes a record at the position of target and moves past it, all but its length, which the
+     * caller sets last to the value returned.
+     */
+    private static int write(final MappedByteBuffer target, final Entry entry) {
+        byte[] id = entry.allocation_id.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(RECORD_OVERHEAD - 8 + id.length + entry.payload.length);
+        body.put(entry.type);
+        body.putInt(entry.device_id);
+        body.putShort((short) id.length);
+        body.put(id);
+        body.putInt(entry.payload.length);
+        body.put(entry.payload);
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, body.capacity());
+        int start = target.position();
+        target.position(start + 4);
+        target.put(body.array());
+        target.putInt((int) crc.getValue());
+        return body.capacity();
+    }
+
+    // remaps target large enough for a record of needed bytes after its position
+    private MappedByteBuffer grow(final FileChannel target_channel, final MappedByteBuffer target, final int needed) throws IOException {
+        int position = target.position();
+        long size = Math.max(2L * target.capacity(), (long) position + needed + 4);
+        if (size > Integer.MAX_VALUE)
+            throw new IOException(path + " is full");
+        MappedByteBuffer grown = target_channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        grown.position(position);
+        return grown;
+    }
+}
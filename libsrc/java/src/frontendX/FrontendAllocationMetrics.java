@@ -0,0 +1,310 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/* FrontendAllocationMetrics counts the allocation events of a FrontendVideoDevice or
+ * FrontendAudioDevice and records how long their phases take.
+ *
+ * Counters are named "<operation>.<outcome>" or "<operation>.failed.<reason>", and timers after
+ * the operation or phase they measure, e.g. "allocate.tuning". Both are created on first use.
+ * Updating them does not lock: counters are LongAdders, and timers are histograms with eight
+ * linear sub-buckets per power of two, so percentiles are exact to within 12.5%.
+ *
+ * The metrics are rendered into a struct sequence property by the device, and published over
+ * JMX as a dynamic MBean with one attribute per counter and five per timer (count, mean_us,
+ * p50_us, p99_us and max_us), and a reset operation.
+ */
+class FrontendAllocationMetrics implements DynamicMBean {
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentHashMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+
+    // the outcome counters of the allocation operations
+    static final Outcomes ALLOCATE = new Outcomes("allocate");
+    static final Outcomes ALLOCATE_BATCH = new Outcomes("allocate_batch");
+    static final Outcomes LISTENER_ALLOCATE = new Outcomes("listener_allocate");
+
+    private ObjectName registered_name = null;
+
+    /* Counts the outcome of an operation; a null reason is counted as "<operation>.error" */
+    void count(final Outcomes operation, final FrontendAllocationReason reason) {
+        count(operation.counterOf(reason));
+    }
+
+    void count(final String name) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null)
+                counter = created;
+        }
+        counter.increment();
+    }
+
+    /* Drops every counter and timer; they are created again on their next use. An update racing
+     * with reset() may be lost.
+     */
+    void reset() {
+        counters.clear();
+        timers.clear();
+    }
+
+    /* Outcomes holds the counter names of an operation, one per FrontendAllocationReason, built
+     * once so counting an allocation does not build its name
+     */
+    static final class Outcomes {
+        private final String[] counters;
+        private final String error;
+
+        Outcomes(final String operation) {
+            FrontendAllocationReason[] reasons = FrontendAllocationReason.values();
+            counters = new String[reasons.length];
+            for (FrontendAllocationReason reason : reasons) {
+                counters[reason.ordinal()] = operation + "." + reason.outcome;
+            }
+            error = operation + ".error";
+        }
+
+        String counterOf(final FrontendAllocationReason reason) {
+            return (reason == null) ? error : counters[reason.ordinal()];
+        }
+    }
+
+    /* Records the time elapsed since start_ns, a System.nanoTime() */
+    void record(final String name, final long start_ns) {
+        Histogram timer = timers.get(name);
+        if (timer == null) {
+            Histogram created = new Histogram();
+            timer = timers.putIfAbsent(name, created);
+            if (timer == null)
+                timer = created;
+        }
+        timer.record(System.nanoTime() - start_ns);
+    }
+
+    /* Returns a struct per counter and timer, ordered by name */
+    List<FEXTypes.frontend_allocation_metric_struct> snapshot() {
+        TreeMap<String, FEXTypes.frontend_allocation_metric_struct> metrics = new TreeMap<String, FEXTypes.frontend_allocation_metric_struct>();
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            FEXTypes.frontend_allocation_metric_struct metric = new FEXTypes.frontend_allocation_metric_struct();
+            metric.name.setValue(counter.getKey());
+            metric.count.setValue(counter.getValue().sum());
+            metrics.put(counter.getKey(), metric);
+        }
+        for (Map.Entry<String, Histogram> timer : timers.entrySet()) {
+            Histogram histogram = timer.getValue();
+            FEXTypes.frontend_allocation_metric_struct metric = new FEXTypes.frontend_allocation_metric_struct();
+            metric.name.setValue(timer.getKey());
+            metric.count.setValue(histogram.count());
+            metric.mean_us.setValue(histogram.mean() / 1000.0);
+            metric.p50_us.setValue(histogram.percentile(0.5) / 1000.0);
+            metric.p99_us.setValue(histogram.percentile(0.99) / 1000.0);
+            metric.max_us.setValue(histogram.max() / 1000.0);
+            metrics.put(timer.getKey(), metric);
+        }
+        return new ArrayList<FEXTypes.frontend_allocation_metric_struct>(metrics.values());
+    }
+
+    /* Registers the metrics with the platform MBean server as frontendX:type=<type>,name=<name>,
+     * replacing an earlier registration
+     */
+    synchronized void register(final String type, final String name) throws JMException {
+        unregister();
+        ObjectName object_name = new ObjectName("frontendX:type=" + ObjectName.quote(type) + ",name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(object_name))
+            server.unregisterMBean(object_name);
+        server.registerMBean(this, object_name);
+        registered_name = object_name;
+    }
+
+    synchronized void unregister() throws JMException {
+        if (registered_name == null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registered_name))
+            server.unregisterMBean(registered_name);
+        registered_name = null;
+    }
+
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+        LongAdder counter = counters.get(attribute);
+        if (counter != null)
+            return counter.sum();
+        int separator = attribute.lastIndexOf('.');
+        Histogram timer = (separator < 0) ? null : timers.get(attribute.substring(0, separator));
+        if (timer != null) {
+            String field = attribute.substring(separator + 1);
+            if (field.equals("count"))
+                return (double) timer.count();
+            if (field.equals("mean_us"))
+                return timer.mean() / 1000.0;
+            if (field.equals("p50_us"))
+                return timer.percentile(0.5) / 1000.0;
+            if (field.equals("p99_us"))
+                return timer.percentile(0.99) / 1000.0;
+            if (field.equals("max_us"))
+                return timer.max() / 1000.0;
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(final String[] attributes) {
+        AttributeList values = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                values.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the DynamicMBean contract allows
+            }
+        }
+        return values;
+    }
+
+    public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(final String action, final Object[] params, final String[] signature) throws ReflectionException {
+        if ("reset".equals(action) && (params == null || params.length == 0)) {
+            reset();
+            return null;
+        }
+        throw new ReflectionException(new NoSuchMethodException(action));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String counter : new TreeMap<String, LongAdder>(counters).keySet()) {
+            attributes.add(new MBeanAttributeInfo(counter, "java.lang.Long", "number of " + counter + " events", true, false, false));
+        }
+        for (String timer : new TreeMap<String, Histogram>(timers).keySet()) {
+            for (String field : new String[]{"count", "mean_us", "p50_us", "p99_us", "max_us"}) {
+                attributes.add(new MBeanAttributeInfo(timer + "." + field, "java.lang.Double", field + " of " + timer, true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Frontend allocation metrics",
+                             attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                             new MBeanOperationInfo[]{new MBeanOperationInfo("reset", "drops every counter and timer", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)},
+                             null);
+    }
+
+    /* Histogram of durations in nanoseconds. Values below SUB_BUCKETS get a bucket each; above
+     * that every power of two is split into SUB_BUCKETS linear buckets.
+     */
+    static class Histogram {
+
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0)
+                value = 0;
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return (n == 0) ? 0 : (double) sum.sum() / n;
+        }
+
+        /* Returns the lower bound of the bucket holding the given quantile, or 0 if empty */
+        long percentile(final double quantile) {
+            long total = 0;
+            long[] counts = new long[BUCKETS];
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                counts[bucket] = buckets.get(bucket);
+                total += counts[bucket];
+            }
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += counts[bucket];
+                if (seen >= rank)
+                    return Math.min(lowerBoundOf(bucket), max.get());
+            }
+            return max.get();
+        }
+
+        private static int bucketOf(final long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub_bucket;
+        }
+
+        private static long lowerBoundOf(final int bucket) {
+            if (bucket < SUB_BUCKETS)
+                return bucket;
+            int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+    }
+}
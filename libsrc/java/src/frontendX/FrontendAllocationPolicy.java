@@ -0,0 +1,93 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/* FrontendAllocationPolicy decides which of the devices that can satisfy an allocation of a
+ * FrontendVideoDevice or FrontendAudioDevice are tried first. A device control allocation is
+ * offered the free devices of the requested type, in ascending device id order; a listener
+ * allocation the controlled devices whose rate is in range, lowest rate first. rank() reorders
+ * them best first, and the allocation tries them in that order.
+ *
+ * rank() is called without any device lock held, so the candidates are a snapshot: a device may
+ * have been taken by the time it is tried. It must not block, and should be stable, so the
+ * candidates it has no preference between keep their order.
+ */
+public interface FrontendAllocationPolicy {
+
+    /* Candidate is a device an allocation may be placed on */
+    public static class Candidate {
+        public final int device_id;
+        // number of tuning parameters a device control allocation would change; 0 for listeners
+        public final int retune_distance;
+        public final int listeners;
+
+        public Candidate(final int device_id, final int retune_distance, final int listeners) {
+            this.device_id = device_id;
+            this.retune_distance = retune_distance;
+            this.listeners = listeners;
+        }
+    }
+
+    void rank(String allocation_id, boolean device_control, List<Candidate> candidates);
+
+    /* FIRST_FIT keeps the candidates in the order they are offered. It is the default, and the
+     * devices use their index directly instead of building the candidate list.
+     */
+    public static final FrontendAllocationPolicy FIRST_FIT = new FrontendAllocationPolicy() {
+        public void rank(final String allocation_id, final boolean device_control, final List<Candidate> candidates) {
+        }
+    };
+
+    /* BEST_FIT tries the devices whose tuning is closest to the request first, so a device control
+     * allocation reuses a device already tuned the way it asks for. A free device keeps the tuning
+     * of its last allocation, so the distance is measured against that; devices at the same
+     * distance keep their order.
+     */
+    public static final FrontendAllocationPolicy BEST_FIT = new FrontendAllocationPolicy() {
+        private final Comparator<Candidate> by_retune_distance = new Comparator<Candidate>() {
+            public int compare(final Candidate candidate, final Candidate other) {
+                return (candidate.retune_distance < other.retune_distance) ? -1 : ((candidate.retune_distance == other.retune_distance) ? 0 : 1);
+            }
+        };
+
+        public void rank(final String allocation_id, final boolean device_control, final List<Candidate> candidates) {
+            Collections.sort(candidates, by_retune_distance);
+        }
+    };
+
+    /* LEAST_LOADED tries the devices with the fewest listeners first, so listeners spread over
+     * the controlled devices instead of piling onto the lowest numbered one
+     */
+    public static final FrontendAllocationPolicy LEAST_LOADED = new FrontendAllocationPolicy() {
+        private final Comparator<Candidate> by_listeners = new Comparator<Candidate>() {
+            public int compare(final Candidate candidate, final Candidate other) {
+                return (candidate.listeners < other.listeners) ? -1 : ((candidate.listeners == other.listeners) ? 0 : 1);
+            }
+        };
+
+        public void rank(final String allocation_id, final boolean device_control, final List<Candidate> candidates) {
+            Collections.sort(candidates, by_listeners);
+        }
+    };
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+/* FrontendAllocationReason is the outcome of an allocation inside a FrontendVideoDevice or
+ * FrontendAudioDevice. Allocation reports ordinary failures, such as no device being available,
+ * as a reason instead of throwing; an InvalidCapacity is only built by the public allocate
+ * methods, for the reasons that reject the request itself.
+ *
+ * Functions that otherwise return a device id return the negative code() of a reason when they
+ * fail, which ofCode() turns back into the reason.
+ *
+ * It is public for the device implementations that override tryAllocateVideo, tryAllocateAudio
+ * or tryAllocateListener, which return it.
+ */
+public enum FrontendAllocationReason {
+
+    ALLOCATED("succeeded", null),
+    // rejections, reported with an InvalidCapacity carrying the request
+    MISSING_ALLOCATION_ID("failed.missing_allocation_id", "MISSING ALLOCATION ID"),
+    ALLOCATION_ID_IN_USE("failed.allocation_id_in_use", "ALLOCATION_ID ALREADY IN USE"),
+    MISSING_EXISTING_ALLOCATION_ID("failed.missing_existing_allocation_id", "MISSING EXISTING ALLOCATION ID"),
+    MISSING_LISTENER_ALLOCATION_ID("failed.missing_allocation_id", "MISSING LISTENER ALLOCATION ID"),
+    LISTENER_ALLOCATION_ID_IN_USE("failed.allocation_id_in_use", "LISTENER ALLOCATION_ID ALREADY IN USE"),
+    LISTENER_NOT_PERMITTED("failed.not_permitted", "LISTENER ALLOCATIONS ARE NOT PERMITTED"),
+    // failures, reported by returning false
+    UNKNOWN_CONTROL_ALLOCATION_ID("failed.unknown_control_allocation_id", null),
+    NO_DEVICE("failed.no_device", null),
+    TOLERANCE("failed.tolerance", null),
+    TUNING_TIMEOUT("failed.tuning_timeout", null),
+    ENABLE_FAILED("failed.enable", null),
+    ENABLE_TIMEOUT("failed.enable_timeout", null),
+    INTERRUPTED("failed.interrupted", null);
+
+    private static final FrontendAllocationReason[] REASONS = values();
+
+    // counted by FrontendAllocationMetrics as "<operation>.<outcome>"
+    final String outcome;
+    // the InvalidCapacity message of a rejection, null otherwise
+    final String message;
+
+    FrontendAllocationReason(final String outcome, final String message) {
+        this.outcome = outcome;
+        this.message = message;
+    }
+
+    public boolean isRejection() {
+        return message != null;
+    }
+
+    int code() {
+        return -1 - ordinal();
+    }
+
+    static FrontendAllocationReason ofCode(final int code) {
+        return REASONS[-1 - code];
+    }
+}
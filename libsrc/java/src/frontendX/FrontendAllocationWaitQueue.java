@@ -0,0 +1,143 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/* FrontendAllocationWaitQueue holds the device control allocations of a FrontendVideoDevice or
+ * FrontendAudioDevice that are waiting for a device of their type to be freed.
+ *
+ * offer() hands a freed device, already claimed in the device index, to the waiter of its type
+ * that is next in line: the one with the highest priority, the longest waiting among equals. A
+ * waiter gains one priority level for every AGING_MS it has waited, so a steady stream of higher
+ * priority requests does not starve it. A waiter is eligible for as long as it is queued, whether
+ * it is blocked in await() or busy trying a device; a device handed to it while it is busy is kept
+ * for it until its next poll() or await(), or handed back by remove().
+ */
+class FrontendAllocationWaitQueue {
+
+    static final int NO_DEVICE = -1;
+
+    // waiting this long raises the priority of a waiter by one
+    static final long AGING_MS = 1000;
+
+    // longest a waiter blocks before it looks for a free device itself, in case one was freed
+    // without being offered, for example when its quarantine ended
+    static final long RECHECK_MS = 100;
+
+    /* Waiter is a device control allocation waiting for a device of device_type */
+    static class Waiter {
+        final String device_type;
+        final int priority;
+        final long sequence;
+        final long queued_ns;
+        // the device handed to the waiter and not yet taken; guarded by the queue
+        private int device_id = NO_DEVICE;
+
+        Waiter(final String device_type, final int priority, final long sequence) {
+            this.device_type = device_type;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.queued_ns = System.nanoTime();
+        }
+    }
+
+    private final ArrayList<Waiter> waiters = new ArrayList<Waiter>();
+    private long next_sequence = 0;
+
+    synchronized Waiter enqueue(final String device_type, final int priority) {
+        Waiter waiter = new Waiter(device_type, priority, next_sequence++);
+        waiters.add(waiter);
+        return waiter;
+    }
+
+    synchronized boolean hasWaiters(final String device_type) {
+        for (Waiter waiter : waiters) {
+            if (waiter.device_type.equals(device_type))
+                return true;
+        }
+        return false;
+    }
+
+    /* Blocks for up to timeout_ns until the waiter is handed a device, and returns it, or
+     * NO_DEVICE if none was handed over in time. The caller owns the claim on the device.
+     */
+    synchronized int await(final Waiter waiter, final long timeout_ns) throws InterruptedException {
+        long deadline_ns = System.nanoTime() + timeout_ns;
+        while (waiter.device_id == NO_DEVICE) {
+            long remaining_ns = deadline_ns - System.nanoTime();
+            if (remaining_ns <= 0)
+                return NO_DEVICE;
+            TimeUnit.NANOSECONDS.timedWait(this, remaining_ns);
+        }
+        return poll(waiter);
+    }
+
+    /* Returns the device the waiter has been handed, or NO_DEVICE, without blocking. The caller
+     * owns the claim on the device.
+     */
+    synchronized int poll(final Waiter waiter) {
+        int device_id = waiter.device_id;
+        waiter.device_id = NO_DEVICE;
+        return device_id;
+    }
+
+    /* Hands a claimed device to the waiter of its type next in line that does not hold one
+     * already. Returns false if there is none, in which case the caller keeps the claim.
+     */
+    synchronized boolean offer(final String device_type, final int device_id) {
+        long now = System.nanoTime();
+        Waiter next = null;
+        for (Waiter waiter : waiters) {
+            if (waiter.device_id != NO_DEVICE || !waiter.device_type.equals(device_type))
+                continue;
+            if (next == null || isAhead(waiter, next, now))
+                next = waiter;
+        }
+        if (next == null)
+            return false;
+        next.device_id = device_id;
+        notifyAll();
+        return true;
+    }
+
+    /* Removes a waiter from the queue. Returns a device it was handed but did not take, whose
+     * claim the caller then owns, or NO_DEVICE.
+     */
+    synchronized int remove(final Waiter waiter) {
+        waiters.remove(waiter);
+        int device_id = waiter.device_id;
+        waiter.device_id = NO_DEVICE;
+        return device_id;
+    }
+
+    private static boolean isAhead(final Waiter waiter, final Waiter other, final long now) {
+        long priority = agedPriority(waiter, now);
+        long other_priority = agedPriority(other, now);
+        if (priority != other_priority)
+            return priority > other_priority;
+        return waiter.sequence < other.sequence;
+    }
+
+    private static long agedPriority(final Waiter waiter, final long now) {
+        return waiter.priority + (now - waiter.queued_ns) / TimeUnit.MILLISECONDS.toNanos(AGING_MS);
+    }
+}
@@ -33,12 +33,21 @@ import CF.DevicePackage.UsageType;
 import CF.InvalidObjectReference;
 import frontend.*;
 import FRONTEND.BadParameterException;
+import java.io.IOException;
 import java.lang.Math.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.text.*;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -66,13 +75,13 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
      * the allocation request. True is returned upon success, otherwise
      * BadParameterException is thrown.
      */
-    public boolean validateRequestVsSRI(final frontendX.FEXTypes.frontend_audio_allocation_struct request, final BULKIO.StreamSRI upstream_sri) throws BadParameterException {
+    public boolean validateRequestVsSRI(final audioAllocationRequest request, final BULKIO.StreamSRI upstream_sri) throws BadParameterException {
 
         // check sample rate
         double upstream_sr = 1/upstream_sri.xdelta;
-        upstream_sr /= (request.full_bandwidth_channels.getValue() + request.low_frequency_effect_channels.getValue());
-        double min_requested_sample_rate = request.sample_rate.getValue();
-        double max_requested_sample_rate = request.sample_rate.getValue()+request.sample_rate.getValue() * request.sample_rate_tolerance.getValue()/100.0;
+        upstream_sr /= (request.full_bandwidth_channels + request.low_frequency_effect_channels);
+        double min_requested_sample_rate = request.sample_rate;
+        double max_requested_sample_rate = request.sample_rate+request.sample_rate * request.sample_rate_tolerance/100.0;
 
         // check vs. upstream sample rate (ensure min request <= upstream <= max request)
         if ( !validateRequest(min_requested_sample_rate, max_requested_sample_rate, upstream_sr) ){
@@ -82,11 +91,15 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         return true;
     }
 
+    public boolean validateRequestVsSRI(final frontendX.FEXTypes.frontend_audio_allocation_struct request, final BULKIO.StreamSRI upstream_sri) throws BadParameterException {
+        return validateRequestVsSRI(new audioAllocationRequest(request), upstream_sri);
+    }
+
     /* validateRequestVsDevice is a helper function to check that the input data stream and the
      * device can support an allocation request. True is returned upon success, otherwise 
      * BadParameterException is thrown.
      */
-    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_audio_allocation_struct request, final BULKIO.StreamSRI upstream_sri,
+    boolean validateRequestVsDevice(final audioAllocationRequest request, final BULKIO.StreamSRI upstream_sri,
             double max_device_sample_rate) throws BadParameterException {
 
         // check if request can be satisfied using the available upstream data
@@ -97,29 +110,38 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         // check device constraints
 
         // check vs. device sample rate capability (ensure 0 <= request <= max device capability)
-        if ( !validateRequest(0,max_device_sample_rate,request.sample_rate.getValue()) ){
+        if ( !validateRequest(0,max_device_sample_rate,request.sample_rate) ){
             throw new BadParameterException("INVALID REQUEST -- device capabilities cannot support sr request");
         }
 
         return true;
     }
 
+    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_audio_allocation_struct request, final BULKIO.StreamSRI upstream_sri,
+            double max_device_sample_rate) throws BadParameterException {
+        return validateRequestVsDevice(new audioAllocationRequest(request), upstream_sri, max_device_sample_rate);
+    }
+
     /* validateRequestVsDevice is a helper function to check that the analog capabilities and the
      * device can support the allocation request. True is returned upon success, otherwise 
      * BadParameterException is thrown.
      */
-    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_audio_allocation_struct request, double max_device_sample_rate) throws BadParameterException {
+    boolean validateRequestVsDevice(final audioAllocationRequest request, double max_device_sample_rate) throws BadParameterException {
 
         // check device constraints
 
         // check vs. device sample rate capability (ensure 0 <= request <= max device capability)
-        if ( !validateRequest(0,max_device_sample_rate,request.sample_rate.getValue()) ){
+        if ( !validateRequest(0,max_device_sample_rate,request.sample_rate) ){
             throw new BadParameterException("INVALID REQUEST -- device capabilities cannot support sr request");
         }
 
         return true;
     }
 
+    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_audio_allocation_struct request, double max_device_sample_rate) throws BadParameterException {
+        return validateRequestVsDevice(new audioAllocationRequest(request), max_device_sample_rate);
+    }
+
     public FrontendAudioDevice() {
         super();
         construct();
@@ -127,18 +149,29 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
  
     private void construct() {
         loadProperties();
-        allocation_id_to_audio_device_id = new HashMap<String,Integer>();
+        audio_retunes_in_place = overridesAudioDeviceMethod("audioDeviceSetTuning", frontendX.FEXTypes.frontend_audio_allocation_struct.class, frontendX.FEXTypes.default_frontend_audio_status_struct_struct.class, int.class, int.class);
+        allocation_id_mapping_lock = new Object();
+        for (int stripe = 0; stripe < audio_device_locks.length; stripe++) {
+            audio_device_locks[stripe] = new Object();
+        }
+        // the framework goes on calling an allocateAudioDevice or allocateListener a device implementation overrides
+        audio_allocate_overridden = overridesAudioDeviceMethod("allocateAudioDevice", frontendX.FEXTypes.frontend_audio_allocation_struct.class)
+            || overridesAudioDeviceMethod("allocateAudioDevice", frontendX.FEXTypes.frontend_audio_allocation_struct.class, int.class, long.class);
+        audio_listener_allocate_overridden = overridesAudioDeviceMethod("allocateListener", frontend.FETypes.frontend_listener_allocation_struct.class);
+        audio_listener_validation_overridden = overridesAudioDeviceMethod("listenerRequestValidation", frontendX.FEXTypes.frontend_audio_allocation_struct.class, int.class);
         frontend_audio_allocation.setAllocator(new Allocator<frontendX.FEXTypes.frontend_audio_allocation_struct>() {
             public boolean allocate(frontendX.FEXTypes.frontend_audio_allocation_struct capacity){
-                boolean status = false;
+                // the framework only needs to know whether the allocation succeeded, so the
+                // InvalidCapacity of a rejected request is not created unless allocateAudioDevice is overridden
                 try{
-                    status = allocateAudioDevice(capacity);
+                    if (audio_allocate_overridden)
+                        return allocateAudioDevice(capacity);
+                    return tryAllocateAudio(capacity, 0, audio_allocation_wait_ms) == FrontendAllocationReason.ALLOCATED;
                 }catch(CF.DevicePackage.InvalidCapacity e){
-
+                    return false;
                 }catch(Exception e){
-
+                    return false;
                 }
-                return status;
             }
             public void deallocate(frontendX.FEXTypes.frontend_audio_allocation_struct capacity){
                 deallocateAudioDevice(capacity);
@@ -146,15 +179,15 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         });
         frontend_listener_allocation.setAllocator(new Allocator<frontend.FETypes.frontend_listener_allocation_struct>() {
             public boolean allocate(frontend.FETypes.frontend_listener_allocation_struct capacity) {
-                boolean status = false;
                 try{
-                    status = allocateListener(capacity);
+                    if (audio_listener_allocate_overridden)
+                        return allocateListener(capacity);
+                    return tryAllocateListener(capacity) == FrontendAllocationReason.ALLOCATED;
                 }catch(CF.DevicePackage.InvalidCapacity e){
-
+                    return false;
                 }catch(Exception e){
-
+                    return false;
                 }
-                return status;
             }
             public void deallocate(frontend.FETypes.frontend_listener_allocation_struct capacity){
                 deallocateListener(capacity);
@@ -162,6 +195,21 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         });
     }
     
+    /* overridesAudioDeviceMethod returns whether the device implementation overrides a function of
+     * this class, given its name and parameter types as erased here
+     */
+    private boolean overridesAudioDeviceMethod(final String name, final Class<?>... parameter_types){
+        for (Class<?> type = getClass(); type != null && type != FrontendAudioDevice.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod(name, parameter_types);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared at this level
+            }
+        }
+        return false;
+    }
+
     // this is implemented in the generated base class once all properties are known
     public void loadProperties(){
         addProperty(device_kind);
@@ -169,15 +217,17 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         addProperty(frontend_audio_allocation);
         addProperty(frontend_listener_allocation);
         addProperty(frontend_audio_status);
+        addProperty(frontend_audio_allocation_metrics);
     }
 
     protected String createAllocationIdCsv(int audio_device_id){
         StringBuilder alloc_id_csv = new StringBuilder();
+        audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
         // ensure control allocation_id is first in list
-        if (audio_allocation_ids.get(audio_device_id).control_allocation_id != null && !audio_allocation_ids.get(audio_device_id).control_allocation_id.isEmpty())
-            alloc_id_csv.append(audio_allocation_ids.get(audio_device_id).control_allocation_id + ",");
+        if (allocation_ids.control_allocation_id != null && !allocation_ids.control_allocation_id.isEmpty())
+            alloc_id_csv.append(allocation_ids.control_allocation_id + ",");
         // now add the rest
-        Iterator<String> iter = audio_allocation_ids.get(audio_device_id).listener_allocation_ids.iterator();
+        Iterator<String> iter = allocation_ids.listener_allocation_ids.iterator();
         while (iter.hasNext()) {
             alloc_id_csv.append(iter.next() + ",");
         }
@@ -196,250 +246,1748 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         return audio_allocation_ids.get(audio_device_id).listener_allocation_ids;
     }
 
+    /* getAllocatedAudioDevices and getFreeAudioDevices return the number of audio devices of an
+     * audio_type, or of every audio_type if audio_type is null, that have or lack a device control
+     * allocation. Both are read from the device index without visiting the audio devices.
+     */
+    protected int getAllocatedAudioDevices(String audio_type){
+        syncAudioDeviceIndex();
+        return audio_device_index.controlledCount(audio_type);
+    }
+
+    protected int getFreeAudioDevices(String audio_type){
+        syncAudioDeviceIndex();
+        synchronized(audio_device_index){
+            return audio_device_index.deviceCount(audio_type) - audio_device_index.controlledCount(audio_type);
+        }
+    }
+
     /*****************************************************************/
     /* Allocation/Deallocation of Capacity                           */
     /*****************************************************************/
     // updateUsageState is not defined to return UsageType in Device base class
+    // The usage state is only set, and its state change event only sent, when it differs from
+    // the one last set, so listener allocations and reallocations of a device do not publish.
     public void updateUsageState() {
-        getUsageState();
+        synchronized(audio_usage_state_lock){
+            CF.DevicePackage.UsageType usage_state = getUsageState();
+            if (usage_state != usageState)
+                setUsageState(usage_state);
+        }
     }
 
     public CF.DevicePackage.UsageType getUsageState() {
-        int audioDeviceAllocated = 0;
-        for (int audio_device_id = 0; audio_device_id < audio_allocation_ids.size(); audio_device_id++) {
-            if (!audio_allocation_ids.get(audio_device_id).control_allocation_id.isEmpty())
-                audioDeviceAllocated++;
-        }
+        // the device index counts the controlled audio devices as their control state changes
+        syncAudioDeviceIndex();
+        int audioDeviceAllocated = audio_device_index.controlledCount(null);
         // If no audio devices are allocated, device is idle
         if (audioDeviceAllocated == 0)
             return CF.DevicePackage.UsageType.IDLE;
         // If all audio devices are allocated, device is busy
-        if (audioDeviceAllocated == audio_allocation_ids.size())
+        if (audioDeviceAllocated == audio_device_index.deviceCount(null))
             return CF.DevicePackage.UsageType.BUSY;
         // Else, device is active
         return CF.DevicePackage.UsageType.ACTIVE;
     }
 
+    /* allocateAudioDevice allocates a device control or listener request. A request without an
+     * allocation_id or with one already in use is rejected with an InvalidCapacity; any other
+     * failure returns false.
+     */
     public boolean allocateAudioDevice(frontendX.FEXTypes.frontend_audio_allocation_struct frontend_audio_allocation) throws CF.DevicePackage.InvalidCapacity, Exception {
+        return allocateAudioDevice(frontend_audio_allocation, 0, audio_allocation_wait_ms);
+    }
+
+    /* allocateAudioDevice with a priority and a timeout waits, when every audio device of the requested
+     * audio_type is taken, up to timeout_ms milliseconds for one to be freed instead of failing
+     * straight away. A freed audio device is handed to the waiting device control request with
+     * the highest priority, the longest waiting first among equals; waiting requests gain a
+     * priority level every FrontendAllocationWaitQueue.AGING_MS, so lower priorities are not
+     * starved. Listener requests and timeouts of 0 do not wait.
+     */
+    public boolean allocateAudioDevice(frontendX.FEXTypes.frontend_audio_allocation_struct frontend_audio_allocation, int priority, long timeout_ms) throws CF.DevicePackage.InvalidCapacity, Exception {
+        FrontendAllocationReason reason;
+        try{
+            reason = tryAllocateAudio(frontend_audio_allocation, priority, timeout_ms);
+        } catch(RuntimeException e) {
+            return false;
+        }
+        if (reason.isRejection())
+            throw new CF.DevicePackage.InvalidCapacity(reason.message, new CF.DataType[]{new DataType("frontend_audio_allocation", frontend_audio_allocation.toAny())});
+        return reason == FrontendAllocationReason.ALLOCATED;
+    }
+
+    /* tryAllocateAudio does the work of allocateAudioDevice without throwing for a failed allocation.
+     * Returns ALLOCATED, or the reason the request was rejected or could not be satisfied. The
+     * framework allocates frontend_audio_allocation through it, not through allocateAudioDevice, so a
+     * rejected request costs no InvalidCapacity; a device implementation that changes how requests
+     * are allocated overrides this function. The framework only calls allocateAudioDevice if a device
+     * implementation overrides it, as it did before.
+     */
+    protected FrontendAllocationReason tryAllocateAudio(final frontendX.FEXTypes.frontend_audio_allocation_struct frontend_audio_allocation, final int priority, final long timeout_ms){
+        String reserved_allocation_id = null;
+        int reserved_handle = FrontendAllocationHandles.NO_HANDLE;
+        long start = System.nanoTime();
+        FrontendAllocationReason reason = null;
         try{
+            audioAllocationRequest request = new audioAllocationRequest(frontend_audio_allocation);
             // Check allocation_id
-            if (frontend_audio_allocation.allocation_id != null &&
-                frontend_audio_allocation.allocation_id.getValue().isEmpty()) {
+            if (request.allocation_id == null || request.allocation_id.isEmpty()) {
                 logger.info("allocateAudioDevice: MISSING ALLOCATION_ID");
-                throw new CF.DevicePackage.InvalidCapacity("MISSING ALLOCATION ID", new CF.DataType[]{new DataType("frontend_audio_allocation", frontend_audio_allocation.toAny())});
+                reason = FrontendAllocationReason.MISSING_ALLOCATION_ID;
+                return reason;
             }
-            // Check if allocation ID has already been used
-            if(this.getAudioDeviceMapping(frontend_audio_allocation.allocation_id.getValue()) >= 0){
-                logger.info("allocateAudioDevice: ALLOCATION_ID ALREADY IN USE: [" + frontend_audio_allocation.allocation_id.getValue() + "]");
-                throw new InvalidCapacity("ALLOCATION_ID ALREADY IN USE", new CF.DataType[]{new DataType("frontend_audio_allocation", frontend_audio_allocation.toAny())});
+            // Check if allocation ID has already been used, reserving it if not
+            reserved_allocation_id = request.allocation_id;
+            reserved_handle = audio_allocation_handles.reserve(reserved_allocation_id);
+            if(reserved_handle == FrontendAllocationHandles.NO_HANDLE){
+                logger.info("allocateAudioDevice: ALLOCATION_ID ALREADY IN USE: [" + request.allocation_id + "]");
+                reason = FrontendAllocationReason.ALLOCATION_ID_IN_USE;
+                return reason;
             }
+            audio_allocation_metrics.record("allocate.validation", start);
             // Check if available audio device
-            //synchronized(allocation_id_mapping_lock){
-                // Next, try to allocate a new audio
-                for (int audio_device_id = 0; audio_device_id < this.audio_allocation_ids.size(); audio_device_id++) {
-                    if(!frontend_audio_status.getValue().get(audio_device_id).audio_type.getValue().equals(frontend_audio_allocation.audio_type.getValue())) {
-                        logger.debug("allocateAudioDevice: Requested audio type '"+frontend_audio_allocation.audio_type.getValue() +"' does not match audioDevice[" + audio_device_id + "].audio_type (" + frontend_audio_status.getValue().get(audio_device_id).audio_type.getValue()+")");
-                        continue;
-                    }
- 
-                    if(frontend_audio_allocation.device_control.getValue()){
-                        // device control
-                            short orig_fbc = frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.getValue();
-                            short orig_lfec = frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.getValue();
-                        double orig_sr = frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue();
-                        frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.setValue(frontend_audio_allocation.full_bandwidth_channels.getValue());
-                        frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.setValue(frontend_audio_allocation.low_frequency_effect_channels.getValue());
-                        frontend_audio_status.getValue().get(audio_device_id).sample_rate.setValue(frontend_audio_allocation.sample_rate.getValue());
-                        if(audio_allocation_ids.get(audio_device_id).control_allocation_id != null &&
-                           (!audio_allocation_ids.get(audio_device_id).control_allocation_id.isEmpty() || 
-                            !audioDeviceSetTuning(frontend_audio_allocation, frontend_audio_status.getValue().get(audio_device_id), audio_device_id))){
-                            // either not available or didn't succeed setting tuning, try next audio device
-                            if (frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.getValue().equals(frontend_audio_allocation.full_bandwidth_channels.getValue()))
-                                frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.setValue(orig_fbc);
-                            if (frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.getValue().equals(frontend_audio_allocation.low_frequency_effect_channels.getValue()))
-                                frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.setValue(orig_lfec);
-                            if (frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue().equals(frontend_audio_allocation.sample_rate.getValue()))
-                                frontend_audio_status.getValue().get(audio_device_id).sample_rate.setValue(orig_sr);
-                            logger.debug("allocateAudioDevice: audioDevice["+audio_device_id+"] is either not available or didn't succeed while setting tuning ");
-                            continue;
-                        }
-                        audio_allocation_ids.get(audio_device_id).control_allocation_id = frontend_audio_allocation.allocation_id.getValue();
-                        allocation_id_to_audio_device_id.put(frontend_audio_allocation.allocation_id.getValue(), audio_device_id);
-                        frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue(createAllocationIdCsv(audio_device_id));
-                    } else {
-                        // listener
-                        if(audio_allocation_ids.get(audio_device_id).control_allocation_id.isEmpty() || !listenerRequestValidation(frontend_audio_allocation, audio_device_id)){
-                            // either not allocated or can't support listener request
-                            logger.debug("allocateAudioDevice: audioDevice"+audio_device_id+"] is either not available or can not support listener request ");
-                            continue;
-                        }
-                        audio_allocation_ids.get(audio_device_id).listener_allocation_ids.add(frontend_audio_allocation.allocation_id.getValue());
-                        allocation_id_to_audio_device_id.put(frontend_audio_allocation.allocation_id.getValue(), audio_device_id);
-                        frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue(createAllocationIdCsv(audio_device_id));
-                        this.assignListener(frontend_audio_allocation.allocation_id.getValue(),audio_allocation_ids.get(audio_device_id).control_allocation_id);
-                    }
-                    // if we've reached here, we found an eligible audio with correct sample_rate
-
-                    // check tolerances
-                    // only check when sample_rate was not set to don't care)
-                    logger.debug(" allocateAudioDevice - SR requested: " + frontend_audio_allocation.sample_rate.getValue() + "  SR got: " + frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue());
-                    if( (floatingPointCompare(frontend_audio_allocation.sample_rate.getValue(),0)!=0) &&
-                        (floatingPointCompare(frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue(),frontend_audio_allocation.sample_rate.getValue())<0 ||
-                        floatingPointCompare(frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue(),frontend_audio_allocation.sample_rate.getValue()+frontend_audio_allocation.sample_rate.getValue() * frontend_audio_allocation.sample_rate_tolerance.getValue()/100.0)>0 )){
-                        String eout = "allocateAudioDevice(" + audio_device_id + "): returned sr " + frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue()+" does not meet tolerance criteria of " + frontend_audio_allocation.sample_rate_tolerance.getValue()+" percent";
-                        logger.info(eout);
-                        throw new RuntimeException(eout);
-                    }
+            int audio_device_id = assignAudioDevice(request, reserved_handle, true);
+            if (audio_device_id == FrontendAllocationReason.NO_DEVICE.code() && request.device_control && request.audio_type != null && timeout_ms > 0)
+                audio_device_id = awaitAudioDevice(request, reserved_handle, priority, start + TimeUnit.MILLISECONDS.toNanos(timeout_ms));
+            if (audio_device_id < 0) {
+                reason = FrontendAllocationReason.ofCode(audio_device_id);
+                return reason;
+            }
+            updateUsageState();
+            reason = FrontendAllocationReason.ALLOCATED;
+            return reason;
+        } finally {
+            // drop the reservation unless the allocation was committed
+            if (reserved_handle != FrontendAllocationHandles.NO_HANDLE)
+                audio_allocation_handles.releasePending(reserved_handle, reserved_allocation_id);
+            audio_allocation_metrics.count(FrontendAllocationMetrics.ALLOCATE, reason);
+            audio_allocation_metrics.record("allocate", start);
+        }
+    }
 
-                    if(frontend_audio_allocation.device_control.getValue()){
-                        // enable audio device after successful allocation
-                        try {
-                            enableAudioDevice(audio_device_id,true);
-                        } catch(Exception e){
-                            String eout = "allocateAudioDevice: Failed to enable audio after allocation";
-                            logger.info(eout);
-                            throw new RuntimeException(eout);
-                        }
+    /* awaitAudioDevice queues a device control request that found no free audio device until
+     * deadline_ns, a System.nanoTime(), and allocates it to the first audio device it is handed
+     * or finds free that accepts it. Returns the audio device id, or a negative
+     * FrontendAllocationReason code.
+     */
+    private int awaitAudioDevice(final audioAllocationRequest request, final int allocation_handle, final int priority, final long deadline_ns){
+        long wait_start = System.nanoTime();
+        FrontendAllocationWaitQueue.Waiter waiter = audio_wait_queue.enqueue(request.audio_type, priority);
+        try {
+            while (true) {
+                // take an audio device handed over while the request was trying another one first
+                int audio_device_id = audio_wait_queue.poll(waiter);
+                // an audio device may have been freed before the request was queued, or without being offered
+                if (audio_device_id < 0)
+                    audio_device_id = audio_device_index.claimFree(request.audio_type, -1);
+                if (audio_device_id < 0) {
+                    long remaining_ns = deadline_ns - System.nanoTime();
+                    if (remaining_ns <= 0) {
+                        logger.info("allocateAudioDevice: NO AUDIO DEVICE FREED IN TIME");
+                        return FrontendAllocationReason.NO_DEVICE.code();
                     }
-                    usageState = getUsageState();
-                    return true;
+                    audio_device_id = audio_wait_queue.await(waiter, Math.min(remaining_ns, TimeUnit.MILLISECONDS.toNanos(FrontendAllocationWaitQueue.RECHECK_MS)));
+                    if (audio_device_id < 0)
+                        continue;
                 }
-                // if we made it here, we failed to find an available audio device
-                String eout = "allocateAudioDevice: NO AVAILABLE AUDIO DEVICE. Make sure that the device has an initialized frontend_audio_status";
-                logger.info(eout);
-                throw new RuntimeException(eout);
-            //}
-        } catch(RuntimeException e) {
-            //deallocateAudioDevice(frontend_audio_allocation);
-            return false;
-        } catch(CF.DevicePackage.InvalidCapacity e) {
-            // without the following check, a valid allocation could be deallocated due to an attempt to alloc w/ an existing alloc id
-            String exceptionMessage = e.getMessage();
-            if (exceptionMessage != null && 
-               exceptionMessage.indexOf("ALLOCATION_ID ALREADY IN USE") == -1){
-               //deallocateAudioDevice(frontend_audio_allocation);
+                int assigned = assignAudioDeviceControl(request, allocation_handle, true, audio_device_id);
+                if (assigned != FrontendAllocationReason.NO_DEVICE.code())
+                    return assigned;
             }
-            throw e;
-        } catch(Exception e){
-            //deallocateAudioDevice(frontend_audio_allocation);
-            throw e; 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("allocateAudioDevice: interrupted while waiting for an audio device");
+            return FrontendAllocationReason.INTERRUPTED.code();
+        } finally {
+            // pass on an audio device handed over after the request stopped waiting
+            int handed_audio_device_id = audio_wait_queue.remove(waiter);
+            if (handed_audio_device_id >= 0) {
+                audio_device_index.release(handed_audio_device_id);
+                offerAudioDevice(handed_audio_device_id);
+            }
+            audio_allocation_metrics.record("allocate.wait", wait_start);
         }
     }
 
+    /* offerAudioDevice hands an audio device that has just been freed to the waiting device control
+     * request of its audio_type next in line, if there is one.
+     */
+    private void offerAudioDevice(final int audio_device_id){
+        String audio_type = frontend_audio_status.getValue().get(audio_device_id).audio_type.getValue();
+        if (audio_type == null || !audio_wait_queue.hasWaiters(audio_type))
+            return;
+        // taken, quarantined or no longer free; a waiter looks for free audio devices itself
+        if (!audio_device_index.claim(audio_device_id))
+            return;
+        if (!audio_wait_queue.offer(audio_type, audio_device_id))
+            audio_device_index.release(audio_device_id);
+    }
+
+    /* setAudioAllocationWait sets how long, in milliseconds, device control allocations made
+     * through allocateCapacity or allocateAudioDevice without a timeout wait for an audio device to be
+     * freed when all are taken. Defaults to 0, failing straight away.
+     */
+    protected void setAudioAllocationWait(long timeout_ms){
+        audio_allocation_wait_ms = Math.max(0, timeout_ms);
+    }
+
     public void deallocateAudioDevice(frontendX.FEXTypes.frontend_audio_allocation_struct frontend_audio_deallocation){
+        long start = System.nanoTime();
         try{
             //logger.debug("deallocateAudioDevice()");
             // Try to remove control of the device
-            int audio_device_id = this.getAudioDeviceMapping(frontend_audio_deallocation.allocation_id.getValue());
-            if (audio_device_id < 0){
+            if (releaseAudioAllocation(frontend_audio_deallocation.allocation_id.getValue())){
+                audio_allocation_metrics.count("deallocate.succeeded");
+            } else {
                 logger.debug("ALLOCATION_ID NOT FOUND: [" + frontend_audio_deallocation.allocation_id.getValue() +"]");
-                throw new CF.DevicePackage.InvalidCapacity("ALLOCATION_ID NOT FOUND", new CF.DataType[]{new DataType("frontend_audio_deallocation", frontend_audio_deallocation.toAny())});
+                audio_allocation_metrics.count("deallocate.failed.not_found");
+                logger.warn("deallocateAudioDevice: ERROR WHEN DEALLOCATING.  SKIPPING...");
+            }
+        } catch (RuntimeException e){
+            logger.warn("deallocateAudioDevice: ERROR WHEN DEALLOCATING.  SKIPPING...", e);
+        }
+        updateUsageState();
+        audio_allocation_metrics.record("deallocate", start);
+    }
+
+
+    /* allocateAudioDeviceBatch allocates a set of requests atomically: either every request is
+     * satisfied or none is. All allocation_ids are reserved first, device control requests are
+     * then tuned in one pass, followed by the listener requests, and no audio device is enabled
+     * until the whole batch has been satisfied. On failure everything the batch allocated is
+     * released again and false is returned.
+     */
+    public boolean allocateAudioDeviceBatch(final List<frontendX.FEXTypes.frontend_audio_allocation_struct> frontend_audio_allocations) throws CF.DevicePackage.InvalidCapacity {
+        audioAllocationRequest[] requests = new audioAllocationRequest[frontend_audio_allocations.size()];
+        String[] reserved_allocation_ids = new String[frontend_audio_allocations.size()];
+        int[] reserved_handles = new int[frontend_audio_allocations.size()];
+        Arrays.fill(reserved_handles, FrontendAllocationHandles.NO_HANDLE);
+        List<String> assigned_allocation_ids = new ArrayList<String>();
+        long start = System.nanoTime();
+        int[] controlled_audio_device_ids = new int[frontend_audio_allocations.size()];
+        int[] controlled_allocation_handles = new int[frontend_audio_allocations.size()];
+        int controlled_count = 0;
+        boolean committed = false;
+        FrontendAllocationReason reason = null;
+        try{
+            // Check and reserve every allocation_id before touching any audio device
+            for (int idx = 0; idx < frontend_audio_allocations.size(); idx++) {
+                frontendX.FEXTypes.frontend_audio_allocation_struct frontend_audio_allocation = frontend_audio_allocations.get(idx);
+                requests[idx] = new audioAllocationRequest(frontend_audio_allocation);
+                if (requests[idx].allocation_id == null || requests[idx].allocation_id.isEmpty()) {
+                    logger.info("allocateAudioDeviceBatch: MISSING ALLOCATION_ID");
+                    reason = FrontendAllocationReason.MISSING_ALLOCATION_ID;
+                    throw new CF.DevicePackage.InvalidCapacity(reason.message, new CF.DataType[]{new DataType("frontend_audio_allocation", frontend_audio_allocation.toAny())});
+                }
+                reserved_allocation_ids[idx] = requests[idx].allocation_id;
+                reserved_handles[idx] = audio_allocation_handles.reserve(reserved_allocation_ids[idx]);
+                if(reserved_handles[idx] == FrontendAllocationHandles.NO_HANDLE){
+                    logger.info("allocateAudioDeviceBatch: ALLOCATION_ID ALREADY IN USE: [" + requests[idx].allocation_id + "]");
+                    reason = FrontendAllocationReason.ALLOCATION_ID_IN_USE;
+                    throw new InvalidCapacity(reason.message, new CF.DataType[]{new DataType("frontend_audio_allocation", frontend_audio_allocation.toAny())});
+                }
+            }
+            // device control requests first, so that listeners in the batch can attach to them
+            for (int pass = 0; pass < 2; pass++) {
+                for (int idx = 0; idx < frontend_audio_allocations.size(); idx++) {
+                    if (requests[idx].device_control != (pass == 0))
+                        continue;
+                    int audio_device_id = assignAudioDevice(requests[idx], reserved_handles[idx], false);
+                    if (audio_device_id < 0) {
+                        reason = FrontendAllocationReason.ofCode(audio_device_id);
+                        logger.info("allocateAudioDeviceBatch: " + reason + ". Releasing " + assigned_allocation_ids.size() + " allocations made by the batch");
+                        return false;
+                    }
+                    assigned_allocation_ids.add(requests[idx].allocation_id);
+                    if (pass == 0) {
+                        controlled_audio_device_ids[controlled_count] = audio_device_id;
+                        controlled_allocation_handles[controlled_count++] = reserved_handles[idx];
+                    }
+                }
+            }
+            // enable audio devices only once the whole batch has been satisfied
+            reason = enableAudioDevices(controlled_audio_device_ids, controlled_allocation_handles, controlled_count);
+            if (reason != FrontendAllocationReason.ALLOCATED) {
+                logger.info("allocateAudioDeviceBatch: Failed to enable audio after allocation. Releasing " + assigned_allocation_ids.size() + " allocations made by the batch");
+                return false;
+            }
+            committed = true;
+            return true;
+        } catch(RuntimeException e) {
+            logger.info("allocateAudioDeviceBatch: " + e.getMessage() + ". Releasing " + assigned_allocation_ids.size() + " allocations made by the batch");
+            return false;
+        } finally {
+            if (!committed) {
+                for (int idx = assigned_allocation_ids.size() - 1; idx >= 0; idx--) {
+                    releaseAudioAllocation(assigned_allocation_ids.get(idx));
+                }
+            }
+            for (int idx = 0; idx < reserved_handles.length; idx++) {
+                if (reserved_handles[idx] != FrontendAllocationHandles.NO_HANDLE)
+                    audio_allocation_handles.releasePending(reserved_handles[idx], reserved_allocation_ids[idx]);
+            }
+            updateUsageState();
+            audio_allocation_metrics.count(FrontendAllocationMetrics.ALLOCATE_BATCH, reason);
+            audio_allocation_metrics.record("allocate_batch", start);
+        }
+    }
+
+    /* deallocateAudioDeviceBatch releases a set of device control and listener allocations. Listeners
+     * are released before device control, so a listener and its controller may share the batch.
+     */
+    public void deallocateAudioDeviceBatch(final List<frontendX.FEXTypes.frontend_audio_allocation_struct> frontend_audio_deallocations){
+        for (int pass = 0; pass < 2; pass++) {
+            for (frontendX.FEXTypes.frontend_audio_allocation_struct frontend_audio_deallocation : frontend_audio_deallocations) {
+                if (frontend_audio_deallocation.device_control.getValue() != (pass == 1))
+                    continue;
+                if (!releaseAudioAllocation(frontend_audio_deallocation.allocation_id.getValue()))
+                    logger.debug("deallocateAudioDeviceBatch: ALLOCATION_ID NOT FOUND: [" + frontend_audio_deallocation.allocation_id.getValue() + "]");
+            }
+        }
+        updateUsageState();
+    }
+
+    /* deallocateAudioDeviceByPrefix releases every device control and listener allocation whose
+     * allocation_id starts with allocation_id_prefix. A client that tags its allocation ids with
+     * an owner prefix can so be cleaned up in one call after it has gone away. Returns the number
+     * of allocations released.
+     */
+    public int deallocateAudioDeviceByPrefix(final String allocation_id_prefix){
+        if (allocation_id_prefix == null || allocation_id_prefix.isEmpty()) {
+            logger.info("deallocateAudioDeviceByPrefix: MISSING ALLOCATION_ID PREFIX");
+            return 0;
+        }
+        return releaseAudioAllocations(allocation_id_prefix, -1);
+    }
+
+    /* deallocateAudioDeviceByDeviceId releases the device control allocation of an audio device and all
+     * of its listeners. Returns the number of allocations released.
+     */
+    public int deallocateAudioDeviceByDeviceId(final int audio_device_id){
+        if (audio_device_id < 0 || audio_device_id >= audio_allocation_ids.size()) {
+            logger.info("deallocateAudioDeviceByDeviceId: NO SUCH AUDIO DEVICE: " + audio_device_id);
+            return 0;
+        }
+        return releaseAudioAllocations(null, audio_device_id);
+    }
+
+    /* releaseAudioAllocations releases, in one pass over the audio devices, the allocations whose
+     * allocation_id starts with allocation_id_prefix (any, if null) on audio device
+     * only_audio_device_id (any, if negative). Releasing device control releases the listeners of
+     * the audio device with it, as in deallocateAudioDevice. Every audio device is locked once, and
+     * each one that changed replaces the allocation_id_csv of its copy in the status snapshot
+     * before it is unlocked; the changed copies are published together, in one new version, once
+     * the pass is done. The audio devices released from device control are published again when
+     * they have been disabled.
+     */
+    private int releaseAudioAllocations(final String allocation_id_prefix, final int only_audio_device_id){
+        long start = System.nanoTime();
+        int released = 0;
+        boolean published = false;
+        try{
+            int first_audio_device_id = Math.max(0, only_audio_device_id);
+            int end_audio_device_id = (only_audio_device_id < 0) ? audio_allocation_ids.size() : only_audio_device_id + 1;
+            for (int audio_device_id = first_audio_device_id; audio_device_id < end_audio_device_id; audio_device_id++) {
+                synchronized(audioDeviceLock(audio_device_id)){
+                    audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+                    // listeners only attach to controlled audio devices
+                    String control_allocation_id = allocation_ids.control_allocation_id;
+                    if (control_allocation_id == null || control_allocation_id.isEmpty())
+                        continue;
+                    int released_from_device = 0;
+                    if (allocation_id_prefix == null || control_allocation_id.startsWith(allocation_id_prefix)) {
+                        released_from_device = 1 + allocation_ids.listener_allocation_handles.size();
+                        // queued before the audio device is freed, as in releaseAudioAllocation
+                        teardownAudioDevice(audio_device_id);
+                        releaseAudioDeviceMappings(audio_device_id);
+                    } else {
+                        FrontendAllocationHandles.HandleList listener_handles = allocation_ids.listener_allocation_handles;
+                        int position = listener_handles.first();
+                        while (position != FrontendAllocationHandles.HandleList.END) {
+                            int listener_handle = listener_handles.handleAt(position);
+                            position = listener_handles.next(position);
+                            String listener_allocation_id = audio_allocation_handles.allocationIdOf(listener_handle);
+                            if (listener_allocation_id == null || !listener_allocation_id.startsWith(allocation_id_prefix))
+                                continue;
+                            // send EOS to listener connection only
+                            removeListener(listener_allocation_id);
+                            listener_handles.remove(listener_handle);
+                            journalAudioRelease(audio_device_id, listener_allocation_id);
+                            audio_allocation_handles.release(listener_handle, audio_device_id);
+                            released_from_device++;
+                        }
+                    }
+                    if (released_from_device > 0) {
+                        markAudioAllocationIdCsv(audio_device_id);
+                        publishAudioAllocationIdCsv(audio_device_id, false);
+                        published = true;
+                    }
+                    released += released_from_device;
+                }
             }
+            logger.debug("releaseAudioAllocations: released " + released + " allocations");
+            return released;
+        } finally {
+            if (published)
+                newAudioStatusVersion();
+            updateUsageState();
+            audio_allocation_metrics.count((released > 0) ? "deallocate_bulk.succeeded" : "deallocate_bulk.failed.not_found");
+            audio_allocation_metrics.record("deallocate_bulk", start);
+        }
+    }
+
+    /* releaseAudioAllocation releases a device control or listener allocation. Releasing device
+     * control disables the audio device, which keeps its tuning, and releases all of its
+     * listeners. Returns false if the allocation_id is not allocated.
+     */
+    private boolean releaseAudioAllocation(final String allocation_id){
+        return releaseAudioAllocation(allocation_id, false);
+    }
+
+    /* With only_if_expired set, the allocation is only released if its lease has run out */
+    private boolean releaseAudioAllocation(final String allocation_id, final boolean only_if_expired){
+        int audio_device_id = this.getAudioDeviceMapping(allocation_id);
+        if (audio_device_id < 0)
+            return false;
+        synchronized(audioDeviceLock(audio_device_id)){
+            // the allocation may have been released while waiting for the device
+            if (this.getAudioDeviceMapping(allocation_id) != audio_device_id)
+                return false;
+            // or its lease renewed since it was found expired
+            if (only_if_expired && !audio_allocation_handles.leaseExpired(audio_allocation_handles.handleOf(allocation_id), System.nanoTime()))
+                return false;
             //logger.debug("deallocateAudioDevice() audio_device_id = " + audio_device_id);
-            if(audio_allocation_ids.get(audio_device_id).control_allocation_id.equals(frontend_audio_deallocation.allocation_id.getValue())){
+            if(audio_allocation_ids.get(audio_device_id).control_allocation_id.equals(allocation_id)){
                 //logger.debug("deallocateAudioDevice() deallocating control for audio_device_id = " + audio_device_id);
-                enableAudioDevice(audio_device_id, false);
-                frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue("");
-                removeAudioDeviceMapping(audio_device_id);
+                // disable the audio device in the background; queued before the audio device is
+                // freed, so it runs ahead of the hardware calls of its next allocation
+                teardownAudioDevice(audio_device_id);
+                releaseAudioDeviceMappings(audio_device_id);
                 audio_allocation_ids.get(audio_device_id).control_allocation_id = "";
             }else{
                 // send EOS to listener connection only
-                removeAudioDeviceMapping(audio_device_id,frontend_audio_deallocation.allocation_id.getValue());
-                frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue(createAllocationIdCsv(audio_device_id));
+                removeAudioDeviceMapping(audio_device_id,allocation_id);
             }
-        } catch (Exception e){
-            System.out.println("deallocateAudioDevice: ERROR WHEN DEALLOCATING.  SKIPPING..");
+            markAudioAllocationIdCsv(audio_device_id);
+            publishAudioAllocationIdCsv(audio_device_id);
         }
-        usageState = getUsageState();
+        return true;
+    }
+
+    /* teardownAudioDevice disables an audio device that is no longer controlled through the hardware
+     * pipeline, after the hardware calls already queued for it. Deallocation does not wait for it.
+     * The audio device keeps its tuning, so a later request for the same tuning only enables it
+     * again; the tuning is deleted once a different one replaces it, see tryAudioDeviceTuning, or
+     * when the device is released.
+     */
+    private void teardownAudioDevice(final int audio_device_id){
+        audio_hardware_pipeline.submit(audio_device_id, new Callable<Void>() {
+            public Void call() {
+                try {
+                    enableAudioDevice(audio_device_id, false);
+                } catch (RuntimeException e) {
+                    logger.info("deallocateAudioDevice: audioDevice[" + audio_device_id + "] failed to tear down: " + e.getMessage());
+                }
+                publishAudioStatus(audio_device_id);
+                return null;
+            }
+        });
     }
 
+    /* setAudioDefaultLease gives every device control and listener allocation made from now on a
+     * lease of ttl_ms milliseconds. A client keeps its allocation with renewAudioAllocation; once
+     * the lease runs out, the allocation is released as if the client had deallocated it. 0, the
+     * default, makes allocations last until they are deallocated.
+     */
+    protected void setAudioDefaultLease(long ttl_ms){
+        audio_allocation_handles.setDefaultLease(TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl_ms)));
+        if (ttl_ms > 0)
+            startAudioLeaseReaper();
+    }
+
+    /* leaseAudioAllocation gives an allocation a lease of ttl_ms milliseconds from now, replacing
+     * any it has; 0 removes its lease. Returns false if the allocation_id is not allocated.
+     */
+    public boolean leaseAudioAllocation(final String allocation_id, final long ttl_ms){
+        if (!audio_allocation_handles.lease(audio_allocation_handles.handleOf(allocation_id), TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl_ms))))
+            return false;
+        if (ttl_ms > 0)
+            startAudioLeaseReaper();
+        return true;
+    }
+
+    /* renewAudioAllocation extends the lease of an allocation to its full length from now.
+     * Returns false if the allocation_id is not allocated or has no lease.
+     */
+    public boolean renewAudioAllocation(final String allocation_id){
+        return audio_allocation_handles.renew(audio_allocation_handles.handleOf(allocation_id));
+    }
+
+    /* setAudioLeaseReapPeriod sets how often expired leases are looked for, in milliseconds. An
+     * allocation may outlive its lease by up to this long. Defaults to 1000.
+     */
+    protected void setAudioLeaseReapPeriod(long period_ms){
+        audio_lease_reap_period_ms = Math.max(1, period_ms);
+    }
+
+    private void startAudioLeaseReaper(){
+        synchronized(audio_lease_reaper_lock){
+            if (audio_lease_reaper != null)
+                return;
+            final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(FrontendHardwarePipeline.daemonThreads("FrontendAudioDevice-lease-reaper-"));
+            reaper.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        reapAudioLeases();
+                    } catch (RuntimeException e) {
+                        logger.info("reapAudioLeases: " + e.getMessage());
+                    }
+                    try {
+                        reaper.schedule(this, audio_lease_reap_period_ms, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // shut down by releaseObject
+                    }
+                }
+            }, audio_lease_reap_period_ms, TimeUnit.MILLISECONDS);
+            audio_lease_reaper = reaper;
+        }
+    }
+
+    /* reapAudioLeases releases the allocations whose lease has run out, in one batch, through the
+     * path deallocateAudioDevice takes: an expired device control allocation is disabled, and its
+     * listeners and routing are removed with it.
+     */
+    private void reapAudioLeases(){
+        List<String> expired_allocation_ids = audio_allocation_handles.expired(System.nanoTime());
+        if (expired_allocation_ids.isEmpty())
+            return;
+        int released = 0;
+        for (String allocation_id : expired_allocation_ids) {
+            try {
+                if (releaseAudioAllocation(allocation_id, true)) {
+                    released++;
+                    audio_allocation_metrics.count("lease.expired");
+                }
+            } catch (RuntimeException e) {
+                logger.info("reapAudioLeases: failed to release [" + allocation_id + "]: " + e.getMessage());
+            }
+        }
+        if (released > 0)
+            logger.info("reapAudioLeases: released " + released + " allocations whose lease expired");
+        updateUsageState();
+    }
+
+    /* openAudioAllocationJournal records the allocations of this device in a memory-mapped journal
+     * at path, and restores the allocations an earlier run of the device left in it: device control
+     * allocations are put back on the audio devices they held and retuned through the hardware
+     * pipeline, and their listeners are reattached, so clients do not have to allocate again. An
+     * allocation whose audio device is gone or rejects the retuning is released. Call it once
+     * frontend_audio_status and audio_allocation_ids are set up, before the device is allocated.
+     * Opening the journal fences off any other device still writing it.
+     */
+    protected void openAudioAllocationJournal(String path) throws IOException{
+        adoptAudioAllocationJournal(new FrontendAllocationJournal(Paths.get(path)), path);
+    }
+
+    /* followAudioAllocationJournal makes this device a standby for a primary device on the same host
+     * that journals to path. The standby reads the journal as the primary writes it, but only
+     * tunes the audio devices when it takes over, so taking over is a cold recovery. Once the
+     * primary has not recorded a heartbeat for takeover_ms milliseconds (at least three heartbeat
+     * periods of AUDIO_JOURNAL_HEARTBEAT_MS), the standby takes the journal over: it restores the
+     * allocations as openAudioAllocationJournal does and journals from then on, and the primary
+     * stops writing if it comes back. A standby should not be allocated before it has taken over.
+     */
+    protected void followAudioAllocationJournal(final String path, long takeover_ms) throws IOException{
+        final FrontendAllocationJournal journal = new FrontendAllocationJournal(Paths.get(path), false);
+        final long takeover_after_ms = Math.max(3 * AUDIO_JOURNAL_HEARTBEAT_MS, takeover_ms);
+        scheduleAudioJournalTask(new Runnable() {
+            public void run() {
+                try {
+                    journal.follow();
+                    // the primary came back, or another standby took the journal over first
+                    if (journal.heartbeatAge() < takeover_after_ms || !journal.takeOver()) {
+                        scheduleAudioJournalTask(this, Math.max(1, takeover_after_ms / 4));
+                        return;
+                    }
+                } catch (IOException e) {
+                    logger.info("followAudioAllocationJournal: could not follow " + path + ", no longer following it: " + e.getMessage());
+                    journal.close();
+                    return;
+                }
+                logger.info("followAudioAllocationJournal: " + path + " has not been updated for " + takeover_after_ms + " ms, taking over");
+                adoptAudioAllocationJournal(journal, path);
+            }
+        }, 0);
+    }
+
+    /* adoptAudioAllocationJournal makes journal the allocation journal of this device, restores the
+     * allocations it holds, and starts writing its heartbeat.
+     */
+    private void adoptAudioAllocationJournal(final FrontendAllocationJournal journal, final String path){
+        FrontendAllocationJournal previous = audio_allocation_journal;
+        audio_allocation_journal = journal;
+        if (previous != null)
+            previous.close();
+        syncAudioDeviceIndex();
+        int restored = 0;
+        for (FrontendAllocationJournal.Entry entry : journal.entries()) {
+            boolean restored_entry = false;
+            try {
+                restored_entry = restoreAudioAllocation(entry);
+            } catch (RuntimeException e) {
+                logger.info("openAudioAllocationJournal: could not restore [" + entry.allocation_id + "]: " + e.getMessage());
+            }
+            if (restored_entry)
+                restored++;
+            else
+                journal.release(entry.allocation_id);
+        }
+        updateUsageState();
+        logger.info("openAudioAllocationJournal: restored " + restored + " allocations from " + path);
+        scheduleAudioJournalTask(new Runnable() {
+            public void run() {
+                if (journal.heartbeat()) {
+                    scheduleAudioJournalTask(this, AUDIO_JOURNAL_HEARTBEAT_MS);
+                } else if (audio_allocation_journal == journal) {
+                    logger.info("openAudioAllocationJournal: " + path + " was taken over by another device or could not be written, no longer journaling allocations");
+                    audio_allocation_journal = null;
+                }
+            }
+        }, AUDIO_JOURNAL_HEARTBEAT_MS);
+    }
+
+    private void scheduleAudioJournalTask(final Runnable task, final long delay_ms){
+        synchronized(audio_journal_timer_lock){
+            if (audio_journal_timer == null)
+                audio_journal_timer = Executors.newSingleThreadScheduledExecutor(FrontendHardwarePipeline.daemonThreads("FrontendAudioDevice-journal-"));
+            try {
+                audio_journal_timer.schedule(task, delay_ms, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down by releaseObject
+            }
+        }
+    }
+
+    /* restoreAudioAllocation puts a journaled allocation back on its audio device. Returns false
+     * if the audio device cannot take it any more.
+     */
+    private boolean restoreAudioAllocation(final FrontendAllocationJournal.Entry entry){
+        final int audio_device_id = entry.device_id;
+        if (audio_device_id < 0 || audio_device_id >= audio_allocation_ids.size() || audio_device_id >= frontend_audio_status.getValue().size())
+            return false;
+        int handle = audio_allocation_handles.reserve(entry.allocation_id);
+        if (handle == FrontendAllocationHandles.NO_HANDLE)
+            return false;
+        try {
+            synchronized(audioDeviceLock(audio_device_id)){
+                audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+                audioStatusStructType status = frontend_audio_status.getValue().get(audio_device_id);
+                boolean controlled = allocation_ids.control_allocation_id != null && !allocation_ids.control_allocation_id.isEmpty();
+                if (entry.type == FrontendAllocationJournal.CONTROL) {
+                    audioAllocationRequest request = new audioAllocationRequest(decodeAudioAllocation(entry.allocation_id, entry.payload));
+                    if (controlled || request.audio_type == null || !request.audio_type.equals(status.audio_type.getValue()))
+                        return false;
+                    allocation_ids.control_allocation_id = entry.allocation_id;
+                    allocation_ids.control_allocation_handle = handle;
+                    indexAudioDevice(audio_device_id);
+                    audio_allocation_handles.map(handle, audio_device_id);
+                    retuneAudioDevice(request, audio_device_id, handle);
+                } else {
+                    if (!controlled || status.audio_type.getValue().equals("PLAYBACK"))
+                        return false;
+                    allocation_ids.listener_allocation_handles.add(handle);
+                    audio_allocation_handles.map(handle, audio_device_id);
+                    this.assignListener(entry.allocation_id, allocation_ids.control_allocation_id);
+                }
+                markAudioAllocationIdCsv(audio_device_id);
+                publishAudioAllocationIdCsv(audio_device_id);
+                return true;
+            }
+        } finally {
+            audio_allocation_handles.releasePending(handle, entry.allocation_id);
+        }
+    }
+
+    /* retuneAudioDevice applies a restored device control allocation to its audio device and
+     * enables it, through the hardware pipeline. The allocation is released if the audio device
+     * rejects it.
+     */
+    private void retuneAudioDevice(final audioAllocationRequest request, final int audio_device_id, final int allocation_handle){
+        audio_hardware_pipeline.submit(audio_device_id, new Callable<Void>() {
+            public Void call() {
+                synchronized(audioDeviceLock(audio_device_id)) {
+                    // released before it could be retuned
+                    if (audio_allocation_ids.get(audio_device_id).control_allocation_handle != allocation_handle)
+                        return null;
+                }
+                boolean tuned = false;
+                try {
+                    tuned = tryAudioDeviceTuning(request, audio_device_id);
+                    recordAudioTuningResult(audio_device_id, tuned);
+                    if (tuned)
+                        enableAudioDevice(audio_device_id, true);
+                } catch (RuntimeException e) {
+                    logger.info("openAudioAllocationJournal: audioDevice[" + audio_device_id + "] failed while setting tuning: " + e.getMessage());
+                }
+                if (tuned) {
+                    synchronized(audioDeviceLock(audio_device_id)) {
+                        if (audio_allocation_ids.get(audio_device_id).control_allocation_handle == allocation_handle)
+                            indexAudioDevice(audio_device_id);
+                    }
+                    publishAudioStatus(audio_device_id);
+                } else {
+                    logger.info("openAudioAllocationJournal: audioDevice[" + audio_device_id + "] could not be retuned for [" + request.allocation_id + "], releasing it");
+                    releaseAudioAllocation(request.allocation_id);
+                }
+                return null;
+            }
+        });
+    }
+
+    /* journalAudioAllocation records an allocation committed to an audio device in the allocation
+     * journal, if there is one; request is null for a listener allocation. Called with the audio
+     * device lock held.
+     */
+    private void journalAudioAllocation(final int audio_device_id, final String allocation_id, final audioAllocationRequest request){
+        FrontendAllocationJournal journal = audio_allocation_journal;
+        if (journal == null)
+            return;
+        if (!FrontendAllocationJournal.accepts(allocation_id)) {
+            logger.warn("allocateAudioDevice: allocation id [" + allocation_id + "] is too long to journal, it will not be restored");
+            return;
+        }
+        boolean journaled;
+        if (request != null && request.device_control)
+            journaled = journal.control(audio_device_id, allocation_id, encodeAudioAllocation(request));
+        else
+            journaled = journal.listener(audio_device_id, allocation_id);
+        if (!journaled)
+            closeAudioAllocationJournal(journal, allocation_id);
+        else if (journal.compactionDue())
+            compactAudioAllocationJournal(journal);
+    }
+
+    /* journalAudioRelease records the release of an allocation, or of every allocation on the
+     * audio device if allocation_id is null. Called with the audio device lock held.
+     */
+    private void journalAudioRelease(final int audio_device_id, final String allocation_id){
+        FrontendAllocationJournal journal = audio_allocation_journal;
+        if (journal == null)
+            return;
+        boolean journaled = (allocation_id == null) ? journal.releaseDevice(audio_device_id) : journal.release(allocation_id);
+        if (!journaled)
+            closeAudioAllocationJournal(journal, allocation_id);
+        else if (journal.compactionDue())
+            compactAudioAllocationJournal(journal);
+    }
+
+    /* compactAudioAllocationJournal compacts the journal on the journal timer, so the allocation
+     * that filled it does not wait for the new file to be written and synced. A journal that cannot
+     * be compacted goes on as it is.
+     */
+    private void compactAudioAllocationJournal(final FrontendAllocationJournal journal){
+        scheduleAudioJournalTask(new Runnable() {
+            public void run() {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    logger.info("compactAudioAllocationJournal: could not compact the journal, going on with it as it is: " + e.getMessage());
+                }
+            }
+        }, 0);
+    }
+
+    // stops journaling once the journal could not be written
+    private void closeAudioAllocationJournal(final FrontendAllocationJournal journal, final String allocation_id){
+        logger.info("allocateAudioDevice: could not journal [" + allocation_id + "], no longer journaling allocations");
+        journal.close();
+        if (audio_allocation_journal == journal)
+            audio_allocation_journal = null;
+    }
+
+    private byte[] encodeAudioAllocation(final audioAllocationRequest request){
+        byte[] audio_type = (request.audio_type == null) ? new byte[0] : request.audio_type.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(4 + audio_type.length + 2 * 2 + 2 * 8);
+        encoded.putInt(audio_type.length);
+        encoded.put(audio_type);
+        encoded.putShort(request.full_bandwidth_channels);
+        encoded.putShort(request.low_frequency_effect_channels);
+        encoded.putDouble(request.sample_rate);
+        encoded.putDouble(request.sample_rate_tolerance);
+        return encoded.array();
+    }
+
+    private frontendX.FEXTypes.frontend_audio_allocation_struct decodeAudioAllocation(final String allocation_id, final byte[] encoded){
+        ByteBuffer decoded = ByteBuffer.wrap(encoded);
+        byte[] audio_type = new byte[decoded.getInt()];
+        decoded.get(audio_type);
+        frontendX.FEXTypes.frontend_audio_allocation_struct allocation = new frontendX.FEXTypes.frontend_audio_allocation_struct();
+        allocation.allocation_id.setValue(allocation_id);
+        allocation.audio_type.setValue(new String(audio_type, StandardCharsets.UTF_8));
+        allocation.device_control.setValue(true);
+        allocation.full_bandwidth_channels.setValue(decoded.getShort());
+        allocation.low_frequency_effect_channels.setValue(decoded.getShort());
+        allocation.sample_rate.setValue(decoded.getDouble());
+        allocation.sample_rate_tolerance.setValue(decoded.getDouble());
+        return allocation;
+    }
+
+    /* setAudioAllocationPolicy sets the policy that decides which audio devices an allocation tries
+     * first: FrontendAllocationPolicy.FIRST_FIT (the default), BEST_FIT, LEAST_LOADED, a
+     * FrontendAffinityAllocationPolicy or a device specific one. null restores first fit. With a
+     * tuning parallelism above 1 the ranking picks the audio devices tuned together, and the first
+     * of them to accept the request is used.
+     */
+    protected void setAudioAllocationPolicy(FrontendAllocationPolicy policy){
+        audio_allocation_policy = (policy == null) ? FrontendAllocationPolicy.FIRST_FIT : policy;
+    }
+
+    /* setAudioTuningParallelism sets how many free audio devices of the requested audio type a
+     * device control allocation tunes in parallel. The first to accept the request is used; the
+     * others keep their tuning, as a deallocated audio device does. The candidates are unavailable to other allocations
+     * while they are being tuned. Defaults to 1.
+     */
+    protected void setAudioTuningParallelism(int parallelism){
+        audio_tuning_parallelism = Math.max(1, parallelism);
+    }
+
+    /* setAudioHardwareTimeout sets how long, in milliseconds, allocation waits for a device specific
+     * function. An audio device whose function misses the deadline is abandoned and left out of
+     * allocation until that function returns; the allocation waiting for it fails. Defaults to
+     * 10000 milliseconds.
+     */
+    protected void setAudioHardwareTimeout(long timeout_ms){
+        audio_hardware_pipeline.setDeadline(timeout_ms);
+    }
+
+    /* setAudioQuarantinePolicy sets after how many consecutive tuning failures an audio device is
+     * quarantined, and for how long, in milliseconds: base_ms after the failure_threshold-th
+     * failure, doubling with every further failure up to max_ms. A quarantined audio device is
+     * skipped by device control allocations. Defaults to 3 failures, 1000 and 300000 milliseconds.
+     */
+    protected void setAudioQuarantinePolicy(int failure_threshold, long base_ms, long max_ms){
+        audio_quarantine_threshold = Math.max(1, failure_threshold);
+        audio_quarantine_base_ms = Math.max(1, base_ms);
+        audio_quarantine_max_ms = Math.max(audio_quarantine_base_ms, max_ms);
+    }
+
+    /* clearAudioDeviceQuarantine ends the quarantine of an audio device and resets its tuning
+     * failure count, for example once the hardware has been serviced.
+     */
+    protected void clearAudioDeviceQuarantine(int audio_device_id){
+        audio_device_index.clearQuarantine(audio_device_id);
+        recordAudioTuningResult(audio_device_id, true);
+    }
+
+    /* recordAudioTuningResult counts the consecutive tuning failures of an audio device in its
+     * tuning_failures status field, and quarantines the audio device once there are
+     * audio_quarantine_threshold of them. Each further failure doubles the quarantine. A
+     * successful tuning resets the count. The quarantined status field is cleared when the
+     * quarantine expires.
+     */
+    private void recordAudioTuningResult(final int audio_device_id, final boolean tuned){
+        synchronized(audioDeviceLock(audio_device_id)){
+            if (audio_device_id >= frontend_audio_status.getValue().size() || audio_device_id >= audio_allocation_ids.size())
+                return;
+            audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+            int failures = tuned ? 0 : allocation_ids.tuning_failures + 1;
+            allocation_ids.tuning_failures = failures;
+            frontend_audio_status.getValue().get(audio_device_id).tuning_failures.setValue(failures);
+            boolean quarantined = failures >= audio_quarantine_threshold;
+            if (quarantined) {
+                int doublings = Math.min(failures - audio_quarantine_threshold, 30);
+                long quarantine_ms = Math.min(audio_quarantine_max_ms, audio_quarantine_base_ms << doublings);
+                audio_device_index.quarantine(audio_device_id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quarantine_ms));
+                frontend_audio_status.getValue().get(audio_device_id).quarantined.setValue(true);
+                scheduleAudioQuarantineExpiry(audio_device_id, quarantine_ms);
+                logger.info("allocateAudioDevice: audioDevice[" + audio_device_id + "] failed tuning " + failures + " times in a row, quarantined for " + quarantine_ms + " ms");
+            }
+            // the audio device may hold the values it is being tried with, so only these fields are published
+            synchronized(audio_status_publish_lock){
+                audioStatusStructType published = copyPublishedAudioStatus(audio_device_id);
+                if (published != null) {
+                    published.tuning_failures.setValue(failures);
+                    if (quarantined)
+                        published.quarantined.setValue(true);
+                    replacePublishedAudioStatus(audio_device_id, published);
+                }
+            }
+        }
+    }
+
+    /* assignAudioDevice finds an audio device for a request whose allocation_id has already been
+     * reserved as allocation_handle and commits the allocation to it, enabling the audio device if requested.
+     * Returns the audio device id, or the negative code() of the FrontendAllocationReason the
+     * request could not be satisfied for.
+     */
+    private int assignAudioDevice(final audioAllocationRequest request, final int allocation_handle, final boolean enable){
+        // Next, try to allocate a new audio. Only free devices (device control) or
+        // controlled devices with a suitable sample_rate (listener) of the requested audio type are visited.
+        syncAudioDeviceIndex();
+        int audio_device_id = request.device_control ? assignAudioDeviceControl(request, allocation_handle, enable, -1) : assignAudioListener(request, allocation_handle);
+        // the index misses audio devices whose status was edited in place without updateAudioDeviceIndex
+        if (audio_device_id == FrontendAllocationReason.NO_DEVICE.code() && reindexAudioDevices())
+            audio_device_id = request.device_control ? assignAudioDeviceControl(request, allocation_handle, enable, -1) : assignAudioListener(request, allocation_handle);
+        if (audio_device_id == FrontendAllocationReason.NO_DEVICE.code()) {
+            String eout = "allocateAudioDevice: NO AVAILABLE AUDIO DEVICE. Make sure that the device has an initialized frontend_audio_status";
+            logger.info(eout);
+        }
+        return audio_device_id;
+    }
+
+    /* reindexAudioDevices re-reads the audio_type, control state and sample_rate of every audio
+     * device and updates the index entries that no longer match, for edits of frontend_audio_status
+     * made in place without updateAudioDeviceIndex. Allocation calls it when the index offered no
+     * audio device that could take a request, so such an edit costs one pass over the audio devices
+     * instead of failing the request. Returns whether any entry changed.
+     */
+    private boolean reindexAudioDevices(){
+        syncAudioDeviceIndex();
+        int changed = 0;
+        int size = audio_device_index.size();
+        for (int audio_device_id = 0; audio_device_id < size; audio_device_id++) {
+            synchronized(audioDeviceLock(audio_device_id)) {
+                String control_allocation_id = audio_allocation_ids.get(audio_device_id).control_allocation_id;
+                audioStatusStructType status = frontend_audio_status.getValue().get(audio_device_id);
+                if (audio_device_index.isIndexed(audio_device_id, status.audio_type.getValue(), control_allocation_id != null && !control_allocation_id.isEmpty(), status.sample_rate.getValue()))
+                    continue;
+                indexAudioDevice(audio_device_id);
+                changed++;
+            }
+        }
+        if (changed > 0)
+            logger.debug("allocateAudioDevice: " + changed + " audio devices changed outside of allocation, updated the index");
+        return changed > 0;
+    }
+
+    /* assignAudioListener attaches a listener request to the first controlled audio device that
+     * can serve it. Returns the audio device id, or a negative FrontendAllocationReason code.
+     */
+    private int assignAudioListener(final audioAllocationRequest request, final int allocation_handle){
+        final String audio_type = request.audio_type;
+        int[] listener_candidates = audioListenerCandidates(request);
+        FrontendAllocationPolicy policy = audio_allocation_policy;
+        if (policy != FrontendAllocationPolicy.FIRST_FIT)
+            listener_candidates = rankAudioDevices(policy, request, listener_candidates);
+        for (int audio_device_id : listener_candidates) {
+            synchronized(audioDeviceLock(audio_device_id)) {
+                if (!audioDeviceIndexMatches(audio_device_id, audio_type, false)) {
+                    logger.debug("allocateAudioDevice: audioDevice[" + audio_device_id + "] changed outside of allocation, updating index");
+                    updateAudioDeviceIndex(audio_device_id);
+                    continue;
+                }
+                if(!listenerRequestValidation(request, audio_device_id)){
+                    // can't support listener request
+                    logger.debug("allocateAudioDevice: audioDevice["+audio_device_id+"] can not support listener request ");
+                    continue;
+                }
+                audio_allocation_ids.get(audio_device_id).listener_allocation_handles.add(allocation_handle);
+                audio_allocation_handles.map(allocation_handle, audio_device_id);
+                journalAudioAllocation(audio_device_id, request.allocation_id, request);
+                markAudioAllocationIdCsv(audio_device_id);
+                publishAudioAllocationIdCsv(audio_device_id);
+                this.assignListener(request.allocation_id,audio_allocation_ids.get(audio_device_id).control_allocation_id);
+                if (!checkAudioTolerance(request, audio_device_id))
+                    return FrontendAllocationReason.TOLERANCE.code();
+                return audio_device_id;
+            }
+        }
+        return FrontendAllocationReason.NO_DEVICE.code();
+    }
+
+    /* assignAudioDeviceControl claims free audio devices of the requested audio type, up to
+     * audio_tuning_parallelism at a time, and tunes them through the hardware pipeline. The first
+     * audio device to accept the request is committed to the allocation and, if requested, enabled.
+     * Audio devices are claimed in ascending audio device id order, or in the order the allocation
+     * policy ranks them in. An audio device the request already holds, handed over or found free
+     * while it waited, is ranked along with the free ones; if the request is satisfied before its
+     * turn comes, it is released and offered to the next waiter.
+     */
+    private int assignAudioDeviceControl(final audioAllocationRequest request, final int allocation_handle, final boolean enable, final int claimed_audio_device_id){
+        final String audio_type = request.audio_type;
+        int last_candidate = -1;
+        int claimed = claimed_audio_device_id;
+        FrontendAllocationPolicy policy = audio_allocation_policy;
+        int[] ranked = null;
+        int next_ranked = 0;
+        int held = -1;
+        if (policy != FrontendAllocationPolicy.FIRST_FIT) {
+            int[] free_audio_device_ids = audio_device_index.freeDevices(audio_type);
+            if (claimed >= 0) {
+                free_audio_device_ids = Arrays.copyOf(free_audio_device_ids, free_audio_device_ids.length + 1);
+                free_audio_device_ids[free_audio_device_ids.length - 1] = claimed;
+                held = claimed;
+                claimed = -1;
+            }
+            ranked = rankAudioDevices(policy, request, free_audio_device_ids);
+        }
+        try {
+            while (true) {
+                // claims the devices so no other allocation can tune them concurrently
+                int[] candidates = new int[audio_tuning_parallelism];
+                int count = 0;
+                if (claimed >= 0) {
+                    candidates[count++] = claimed;
+                    claimed = -1;
+                }
+                while (count < candidates.length) {
+                    int audio_device_id = -1;
+                    if (ranked == null) {
+                        audio_device_id = audio_device_index.claimFree(audio_type, last_candidate);
+                    } else {
+                        // a ranked audio device taken in the meantime is skipped
+                        while (audio_device_id < 0 && next_ranked < ranked.length) {
+                            if (ranked[next_ranked] == held) {
+                                audio_device_id = held;
+                                held = -1;
+                            } else if (audio_device_index.claim(ranked[next_ranked])) {
+                                audio_device_id = ranked[next_ranked];
+                            }
+                            next_ranked++;
+                        }
+                    }
+                    if (audio_device_id < 0)
+                        break;
+                    candidates[count++] = audio_device_id;
+                    last_candidate = audio_device_id;
+                }
+                if (count == 0)
+                    break;
+                long tuning_start = System.nanoTime();
+                int audio_device_id = tuneAudioDevices(request, candidates, count);
+                audio_allocation_metrics.record("allocate.tuning", tuning_start);
+                if (audio_device_id == FrontendAllocationReason.NO_DEVICE.code())
+                    continue;
+                if (audio_device_id < 0)
+                    return audio_device_id;
+                boolean tolerated;
+                try {
+                    synchronized(audioDeviceLock(audio_device_id)) {
+                        audio_allocation_ids.get(audio_device_id).control_allocation_id = request.allocation_id;
+                        audio_allocation_ids.get(audio_device_id).control_allocation_handle = allocation_handle;
+                        indexAudioDevice(audio_device_id);
+                        audio_allocation_handles.map(allocation_handle, audio_device_id);
+                        journalAudioAllocation(audio_device_id, request.allocation_id, request);
+                        markAudioAllocationIdCsv(audio_device_id);
+                        tolerated = checkAudioTolerance(request, audio_device_id);
+                        if (tolerated)
+                            publishAudioStatus(audio_device_id);
+                    }
+                } finally {
+                    audio_device_index.release(audio_device_id);
+                }
+                if (!tolerated)
+                    return FrontendAllocationReason.TOLERANCE.code();
+                if (enable) {
+                    FrontendAllocationReason enabled = enableAudioDevices(new int[]{audio_device_id}, new int[]{allocation_handle}, 1);
+                    if (enabled != FrontendAllocationReason.ALLOCATED) {
+                        logger.info("allocateAudioDevice: Failed to enable audio after allocation");
+                        releaseAudioAllocation(request.allocation_id);
+                        return enabled.code();
+                    }
+                }
+                return audio_device_id;
+            }
+        } finally {
+            if (held >= 0) {
+                audio_device_index.release(held);
+                offerAudioDevice(held);
+            }
+        }
+        return FrontendAllocationReason.NO_DEVICE.code();
+    }
+
+    /* rankAudioDevices orders candidate audio devices with an allocation policy. The retune distance
+     * of an audio device is the number of tuning parameters a device control request would change.
+     * A policy that throws leaves the candidates in the order they were offered.
+     */
+    private int[] rankAudioDevices(final FrontendAllocationPolicy policy, final audioAllocationRequest request, final int[] audio_device_ids){
+        List<FrontendAllocationPolicy.Candidate> candidates = new ArrayList<FrontendAllocationPolicy.Candidate>(audio_device_ids.length);
+        for (int audio_device_id : audio_device_ids) {
+            audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+            int retune_distance = request.device_control ? Integer.bitCount(audioTuningChanges(allocation_ids.applied_tuning, request)) : 0;
+            candidates.add(new FrontendAllocationPolicy.Candidate(audio_device_id, retune_distance, allocation_ids.listener_allocation_handles.size()));
+        }
+        try {
+            policy.rank(request.allocation_id, request.device_control, candidates);
+        } catch (RuntimeException e) {
+            logger.info("allocateAudioDevice: allocation policy failed, using first fit: " + e);
+            return audio_device_ids;
+        }
+        int[] ranked = new int[candidates.size()];
+        for (int idx = 0; idx < ranked.length; idx++)
+            ranked[idx] = candidates.get(idx).device_id;
+        return ranked;
+    }
+
+    /* checkAudioTolerance releases an allocation that was just committed to an audio device if the
+     * sample_rate the audio device reports does not meet the requested tolerance, and returns false.
+     * Called with the audio device lock held.
+     */
+    private boolean checkAudioTolerance(final audioAllocationRequest request, final int audio_device_id){
+        // only check when sample_rate was not set to don't care)
+        logger.debug(" allocateAudioDevice - SR requested: " + request.sample_rate + "  SR got: " + frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue());
+        if( (floatingPointCompare(request.sample_rate,0)!=0) &&
+            (floatingPointCompare(frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue(),request.sample_rate)<0 ||
+            floatingPointCompare(frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue(),request.sample_rate+request.sample_rate * request.sample_rate_tolerance/100.0)>0 )){
+            String eout = "allocateAudioDevice(" + audio_device_id + "): returned sr " + frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue()+" does not meet tolerance criteria of " + request.sample_rate_tolerance+" percent";
+            logger.info(eout);
+            // undo the allocation that was just committed
+            releaseAudioAllocation(request.allocation_id);
+            return false;
+        }
+        return true;
+    }
+
+    /* tuneAudioDevices tunes the claimed candidate audio devices in parallel through the hardware
+     * pipeline and returns the first one that accepted the request, or NO_DEVICE.code() if none
+     * did. The returned audio device stays claimed; every other candidate is released, and those
+     * that were tuned after the first success keep their tuning. If no candidate has
+     * accepted the request by the hardware deadline, the candidates still tuning are abandoned and
+     * TUNING_TIMEOUT.code() is returned.
+     */
+    private int tuneAudioDevices(final audioAllocationRequest request, final int[] candidates, final int count){
+        final String audio_type = request.audio_type;
+        final AtomicInteger tuned_audio_device_id = new AtomicInteger(-1);
+        final BlockingQueue<Boolean> results = new LinkedBlockingQueue<Boolean>();
+        // set by whichever of the tuning and an abandoning allocation gets to release the claim first
+        final AtomicIntegerArray settled = new AtomicIntegerArray(count);
+        List<Future<Void>> tunings = new ArrayList<Future<Void>>(count);
+        long submitted = System.nanoTime();
+        for (int idx = 0; idx < count; idx++) {
+            final int audio_device_id = candidates[idx];
+            final int candidate = idx;
+            tunings.add(audio_hardware_pipeline.submit(audio_device_id, new Callable<Void>() {
+                public Void call() {
+                    boolean accepted = false;
+                    boolean tuned = false;
+                    try {
+                        boolean indexed;
+                        synchronized(audioDeviceLock(audio_device_id)) {
+                            indexed = audioDeviceIndexMatches(audio_device_id, audio_type, true);
+                            if (!indexed) {
+                                logger.debug("allocateAudioDevice: audioDevice[" + audio_device_id + "] changed outside of allocation, updating index");
+                                updateAudioDeviceIndex(audio_device_id);
+                            }
+                        }
+                        // the audio device is claimed, so it is tuned without holding its lock
+                        if (indexed) {
+                            try {
+                                accepted = tryAudioDeviceTuning(request, audio_device_id);
+                            } finally {
+                                // a tuning the allocation has abandoned was counted as failed already
+                                if (settled.get(candidate) == 0)
+                                    recordAudioTuningResult(audio_device_id, accepted);
+                            }
+                        }
+                        // unless another candidate accepted the request first, or the allocation gave up
+                        if (accepted)
+                            tuned = tuned_audio_device_id.compareAndSet(-1, audio_device_id);
+                    } catch (RuntimeException e) {
+                        logger.info("allocateAudioDevice: audioDevice[" + audio_device_id + "] failed while setting tuning: " + e.getMessage());
+                    } finally {
+                        if (!tuned && settled.compareAndSet(candidate, 0, 1)) {
+                            // the tuning it keeps is published before another allocation can claim it
+                            if (accepted)
+                                publishAudioStatus(audio_device_id);
+                            audio_device_index.release(audio_device_id);
+                        }
+                        results.add(tuned);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (int idx = 0; idx < count; idx++) {
+                Boolean tuned = results.poll(audio_hardware_pipeline.remaining(submitted), TimeUnit.NANOSECONDS);
+                if (tuned == null) {
+                    // stop a candidate that is still tuning from winning, unless one just has
+                    if (!tuned_audio_device_id.compareAndSet(-1, -2))
+                        return tuned_audio_device_id.get();
+                    for (int candidate = 0; candidate < count; candidate++) {
+                        if (settled.compareAndSet(candidate, 0, 1)) {
+                            // marked unhealthy before the claim is dropped, so it is not handed out again
+                            audio_hardware_pipeline.abandon(candidates[candidate], tunings.get(candidate));
+                            // whatever the abandoned tuning leaves behind is not known
+                            invalidateAudioDeviceTuning(candidates[candidate]);
+                            recordAudioTuningResult(candidates[candidate], false);
+                            audio_device_index.release(candidates[candidate]);
+                        }
+                    }
+                    logger.info("allocateAudioDevice: TIMED OUT WHILE SETTING TUNING");
+                    return FrontendAllocationReason.TUNING_TIMEOUT.code();
+                }
+                if (tuned)
+                    return tuned_audio_device_id.get();
+            }
+            return FrontendAllocationReason.NO_DEVICE.code();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // stop a candidate that is still tuning from winning, or give up the one that already has;
+            // it keeps its tuning, as a deallocated audio device does
+            if (!tuned_audio_device_id.compareAndSet(-1, -2)) {
+                publishAudioStatus(tuned_audio_device_id.get());
+                audio_device_index.release(tuned_audio_device_id.get());
+            }
+            logger.info("allocateAudioDevice: interrupted while tuning");
+            return FrontendAllocationReason.INTERRUPTED.code();
+        }
+    }
+
+    /* enableAudioDevices enables the first count audio devices through the hardware pipeline, in
+     * parallel, and waits for them up to the hardware deadline. An audio device is only enabled while
+     * it is still controlled by the allocation handle it was committed to. Returns ALLOCATED, or
+     * ENABLE_FAILED or ENABLE_TIMEOUT if any of them could not be enabled in time.
+     */
+    private FrontendAllocationReason enableAudioDevices(final int[] audio_device_ids, final int[] allocation_handles, final int count){
+        List<Future<Boolean>> enabled = new ArrayList<Future<Boolean>>(count);
+        long submitted = System.nanoTime();
+        if (count == 0)
+            return FrontendAllocationReason.ALLOCATED;
+        for (int idx = 0; idx < count; idx++) {
+            final int audio_device_id = audio_device_ids[idx];
+            final int allocation_handle = allocation_handles[idx];
+            enabled.add(audio_hardware_pipeline.submit(audio_device_id, new Callable<Boolean>() {
+                public Boolean call() {
+                    synchronized(audioDeviceLock(audio_device_id)) {
+                        if (audio_allocation_ids.get(audio_device_id).control_allocation_handle != allocation_handle)
+                            return false;
+                    }
+                    // a deallocation from here on queues its teardown behind this call
+                    boolean enabled = enableAudioDevice(audio_device_id, true);
+                    publishAudioStatus(audio_device_id);
+                    return enabled;
+                }
+            }));
+        }
+        FrontendAllocationReason reason = FrontendAllocationReason.ALLOCATED;
+        for (int idx = 0; idx < count; idx++) {
+            try {
+                if (!audio_hardware_pipeline.await(audio_device_ids[idx], enabled.get(idx), submitted) && reason == FrontendAllocationReason.ALLOCATED)
+                    reason = FrontendAllocationReason.ENABLE_FAILED;
+            } catch (ExecutionException e) {
+                logger.info("allocateAudioDevice: enabling audio device failed: " + e.getCause());
+                if (reason == FrontendAllocationReason.ALLOCATED)
+                    reason = FrontendAllocationReason.ENABLE_FAILED;
+            } catch (TimeoutException e) {
+                logger.info("allocateAudioDevice: audioDevice[" + audio_device_ids[idx] + "] TIMED OUT WHILE ENABLING");
+                reason = FrontendAllocationReason.ENABLE_TIMEOUT;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reason = FrontendAllocationReason.INTERRUPTED;
+            }
+        }
+        audio_allocation_metrics.record("allocate.enable", submitted);
+        return reason;
+    }
+
+    /* tryAudioDeviceTuning applies a device control request to the status of an audio device and
+     * calls audioDeviceSetTuning with the parameters that differ from the tuning the audio device
+     * kept from its last allocation. A request identical to that tuning does not call
+     * audioDeviceSetTuning at all; the status it produced is restored instead. A different request
+     * replaces the kept tuning: in place, if the device implementation overrides the
+     * audioDeviceSetTuning that takes the changed parameters, or else after audioDeviceDeleteTuning
+     * has deleted it, with every parameter. If the audio device rejects the request, the status
+     * fields the implementation did not change are restored. Called from the hardware pipeline,
+     * with the audio device claimed.
+     */
+    private boolean tryAudioDeviceTuning(final audioAllocationRequest request, final int audio_device_id){
+        audioTuningState applied_tuning = audio_allocation_ids.get(audio_device_id).applied_tuning;
+        int changed_parameters = audioTuningChanges(applied_tuning, request);
+        if (changed_parameters == 0){
+            frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.setValue(applied_tuning.tuned_full_bandwidth_channels);
+            frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.setValue(applied_tuning.tuned_low_frequency_effect_channels);
+            frontend_audio_status.getValue().get(audio_device_id).sample_rate.setValue(applied_tuning.tuned_sample_rate);
+            logger.debug("allocateAudioDevice: audioDevice["+audio_device_id+"] already tuned, skipping audioDeviceSetTuning");
+            return true;
+        }
+        if (applied_tuning != null && !audio_retunes_in_place){
+            audio_allocation_ids.get(audio_device_id).applied_tuning = null;
+            audioDeviceDeleteTuning(frontend_audio_status.getValue().get(audio_device_id), audio_device_id);
+            changed_parameters = AUDIO_TUNING_ALL;
+        }
+        short orig_fbc = frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.getValue();
+        short orig_lfec = frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.getValue();
+        double orig_sr = frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue();
+        frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.setValue(request.full_bandwidth_channels);
+        frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.setValue(request.low_frequency_effect_channels);
+        frontend_audio_status.getValue().get(audio_device_id).sample_rate.setValue(request.sample_rate);
+        // until audioDeviceSetTuning returns, the audio device may be left tuned to neither
+        audio_allocation_ids.get(audio_device_id).applied_tuning = null;
+        if(!audioDeviceSetTuning(request.allocation, frontend_audio_status.getValue().get(audio_device_id), audio_device_id, changed_parameters)){
+            // didn't succeed setting tuning, try next audio device
+            audio_allocation_ids.get(audio_device_id).applied_tuning = null;
+            if (frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.getValue() == request.full_bandwidth_channels)
+                frontend_audio_status.getValue().get(audio_device_id).full_bandwidth_channels.setValue(orig_fbc);
+            if (frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.getValue() == request.low_frequency_effect_channels)
+                frontend_audio_status.getValue().get(audio_device_id).low_frequency_effect_channels.setValue(orig_lfec);
+            if (frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue() == request.sample_rate)
+                frontend_audio_status.getValue().get(audio_device_id).sample_rate.setValue(orig_sr);
+            logger.debug("allocateAudioDevice: audioDevice["+audio_device_id+"] didn't succeed while setting tuning ");
+            return false;
+        }
+        audio_allocation_ids.get(audio_device_id).applied_tuning = new audioTuningState(request, frontend_audio_status.getValue().get(audio_device_id));
+        return true;
+    }
+
+    /* audioTuningChanges returns the AUDIO_TUNING_* flags of the request parameters that differ
+     * from the tuning last applied to an audio device, or AUDIO_TUNING_ALL if it is not known.
+     */
+    private int audioTuningChanges(final audioTuningState applied_tuning, final audioAllocationRequest request){
+        if (applied_tuning == null)
+            return AUDIO_TUNING_ALL;
+        int changed_parameters = 0;
+        if (request.full_bandwidth_channels != applied_tuning.full_bandwidth_channels)
+            changed_parameters |= AUDIO_TUNING_FULL_BANDWIDTH_CHANNELS;
+        if (request.low_frequency_effect_channels != applied_tuning.low_frequency_effect_channels)
+            changed_parameters |= AUDIO_TUNING_LOW_FREQUENCY_EFFECT_CHANNELS;
+        if (request.sample_rate != applied_tuning.sample_rate)
+            changed_parameters |= AUDIO_TUNING_SAMPLE_RATE;
+        return changed_parameters;
+    }
+
+    /* invalidateAudioDeviceTuning forgets the tuning last applied to an audio device, so the next
+     * device control allocation tunes it in full. The base class calls it when it deletes a tuning
+     * and when it abandons an audio device that missed its hardware deadline; a device
+     * implementation whose hardware loses its configuration in any other way, for example when it
+     * is reset, must call it.
+     */
+    protected void invalidateAudioDeviceTuning(int audio_device_id){
+        synchronized(audioDeviceLock(audio_device_id)){
+            audio_allocation_ids.get(audio_device_id).applied_tuning = null;
+        }
+    }
+
+    /* allocateListener adds a listener to an existing device control allocation. A request with
+     * a missing or already used allocation id, or for a PLAYBACK audio device, is rejected with an
+     * InvalidCapacity; an unknown existing allocation id returns false.
+     */
     public boolean allocateListener(frontend.FETypes.frontend_listener_allocation_struct frontend_listener_allocation) throws CF.DevicePackage.InvalidCapacity, Exception {
+        FrontendAllocationReason reason = tryAllocateListener(frontend_listener_allocation);
+        if (reason.isRejection()) {
+            String message = reason.message;
+            if (reason == FrontendAllocationReason.LISTENER_NOT_PERMITTED)
+                message = "allocateListener: listener allocations are not permitted for PLAYBACK audio type";
+            throw new CF.DevicePackage.InvalidCapacity(message, new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+        }
+        return reason == FrontendAllocationReason.ALLOCATED;
+    }
+
+    /* tryAllocateListener does the work of allocateListener without throwing for a failed
+     * allocation. Returns ALLOCATED, or the reason the request was rejected or failed. As with
+     * tryAllocateAudio, the framework allocates frontend_listener_allocation through it unless a
+     * device implementation overrides allocateListener.
+     */
+    protected FrontendAllocationReason tryAllocateListener(final frontend.FETypes.frontend_listener_allocation_struct frontend_listener_allocation){
+        String reserved_allocation_id = null;
+        int reserved_handle = FrontendAllocationHandles.NO_HANDLE;
+        long start = System.nanoTime();
+        FrontendAllocationReason reason = null;
         try{
             // Check validity of allocation_id's
             if (frontend_listener_allocation.existing_allocation_id == null || 
                 frontend_listener_allocation.existing_allocation_id.getValue().isEmpty()){
                 logger.info("allocateListener: MISSING EXISTING ALLOCATION ID");
-                throw new CF.DevicePackage.InvalidCapacity("MISSING EXISTING ALLOCATION ID", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                reason = FrontendAllocationReason.MISSING_EXISTING_ALLOCATION_ID;
+                return reason;
             }
             if (frontend_listener_allocation.listener_allocation_id == null ||
                 frontend_listener_allocation.listener_allocation_id.getValue().isEmpty()){
                 logger.info("allocateListener: MISSING LISTENER ALLOCATION ID");
-                throw new CF.DevicePackage.InvalidCapacity("MISSING LISTENER ALLOCATION ID", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                reason = FrontendAllocationReason.MISSING_LISTENER_ALLOCATION_ID;
+                return reason;
             }
 
-            //synchronized(allocation_id_mapping_lock){
-                // Check if listener allocation ID has already been used
-                if(getAudioDeviceMapping(frontend_listener_allocation.listener_allocation_id.getValue()) >= 0){
-                    logger.error("allocateListener: LISTENER ALLOCATION_ID ALREADY IN USE");
-                    throw new InvalidCapacity("LISTENER ALLOCATION_ID ALREADY IN USE", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
-                }
+            // Check if listener allocation ID has already been used, reserving it if not
+            reserved_allocation_id = frontend_listener_allocation.listener_allocation_id.getValue();
+            reserved_handle = audio_allocation_handles.reserve(reserved_allocation_id);
+            if(reserved_handle == FrontendAllocationHandles.NO_HANDLE){
+                logger.error("allocateListener: LISTENER ALLOCATION_ID ALREADY IN USE");
+                reason = FrontendAllocationReason.LISTENER_ALLOCATION_ID_IN_USE;
+                return reason;
+            }
+
+            // Do not allocate if existing allocation ID does not exist
+            int audio_device_id = getAudioDeviceMapping(frontend_listener_allocation.existing_allocation_id.getValue());
+            if (audio_device_id < 0){
+                logger.info("allocateListener: UNKNOWN CONTROL ALLOCATION ID: ["+ frontend_listener_allocation.existing_allocation_id.getValue() +"]");
+                reason = FrontendAllocationReason.UNKNOWN_CONTROL_ALLOCATION_ID;
+                return reason;
+            }
 
-                // Do not allocate if existing allocation ID does not exist
-                int audio_device_id = getAudioDeviceMapping(frontend_listener_allocation.existing_allocation_id.getValue());
-                if (audio_device_id < 0){
+            synchronized(audioDeviceLock(audio_device_id)){
+                // the existing allocation may have been released while waiting for the device
+                if (getAudioDeviceMapping(frontend_listener_allocation.existing_allocation_id.getValue()) != audio_device_id){
                     logger.info("allocateListener: UNKNOWN CONTROL ALLOCATION ID: ["+ frontend_listener_allocation.existing_allocation_id.getValue() +"]");
-                    throw new FRONTEND.BadParameterException("UNKNOWN CONTROL ALLOCATION ID");
+                    reason = FrontendAllocationReason.UNKNOWN_CONTROL_ALLOCATION_ID;
+                    return reason;
                 }
 
                 // listener allocations are not permitted for PLAYBACK
                 if(frontend_audio_status.getValue().get(audio_device_id).audio_type.getValue().equals("PLAYBACK")){
-                    String eout = "allocateListener: listener allocations are not permitted for " + frontend_audio_status.getValue().get(audio_device_id).audio_type.getValue() + " audio type";
-                    logger.debug(eout);
-                    throw new CF.DevicePackage.InvalidCapacity(eout, new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                    logger.debug("allocateListener: listener allocations are not permitted for PLAYBACK audio type");
+                    reason = FrontendAllocationReason.LISTENER_NOT_PERMITTED;
+                    return reason;
                 }
 
-                audio_allocation_ids.get(audio_device_id).listener_allocation_ids.add(frontend_listener_allocation.listener_allocation_id.getValue());
-                allocation_id_to_audio_device_id.put(frontend_listener_allocation.listener_allocation_id.getValue(), audio_device_id);
-                frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue(createAllocationIdCsv(audio_device_id));
+                audio_allocation_ids.get(audio_device_id).listener_allocation_handles.add(reserved_handle);
+                audio_allocation_handles.map(reserved_handle, audio_device_id);
+                journalAudioAllocation(audio_device_id, frontend_listener_allocation.listener_allocation_id.getValue(), null);
+                markAudioAllocationIdCsv(audio_device_id);
+                publishAudioAllocationIdCsv(audio_device_id);
                 this.assignListener(frontend_listener_allocation.listener_allocation_id.getValue(),frontend_listener_allocation.existing_allocation_id.getValue());
-                return true;
-            //}
-        }catch(CF.DevicePackage.InvalidCapacity e){
-            String exceptionMessage = e.getMessage();
-            // without the following check, a valid allocation could be deallocated due to an attempt to alloc w/ an existing alloc id
-            if (exceptionMessage != null && 
-               exceptionMessage.indexOf("ALLOCATION_ID ALREADY IN USE") == -1){
-            }
-            throw e;
-        } catch (FRONTEND.BadParameterException e){
-            return false;
-        } catch (Exception e){
-            throw e;
+                reason = FrontendAllocationReason.ALLOCATED;
+                return reason;
+            }
+        } finally {
+            // drop the reservation unless the listener was added
+            if (reserved_handle != FrontendAllocationHandles.NO_HANDLE)
+                audio_allocation_handles.releasePending(reserved_handle, reserved_allocation_id);
+            audio_allocation_metrics.count(FrontendAllocationMetrics.LISTENER_ALLOCATE, reason);
+            audio_allocation_metrics.record("listener_allocate", start);
         }
     }
 
     public void deallocateListener(frontend.FETypes.frontend_listener_allocation_struct frontend_listener_allocation){
         try{
+            boolean released = false;
             int audio_device_id = getAudioDeviceMapping(frontend_listener_allocation.listener_allocation_id.getValue());
-            if (audio_device_id < 0){
+            if (audio_device_id >= 0){
+                synchronized(audioDeviceLock(audio_device_id)){
+                    // the listener may have been released while waiting for the device
+                    if (getAudioDeviceMapping(frontend_listener_allocation.listener_allocation_id.getValue()) == audio_device_id){
+                        // send EOS to listener connection only
+                        removeAudioDeviceMapping(audio_device_id, frontend_listener_allocation.listener_allocation_id.getValue());
+                        markAudioAllocationIdCsv(audio_device_id);
+                        publishAudioAllocationIdCsv(audio_device_id);
+                        released = true;
+                    }
+                }
+            }
+            if (released){
+                audio_allocation_metrics.count("listener_deallocate.succeeded");
+            } else {
                 logger.debug("ALLOCATION_ID NOT FOUND: [" + frontend_listener_allocation.listener_allocation_id.getValue() + "]");
-                throw new CF.DevicePackage.InvalidCapacity("ALLOCATION_ID NOT FOUND", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                audio_allocation_metrics.count("listener_deallocate.failed.not_found");
+                logger.warn("deallocateListener: ERROR WHEN DEALLOCATING.  SKIPPING...");
             }
-            // send EOS to listener connection only
-            removeAudioDeviceMapping(audio_device_id, frontend_listener_allocation.listener_allocation_id.getValue());
-            frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue(removeListenerId(audio_device_id, frontend_listener_allocation.listener_allocation_id.getValue()));
-        } catch (Exception e){
-            logger.debug("deallocateListener: ERROR WHEN DEALLOCATING.  SKIPPING..");
+        } catch (RuntimeException e){
+            logger.warn("deallocateListener: ERROR WHEN DEALLOCATING.  SKIPPING...", e);
         }
     }
     
+    /* removeListenerId returns the allocation_id_csv of an audio device without the first occurrence
+     * of allocation_id, in a single pass over the csv.
+     */
     public String removeListenerId(final int audio_device_id, final String allocation_id) {
-        String[] split_id = frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.getValue().split(",");
-        int idx;
-        for (idx=0; idx<split_id.length; idx++) {
-            if (split_id[idx].equals(allocation_id)) {
-                break;
+        String alloc_id_csv = frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.getValue();
+        // trailing empty ids are dropped, as with split
+        int length = alloc_id_csv.length();
+        while (length > 0 && alloc_id_csv.charAt(length-1) == ',') {
+            length--;
+        }
+        StringBuilder cleaned = new StringBuilder(length);
+        boolean removed = false;
+        boolean first = true;
+        int start = 0;
+        while (start <= length) {
+            int end = alloc_id_csv.indexOf(',', start);
+            if (end < 0 || end > length)
+                end = length;
+            String id = alloc_id_csv.substring(start, end);
+            if (!removed && id.equals(allocation_id)) {
+                removed = true;
+            } else {
+                if (!first)
+                    cleaned.append(',');
+                cleaned.append(id);
+                first = false;
             }
+            start = end + 1;
         }
-        String cleanedString = "";
-        for (int idx_i=0; idx_i<split_id.length; idx_i++) {
-            if (idx == idx_i) {
-                continue;
+        return cleaned.toString();
+    }
+
+    /* markAudioAllocationIdCsv marks the allocation_id_csv of an audio device stale after its
+     * allocation ids have changed. It is rendered from them when the audio device is next
+     * published, which the allocation that changed them does before it lets go of the audio device
+     * lock. Called with the audio device lock held.
+     */
+    protected void markAudioAllocationIdCsv(int audio_device_id){
+        if (audio_device_id < audio_allocation_ids.size())
+            audio_allocation_ids.get(audio_device_id).allocation_id_csv_stale = true;
+    }
+
+    /* renderAudioAllocationIdCsv renders the allocation_id_csv of an audio device into
+     * frontend_audio_status if it is stale, and returns whether it was. Called with the audio
+     * device lock held.
+     */
+    private boolean renderAudioAllocationIdCsv(final int audio_device_id){
+        if (audio_device_id < 0 || audio_device_id >= frontend_audio_status.getValue().size() || audio_device_id >= audio_allocation_ids.size())
+            return false;
+        audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+        if (!allocation_ids.allocation_id_csv_stale)
+            return false;
+        allocation_ids.allocation_id_csv_stale = false;
+        frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.setValue(createAllocationIdCsv(audio_device_id));
+        return true;
+    }
+
+    /* publishAudioAllocationIdCsv renders a stale allocation_id_csv of an audio device and publishes
+     * it to the status snapshot, without the other fields: they may hold the values an allocation
+     * is trying the audio device with. Called with the audio device lock held.
+     */
+    private void publishAudioAllocationIdCsv(final int audio_device_id){
+        publishAudioAllocationIdCsv(audio_device_id, true);
+    }
+
+    /* Without new_version, the copy is replaced but readers go on seeing the current version until
+     * newAudioStatusVersion, or any other publication, makes a new one
+     */
+    private void publishAudioAllocationIdCsv(final int audio_device_id, final boolean new_version){
+        if (!renderAudioAllocationIdCsv(audio_device_id))
+            return;
+        String allocation_id_csv = frontend_audio_status.getValue().get(audio_device_id).allocation_id_csv.getValue();
+        synchronized(audio_status_publish_lock){
+            audioStatusStructType published = copyPublishedAudioStatus(audio_device_id);
+            if (published != null) {
+                published.allocation_id_csv.setValue(allocation_id_csv);
+                audio_published_statuses[audio_device_id] = new audioStatusElement(published);
+                if (new_version)
+                    audio_status_version++;
             }
-            cleanedString += split_id[idx_i] + ",";
         }
-        cleanedString = cleanedString.replaceAll(",$","");
-        return cleanedString;
+    }
+
+    /* newAudioStatusVersion publishes the copies replaced without a new version */
+    private void newAudioStatusVersion(){
+        synchronized(audio_status_publish_lock){
+            audio_status_version++;
+        }
+    }
+
+    /* expireAudioQuarantine clears the quarantined status field of an audio device once its
+     * quarantine has run out. It is scheduled for the end of every quarantine; a quarantine that
+     * has been extended in the meantime is left to the expiry scheduled with it.
+     */
+    private void expireAudioQuarantine(final int audio_device_id){
+        synchronized(audioDeviceLock(audio_device_id)){
+            if (audio_device_index.isQuarantined(audio_device_id) || audio_device_id >= frontend_audio_status.getValue().size())
+                return;
+            frontend_audio_status.getValue().get(audio_device_id).quarantined.setValue(false);
+            synchronized(audio_status_publish_lock){
+                audioStatusStructType published = copyPublishedAudioStatus(audio_device_id);
+                if (published != null && published.quarantined.getValue()) {
+                    published.quarantined.setValue(false);
+                    replacePublishedAudioStatus(audio_device_id, published);
+                }
+            }
+        }
+    }
+
+    private void scheduleAudioQuarantineExpiry(final int audio_device_id, final long delay_ms){
+        synchronized(audio_quarantine_timer_lock){
+            if (audio_quarantine_timer == null)
+                audio_quarantine_timer = Executors.newSingleThreadScheduledExecutor(FrontendHardwarePipeline.daemonThreads("FrontendAudioDevice-quarantine-"));
+            try {
+                audio_quarantine_timer.schedule(new Runnable() {
+                    public void run() {
+                        expireAudioQuarantine(audio_device_id);
+                    }
+                }, delay_ms, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down by releaseObject
+            }
+        }
+    }
+
+    /* getAudioStatusSnapshot returns frontend_audio_status as of the last committed allocation
+     * change, as an unmodifiable list of copies that must not be modified. It never shows the
+     * values an audio device is tried with while it is being tuned. The list is built on the first
+     * call after a change; the copies in it are shared with the snapshots before and after it, up
+     * to the next change of their audio device. A device implementation should answer
+     * getAudioStatus from it.
+     */
+    protected List<audioStatusStructType> getAudioStatusSnapshot(){
+        return currentAudioStatusSnapshot().statuses;
+    }
+
+    /* getAudioStatusVersion returns the version of the status snapshot, which increases with
+     * every change published to it.
+     */
+    protected long getAudioStatusVersion(){
+        return audio_status_version;
+    }
+
+    /* publishAudioStatus copies the frontend_audio_status of an audio device into the status
+     * snapshot, which replaces the copy of that audio device only, and renders its
+     * allocation_id_csv first if it is stale. Allocation publishes every change it commits, once,
+     * after the device functions it calls (audioDeviceEnable, audioDeviceDisable,
+     * audioDeviceSetTuning and audioDeviceDeleteTuning) have returned. A device implementation
+     * that changes the status of an audio device in any other way must call it afterwards, or
+     * queries go on showing the old values. It must not be called while an allocation may be
+     * tuning the audio device. If frontend_audio_status has been replaced or resized, every audio
+     * device is copied again.
+     */
+    protected void publishAudioStatus(int audio_device_id){
+        synchronized(audioDeviceLock(audio_device_id)){
+            renderAudioAllocationIdCsv(audio_device_id);
+            synchronized(audio_status_publish_lock){
+                List<audioStatusStructType> statuses = frontend_audio_status.getValue();
+                if (audio_status_source != statuses || audio_published_statuses.length != statuses.size()) {
+                    republishAudioStatus();
+                    return;
+                }
+                if (audio_device_id < 0 || audio_device_id >= statuses.size())
+                    return;
+                replacePublishedAudioStatus(audio_device_id, copyAudioStatus(statuses.get(audio_device_id)));
+            }
+        }
+    }
+
+    /* republishAudioStatus copies every audio device into the status snapshot. Called with
+     * audio_status_publish_lock held.
+     */
+    private void republishAudioStatus(){
+        List<audioStatusStructType> statuses = frontend_audio_status.getValue();
+        audioStatusElement[] published = new audioStatusElement[statuses.size()];
+        for (int audio_device_id = 0; audio_device_id < published.length; audio_device_id++) {
+            published[audio_device_id] = new audioStatusElement(copyAudioStatus(statuses.get(audio_device_id)));
+        }
+        audio_status_source = statuses;
+        audio_published_statuses = published;
+        audio_status_version++;
+    }
+
+    /* copyPublishedAudioStatus returns a copy of the published status of an audio device to be
+     * changed and passed to replacePublishedAudioStatus, or null if it has not been published.
+     * Called with audio_status_publish_lock held.
+     */
+    @SuppressWarnings("unchecked")
+    private audioStatusStructType copyPublishedAudioStatus(final int audio_device_id){
+        if (audio_status_source != frontend_audio_status.getValue() || audio_device_id >= audio_published_statuses.length)
+            return null;
+        return copyAudioStatus((audioStatusStructType) audio_published_statuses[audio_device_id].status);
+    }
+
+    /* replacePublishedAudioStatus publishes a new version of the status snapshot that differs from
+     * the current one in the copy of one audio device. Called with audio_status_publish_lock held.
+     */
+    private void replacePublishedAudioStatus(final int audio_device_id, final audioStatusStructType status){
+        audio_published_statuses[audio_device_id] = new audioStatusElement(status);
+        audio_status_version++;
+    }
+
+    /* currentAudioStatusSnapshot returns the status snapshot of the current version, building it
+     * from the published copies if it has not been built yet
+     */
+    private audioStatusSnapshot currentAudioStatusSnapshot(){
+        audioStatusSnapshot snapshot = audio_status_snapshot;
+        if (snapshot.version == audio_status_version)
+            return snapshot;
+        synchronized(audio_status_publish_lock){
+            if (audio_status_snapshot.version != audio_status_version)
+                audio_status_snapshot = new audioStatusSnapshot(audio_status_version, audio_published_statuses.clone());
+            return audio_status_snapshot;
+        }
+    }
+
+    /* copyAudioStatus returns a copy of the status of an audio device for the status snapshot. It
+     * copies the fields of default_frontend_audio_status_struct_struct into a new one; a device
+     * whose status type adds fields to it must override it to create its own type and copy those
+     * fields too, and can copy the others with copyAudioStatusFields.
+     */
+    @SuppressWarnings("unchecked")
+    protected audioStatusStructType copyAudioStatus(final audioStatusStructType status){
+        if (status.getClass() != frontendX.FEXTypes.default_frontend_audio_status_struct_struct.class)
+            throw new IllegalStateException("copyAudioStatus: " + status.getClass().getName() + " adds fields to the audio status, override copyAudioStatus to copy them");
+        frontendX.FEXTypes.default_frontend_audio_status_struct_struct copy = new frontendX.FEXTypes.default_frontend_audio_status_struct_struct();
+        copyAudioStatusFields(status, copy);
+        return (audioStatusStructType) copy;
+    }
+
+    protected static void copyAudioStatusFields(final frontendX.FEXTypes.default_frontend_audio_status_struct_struct status, final frontendX.FEXTypes.default_frontend_audio_status_struct_struct copy){
+        copy.audio_type.setValue(status.audio_type.getValue());
+        copy.allocation_id_csv.setValue(status.allocation_id_csv.getValue());
+        copy.full_bandwidth_channels.setValue(status.full_bandwidth_channels.getValue());
+        copy.low_frequency_effect_channels.setValue(status.low_frequency_effect_channels.getValue());
+        copy.enabled.setValue(status.enabled.getValue());
+        copy.sample_rate.setValue(status.sample_rate.getValue());
+        copy.quarantined.setValue(status.quarantined.getValue());
+        copy.tuning_failures.setValue(status.tuning_failures.getValue());
+    }
+
+    public void query(CF.PropertiesHolder configProperties) throws CF.UnknownProperties {
+        frontend_audio_allocation_metrics.setValue(audio_allocation_metrics.snapshot());
+        super.query(configProperties);
+    }
+
+    public void initialize() throws CF.LifeCyclePackage.InitializeError {
+        super.initialize();
+        rebuildAudioDeviceIndex();
+        try {
+            audio_allocation_metrics.register("FrontendAudioDevice", identifier());
+        } catch (javax.management.JMException e) {
+            logger.info("initialize: could not publish the audio allocation metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    public void releaseObject() throws CF.LifeCyclePackage.ReleaseError {
+        super.releaseObject();
+        synchronized(audio_lease_reaper_lock){
+            if (audio_lease_reaper != null)
+                audio_lease_reaper.shutdownNow();
+        }
+        synchronized(audio_journal_timer_lock){
+            if (audio_journal_timer != null)
+                audio_journal_timer.shutdownNow();
+        }
+        synchronized(audio_quarantine_timer_lock){
+            if (audio_quarantine_timer != null)
+                audio_quarantine_timer.shutdownNow();
+        }
+        FrontendAllocationJournal journal = audio_allocation_journal;
+        if (journal != null)
+            journal.close();
+        // delete the tunings the free audio devices kept, after the teardowns already queued
+        List<audioAllocationIdsStruct> allocation_ids = audio_allocation_ids;
+        for (int audio_device_id = 0; allocation_ids != null && audio_device_id < allocation_ids.size(); audio_device_id++) {
+            if (allocation_ids.get(audio_device_id).applied_tuning != null)
+                deleteKeptAudioTuning(audio_device_id);
+        }
+        // let queued teardowns finish; later hardware calls run on the calling thread
+        audio_hardware_pipeline.shutdown();
+        try {
+            audio_allocation_metrics.unregister();
+        } catch (javax.management.JMException e) {
+            logger.debug("releaseObject: could not withdraw the audio allocation metrics from JMX: " + e.getMessage());
+        }
+    }
+
+    /* deleteKeptAudioTuning deletes the tuning a free audio device kept from its last allocation,
+     * through the hardware pipeline
+     */
+    private void deleteKeptAudioTuning(final int audio_device_id){
+        audio_hardware_pipeline.submit(audio_device_id, new Callable<Void>() {
+            public Void call() {
+                synchronized(audioDeviceLock(audio_device_id)) {
+                    audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+                    String control_allocation_id = allocation_ids.control_allocation_id;
+                    if (allocation_ids.applied_tuning == null || (control_allocation_id != null && !control_allocation_id.isEmpty()))
+                        return null;
+                    allocation_ids.applied_tuning = null;
+                }
+                try {
+                    audioDeviceDeleteTuning(frontend_audio_status.getValue().get(audio_device_id), audio_device_id);
+                } catch (RuntimeException e) {
+                    logger.info("releaseObject: audioDevice[" + audio_device_id + "] failed to delete its tuning: " + e.getMessage());
+                }
+                publishAudioStatus(audio_device_id);
+                return null;
+            }
+        });
     }
 
     /*****************************************************************/
@@ -462,18 +2010,37 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         return true;
     }
 
+    /* listenerRequestValidation decides whether a controlled audio device can serve a listener
+     * request. Allocation calls the audioAllocationRequest version, which calls the version that
+     * takes the frontend_audio_allocation_struct if a device implementation overrides that one,
+     * so existing overrides keep working; new ones should override the audioAllocationRequest
+     * version, which saves decoding the request again.
+     */
+    protected boolean listenerRequestValidation(audioAllocationRequest request, int audio_device_id){
+        if (audio_listener_validation_overridden)
+            return listenerRequestValidation(request.allocation, audio_device_id);
+        return audioListenerRequestMatches(request, audio_device_id);
+    }
+
     protected boolean listenerRequestValidation(frontendX.FEXTypes.frontend_audio_allocation_struct request, int audio_device_id){
+        return audioListenerRequestMatches(new audioAllocationRequest(request), audio_device_id);
+    }
+
+    /* audioListenerRequestMatches is the check listenerRequestValidation makes unless it is
+     * overridden: the requested sample_rate, within its tolerance, must be served by the audio device
+     */
+    private boolean audioListenerRequestMatches(final audioAllocationRequest request, final int audio_device_id){
         logger.trace("listenerRequestValidation() audio_device_id " + audio_device_id);
 
         // ensure requested values are non-negative
-        if(floatingPointCompare(request.sample_rate.getValue(),0)<0 || floatingPointCompare(request.sample_rate_tolerance.getValue(),0)<0)
+        if(floatingPointCompare(request.sample_rate,0)<0 || floatingPointCompare(request.sample_rate_tolerance,0)<0)
             return false;
 
         // ensure audio sample rate meets requested tolerance
-        if( floatingPointCompare(request.sample_rate.getValue(),frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue()) > 0 )
+        if( floatingPointCompare(request.sample_rate,frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue()) > 0 )
             return false;
 
-        if(floatingPointCompare(request.sample_rate.getValue(),0)!=0 && floatingPointCompare((request.sample_rate.getValue()+(request.sample_rate.getValue()*request.sample_rate_tolerance.getValue()/100)),frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue()) < 0 )
+        if(floatingPointCompare(request.sample_rate,0)!=0 && floatingPointCompare((request.sample_rate+(request.sample_rate*request.sample_rate_tolerance/100)),frontend_audio_status.getValue().get(audio_device_id).sample_rate.getValue()) < 0 )
             return false;
 
         return true;
@@ -487,8 +2054,10 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
         //logger.trace("getAudioDeviceMapping() allocation_id " + allocation_id);
         int NO_VALID_AUDIO_DEVICE = -1;
 
-        if (allocation_id_to_audio_device_id.containsKey(allocation_id)){
-            return allocation_id_to_audio_device_id.get(allocation_id);
+        // pending reservations are also reported as not found
+        int audio_device_id = audio_allocation_handles.deviceOf(allocation_id);
+        if (audio_device_id != FrontendAllocationHandles.NO_DEVICE){
+            return audio_device_id;
         } 
         return NO_VALID_AUDIO_DEVICE;
     }
@@ -496,43 +2065,132 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
     protected boolean removeAudioDeviceMapping(int audio_device_id, String allocation_id){
         logger.trace("removeAudioDeviceMapping() audio_device_id " + audio_device_id + ", allocation_id " + allocation_id);
         removeListener(allocation_id);
-        Iterator<String> iter = audio_allocation_ids.get(audio_device_id).listener_allocation_ids.iterator();
-        while(iter.hasNext()){
-            String nextString = iter.next();
-            if (nextString.equals(allocation_id)){
-                iter.remove();
-            }
-        }
-        //synchronized(allocation_id_mapping_lock){
-            if (allocation_id_to_audio_device_id.containsKey(allocation_id)){
-                allocation_id_to_audio_device_id.remove(allocation_id);
-                return true;
-            }
-            return false;
-        //}
+        int handle = audio_allocation_handles.handleOf(allocation_id);
+        audio_allocation_ids.get(audio_device_id).listener_allocation_handles.remove(handle);
+        journalAudioRelease(audio_device_id, allocation_id);
+        return audio_allocation_handles.release(handle, audio_device_id);
     }
 
     protected boolean removeAudioDeviceMapping(int audio_device_id){
         logger.trace("removeAudioDeviceMapping() audio_device_id " + audio_device_id);
+        invalidateAudioDeviceTuning(audio_device_id);
         audioDeviceDeleteTuning(frontend_audio_status.getValue().get(audio_device_id),audio_device_id);
+        return releaseAudioDeviceMappings(audio_device_id);
+    }
+
+    /* releaseAudioDeviceMappings removes the allocation id routing and all allocation ids of a
+     * audio device without calling the device specific functions, and returns the audio device
+     * to the free audio devices. Called with the audio device lock held.
+     */
+    private boolean releaseAudioDeviceMappings(int audio_device_id){
         removeAllocationIdRouting(audio_device_id);
 
+        // audio_allocation_ids is the reverse of audio_allocation_handles, so only the
+        // allocation handles of this audio device are visited
         int cnt = 0;
-        //synchronized(allocation_id_mapping_lock){
-            if (allocation_id_to_audio_device_id.containsValue(audio_device_id)){
-                Iterator<Map.Entry<String,Integer>> iter = allocation_id_to_audio_device_id.entrySet().iterator();
-                while (iter.hasNext()) {
-                    Map.Entry<String,Integer> entry = iter.next();
-                    if(audio_device_id == entry.getValue()){
-                        this.removeListener(entry.getKey());
-                        iter.remove();
-                        cnt++;
-                    }
+        audioAllocationIdsStruct allocation_ids = audio_allocation_ids.get(audio_device_id);
+        for (int position = allocation_ids.listener_allocation_handles.first(); position != FrontendAllocationHandles.HandleList.END; position = allocation_ids.listener_allocation_handles.next(position)) {
+            int listener_handle = allocation_ids.listener_allocation_handles.handleAt(position);
+            this.removeListener(audio_allocation_handles.allocationIdOf(listener_handle));
+            if (audio_allocation_handles.release(listener_handle, audio_device_id))
+                cnt++;
+        }
+        if (allocation_ids.control_allocation_id != null && !allocation_ids.control_allocation_id.isEmpty()) {
+            this.removeListener(allocation_ids.control_allocation_id);
+            if (audio_allocation_handles.release(allocation_ids.control_allocation_handle, audio_device_id))
+                cnt++;
+        }
+        allocation_ids.reset();
+        journalAudioRelease(audio_device_id, null);
+        updateAudioDeviceIndex(audio_device_id);
+        offerAudioDevice(audio_device_id);
+        return cnt > 0;
+    }
+
+    /* rebuildAudioDeviceIndex re-reads the audio_type and control state of every audio device.
+     * Replacing or resizing frontend_audio_status or audio_allocation_ids is detected on the
+     * next allocation, which publishes the new list to the status snapshot. A device
+     * implementation that edits an audio_type, control_allocation_id or sample_rate in place outside
+     * of the allocate/deallocate paths should call updateAudioDeviceIndex (or this function): otherwise
+     * the allocator only finds the change once the index offers no audio device for a request,
+     * after a pass over every audio device.
+     */
+    protected void rebuildAudioDeviceIndex(){
+        synchronized(allocation_id_mapping_lock){
+            synchronized(audio_device_index){
+                int size = audio_device_index.reset(frontend_audio_status.getValue(), audio_allocation_ids);
+                for (int audio_device_id = 0; audio_device_id < size; audio_device_id++) {
+                    indexAudioDevice(audio_device_id);
                 }
+                synchronized(audio_status_publish_lock){
+                    if (audio_status_source != frontend_audio_status.getValue() || audio_published_statuses.length != frontend_audio_status.getValue().size())
+                        republishAudioStatus();
+                }
+            }
+        }
+    }
+
+    protected void updateAudioDeviceIndex(int audio_device_id){
+        if (!audio_device_index.isCurrent(frontend_audio_status.getValue(), audio_allocation_ids)) {
+            rebuildAudioDeviceIndex();
+        } else if (audio_device_id >= 0 && audio_device_id < audio_device_index.size()) {
+            indexAudioDevice(audio_device_id);
+        }
+    }
+
+    private void syncAudioDeviceIndex(){
+        if (!audio_device_index.isCurrent(frontend_audio_status.getValue(), audio_allocation_ids)) {
+            synchronized(allocation_id_mapping_lock){
+                if (!audio_device_index.isCurrent(frontend_audio_status.getValue(), audio_allocation_ids))
+                    rebuildAudioDeviceIndex();
             }
-            audio_allocation_ids.get(audio_device_id).reset();
-            return cnt > 0;
-        //}
+        }
+    }
+
+    /* audioDeviceLock returns the lock guarding the allocation state of an audio device: its entry in
+     * audio_allocation_ids and the tuning and allocation_id_csv fields of its frontend_audio_status.
+     * Locks are striped, so unrelated devices may share one. The device specific functions are
+     * called from the hardware pipeline without it, so a hung audio device does not hold up others.
+     */
+    protected Object audioDeviceLock(int audio_device_id){
+        return audio_device_locks[audio_device_id & (AUDIO_DEVICE_LOCK_STRIPES - 1)];
+    }
+
+    private void indexAudioDevice(int audio_device_id){
+        String control_allocation_id = audio_allocation_ids.get(audio_device_id).control_allocation_id;
+        audioStatusStructType status = frontend_audio_status.getValue().get(audio_device_id);
+        audio_device_index.put(audio_device_id,
+                               status.audio_type.getValue(),
+                               control_allocation_id != null && !control_allocation_id.isEmpty(),
+                               status.sample_rate.getValue());
+    }
+
+    /* audioListenerCandidates returns the controlled audio devices of the requested audio_type
+     * whose sample_rate (as of their last control allocation or index update) lies in
+     * [sample_rate, sample_rate*(1+sample_rate_tolerance/100)], lowest sample_rate first. listenerRequestValidation makes the final
+     * decision on each candidate. A device implementation that overrides listenerRequestValidation
+     * to accept a wider range must override this function as well.
+     */
+    protected int[] audioListenerCandidates(final audioAllocationRequest request){
+        double requested_rate = request.sample_rate;
+        double requested_tolerance = request.sample_rate_tolerance;
+        if(floatingPointCompare(requested_rate,0)<0 || floatingPointCompare(requested_tolerance,0)<0)
+            return new int[0];
+        // widen the range by the precision used in listenerRequestValidation
+        double min_rate = requested_rate - LISTENER_SAMPLE_RATE_MARGIN;
+        double max_rate = Double.POSITIVE_INFINITY;
+        if(floatingPointCompare(requested_rate,0)!=0)
+            max_rate = requested_rate + requested_rate*requested_tolerance/100 + LISTENER_SAMPLE_RATE_MARGIN;
+        return audio_device_index.controlledInRange(request.audio_type, min_rate, max_rate);
+    }
+
+    // guards against in-place edits that were not reported through updateAudioDeviceIndex
+    private boolean audioDeviceIndexMatches(int audio_device_id, String audio_type, boolean device_control){
+        String control_allocation_id = audio_allocation_ids.get(audio_device_id).control_allocation_id;
+        boolean controlled = control_allocation_id != null && !control_allocation_id.isEmpty();
+        String indexed_type = frontend_audio_status.getValue().get(audio_device_id).audio_type.getValue();
+        // device control requests look for free devices, listeners for controlled ones
+        return controlled != device_control && indexed_type != null && indexed_type.equals(audio_type);
     }
 
     protected void assignListener(final String listen_alloc_id, final String alloc_id){
@@ -586,19 +2244,136 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
 
     /* audio Allocation IDs struct. This structure contains allocation tracking data.
      *
+     * Together the audioAllocationIdsStruct entries are the reverse of
+     * audio_allocation_handles: every allocation handle mapped to an audio device is either its
+     * control_allocation_handle or one of its listener_allocation_handles. Both are updated
+     * together, under the audio device lock, so teardown of an audio device only visits its own
+     * handles. listener_allocation_ids is a read-only view of listener_allocation_handles, kept for
+     * device implementations that read it; listeners are added and removed by allocation only, and
+     * changing the view throws UnsupportedOperationException. It used to be a list a device
+     * implementation could change.
      */
 
     public class audioAllocationIdsStruct{
         public String control_allocation_id;
         public List<String> listener_allocation_ids;
+        private int control_allocation_handle;
+        private final FrontendAllocationHandles.HandleList listener_allocation_handles;
+        // kept across allocations; see tryAudioDeviceTuning and recordAudioTuningResult
+        private volatile audioTuningState applied_tuning;
+        private int tuning_failures;
+        // set by markAudioAllocationIdCsv, cleared when the allocation_id_csv is rendered
+        private boolean allocation_id_csv_stale;
         public audioAllocationIdsStruct(){
             control_allocation_id = new String();
-            listener_allocation_ids = new ArrayList<String>();
+            listener_allocation_handles = new FrontendAllocationHandles.HandleList();
+            listener_allocation_ids = audio_allocation_handles.allocationIds(listener_allocation_handles);
             reset();
         }
         public void reset(){
             control_allocation_id = "";
-            listener_allocation_ids.clear();
+            control_allocation_handle = FrontendAllocationHandles.NO_HANDLE;
+            listener_allocation_handles.clear();
+        }
+    }
+
+    /* audioStatusSnapshot is an immutable, versioned copy of frontend_audio_status, made of the
+     * published copies of its audio devices. Its Any is built the first time it is queried, from
+     * the Anys of the copies, which are built once per copy.
+     */
+    private class audioStatusSnapshot{
+        final long version;
+        final List<audioStatusStructType> statuses;
+        private final audioStatusElement[] elements;
+        private volatile Any any;
+        audioStatusSnapshot(final long version, final audioStatusElement[] elements){
+            this.version = version;
+            this.elements = elements;
+            this.statuses = new AbstractList<audioStatusStructType>() {
+                @SuppressWarnings("unchecked")
+                public audioStatusStructType get(int index) {
+                    return (audioStatusStructType) elements[index].status;
+                }
+                public int size() {
+                    return elements.length;
+                }
+            };
+        }
+        Any toAny(){
+            Any value = any;
+            if (value == null) {
+                Any[] element_anys = new Any[elements.length];
+                for (int idx = 0; idx < element_anys.length; idx++) {
+                    element_anys[idx] = elements[idx].toAny();
+                }
+                value = ORB.init().create_any();
+                org.omg.CORBA.AnySeqHelper.insert(value, element_anys);
+                any = value;
+            }
+            return value;
+        }
+    }
+
+    /* audioStatusElement is the published copy of the status of one audio device */
+    private static final class audioStatusElement{
+        final frontendX.FEXTypes.default_frontend_audio_status_struct_struct status;
+        private volatile Any any;
+        audioStatusElement(final frontendX.FEXTypes.default_frontend_audio_status_struct_struct status){
+            this.status = status;
+        }
+        Any toAny(){
+            Any value = any;
+            if (value == null) {
+                value = status.toAny();
+                any = value;
+            }
+            return value;
+        }
+    }
+
+    /* audioAllocationRequest is a frontend_audio_allocation decoded once into primitive fields.
+     * Allocation works on it instead of the struct; the struct is kept for the device specific
+     * functions that take it.
+     */
+    public static class audioAllocationRequest{
+        public final String allocation_id;
+        public final String audio_type;
+        public final boolean device_control;
+        public final short full_bandwidth_channels;
+        public final short low_frequency_effect_channels;
+        public final double sample_rate;
+        public final double sample_rate_tolerance;
+        public final frontendX.FEXTypes.frontend_audio_allocation_struct allocation;
+        public audioAllocationRequest(final frontendX.FEXTypes.frontend_audio_allocation_struct allocation){
+            allocation_id = allocation.allocation_id.getValue();
+            audio_type = allocation.audio_type.getValue();
+            device_control = allocation.device_control.getValue();
+            full_bandwidth_channels = allocation.full_bandwidth_channels.getValue();
+            low_frequency_effect_channels = allocation.low_frequency_effect_channels.getValue();
+            sample_rate = allocation.sample_rate.getValue();
+            sample_rate_tolerance = allocation.sample_rate_tolerance.getValue();
+            this.allocation = allocation;
+        }
+    }
+
+    /* audio tuning state. The request parameters of the tuning last applied to an audio device
+     * and the status the audio device reported for them.
+     */
+
+    private class audioTuningState{
+        final short full_bandwidth_channels;
+        final short low_frequency_effect_channels;
+        final double sample_rate;
+        final short tuned_full_bandwidth_channels;
+        final short tuned_low_frequency_effect_channels;
+        final double tuned_sample_rate;
+        audioTuningState(final audioAllocationRequest request, final audioStatusStructType fts){
+            full_bandwidth_channels = request.full_bandwidth_channels;
+            low_frequency_effect_channels = request.low_frequency_effect_channels;
+            sample_rate = request.sample_rate;
+            tuned_full_bandwidth_channels = fts.full_bandwidth_channels.getValue();
+            tuned_low_frequency_effect_channels = fts.low_frequency_effect_channels.getValue();
+            tuned_sample_rate = fts.sample_rate.getValue();
         }
     }
 
@@ -648,6 +2423,18 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
 
     private Class<audioStatusStructType> frontend_audio_status_class_type;
 
+    // counters and latency histograms of allocation and deallocation; rendered when queried
+    protected StructSequenceProperty<frontendX.FEXTypes.frontend_allocation_metric_struct> frontend_audio_allocation_metrics =
+        new StructSequenceProperty<frontendX.FEXTypes.frontend_allocation_metric_struct> (
+            "FRONTEND.audio_allocation_metrics", //id
+            "frontend_audio_allocation_metrics", //name
+            frontendX.FEXTypes.frontend_allocation_metric_struct.class, //type
+            new ArrayList<frontendX.FEXTypes.frontend_allocation_metric_struct>(),
+            Mode.READONLY, //mode
+            new Kind[] { Kind.CONFIGURE } //kind
+        );
+
+    // queries are answered from the status snapshot, never from the list allocation changes in place; see publishAudioStatus
     protected StructSequenceProperty<audioStatusStructType> frontend_audio_status =
         new StructSequenceProperty<audioStatusStructType> (
             "FRONTEND::audio_status", //id
@@ -656,12 +2443,116 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
             new ArrayList<audioStatusStructType>(),
             Mode.READONLY, //mode
             new Kind[] { Kind.CONFIGURE } //kind
-        );
+        ) {
+            public Any toAny() {
+                return currentAudioStatusSnapshot().toAny();
+            }
+        };
+
+    // allocation outcomes by reason and phase latencies, published through frontend_audio_allocation_metrics and JMX
+    private final FrontendAllocationMetrics audio_allocation_metrics = new FrontendAllocationMetrics();
+
+    // allocation ids interned to int handles, and the audio device each handle is mapped to
+    private final FrontendAllocationHandles audio_allocation_handles = new FrontendAllocationHandles();
 
-    protected Map<String, Integer> allocation_id_to_audio_device_id;
+    /* allocation_id_to_audio_device_id is a read-only view of audio_allocation_handles: the audio
+     * device each allocation id is mapped to. It is kept for device implementations that read it.
+     * It used to be a map a device implementation could change; changing it now throws
+     * UnsupportedOperationException. Use getAudioDeviceMapping instead.
+     */
+    @Deprecated
+    protected Map<String, Integer> allocation_id_to_audio_device_id = audio_allocation_handles.deviceMap();
 
+    // guards structural changes to the audio device index
     protected Object allocation_id_mapping_lock;
 
+    // number of per-device lock stripes; must be a power of two
+    private static final int AUDIO_DEVICE_LOCK_STRIPES = 64;
+
+    private final Object[] audio_device_locks = new Object[AUDIO_DEVICE_LOCK_STRIPES];
+
+    // runs the device specific functions for allocation and deallocation, in order per audio device
+    // and under a deadline; an audio device that misses it is left out of allocation until it responds
+    private final FrontendHardwarePipeline audio_hardware_pipeline = new FrontendHardwarePipeline("FrontendAudioDevice", new FrontendHardwarePipeline.HealthListener() {
+        public void hung(int audio_device_id) {
+            logger.info("audioDevice[" + audio_device_id + "] missed its hardware deadline, marking it unhealthy");
+            audio_device_index.setHealthy(audio_device_id, false);
+        }
+        public void recovered(int audio_device_id) {
+            logger.info("audioDevice[" + audio_device_id + "] responded again, marking it healthy");
+            audio_device_index.setHealthy(audio_device_id, true);
+        }
+    });
+
+    // number of free audio devices a device control allocation tunes at once
+    private volatile int audio_tuning_parallelism = 1;
+
+    // whether the device implementation retunes a kept tuning in place; see tryAudioDeviceTuning
+    private boolean audio_retunes_in_place;
+
+    // whether the device implementation overrides allocateAudioDevice or allocateListener; see tryAllocateAudio
+    private boolean audio_allocate_overridden;
+    private boolean audio_listener_allocate_overridden;
+
+    // whether the device implementation overrides the struct version of listenerRequestValidation
+    private boolean audio_listener_validation_overridden;
+
+    // order in which an allocation tries the audio devices; see setAudioAllocationPolicy
+    private volatile FrontendAllocationPolicy audio_allocation_policy = FrontendAllocationPolicy.FIRST_FIT;
+
+    // device control allocations waiting for an audio device to be freed; see allocateAudioDevice
+    private final FrontendAllocationWaitQueue audio_wait_queue = new FrontendAllocationWaitQueue();
+    private volatile long audio_allocation_wait_ms = 0;
+
+    // releases the allocations whose lease ran out; started with the first lease
+    private ScheduledExecutorService audio_lease_reaper = null;
+    private final Object audio_lease_reaper_lock = new Object();
+    private volatile long audio_lease_reap_period_ms = 1000;
+
+    // journal the allocations are recorded in and restored from; see openAudioAllocationJournal
+    private volatile FrontendAllocationJournal audio_allocation_journal = null;
+
+    // writes the journal heartbeat, or follows the journal of a primary device; started with the journal
+    private ScheduledExecutorService audio_journal_timer = null;
+    private final Object audio_journal_timer_lock = new Object();
+
+    // consecutive tuning failures after which an audio device is quarantined, and the bounds of the quarantine
+    private volatile int audio_quarantine_threshold = 3;
+    private volatile long audio_quarantine_base_ms = 1000;
+    private volatile long audio_quarantine_max_ms = 300000;
+
+    // clears the quarantined status field when a quarantine runs out; see expireAudioQuarantine
+    private ScheduledExecutorService audio_quarantine_timer = null;
+    private final Object audio_quarantine_timer_lock = new Object();
+
+    /* the published copies of frontend_audio_status, the list they were copied from and their
+     * version; a copy is replaced, never modified, one audio device at a time under
+     * audio_status_publish_lock. audio_status_snapshot is the last snapshot built from them.
+     */
+    private List<audioStatusStructType> audio_status_source = null;
+    private audioStatusElement[] audio_published_statuses = new audioStatusElement[0];
+    private volatile long audio_status_version = 0;
+    private volatile audioStatusSnapshot audio_status_snapshot = new audioStatusSnapshot(0, new audioStatusElement[0]);
+    private final Object audio_status_publish_lock = new Object();
+
+    // free audio devices by audio_type and controlled audio devices by audio_type and sample_rate; see rebuildAudioDeviceIndex
+    private final FrontendDeviceIndex audio_device_index = new FrontendDeviceIndex();
+
+    // serializes updateUsageState, so usage state changes are set in the order they happen
+    private final Object audio_usage_state_lock = new Object();
+
+    // parameters passed to audioDeviceSetTuning as changed since the tuning last applied to the audio device
+    protected static final int AUDIO_TUNING_FULL_BANDWIDTH_CHANNELS = 0x1;
+    protected static final int AUDIO_TUNING_LOW_FREQUENCY_EFFECT_CHANNELS = 0x2;
+    protected static final int AUDIO_TUNING_SAMPLE_RATE = 0x4;
+    protected static final int AUDIO_TUNING_ALL = AUDIO_TUNING_FULL_BANDWIDTH_CHANNELS | AUDIO_TUNING_LOW_FREQUENCY_EFFECT_CHANNELS | AUDIO_TUNING_SAMPLE_RATE;
+
+    // floatingPointCompare rounds to one decimal place, so candidates within this margin may still validate
+    private static final double LISTENER_SAMPLE_RATE_MARGIN = 0.1;
+
+    // how often a device writing its allocation journal records that it is alive, in milliseconds
+    protected static final long AUDIO_JOURNAL_HEARTBEAT_MS = 10;
+
     ///////////////////////////////
     // Device specific functions // -- to be implemented by device developer
     ///////////////////////////////
@@ -670,6 +2561,15 @@ public abstract class FrontendAudioDevice<audioStatusStructType extends frontend
     protected abstract boolean audioDeviceSetTuning(final frontendX.FEXTypes.frontend_audio_allocation_struct request, audioStatusStructType fts, int audio_device_id);
     protected abstract boolean audioDeviceDeleteTuning(audioStatusStructType fts, int audio_device_id);
 
+    /* audioDeviceSetTuning is called with the AUDIO_TUNING_* flags of the parameters that changed
+     * since the tuning the audio device kept from its last allocation. Override it to retune only
+     * those, in place: the kept tuning is then not deleted first. Without an override the kept
+     * tuning is deleted with audioDeviceDeleteTuning and the full request applied.
+     */
+    protected boolean audioDeviceSetTuning(final frontendX.FEXTypes.frontend_audio_allocation_struct request, audioStatusStructType fts, int audio_device_id, int changed_parameters){
+        return audioDeviceSetTuning(request, fts, audio_device_id);
+    }
+
     ///////////////////////////////
     // Mapping and translation helpers. External string identifiers to internal numerical identifiers
     ///////////////////////////////
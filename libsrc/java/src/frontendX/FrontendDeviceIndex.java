@@ -0,0 +1,357 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/* FrontendDeviceIndex keeps the device ids of a FrontendVideoDevice or
+ * FrontendAudioDevice bucketed by device type (video_type/audio_type) and
+ * control state. The allocate paths use it to visit only the free devices
+ * of the requested type (control allocations), in ascending device id order,
+ * or only the controlled devices whose rate (fps/sample_rate) falls inside
+ * the requested range (listener allocations), in ascending rate order.
+ *
+ * The index remembers which status and allocation id sequences it was built
+ * from; isCurrent() reports false once either has been replaced or resized,
+ * and the owning device rebuilds it. A device whose type, control state or
+ * rate is edited in place is only seen in its new bucket once it is put()
+ * again; isIndexed() tells whether its entry is still current.
+ *
+ * All operations are synchronized on the index and only touch the buckets, so
+ * they are short. A control allocation claims a free device with claimFree(),
+ * which removes it from the free bucket atomically, and hands it back with
+ * release() once the device is either controlled or found unusable. Claims
+ * survive a rebuild. The buckets are sorted sets, so claimFree(), claim(),
+ * put() and release() take O(log n) in the number of devices of the type,
+ * and controlledInRange() O(log n) plus the devices it returns.
+ *
+ * A device marked unhealthy with setHealthy() is kept out of the free bucket,
+ * so control allocations skip it, until it is marked healthy again. A device
+ * put in quarantine() stays in the free bucket but claimFree() passes over it
+ * until its quarantine expires. Health and quarantine also survive a rebuild.
+ *
+ * An allocation policy other than first fit takes a copy of the free devices
+ * with freeDevices(), ranks them, and claims them one by one with claim().
+ *
+ * The number of devices and of controlled devices, overall and per type, is
+ * kept up to date by put(), so the usage state of the owning device can be
+ * read without visiting every device.
+ */
+class FrontendDeviceIndex {
+
+    private static final int NO_DEVICE = -1;
+
+    private final Map<String, TreeSet<Integer>> free_devices = new HashMap<String, TreeSet<Integer>>();
+    private final Map<String, TreeMap<Double, TreeSet<Integer>>> controlled_devices = new HashMap<String, TreeMap<Double, TreeSet<Integer>>>();
+
+    private String[] device_types = new String[0];
+    private boolean[] device_controlled = new boolean[0];
+    private double[] device_rates = new double[0];
+
+    // per type: { devices, controlled devices }
+    private final Map<String, int[]> type_counts = new HashMap<String, int[]>();
+    private int controlled_count = 0;
+
+    private List<?> indexed_status = null;
+    private List<?> indexed_allocation_ids = null;
+    private int indexed_status_size = 0;
+    private int indexed_allocation_ids_size = 0;
+
+    private final BitSet claimed_devices = new BitSet();
+    private final BitSet unhealthy_devices = new BitSet();
+    private final BitSet quarantined_devices = new BitSet();
+    private long[] quarantine_ends_ns = new long[0];
+
+    /* Returns true if the index was built from these sequences and neither
+     * has changed size since.
+     */
+    synchronized boolean isCurrent(final List<?> status, final List<?> allocation_ids) {
+        return status == indexed_status && allocation_ids == indexed_allocation_ids &&
+               sizeOf(status) == indexed_status_size && sizeOf(allocation_ids) == indexed_allocation_ids_size;
+    }
+
+    /* Clears the index and sizes it for the given sequences. Returns the
+     * number of devices, each of which must then be registered with put().
+     */
+    synchronized int reset(final List<?> status, final List<?> allocation_ids) {
+        free_devices.clear();
+        controlled_devices.clear();
+        type_counts.clear();
+        controlled_count = 0;
+        indexed_status = status;
+        indexed_allocation_ids = allocation_ids;
+        indexed_status_size = sizeOf(status);
+        indexed_allocation_ids_size = sizeOf(allocation_ids);
+        int size = Math.min(indexed_status_size, indexed_allocation_ids_size);
+        device_types = new String[size];
+        device_controlled = new boolean[size];
+        device_rates = new double[size];
+        return size;
+    }
+
+    synchronized int size() {
+        return device_types.length;
+    }
+
+    /* Registers (or re-registers) a device under its type, control state and
+     * current rate. The rate is only used for controlled devices.
+     */
+    synchronized void put(final int device_id, final String device_type, final boolean controlled, final double rate) {
+        remove(device_id);
+        count(device_id, -1);
+        device_types[device_id] = device_type;
+        device_controlled[device_id] = controlled;
+        device_rates[device_id] = rate;
+        count(device_id, 1);
+        if (controlled) {
+            TreeMap<Double, TreeSet<Integer>> by_rate = controlled_devices.get(device_type);
+            if (by_rate == null) {
+                by_rate = new TreeMap<Double, TreeSet<Integer>>();
+                controlled_devices.put(device_type, by_rate);
+            }
+            bucket(by_rate, rate).add(device_id);
+        } else if (isAvailable(device_id)) {
+            bucket(free_devices, device_type).add(device_id);
+        }
+    }
+
+    /* Returns whether a device is registered under the given type and control
+     * state and, if it is controlled, rate
+     */
+    synchronized boolean isIndexed(final int device_id, final String device_type, final boolean controlled, final double rate) {
+        if (device_id < 0 || device_id >= device_types.length)
+            return false;
+        if (device_types[device_id] == null ? device_type != null : !device_types[device_id].equals(device_type))
+            return false;
+        return device_controlled[device_id] == controlled && (!controlled || Double.compare(device_rates[device_id], rate) == 0);
+    }
+
+    /* Returns the number of registered devices of the given type, or of all
+     * types if device_type is null
+     */
+    synchronized int deviceCount(final String device_type) {
+        if (device_type == null)
+            return device_types.length;
+        int[] counts = type_counts.get(device_type);
+        return (counts == null) ? 0 : counts[0];
+    }
+
+    /* Returns the number of controlled devices of the given type, or of all
+     * types if device_type is null
+     */
+    synchronized int controlledCount(final String device_type) {
+        if (device_type == null)
+            return controlled_count;
+        int[] counts = type_counts.get(device_type);
+        return (counts == null) ? 0 : counts[1];
+    }
+
+    /* Marks a device healthy or unhealthy. An unhealthy device is not handed
+     * out by claimFree(); control allocations it already holds are unaffected.
+     */
+    synchronized void setHealthy(final int device_id, final boolean healthy) {
+        if (healthy == !unhealthy_devices.get(device_id))
+            return;
+        if (healthy) {
+            unhealthy_devices.clear(device_id);
+            if (device_id < device_types.length && !device_controlled[device_id] && isAvailable(device_id))
+                bucket(free_devices, device_types[device_id]).add(device_id);
+        } else {
+            unhealthy_devices.set(device_id);
+            if (device_id < device_types.length && !device_controlled[device_id]) {
+                TreeSet<Integer> devices = free_devices.get(device_types[device_id]);
+                if (devices != null)
+                    devices.remove(device_id);
+            }
+        }
+    }
+
+    /* Keeps claimFree() from handing out a device until System.nanoTime()
+     * reaches end_ns
+     */
+    synchronized void quarantine(final int device_id, final long end_ns) {
+        if (device_id >= quarantine_ends_ns.length)
+            quarantine_ends_ns = Arrays.copyOf(quarantine_ends_ns, Math.max(device_id + 1, quarantine_ends_ns.length * 2));
+        quarantine_ends_ns[device_id] = end_ns;
+        quarantined_devices.set(device_id);
+    }
+
+    synchronized void clearQuarantine(final int device_id) {
+        quarantined_devices.clear(device_id);
+    }
+
+    synchronized boolean isQuarantined(final int device_id) {
+        return isQuarantined(device_id, System.nanoTime());
+    }
+
+    /* Claims the lowest free device id of the given type greater than
+     * after_device_id that is not quarantined and returns it, or returns -1
+     * if there is none. The device stays out of the free bucket until
+     * release() is called.
+     */
+    synchronized int claimFree(final String device_type, final int after_device_id) {
+        TreeSet<Integer> devices = free_devices.get(device_type);
+        if (devices == null)
+            return NO_DEVICE;
+        long now = System.nanoTime();
+        Integer device_id = devices.higher(after_device_id);
+        while (device_id != null && isQuarantined(device_id, now))
+            device_id = devices.higher(device_id);
+        if (device_id == null)
+            return NO_DEVICE;
+        devices.remove(device_id);
+        claimed_devices.set(device_id);
+        return device_id;
+    }
+
+    /* Returns the free devices of the given type that claimFree() would hand
+     * out, in ascending device id order. The result is a copy; claim() takes
+     * one of them if it is still free.
+     */
+    synchronized int[] freeDevices(final String device_type) {
+        TreeSet<Integer> devices = free_devices.get(device_type);
+        if (devices == null)
+            return new int[0];
+        long now = System.nanoTime();
+        int[] device_ids = new int[devices.size()];
+        int count = 0;
+        for (Integer device_id : devices) {
+            if (!isQuarantined(device_id, now))
+                device_ids[count++] = device_id;
+        }
+        return Arrays.copyOf(device_ids, count);
+    }
+
+    /* Claims the given device if claimFree() could have handed it out, and
+     * returns whether it did
+     */
+    synchronized boolean claim(final int device_id) {
+        if (device_id < 0 || device_id >= device_types.length)
+            return false;
+        TreeSet<Integer> devices = free_devices.get(device_types[device_id]);
+        if (devices == null || !devices.contains(device_id) || isQuarantined(device_id, System.nanoTime()))
+            return false;
+        devices.remove(device_id);
+        claimed_devices.set(device_id);
+        return true;
+    }
+
+    /* Drops the claim on a device; if it is still free and healthy it becomes
+     * available again
+     */
+    synchronized void release(final int device_id) {
+        claimed_devices.clear(device_id);
+        if (device_id < device_types.length && !device_controlled[device_id] && isAvailable(device_id))
+            bucket(free_devices, device_types[device_id]).add(device_id);
+    }
+
+    /* Returns the controlled devices of the given type whose rate lies within
+     * [min_rate, max_rate], ordered by rate and then device id. The result is
+     * a copy, so the caller may update the index while walking it.
+     */
+    synchronized int[] controlledInRange(final String device_type, final double min_rate, final double max_rate) {
+        TreeMap<Double, TreeSet<Integer>> by_rate = controlled_devices.get(device_type);
+        if (by_rate == null || min_rate > max_rate)
+            return new int[0];
+        NavigableMap<Double, TreeSet<Integer>> in_range = by_rate.subMap(min_rate, true, max_rate, true);
+        int count = 0;
+        for (TreeSet<Integer> devices : in_range.values()) {
+            count += devices.size();
+        }
+        int[] device_ids = new int[count];
+        int idx = 0;
+        for (TreeSet<Integer> devices : in_range.values()) {
+            for (Integer device_id : devices) {
+                device_ids[idx++] = device_id;
+            }
+        }
+        return device_ids;
+    }
+
+    private void remove(final int device_id) {
+        if (device_controlled[device_id]) {
+            TreeMap<Double, TreeSet<Integer>> by_rate = controlled_devices.get(device_types[device_id]);
+            if (by_rate == null)
+                return;
+            TreeSet<Integer> devices = by_rate.get(device_rates[device_id]);
+            if (devices != null) {
+                devices.remove(device_id);
+                if (devices.isEmpty())
+                    by_rate.remove(device_rates[device_id]);
+            }
+        } else {
+            TreeSet<Integer> devices = free_devices.get(device_types[device_id]);
+            if (devices != null)
+                devices.remove(device_id);
+        }
+    }
+
+    // adds (delta 1) or removes (delta -1) a device from the counts
+    private void count(final int device_id, final int delta) {
+        if (device_controlled[device_id])
+            controlled_count += delta;
+        String device_type = device_types[device_id];
+        if (device_type == null)
+            return;
+        int[] counts = type_counts.get(device_type);
+        if (counts == null) {
+            counts = new int[2];
+            type_counts.put(device_type, counts);
+        }
+        counts[0] += delta;
+        if (device_controlled[device_id])
+            counts[1] += delta;
+        if (counts[0] == 0)
+            type_counts.remove(device_type);
+    }
+
+    private boolean isQuarantined(final int device_id, final long now) {
+        if (!quarantined_devices.get(device_id))
+            return false;
+        if (quarantine_ends_ns[device_id] - now > 0)
+            return true;
+        quarantined_devices.clear(device_id);
+        return false;
+    }
+
+    private boolean isAvailable(final int device_id) {
+        return !claimed_devices.get(device_id) && !unhealthy_devices.get(device_id);
+    }
+
+    private static int sizeOf(final List<?> list) {
+        return (list == null) ? 0 : list.size();
+    }
+
+    private static <K> TreeSet<Integer> bucket(final Map<K, TreeSet<Integer>> buckets, final K key) {
+        TreeSet<Integer> devices = buckets.get(key);
+        if (devices == null) {
+            devices = new TreeSet<Integer>();
+            buckets.put(key, devices);
+        }
+        return devices;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* FrontendHardwarePipeline runs the device specific functions (tuning, enabling, disabling and
+ * deleting tuning) of a FrontendVideoDevice or FrontendAudioDevice off the allocating thread.
+ *
+ * Every device has its own queue: calls for the same device run one at a time, in the order
+ * they were submitted, while calls for different devices run in parallel on a shared pool of
+ * daemon threads. A deallocation can therefore queue the teardown of a device and return, and
+ * the next allocation of that device is only tuned once the teardown has run.
+ *
+ * Every call runs under a deadline. A watchdog cancels (interrupts) a call that runs past it
+ * and reports its device as hung; await() gives up on a call that has not finished within the
+ * deadline of its submission, whether it is running or still queued behind a hung call. Once the
+ * overrunning call does return, the device is reported as recovered. A call that ignores the
+ * interrupt keeps its pool thread, and the queue of its device, until it returns.
+ *
+ * After shutdown() the queues drain on the submitting thread.
+ */
+class FrontendHardwarePipeline {
+
+    /* HealthListener is told when a device stops and starts responding to calls again */
+    interface HealthListener {
+        void hung(int device_id);
+        void recovered(int device_id);
+    }
+
+    // how long shutdown() waits for queued calls to finish
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
+    static final long DEFAULT_DEADLINE_MS = 10000;
+
+    // bounds on how often the watchdog looks for overrunning calls
+    private static final long MIN_WATCHDOG_PERIOD_MS = 10;
+    private static final long MAX_WATCHDOG_PERIOD_MS = 1000;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final HealthListener health_listener;
+    private DeviceQueue[] queues = new DeviceQueue[0];
+    private volatile long deadline_ns = TimeUnit.MILLISECONDS.toNanos(DEFAULT_DEADLINE_MS);
+
+    FrontendHardwarePipeline(final String name, final HealthListener health_listener) {
+        this.health_listener = health_listener;
+        executor = Executors.newCachedThreadPool(daemonThreads(name + "-hardware-"));
+        watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads(name + "-watchdog-"));
+        watchdog.schedule(new Runnable() {
+            public void run() {
+                checkDeadlines();
+                watchdog.schedule(this, watchdogPeriodMs(), TimeUnit.MILLISECONDS);
+            }
+        }, watchdogPeriodMs(), TimeUnit.MILLISECONDS);
+    }
+
+    /* Sets how long a call may take, in milliseconds */
+    void setDeadline(final long deadline_ms) {
+        deadline_ns = TimeUnit.MILLISECONDS.toNanos(Math.max(1, deadline_ms));
+    }
+
+    /* Queues task behind the calls already queued for the device. The returned future holds its
+     * result, or the exception it threw.
+     */
+    <T> Future<T> submit(final int device_id, final Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task);
+        queue(device_id).add(future);
+        return future;
+    }
+
+    /* Waits for a submitted call and returns its result. submitted_ns is the System.nanoTime()
+     * taken before the call was submitted; if the call has not finished a deadline after it, or
+     * was cancelled by the watchdog, the call is abandoned, the device reported as hung and a
+     * TimeoutException thrown.
+     */
+    <T> T await(final int device_id, final Future<T> future, final long submitted_ns) throws ExecutionException, InterruptedException, TimeoutException {
+        try {
+            return future.get(remaining(submitted_ns), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            abandon(device_id, future);
+            throw e;
+        } catch (CancellationException e) {
+            abandon(device_id, future);
+            throw new TimeoutException("hardware call cancelled after its deadline");
+        }
+    }
+
+    /* Returns how much of the deadline of a call submitted at submitted_ns is left, in nanoseconds */
+    long remaining(final long submitted_ns) {
+        return Math.max(0, submitted_ns + deadline_ns - System.nanoTime());
+    }
+
+    /* Cancels a call that is no longer waited for and reports its device as hung */
+    void abandon(final int device_id, final Future<?> future) {
+        future.cancel(true);
+        queue(device_id).hung();
+    }
+
+    /* Stops accepting work for the pool threads and waits a bounded time for the queued calls */
+    void shutdown() {
+        watchdog.shutdownNow();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkDeadlines() {
+        DeviceQueue[] snapshot;
+        synchronized (this) {
+            snapshot = queues;
+        }
+        long now = System.nanoTime();
+        for (DeviceQueue queue : snapshot) {
+            if (queue != null)
+                queue.checkDeadline(now);
+        }
+    }
+
+    private long watchdogPeriodMs() {
+        long period_ms = TimeUnit.NANOSECONDS.toMillis(deadline_ns) / 4;
+        return Math.min(MAX_WATCHDOG_PERIOD_MS, Math.max(MIN_WATCHDOG_PERIOD_MS, period_ms));
+    }
+
+    static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private synchronized DeviceQueue queue(final int device_id) {
+        if (device_id >= queues.length) {
+            queues = Arrays.copyOf(queues, Math.max(device_id + 1, queues.length * 2));
+        }
+        if (queues[device_id] == null) {
+            queues[device_id] = new DeviceQueue(device_id);
+        }
+        return queues[device_id];
+    }
+
+    private class DeviceQueue implements Runnable {
+
+        private final int device_id;
+        private final ArrayDeque<FutureTask<?>> tasks = new ArrayDeque<FutureTask<?>>();
+        private boolean running = false;
+        // the call in progress and when it started
+        private FutureTask<?> current = null;
+        private long current_started_ns = 0;
+        // set once the device has been reported as hung, until a call returns
+        private boolean hung = false;
+
+        DeviceQueue(final int device_id) {
+            this.device_id = device_id;
+        }
+
+        void add(final FutureTask<?> task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (running)
+                    return;
+                running = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                run();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                FutureTask<?> task;
+                synchronized (this) {
+                    current = null;
+                    // the listener is called with the queue locked, so hung and recovered reports do not overtake each other
+                    if (hung) {
+                        hung = false;
+                        health_listener.recovered(device_id);
+                    }
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                    current = task;
+                    current_started_ns = System.nanoTime();
+                }
+                // a FutureTask keeps whatever the call throws
+                task.run();
+                // do not carry a watchdog interrupt over to the next call
+                Thread.interrupted();
+            }
+        }
+
+        /* Reports the device as hung, unless it already is or has no calls left to run */
+        synchronized void hung() {
+            if (hung || !running)
+                return;
+            hung = true;
+            health_listener.hung(device_id);
+        }
+
+        void checkDeadline(final long now) {
+            FutureTask<?> overrunning;
+            synchronized (this) {
+                if (current == null || now - current_started_ns < deadline_ns)
+                    return;
+                overrunning = current;
+            }
+            overrunning.cancel(true);
+            hung();
+        }
+    }
+}
@@ -32,12 +32,21 @@ import CF.DevicePackage.InvalidState;
 import CF.DevicePackage.UsageType;
 import CF.InvalidObjectReference;
 import FRONTEND.BadParameterException;
+import java.io.IOException;
 import java.lang.Math.*;
 import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.text.*;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -65,13 +74,13 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
      * the allocation request. True is returned upon success, otherwise 
      * BadParameterException is thrown.
      */
-    boolean validateRequestVsSRI(final frontendX.FEXTypes.frontend_video_allocation_struct request, final BULKIO.StreamSRI upstream_sri) throws BadParameterException {
+    boolean validateRequestVsSRI(final videoAllocationRequest request, final BULKIO.StreamSRI upstream_sri) throws BadParameterException {
 
         // Check if the upstream sample rate falls within the requested tolerable frame rate
         double upstream_fps = 1.0/upstream_sri.xdelta;
-        double upstream_frame_rate = upstream_fps / (request.frame_height.getValue() * request.frame_width.getValue() * request.channels.getValue());
-        double min_requested_frame_rate = request.fps.getValue();
-        double max_requested_frame_rate = request.fps.getValue()+request.fps.getValue() * request.fps_tolerance.getValue()/100.0;
+        double upstream_frame_rate = upstream_fps / (request.frame_height * request.frame_width * request.channels);
+        double min_requested_frame_rate = request.fps;
+        double max_requested_frame_rate = request.fps+request.fps * request.fps_tolerance/100.0;
 
         // check vs. upstream frame rate (ensure min request <= upstream <= max request)
         if ( !validateRequest(min_requested_frame_rate, max_requested_frame_rate, upstream_frame_rate) ){
@@ -81,11 +90,15 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         return true;
     }
 
+    boolean validateRequestVsSRI(final frontendX.FEXTypes.frontend_video_allocation_struct request, final BULKIO.StreamSRI upstream_sri) throws BadParameterException {
+        return validateRequestVsSRI(new videoAllocationRequest(request), upstream_sri);
+    }
+
     /* validateRequestVsDevice is a helper function to check that the input data stream and the
      * device can support an allocation request. True is returned upon success, otherwise 
      * BadParameterException is thrown.
      */
-    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_video_allocation_struct request, final BULKIO.StreamSRI upstream_sri, double max_device_frame_rate) throws BadParameterException {
+    boolean validateRequestVsDevice(final videoAllocationRequest request, final BULKIO.StreamSRI upstream_sri, double max_device_frame_rate) throws BadParameterException {
 
         // check if request can be satisfied using the available upstream data
         if( !validateRequestVsSRI(request,upstream_sri) ){
@@ -95,29 +108,37 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         // check device constraints
 
         // check vs. device frame rate capability (ensure 0 <= request <= max device capability)
-        if ( !validateRequest(0,max_device_frame_rate,request.fps.getValue()) ){
+        if ( !validateRequest(0,max_device_frame_rate,request.fps) ){
             throw new BadParameterException("INVALID REQUEST -- device capabilities cannot support fr request");
         }
 
         return true;
     }
 
+    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_video_allocation_struct request, final BULKIO.StreamSRI upstream_sri, double max_device_frame_rate) throws BadParameterException {
+        return validateRequestVsDevice(new videoAllocationRequest(request), upstream_sri, max_device_frame_rate);
+    }
+
     /* validateRequestVsDevice is a helper function to check that the analog capabilities and the
      * device can support the allocation request. True is returned upon success, otherwise 
      * BadParameterException is thrown.
      */
-    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_video_allocation_struct request, double max_device_frame_rate) throws BadParameterException {
+    boolean validateRequestVsDevice(final videoAllocationRequest request, double max_device_frame_rate) throws BadParameterException {
 
         // check device constraints
 
         // check vs. device frame rate capability (ensure 0 <= request <= max device capability)
-        if ( !validateRequest(0,max_device_frame_rate,request.fps.getValue()) ){
+        if ( !validateRequest(0,max_device_frame_rate,request.fps) ){
             throw new BadParameterException("INVALID REQUEST -- device capabilities cannot support fr request");
         }
 
         return true;
     }
 
+    boolean validateRequestVsDevice(final frontendX.FEXTypes.frontend_video_allocation_struct request, double max_device_frame_rate) throws BadParameterException {
+        return validateRequestVsDevice(new videoAllocationRequest(request), max_device_frame_rate);
+    }
+
     public FrontendVideoDevice() {
         super();
         construct();
@@ -125,18 +146,29 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
  
     private void construct() {
         loadProperties();
-        allocation_id_to_video_device_id = new HashMap<String,Integer>();
+        video_retunes_in_place = overridesVideoDeviceMethod("videoDeviceSetTuning", frontendX.FEXTypes.frontend_video_allocation_struct.class, frontendX.FEXTypes.default_frontend_video_status_struct_struct.class, int.class, int.class);
+        allocation_id_mapping_lock = new Object();
+        for (int stripe = 0; stripe < video_device_locks.length; stripe++) {
+            video_device_locks[stripe] = new Object();
+        }
+        // the framework goes on calling an allocateVideo or allocateListener a device implementation overrides
+        video_allocate_overridden = overridesVideoDeviceMethod("allocateVideo", frontendX.FEXTypes.frontend_video_allocation_struct.class)
+            || overridesVideoDeviceMethod("allocateVideo", frontendX.FEXTypes.frontend_video_allocation_struct.class, int.class, long.class);
+        video_listener_allocate_overridden = overridesVideoDeviceMethod("allocateListener", frontend.FETypes.frontend_listener_allocation_struct.class);
+        video_listener_validation_overridden = overridesVideoDeviceMethod("listenerRequestValidation", frontendX.FEXTypes.frontend_video_allocation_struct.class, int.class);
         frontend_video_allocation.setAllocator(new Allocator<frontendX.FEXTypes.frontend_video_allocation_struct>() {
             public boolean allocate(frontendX.FEXTypes.frontend_video_allocation_struct capacity){
-                boolean status = false;
+                // the framework only needs to know whether the allocation succeeded, so the
+                // InvalidCapacity of a rejected request is not created unless allocateVideo is overridden
                 try{
-                    status = allocateVideo(capacity);
+                    if (video_allocate_overridden)
+                        return allocateVideo(capacity);
+                    return tryAllocateVideo(capacity, 0, video_allocation_wait_ms) == FrontendAllocationReason.ALLOCATED;
                 }catch(CF.DevicePackage.InvalidCapacity e){
-
+                    return false;
                 }catch(Exception e){
-
+                    return false;
                 }
-                return status;
             }
             public void deallocate(frontendX.FEXTypes.frontend_video_allocation_struct capacity){
                 deallocateVideo(capacity);
@@ -144,15 +176,15 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         });
         frontend_listener_allocation.setAllocator(new Allocator<frontend.FETypes.frontend_listener_allocation_struct>() {
             public boolean allocate(frontend.FETypes.frontend_listener_allocation_struct capacity) {
-                boolean status = false;
                 try{
-                    status = allocateListener(capacity);
+                    if (video_listener_allocate_overridden)
+                        return allocateListener(capacity);
+                    return tryAllocateListener(capacity) == FrontendAllocationReason.ALLOCATED;
                 }catch(CF.DevicePackage.InvalidCapacity e){
-
+                    return false;
                 }catch(Exception e){
-
+                    return false;
                 }
-                return status;
             }
             public void deallocate(frontend.FETypes.frontend_listener_allocation_struct capacity){
                 deallocateListener(capacity);
@@ -160,6 +192,21 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         });
     }
     
+    /* overridesVideoDeviceMethod returns whether the device implementation overrides a function of
+     * this class, given its name and parameter types as erased here
+     */
+    private boolean overridesVideoDeviceMethod(final String name, final Class<?>... parameter_types){
+        for (Class<?> type = getClass(); type != null && type != FrontendVideoDevice.class; type = type.getSuperclass()) {
+            try {
+                type.getDeclaredMethod(name, parameter_types);
+                return true;
+            } catch (NoSuchMethodException e) {
+                // not declared at this level
+            }
+        }
+        return false;
+    }
+
     // this is implemented in the generated base class once all properties are known
     public void loadProperties(){
         addProperty(device_kind);
@@ -167,15 +214,17 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         addProperty(frontend_video_allocation);
         addProperty(frontend_listener_allocation);
         addProperty(frontend_video_status);
+        addProperty(frontend_video_allocation_metrics);
     }
 
     protected String createAllocationIdCsv(int video_device_id){
         StringBuilder alloc_id_csv = new StringBuilder();
+        videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
         // ensure control allocation_id is first in list
-        if (video_allocation_ids.get(video_device_id).control_allocation_id != null && !video_allocation_ids.get(video_device_id).control_allocation_id.isEmpty())
-            alloc_id_csv.append(video_allocation_ids.get(video_device_id).control_allocation_id + ",");
+        if (allocation_ids.control_allocation_id != null && !allocation_ids.control_allocation_id.isEmpty())
+            alloc_id_csv.append(allocation_ids.control_allocation_id + ",");
         // now add the rest
-        Iterator<String> iter = video_allocation_ids.get(video_device_id).listener_allocation_ids.iterator();
+        Iterator<String> iter = allocation_ids.listener_allocation_ids.iterator();
         while (iter.hasNext()) {
             alloc_id_csv.append(iter.next() + ",");
         }
@@ -194,254 +243,1757 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         return video_allocation_ids.get(video_device_id).listener_allocation_ids;
     }
 
+    /* getAllocatedVideoDevices and getFreeVideoDevices return the number of video devices of a
+     * video_type, or of every video_type if video_type is null, that have or lack a device control
+     * allocation. Both are read from the device index without visiting the video devices.
+     */
+    protected int getAllocatedVideoDevices(String video_type){
+        syncVideoDeviceIndex();
+        return video_device_index.controlledCount(video_type);
+    }
+
+    protected int getFreeVideoDevices(String video_type){
+        syncVideoDeviceIndex();
+        synchronized(video_device_index){
+            return video_device_index.deviceCount(video_type) - video_device_index.controlledCount(video_type);
+        }
+    }
+
     /*****************************************************************/
     /* Allocation/Deallocation of Capacity                           */
     /*****************************************************************/
     // updateUsageState is not defined to return UsageType in Device base class
+    // The usage state is only set, and its state change event only sent, when it differs from
+    // the one last set, so listener allocations and reallocations of a device do not publish.
     public void updateUsageState() {
-        getUsageState();
+        synchronized(video_usage_state_lock){
+            CF.DevicePackage.UsageType usage_state = getUsageState();
+            if (usage_state != usageState)
+                setUsageState(usage_state);
+        }
     }
 
     public CF.DevicePackage.UsageType getUsageState() {
-        int videoAllocated = 0;
-        for (int video_device_id = 0; video_device_id < video_allocation_ids.size(); video_device_id++) {
-            if (!video_allocation_ids.get(video_device_id).control_allocation_id.isEmpty())
-                videoAllocated++;
-        }
+        // the device index counts the controlled video devices as their control state changes
+        syncVideoDeviceIndex();
+        int videoAllocated = video_device_index.controlledCount(null);
         // If no video devices are allocated, device is idle
         if (videoAllocated == 0)
             return CF.DevicePackage.UsageType.IDLE;
         // If all video devices are allocated, device is busy
-        if (videoAllocated == video_allocation_ids.size())
+        if (videoAllocated == video_device_index.deviceCount(null))
             return CF.DevicePackage.UsageType.BUSY;
         // Else, device is active
         return CF.DevicePackage.UsageType.ACTIVE;
     }
 
+    /* allocateVideo allocates a device control or listener request. A request without an
+     * allocation_id or with one already in use is rejected with an InvalidCapacity; any other
+     * failure returns false.
+     */
     public boolean allocateVideo(frontendX.FEXTypes.frontend_video_allocation_struct frontend_video_allocation) throws CF.DevicePackage.InvalidCapacity, Exception {
+        return allocateVideo(frontend_video_allocation, 0, video_allocation_wait_ms);
+    }
+
+    /* allocateVideo with a priority and a timeout waits, when every video device of the requested
+     * video_type is taken, up to timeout_ms milliseconds for one to be freed instead of failing
+     * straight away. A freed video device is handed to the waiting device control request with
+     * the highest priority, the longest waiting first among equals; waiting requests gain a
+     * priority level every FrontendAllocationWaitQueue.AGING_MS, so lower priorities are not
+     * starved. Listener requests and timeouts of 0 do not wait.
+     */
+    public boolean allocateVideo(frontendX.FEXTypes.frontend_video_allocation_struct frontend_video_allocation, int priority, long timeout_ms) throws CF.DevicePackage.InvalidCapacity, Exception {
+        FrontendAllocationReason reason;
+        try{
+            reason = tryAllocateVideo(frontend_video_allocation, priority, timeout_ms);
+        } catch(RuntimeException e) {
+            return false;
+        }
+        if (reason.isRejection())
+            throw new CF.DevicePackage.InvalidCapacity(reason.message, new CF.DataType[]{new DataType("frontend_video_allocation", frontend_video_allocation.toAny())});
+        return reason == FrontendAllocationReason.ALLOCATED;
+    }
+
+    /* tryAllocateVideo does the work of allocateVideo without throwing for a failed allocation.
+     * Returns ALLOCATED, or the reason the request was rejected or could not be satisfied. The
+     * framework allocates frontend_video_allocation through it, not through allocateVideo, so a
+     * rejected request costs no InvalidCapacity; a device implementation that changes how requests
+     * are allocated overrides this function. The framework only calls allocateVideo if a device
+     * implementation overrides it, as it did before.
+     */
+    protected FrontendAllocationReason tryAllocateVideo(final frontendX.FEXTypes.frontend_video_allocation_struct frontend_video_allocation, final int priority, final long timeout_ms){
+        String reserved_allocation_id = null;
+        int reserved_handle = FrontendAllocationHandles.NO_HANDLE;
+        long start = System.nanoTime();
+        FrontendAllocationReason reason = null;
         try{
+            videoAllocationRequest request = new videoAllocationRequest(frontend_video_allocation);
             // Check allocation_id
-            if (frontend_video_allocation.allocation_id != null &&
-                frontend_video_allocation.allocation_id.getValue().isEmpty()) {
+            if (request.allocation_id == null || request.allocation_id.isEmpty()) {
                 logger.info("allocateVideo: MISSING ALLOCATION_ID");
-                throw new CF.DevicePackage.InvalidCapacity("MISSING ALLOCATION ID", new CF.DataType[]{new DataType("frontend_video_allocation", frontend_video_allocation.toAny())});
+                reason = FrontendAllocationReason.MISSING_ALLOCATION_ID;
+                return reason;
             }
-            // Check if allocation ID has already been used
-            if(this.getVideoDeviceMapping(frontend_video_allocation.allocation_id.getValue()) >= 0){
-                logger.info("allocateVideo: ALLOCATION_ID ALREADY IN USE: [" + frontend_video_allocation.allocation_id.getValue() + "]");
-                throw new InvalidCapacity("ALLOCATION_ID ALREADY IN USE", new CF.DataType[]{new DataType("frontend_video_allocation", frontend_video_allocation.toAny())});
+            // Check if allocation ID has already been used, reserving it if not
+            reserved_allocation_id = request.allocation_id;
+            reserved_handle = video_allocation_handles.reserve(reserved_allocation_id);
+            if(reserved_handle == FrontendAllocationHandles.NO_HANDLE){
+                logger.info("allocateVideo: ALLOCATION_ID ALREADY IN USE: [" + request.allocation_id + "]");
+                reason = FrontendAllocationReason.ALLOCATION_ID_IN_USE;
+                return reason;
             }
+            video_allocation_metrics.record("allocate.validation", start);
             // Check if available video device
-            //synchronized(allocation_id_mapping_lock){
-                // Next, try to allocate a new video
-                for (int video_device_id = 0; video_device_id < this.video_allocation_ids.size(); video_device_id++) {
-                    if(!frontend_video_status.getValue().get(video_device_id).video_type.getValue().equals(frontend_video_allocation.video_type.getValue())) {
-                        logger.debug("allocateVideo: Requested video type '"+frontend_video_allocation.video_type.getValue() +"' does not match videoDevice[" + video_device_id + "].video_type (" + frontend_video_status.getValue().get(video_device_id).video_type.getValue()+")");
-                        continue;
-                    }
- 
-                    if(frontend_video_allocation.device_control.getValue()){
-                        // device control
-                        long orig_chan = frontend_video_status.getValue().get(video_device_id).channels.getValue();
-                        long orig_fh = frontend_video_status.getValue().get(video_device_id).frame_height.getValue();
-                        double orig_fr = frontend_video_status.getValue().get(video_device_id).fps.getValue();
-                        long orig_fw = frontend_video_status.getValue().get(video_device_id).frame_width.getValue();
-                        frontend_video_status.getValue().get(video_device_id).channels.setValue(frontend_video_allocation.channels.getValue());
-                        frontend_video_status.getValue().get(video_device_id).frame_height.setValue(frontend_video_allocation.frame_height.getValue());
-                        frontend_video_status.getValue().get(video_device_id).fps.setValue(frontend_video_allocation.fps.getValue());
-                        frontend_video_status.getValue().get(video_device_id).frame_width.setValue(frontend_video_allocation.frame_width.getValue());
-                        if(video_allocation_ids.get(video_device_id).control_allocation_id != null &&
-                           (!video_allocation_ids.get(video_device_id).control_allocation_id.isEmpty() || 
-                            !videoDeviceSetTuning(frontend_video_allocation, frontend_video_status.getValue().get(video_device_id), video_device_id))){
-                            // either not available or didn't succeed setting tuning, try next video
-                            if (frontend_video_status.getValue().get(video_device_id).channels.getValue().equals(frontend_video_allocation.channels.getValue()))
-                                frontend_video_status.getValue().get(video_device_id).channels.setValue(orig_chan);
-                            if (frontend_video_status.getValue().get(video_device_id).frame_height.getValue().equals(frontend_video_allocation.frame_height.getValue()))
-                                frontend_video_status.getValue().get(video_device_id).frame_height.setValue(orig_fh);
-                            if (frontend_video_status.getValue().get(video_device_id).fps.getValue().equals(frontend_video_allocation.fps.getValue()))
-                                frontend_video_status.getValue().get(video_device_id).fps.setValue(orig_fr);
-                            if (frontend_video_status.getValue().get(video_device_id).frame_width.getValue().equals(frontend_video_allocation.frame_width.getValue()))
-                                frontend_video_status.getValue().get(video_device_id).frame_width.setValue(orig_fw);
-                            logger.debug("allocateVideo: videoDevice["+video_device_id+"] is either not available or didn't succeed while setting tuning ");
-                            continue;
-                        }
-                        video_allocation_ids.get(video_device_id).control_allocation_id = frontend_video_allocation.allocation_id.getValue();
-                        allocation_id_to_video_device_id.put(frontend_video_allocation.allocation_id.getValue(), video_device_id);
-                        frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue(createAllocationIdCsv(video_device_id));
-                    } else {
-                        // listener
-                        if(video_allocation_ids.get(video_device_id).control_allocation_id.isEmpty() || !listenerRequestValidation(frontend_video_allocation, video_device_id)){
-                            // either not allocated or can't support listener request
-                            logger.debug("allocateVideo: videoDevice["+video_device_id+"] is either not available or can not support listener request ");
-                            continue;
-                        }
-                        video_allocation_ids.get(video_device_id).listener_allocation_ids.add(frontend_video_allocation.allocation_id.getValue());
-                        allocation_id_to_video_device_id.put(frontend_video_allocation.allocation_id.getValue(), video_device_id);
-                        frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue(createAllocationIdCsv(video_device_id));
-                        this.assignListener(frontend_video_allocation.allocation_id.getValue(),video_allocation_ids.get(video_device_id).control_allocation_id);
-                    }
-                    // if we've reached here, we found an eligible video device
-
-                    // check tolerances
-                    // only check when fps was not set to don't care)
-                    logger.debug(" allocateVideo - FR requested: " + frontend_video_allocation.fps.getValue() + "  FR got: " + frontend_video_status.getValue().get(video_device_id).fps.getValue());
-                    if( (floatingPointCompare(frontend_video_allocation.fps.getValue(),0)!=0) &&
-                        (floatingPointCompare(frontend_video_status.getValue().get(video_device_id).fps.getValue(),frontend_video_allocation.fps.getValue())<0 ||
-                        floatingPointCompare(frontend_video_status.getValue().get(video_device_id).fps.getValue(),frontend_video_allocation.fps.getValue()+frontend_video_allocation.fps.getValue() * frontend_video_allocation.fps_tolerance.getValue()/100.0)>0 )){
-                        String eout = "allocateVideo(" + video_device_id + "): returned fr " + frontend_video_status.getValue().get(video_device_id).fps.getValue()+" does not meet tolerance criteria of " + frontend_video_allocation.fps_tolerance.getValue()+" percent";
-                        logger.info(eout);
-                        throw new RuntimeException(eout);
-                    }
+            int video_device_id = assignVideoDevice(request, reserved_handle, true);
+            if (video_device_id == FrontendAllocationReason.NO_DEVICE.code() && request.device_control && request.video_type != null && timeout_ms > 0)
+                video_device_id = awaitVideoDevice(request, reserved_handle, priority, start + TimeUnit.MILLISECONDS.toNanos(timeout_ms));
+            if (video_device_id < 0) {
+                reason = FrontendAllocationReason.ofCode(video_device_id);
+                return reason;
+            }
+            updateUsageState();
+            reason = FrontendAllocationReason.ALLOCATED;
+            return reason;
+        } finally {
+            // drop the reservation unless the allocation was committed
+            if (reserved_handle != FrontendAllocationHandles.NO_HANDLE)
+                video_allocation_handles.releasePending(reserved_handle, reserved_allocation_id);
+            video_allocation_metrics.count(FrontendAllocationMetrics.ALLOCATE, reason);
+            video_allocation_metrics.record("allocate", start);
+        }
+    }
 
-                    if(frontend_video_allocation.device_control.getValue()){
-                        // enable video after successful allocation
-                        try {
-                            enableVideoDevice(video_device_id,true);
-                        } catch(Exception e){
-                            String eout = "allocateVideo: Failed to enable video after allocation";
-                            logger.info(eout);
-                            throw new RuntimeException(eout);
-                        }
+    /* awaitVideoDevice queues a device control request that found no free video device until
+     * deadline_ns, a System.nanoTime(), and allocates it to the first video device it is handed
+     * or finds free that accepts it. Returns the video device id, or a negative
+     * FrontendAllocationReason code.
+     */
+    private int awaitVideoDevice(final videoAllocationRequest request, final int allocation_handle, final int priority, final long deadline_ns){
+        long wait_start = System.nanoTime();
+        FrontendAllocationWaitQueue.Waiter waiter = video_wait_queue.enqueue(request.video_type, priority);
+        try {
+            while (true) {
+                // take a video device handed over while the request was trying another one first
+                int video_device_id = video_wait_queue.poll(waiter);
+                // a video device may have been freed before the request was queued, or without being offered
+                if (video_device_id < 0)
+                    video_device_id = video_device_index.claimFree(request.video_type, -1);
+                if (video_device_id < 0) {
+                    long remaining_ns = deadline_ns - System.nanoTime();
+                    if (remaining_ns <= 0) {
+                        logger.info("allocateVideo: NO VIDEO DEVICE FREED IN TIME");
+                        return FrontendAllocationReason.NO_DEVICE.code();
                     }
-                    usageState = getUsageState();
-                    return true;
+                    video_device_id = video_wait_queue.await(waiter, Math.min(remaining_ns, TimeUnit.MILLISECONDS.toNanos(FrontendAllocationWaitQueue.RECHECK_MS)));
+                    if (video_device_id < 0)
+                        continue;
                 }
-                // if we made it here, we failed to find an available video device
-                String eout = "allocateVideo: NO AVAILABLE VIDEO DEVICE. Make sure that the device has an initialized frontend_video_status";
-                logger.info(eout);
-                throw new RuntimeException(eout);
-            //}
-        } catch(RuntimeException e) {
-            //deallocateVideo(frontend_video_allocation);
-            return false;
-        } catch(CF.DevicePackage.InvalidCapacity e) {
-            // without the following check, a valid allocation could be deallocated due to an attempt to alloc w/ an existing alloc id
-            String exceptionMessage = e.getMessage();
-            if (exceptionMessage != null && 
-               exceptionMessage.indexOf("ALLOCATION_ID ALREADY IN USE") == -1){
-               //deallocateVideo(frontend_video_allocation);
+                int assigned = assignVideoDeviceControl(request, allocation_handle, true, video_device_id);
+                if (assigned != FrontendAllocationReason.NO_DEVICE.code())
+                    return assigned;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.info("allocateVideo: interrupted while waiting for a video device");
+            return FrontendAllocationReason.INTERRUPTED.code();
+        } finally {
+            // pass on a video device handed over after the request stopped waiting
+            int handed_video_device_id = video_wait_queue.remove(waiter);
+            if (handed_video_device_id >= 0) {
+                video_device_index.release(handed_video_device_id);
+                offerVideoDevice(handed_video_device_id);
             }
-            throw e;
-        } catch(Exception e){
-            //deallocateVideo(frontend_video_allocation);
-            throw e; 
+            video_allocation_metrics.record("allocate.wait", wait_start);
         }
     }
 
+    /* offerVideoDevice hands a video device that has just been freed to the waiting device control
+     * request of its video_type next in line, if there is one.
+     */
+    private void offerVideoDevice(final int video_device_id){
+        String video_type = frontend_video_status.getValue().get(video_device_id).video_type.getValue();
+        if (video_type == null || !video_wait_queue.hasWaiters(video_type))
+            return;
+        // taken, quarantined or no longer free; a waiter looks for free video devices itself
+        if (!video_device_index.claim(video_device_id))
+            return;
+        if (!video_wait_queue.offer(video_type, video_device_id))
+            video_device_index.release(video_device_id);
+    }
+
+    /* setVideoAllocationWait sets how long, in milliseconds, device control allocations made
+     * through allocateCapacity or allocateVideo without a timeout wait for a video device to be
+     * freed when all are taken. Defaults to 0, failing straight away.
+     */
+    protected void setVideoAllocationWait(long timeout_ms){
+        video_allocation_wait_ms = Math.max(0, timeout_ms);
+    }
+
     public void deallocateVideo(frontendX.FEXTypes.frontend_video_allocation_struct frontend_video_deallocation){
+        long start = System.nanoTime();
         try{
             //logger.debug("deallocateVideo()");
             // Try to remove control of the device
-            int video_device_id = this.getVideoDeviceMapping(frontend_video_deallocation.allocation_id.getValue());
-            if (video_device_id < 0){
+            if (releaseVideoAllocation(frontend_video_deallocation.allocation_id.getValue())){
+                video_allocation_metrics.count("deallocate.succeeded");
+            } else {
                 logger.debug("ALLOCATION_ID NOT FOUND: [" + frontend_video_deallocation.allocation_id.getValue() +"]");
-                throw new CF.DevicePackage.InvalidCapacity("ALLOCATION_ID NOT FOUND", new CF.DataType[]{new DataType("frontend_video_deallocation", frontend_video_deallocation.toAny())});
+                video_allocation_metrics.count("deallocate.failed.not_found");
+                logger.warn("deallocateVideo: ERROR WHEN DEALLOCATING.  SKIPPING...");
+            }
+        } catch (RuntimeException e){
+            logger.warn("deallocateVideo: ERROR WHEN DEALLOCATING.  SKIPPING...", e);
+        }
+        updateUsageState();
+        video_allocation_metrics.record("deallocate", start);
+    }
+
+    /* allocateVideoBatch allocates a set of requests atomically: either every request is
+     * satisfied or none is. All allocation_ids are reserved first, device control requests are
+     * then tuned in one pass, followed by the listener requests, and no video device is enabled
+     * until the whole batch has been satisfied. On failure everything the batch allocated is
+     * released again and false is returned.
+     */
+    public boolean allocateVideoBatch(final List<frontendX.FEXTypes.frontend_video_allocation_struct> frontend_video_allocations) throws CF.DevicePackage.InvalidCapacity {
+        videoAllocationRequest[] requests = new videoAllocationRequest[frontend_video_allocations.size()];
+        String[] reserved_allocation_ids = new String[frontend_video_allocations.size()];
+        int[] reserved_handles = new int[frontend_video_allocations.size()];
+        Arrays.fill(reserved_handles, FrontendAllocationHandles.NO_HANDLE);
+        List<String> assigned_allocation_ids = new ArrayList<String>();
+        long start = System.nanoTime();
+        int[] controlled_video_device_ids = new int[frontend_video_allocations.size()];
+        int[] controlled_allocation_handles = new int[frontend_video_allocations.size()];
+        int controlled_count = 0;
+        boolean committed = false;
+        FrontendAllocationReason reason = null;
+        try{
+            // Check and reserve every allocation_id before touching any video device
+            for (int idx = 0; idx < frontend_video_allocations.size(); idx++) {
+                frontendX.FEXTypes.frontend_video_allocation_struct frontend_video_allocation = frontend_video_allocations.get(idx);
+                requests[idx] = new videoAllocationRequest(frontend_video_allocation);
+                if (requests[idx].allocation_id == null || requests[idx].allocation_id.isEmpty()) {
+                    logger.info("allocateVideoBatch: MISSING ALLOCATION_ID");
+                    reason = FrontendAllocationReason.MISSING_ALLOCATION_ID;
+                    throw new CF.DevicePackage.InvalidCapacity(reason.message, new CF.DataType[]{new DataType("frontend_video_allocation", frontend_video_allocation.toAny())});
+                }
+                reserved_allocation_ids[idx] = requests[idx].allocation_id;
+                reserved_handles[idx] = video_allocation_handles.reserve(reserved_allocation_ids[idx]);
+                if(reserved_handles[idx] == FrontendAllocationHandles.NO_HANDLE){
+                    logger.info("allocateVideoBatch: ALLOCATION_ID ALREADY IN USE: [" + requests[idx].allocation_id + "]");
+                    reason = FrontendAllocationReason.ALLOCATION_ID_IN_USE;
+                    throw new InvalidCapacity(reason.message, new CF.DataType[]{new DataType("frontend_video_allocation", frontend_video_allocation.toAny())});
+                }
+            }
+            // device control requests first, so that listeners in the batch can attach to them
+            for (int pass = 0; pass < 2; pass++) {
+                for (int idx = 0; idx < frontend_video_allocations.size(); idx++) {
+                    if (requests[idx].device_control != (pass == 0))
+                        continue;
+                    int video_device_id = assignVideoDevice(requests[idx], reserved_handles[idx], false);
+                    if (video_device_id < 0) {
+                        reason = FrontendAllocationReason.ofCode(video_device_id);
+                        logger.info("allocateVideoBatch: " + reason + ". Releasing " + assigned_allocation_ids.size() + " allocations made by the batch");
+                        return false;
+                    }
+                    assigned_allocation_ids.add(requests[idx].allocation_id);
+                    if (pass == 0) {
+                        controlled_video_device_ids[controlled_count] = video_device_id;
+                        controlled_allocation_handles[controlled_count++] = reserved_handles[idx];
+                    }
+                }
             }
+            // enable video devices only once the whole batch has been satisfied
+            reason = enableVideoDevices(controlled_video_device_ids, controlled_allocation_handles, controlled_count);
+            if (reason != FrontendAllocationReason.ALLOCATED) {
+                logger.info("allocateVideoBatch: Failed to enable video after allocation. Releasing " + assigned_allocation_ids.size() + " allocations made by the batch");
+                return false;
+            }
+            committed = true;
+            return true;
+        } catch(RuntimeException e) {
+            logger.info("allocateVideoBatch: " + e.getMessage() + ". Releasing " + assigned_allocation_ids.size() + " allocations made by the batch");
+            return false;
+        } finally {
+            if (!committed) {
+                for (int idx = assigned_allocation_ids.size() - 1; idx >= 0; idx--) {
+                    releaseVideoAllocation(assigned_allocation_ids.get(idx));
+                }
+            }
+            for (int idx = 0; idx < reserved_handles.length; idx++) {
+                if (reserved_handles[idx] != FrontendAllocationHandles.NO_HANDLE)
+                    video_allocation_handles.releasePending(reserved_handles[idx], reserved_allocation_ids[idx]);
+            }
+            updateUsageState();
+            video_allocation_metrics.count(FrontendAllocationMetrics.ALLOCATE_BATCH, reason);
+            video_allocation_metrics.record("allocate_batch", start);
+        }
+    }
+
+    /* deallocateVideoBatch releases a set of device control and listener allocations. Listeners
+     * are released before device control, so a listener and its controller may share the batch.
+     */
+    public void deallocateVideoBatch(final List<frontendX.FEXTypes.frontend_video_allocation_struct> frontend_video_deallocations){
+        for (int pass = 0; pass < 2; pass++) {
+            for (frontendX.FEXTypes.frontend_video_allocation_struct frontend_video_deallocation : frontend_video_deallocations) {
+                if (frontend_video_deallocation.device_control.getValue() != (pass == 1))
+                    continue;
+                if (!releaseVideoAllocation(frontend_video_deallocation.allocation_id.getValue()))
+                    logger.debug("deallocateVideoBatch: ALLOCATION_ID NOT FOUND: [" + frontend_video_deallocation.allocation_id.getValue() + "]");
+            }
+        }
+        updateUsageState();
+    }
+
+    /* deallocateVideoByPrefix releases every device control and listener allocation whose
+     * allocation_id starts with allocation_id_prefix. A client that tags its allocation ids with
+     * an owner prefix can so be cleaned up in one call after it has gone away. Returns the number
+     * of allocations released.
+     */
+    public int deallocateVideoByPrefix(final String allocation_id_prefix){
+        if (allocation_id_prefix == null || allocation_id_prefix.isEmpty()) {
+            logger.info("deallocateVideoByPrefix: MISSING ALLOCATION_ID PREFIX");
+            return 0;
+        }
+        return releaseVideoAllocations(allocation_id_prefix, -1);
+    }
+
+    /* deallocateVideoByDeviceId releases the device control allocation of a video device and all
+     * of its listeners. Returns the number of allocations released.
+     */
+    public int deallocateVideoByDeviceId(final int video_device_id){
+        if (video_device_id < 0 || video_device_id >= video_allocation_ids.size()) {
+            logger.info("deallocateVideoByDeviceId: NO SUCH VIDEO DEVICE: " + video_device_id);
+            return 0;
+        }
+        return releaseVideoAllocations(null, video_device_id);
+    }
+
+    /* releaseVideoAllocations releases, in one pass over the video devices, the allocations whose
+     * allocation_id starts with allocation_id_prefix (any, if null) on video device
+     * only_video_device_id (any, if negative). Releasing device control releases the listeners of
+     * the video device with it, as in deallocateVideo. Every video device is locked once, and
+     * each one that changed replaces the allocation_id_csv of its copy in the status snapshot
+     * before it is unlocked; the changed copies are published together, in one new version, once
+     * the pass is done. The video devices released from device control are published again when
+     * they have been disabled.
+     */
+    private int releaseVideoAllocations(final String allocation_id_prefix, final int only_video_device_id){
+        long start = System.nanoTime();
+        int released = 0;
+        boolean published = false;
+        try{
+            int first_video_device_id = Math.max(0, only_video_device_id);
+            int end_video_device_id = (only_video_device_id < 0) ? video_allocation_ids.size() : only_video_device_id + 1;
+            for (int video_device_id = first_video_device_id; video_device_id < end_video_device_id; video_device_id++) {
+                synchronized(videoDeviceLock(video_device_id)){
+                    videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+                    // listeners only attach to controlled video devices
+                    String control_allocation_id = allocation_ids.control_allocation_id;
+                    if (control_allocation_id == null || control_allocation_id.isEmpty())
+                        continue;
+                    int released_from_device = 0;
+                    if (allocation_id_prefix == null || control_allocation_id.startsWith(allocation_id_prefix)) {
+                        released_from_device = 1 + allocation_ids.listener_allocation_handles.size();
+                        // queued before the video device is freed, as in releaseVideoAllocation
+                        teardownVideoDevice(video_device_id);
+                        releaseVideoDeviceMappings(video_device_id);
+                    } else {
+                        FrontendAllocationHandles.HandleList listener_handles = allocation_ids.listener_allocation_handles;
+                        int position = listener_handles.first();
+                        while (position != FrontendAllocationHandles.HandleList.END) {
+                            int listener_handle = listener_handles.handleAt(position);
+                            position = listener_handles.next(position);
+                            String listener_allocation_id = video_allocation_handles.allocationIdOf(listener_handle);
+                            if (listener_allocation_id == null || !listener_allocation_id.startsWith(allocation_id_prefix))
+                                continue;
+                            // send EOS to listener connection only
+                            removeListener(listener_allocation_id);
+                            listener_handles.remove(listener_handle);
+                            journalVideoRelease(video_device_id, listener_allocation_id);
+                            video_allocation_handles.release(listener_handle, video_device_id);
+                            released_from_device++;
+                        }
+                    }
+                    if (released_from_device > 0) {
+                        markVideoAllocationIdCsv(video_device_id);
+                        publishVideoAllocationIdCsv(video_device_id, false);
+                        published = true;
+                    }
+                    released += released_from_device;
+                }
+            }
+            logger.debug("releaseVideoAllocations: released " + released + " allocations");
+            return released;
+        } finally {
+            if (published)
+                newVideoStatusVersion();
+            updateUsageState();
+            video_allocation_metrics.count((released > 0) ? "deallocate_bulk.succeeded" : "deallocate_bulk.failed.not_found");
+            video_allocation_metrics.record("deallocate_bulk", start);
+        }
+    }
+
+    /* releaseVideoAllocation releases a device control or listener allocation. Releasing device
+     * control disables the video device, which keeps its tuning, and releases all of its
+     * listeners. Returns false if the allocation_id is not allocated.
+     */
+    private boolean releaseVideoAllocation(final String allocation_id){
+        return releaseVideoAllocation(allocation_id, false);
+    }
+
+    /* With only_if_expired set, the allocation is only released if its lease has run out */
+    private boolean releaseVideoAllocation(final String allocation_id, final boolean only_if_expired){
+        int video_device_id = this.getVideoDeviceMapping(allocation_id);
+        if (video_device_id < 0)
+            return false;
+        synchronized(videoDeviceLock(video_device_id)){
+            // the allocation may have been released while waiting for the device
+            if (this.getVideoDeviceMapping(allocation_id) != video_device_id)
+                return false;
+            // or its lease renewed since it was found expired
+            if (only_if_expired && !video_allocation_handles.leaseExpired(video_allocation_handles.handleOf(allocation_id), System.nanoTime()))
+                return false;
             //logger.debug("deallocateVideo() video_device_id = " + video_device_id);
-            if(video_allocation_ids.get(video_device_id).control_allocation_id.equals(frontend_video_deallocation.allocation_id.getValue())){
+            if(video_allocation_ids.get(video_device_id).control_allocation_id.equals(allocation_id)){
                 //logger.debug("deallocateVideo() deallocating control for video_device_id = " + video_device_id);
-                enableVideoDevice(video_device_id, false);
-                frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue("");
-                removeVideoDeviceMapping(video_device_id);
+                // disable the video device in the background; queued before the video device is
+                // freed, so it runs ahead of the hardware calls of its next allocation
+                teardownVideoDevice(video_device_id);
+                releaseVideoDeviceMappings(video_device_id);
                 video_allocation_ids.get(video_device_id).control_allocation_id = "";
             }else{
                 // send EOS to listener connection only
-                removeVideoDeviceMapping(video_device_id,frontend_video_deallocation.allocation_id.getValue());
-                frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue(createAllocationIdCsv(video_device_id));
+                removeVideoDeviceMapping(video_device_id,allocation_id);
+            }
+            markVideoAllocationIdCsv(video_device_id);
+            publishVideoAllocationIdCsv(video_device_id);
+        }
+        return true;
+    }
+
+    /* teardownVideoDevice disables a video device that is no longer controlled through the hardware
+     * pipeline, after the hardware calls already queued for it. Deallocation does not wait for it.
+     * The video device keeps its tuning, so a later request for the same tuning only enables it
+     * again; the tuning is deleted once a different one replaces it, see tryVideoDeviceTuning, or
+     * when the device is released.
+     */
+    private void teardownVideoDevice(final int video_device_id){
+        video_hardware_pipeline.submit(video_device_id, new Callable<Void>() {
+            public Void call() {
+                try {
+                    enableVideoDevice(video_device_id, false);
+                } catch (RuntimeException e) {
+                    logger.info("deallocateVideo: videoDevice[" + video_device_id + "] failed to tear down: " + e.getMessage());
+                }
+                publishVideoStatus(video_device_id);
+                return null;
+            }
+        });
+    }
+
+    /* setVideoDefaultLease gives every device control and listener allocation made from now on a
+     * lease of ttl_ms milliseconds. A client keeps its allocation with renewVideoAllocation; once
+     * the lease runs out, the allocation is released as if the client had deallocated it. 0, the
+     * default, makes allocations last until they are deallocated.
+     */
+    protected void setVideoDefaultLease(long ttl_ms){
+        video_allocation_handles.setDefaultLease(TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl_ms)));
+        if (ttl_ms > 0)
+            startVideoLeaseReaper();
+    }
+
+    /* leaseVideoAllocation gives an allocation a lease of ttl_ms milliseconds from now, replacing
+     * any it has; 0 removes its lease. Returns false if the allocation_id is not allocated.
+     */
+    public boolean leaseVideoAllocation(final String allocation_id, final long ttl_ms){
+        if (!video_allocation_handles.lease(video_allocation_handles.handleOf(allocation_id), TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttl_ms))))
+            return false;
+        if (ttl_ms > 0)
+            startVideoLeaseReaper();
+        return true;
+    }
+
+    /* renewVideoAllocation extends the lease of an allocation to its full length from now.
+     * Returns false if the allocation_id is not allocated or has no lease.
+     */
+    public boolean renewVideoAllocation(final String allocation_id){
+        return video_allocation_handles.renew(video_allocation_handles.handleOf(allocation_id));
+    }
+
+    /* setVideoLeaseReapPeriod sets how often expired leases are looked for, in milliseconds. An
+     * allocation may outlive its lease by up to this long. Defaults to 1000.
+     */
+    protected void setVideoLeaseReapPeriod(long period_ms){
+        video_lease_reap_period_ms = Math.max(1, period_ms);
+    }
+
+    private void startVideoLeaseReaper(){
+        synchronized(video_lease_reaper_lock){
+            if (video_lease_reaper != null)
+                return;
+            final ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(FrontendHardwarePipeline.daemonThreads("FrontendVideoDevice-lease-reaper-"));
+            reaper.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        reapVideoLeases();
+                    } catch (RuntimeException e) {
+                        logger.info("reapVideoLeases: " + e.getMessage());
+                    }
+                    try {
+                        reaper.schedule(this, video_lease_reap_period_ms, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // shut down by releaseObject
+                    }
+                }
+            }, video_lease_reap_period_ms, TimeUnit.MILLISECONDS);
+            video_lease_reaper = reaper;
+        }
+    }
+
+    /* reapVideoLeases releases the allocations whose lease has run out, in one batch, through the
+     * path deallocateVideo takes: an expired device control allocation is disabled, and its
+     * listeners and routing are removed with it.
+     */
+    private void reapVideoLeases(){
+        List<String> expired_allocation_ids = video_allocation_handles.expired(System.nanoTime());
+        if (expired_allocation_ids.isEmpty())
+            return;
+        int released = 0;
+        for (String allocation_id : expired_allocation_ids) {
+            try {
+                if (releaseVideoAllocation(allocation_id, true)) {
+                    released++;
+                    video_allocation_metrics.count("lease.expired");
+                }
+            } catch (RuntimeException e) {
+                logger.info("reapVideoLeases: failed to release [" + allocation_id + "]: " + e.getMessage());
+            }
+        }
+        if (released > 0)
+            logger.info("reapVideoLeases: released " + released + " allocations whose lease expired");
+        updateUsageState();
+    }
+
+    /* openVideoAllocationJournal records the allocations of this device in a memory-mapped journal
+     * at path, and restores the allocations an earlier run of the device left in it: device control
+     * allocations are put back on the video devices they held and retuned through the hardware
+     * pipeline, and their listeners are reattached, so clients do not have to allocate again. An
+     * allocation whose video device is gone or rejects the retuning is released. Call it once
+     * frontend_video_status and video_allocation_ids are set up, before the device is allocated.
+     * Opening the journal fences off any other device still writing it.
+     */
+    protected void openVideoAllocationJournal(String path) throws IOException{
+        adoptVideoAllocationJournal(new FrontendAllocationJournal(Paths.get(path)), path);
+    }
+
+    /* followVideoAllocationJournal makes this device a standby for a primary device on the same host
+     * that journals to path. The standby reads the journal as the primary writes it, but only
+     * tunes the video devices when it takes over, so taking over is a cold recovery. Once the
+     * primary has not recorded a heartbeat for takeover_ms milliseconds (at least three heartbeat
+     * periods of VIDEO_JOURNAL_HEARTBEAT_MS), the standby takes the journal over: it restores the
+     * allocations as openVideoAllocationJournal does and journals from then on, and the primary
+     * stops writing if it comes back. A standby should not be allocated before it has taken over.
+     */
+    protected void followVideoAllocationJournal(final String path, long takeover_ms) throws IOException{
+        final FrontendAllocationJournal journal = new FrontendAllocationJournal(Paths.get(path), false);
+        final long takeover_after_ms = Math.max(3 * VIDEO_JOURNAL_HEARTBEAT_MS, takeover_ms);
+        scheduleVideoJournalTask(new Runnable() {
+            public void run() {
+                try {
+                    journal.follow();
+                    // the primary came back, or another standby took the journal over first
+                    if (journal.heartbeatAge() < takeover_after_ms || !journal.takeOver()) {
+                        scheduleVideoJournalTask(this, Math.max(1, takeover_after_ms / 4));
+                        return;
+                    }
+                } catch (IOException e) {
+                    logger.info("followVideoAllocationJournal: could not follow " + path + ", no longer following it: " + e.getMessage());
+                    journal.close();
+                    return;
+                }
+                logger.info("followVideoAllocationJournal: " + path + " has not been updated for " + takeover_after_ms + " ms, taking over");
+                adoptVideoAllocationJournal(journal, path);
+            }
+        }, 0);
+    }
+
+    /* adoptVideoAllocationJournal makes journal the allocation journal of this device, restores the
+     * allocations it holds, and starts writing its heartbeat.
+     */
+    private void adoptVideoAllocationJournal(final FrontendAllocationJournal journal, final String path){
+        FrontendAllocationJournal previous = video_allocation_journal;
+        video_allocation_journal = journal;
+        if (previous != null)
+            previous.close();
+        syncVideoDeviceIndex();
+        int restored = 0;
+        for (FrontendAllocationJournal.Entry entry : journal.entries()) {
+            boolean restored_entry = false;
+            try {
+                restored_entry = restoreVideoAllocation(entry);
+            } catch (RuntimeException e) {
+                logger.info("openVideoAllocationJournal: could not restore [" + entry.allocation_id + "]: " + e.getMessage());
+            }
+            if (restored_entry)
+                restored++;
+            else
+                journal.release(entry.allocation_id);
+        }
+        updateUsageState();
+        logger.info("openVideoAllocationJournal: restored " + restored + " allocations from " + path);
+        scheduleVideoJournalTask(new Runnable() {
+            public void run() {
+                if (journal.heartbeat()) {
+                    scheduleVideoJournalTask(this, VIDEO_JOURNAL_HEARTBEAT_MS);
+                } else if (video_allocation_journal == journal) {
+                    logger.info("openVideoAllocationJournal: " + path + " was taken over by another device or could not be written, no longer journaling allocations");
+                    video_allocation_journal = null;
+                }
+            }
+        }, VIDEO_JOURNAL_HEARTBEAT_MS);
+    }
+
+    private void scheduleVideoJournalTask(final Runnable task, final long delay_ms){
+        synchronized(video_journal_timer_lock){
+            if (video_journal_timer == null)
+                video_journal_timer = Executors.newSingleThreadScheduledExecutor(FrontendHardwarePipeline.daemonThreads("FrontendVideoDevice-journal-"));
+            try {
+                video_journal_timer.schedule(task, delay_ms, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down by releaseObject
+            }
+        }
+    }
+
+    /* restoreVideoAllocation puts a journaled allocation back on its video device. Returns false
+     * if the video device cannot take it any more.
+     */
+    private boolean restoreVideoAllocation(final FrontendAllocationJournal.Entry entry){
+        final int video_device_id = entry.device_id;
+        if (video_device_id < 0 || video_device_id >= video_allocation_ids.size() || video_device_id >= frontend_video_status.getValue().size())
+            return false;
+        int handle = video_allocation_handles.reserve(entry.allocation_id);
+        if (handle == FrontendAllocationHandles.NO_HANDLE)
+            return false;
+        try {
+            synchronized(videoDeviceLock(video_device_id)){
+                videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+                VideoStatusStructType status = frontend_video_status.getValue().get(video_device_id);
+                boolean controlled = allocation_ids.control_allocation_id != null && !allocation_ids.control_allocation_id.isEmpty();
+                if (entry.type == FrontendAllocationJournal.CONTROL) {
+                    videoAllocationRequest request = new videoAllocationRequest(decodeVideoAllocation(entry.allocation_id, entry.payload));
+                    if (controlled || request.video_type == null || !request.video_type.equals(status.video_type.getValue()))
+                        return false;
+                    allocation_ids.control_allocation_id = entry.allocation_id;
+                    allocation_ids.control_allocation_handle = handle;
+                    indexVideoDevice(video_device_id);
+                    video_allocation_handles.map(handle, video_device_id);
+                    retuneVideoDevice(request, video_device_id, handle);
+                } else {
+                    if (!controlled || status.video_type.getValue().equals("PLAYBACK"))
+                        return false;
+                    allocation_ids.listener_allocation_handles.add(handle);
+                    video_allocation_handles.map(handle, video_device_id);
+                    this.assignListener(entry.allocation_id, allocation_ids.control_allocation_id);
+                }
+                markVideoAllocationIdCsv(video_device_id);
+                publishVideoAllocationIdCsv(video_device_id);
+                return true;
             }
-        } catch (Exception e){
-            System.out.println("deallocateVideo: ERROR WHEN DEALLOCATING.  SKIPPING...");
+        } finally {
+            video_allocation_handles.releasePending(handle, entry.allocation_id);
         }
-        usageState = getUsageState();
     }
 
+    /* retuneVideoDevice applies a restored device control allocation to its video device and
+     * enables it, through the hardware pipeline. The allocation is released if the video device
+     * rejects it.
+     */
+    private void retuneVideoDevice(final videoAllocationRequest request, final int video_device_id, final int allocation_handle){
+        video_hardware_pipeline.submit(video_device_id, new Callable<Void>() {
+            public Void call() {
+                synchronized(videoDeviceLock(video_device_id)) {
+                    // released before it could be retuned
+                    if (video_allocation_ids.get(video_device_id).control_allocation_handle != allocation_handle)
+                        return null;
+                }
+                boolean tuned = false;
+                try {
+                    tuned = tryVideoDeviceTuning(request, video_device_id);
+                    recordVideoTuningResult(video_device_id, tuned);
+                    if (tuned)
+                        enableVideoDevice(video_device_id, true);
+                } catch (RuntimeException e) {
+                    logger.info("openVideoAllocationJournal: videoDevice[" + video_device_id + "] failed while setting tuning: " + e.getMessage());
+                }
+                if (tuned) {
+                    synchronized(videoDeviceLock(video_device_id)) {
+                        if (video_allocation_ids.get(video_device_id).control_allocation_handle == allocation_handle)
+                            indexVideoDevice(video_device_id);
+                    }
+                    publishVideoStatus(video_device_id);
+                } else {
+                    logger.info("openVideoAllocationJournal: videoDevice[" + video_device_id + "] could not be retuned for [" + request.allocation_id + "], releasing it");
+                    releaseVideoAllocation(request.allocation_id);
+                }
+                return null;
+            }
+        });
+    }
+
+    /* journalVideoAllocation records an allocation committed to a video device in the allocation
+     * journal, if there is one; request is null for a listener allocation. Called with the video
+     * device lock held.
+     */
+    private void journalVideoAllocation(final int video_device_id, final String allocation_id, final videoAllocationRequest request){
+        FrontendAllocationJournal journal = video_allocation_journal;
+        if (journal == null)
+            return;
+        if (!FrontendAllocationJournal.accepts(allocation_id)) {
+            logger.warn("allocateVideo: allocation id [" + allocation_id + "] is too long to journal, it will not be restored");
+            return;
+        }
+        boolean journaled;
+        if (request != null && request.device_control)
+            journaled = journal.control(video_device_id, allocation_id, encodeVideoAllocation(request));
+        else
+            journaled = journal.listener(video_device_id, allocation_id);
+        if (!journaled)
+            closeVideoAllocationJournal(journal, allocation_id);
+        else if (journal.compactionDue())
+            compactVideoAllocationJournal(journal);
+    }
+
+    /* journalVideoRelease records the release of an allocation, or of every allocation on the
+     * video device if allocation_id is null. Called with the video device lock held.
+     */
+    private void journalVideoRelease(final int video_device_id, final String allocation_id){
+        FrontendAllocationJournal journal = video_allocation_journal;
+        if (journal == null)
+            return;
+        boolean journaled = (allocation_id == null) ? journal.releaseDevice(video_device_id) : journal.release(allocation_id);
+        if (!journaled)
+            closeVideoAllocationJournal(journal, allocation_id);
+        else if (journal.compactionDue())
+            compactVideoAllocationJournal(journal);
+    }
+
+    /* compactVideoAllocationJournal compacts the journal on the journal timer, so the allocation
+     * that filled it does not wait for the new file to be written and synced. A journal that cannot
+     * be compacted goes on as it is.
+     */
+    private void compactVideoAllocationJournal(final FrontendAllocationJournal journal){
+        scheduleVideoJournalTask(new Runnable() {
+            public void run() {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    logger.info("compactVideoAllocationJournal: could not compact the journal, going on with it as it is: " + e.getMessage());
+                }
+            }
+        }, 0);
+    }
+
+    // stops journaling once the journal could not be written
+    private void closeVideoAllocationJournal(final FrontendAllocationJournal journal, final String allocation_id){
+        logger.info("allocateVideo: could not journal [" + allocation_id + "], no longer journaling allocations");
+        journal.close();
+        if (video_allocation_journal == journal)
+            video_allocation_journal = null;
+    }
+
+    private byte[] encodeVideoAllocation(final videoAllocationRequest request){
+        byte[] video_type = (request.video_type == null) ? new byte[0] : request.video_type.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(4 + video_type.length + 3 * 8 + 2 * 8);
+        encoded.putInt(video_type.length);
+        encoded.put(video_type);
+        encoded.putLong(request.channels);
+        encoded.putLong(request.frame_height);
+        encoded.putLong(request.frame_width);
+        encoded.putDouble(request.fps);
+        encoded.putDouble(request.fps_tolerance);
+        return encoded.array();
+    }
+
+    private frontendX.FEXTypes.frontend_video_allocation_struct decodeVideoAllocation(final String allocation_id, final byte[] encoded){
+        ByteBuffer decoded = ByteBuffer.wrap(encoded);
+        byte[] video_type = new byte[decoded.getInt()];
+        decoded.get(video_type);
+        frontendX.FEXTypes.frontend_video_allocation_struct allocation = new frontendX.FEXTypes.frontend_video_allocation_struct();
+        allocation.allocation_id.setValue(allocation_id);
+        allocation.video_type.setValue(new String(video_type, StandardCharsets.UTF_8));
+        allocation.device_control.setValue(true);
+        allocation.channels.setValue(decoded.getLong());
+        allocation.frame_height.setValue(decoded.getLong());
+        allocation.frame_width.setValue(decoded.getLong());
+        allocation.fps.setValue(decoded.getDouble());
+        allocation.fps_tolerance.setValue(decoded.getDouble());
+        return allocation;
+    }
+
+    /* setVideoAllocationPolicy sets the policy that decides which video devices an allocation tries
+     * first: FrontendAllocationPolicy.FIRST_FIT (the default), BEST_FIT, LEAST_LOADED, a
+     * FrontendAffinityAllocationPolicy or a device specific one. null restores first fit. With a
+     * tuning parallelism above 1 the ranking picks the video devices tuned together, and the first
+     * of them to accept the request is used.
+     */
+    protected void setVideoAllocationPolicy(FrontendAllocationPolicy policy){
+        video_allocation_policy = (policy == null) ? FrontendAllocationPolicy.FIRST_FIT : policy;
+    }
+
+    /* setVideoTuningParallelism sets how many free video devices of the requested video type a
+     * device control allocation tunes in parallel. The first to accept the request is used; the
+     * others keep their tuning, as a deallocated video device does. The candidates are unavailable to other allocations
+     * while they are being tuned. Defaults to 1.
+     */
+    protected void setVideoTuningParallelism(int parallelism){
+        video_tuning_parallelism = Math.max(1, parallelism);
+    }
+
+    /* setVideoHardwareTimeout sets how long, in milliseconds, allocation waits for a device specific
+     * function. A video device whose function misses the deadline is abandoned and left out of
+     * allocation until that function returns; the allocation waiting for it fails. Defaults to
+     * 10000 milliseconds.
+     */
+    protected void setVideoHardwareTimeout(long timeout_ms){
+        video_hardware_pipeline.setDeadline(timeout_ms);
+    }
+
+    /* setVideoQuarantinePolicy sets after how many consecutive tuning failures a video device is
+     * quarantined, and for how long, in milliseconds: base_ms after the failure_threshold-th
+     * failure, doubling with every further failure up to max_ms. A quarantined video device is
+     * skipped by device control allocations. Defaults to 3 failures, 1000 and 300000 milliseconds.
+     */
+    protected void setVideoQuarantinePolicy(int failure_threshold, long base_ms, long max_ms){
+        video_quarantine_threshold = Math.max(1, failure_threshold);
+        video_quarantine_base_ms = Math.max(1, base_ms);
+        video_quarantine_max_ms = Math.max(video_quarantine_base_ms, max_ms);
+    }
+
+    /* clearVideoDeviceQuarantine ends the quarantine of a video device and resets its tuning
+     * failure count, for example once the hardware has been serviced.
+     */
+    protected void clearVideoDeviceQuarantine(int video_device_id){
+        video_device_index.clearQuarantine(video_device_id);
+        recordVideoTuningResult(video_device_id, true);
+    }
+
+    /* recordVideoTuningResult counts the consecutive tuning failures of a video device in its
+     * tuning_failures status field, and quarantines the video device once there are
+     * video_quarantine_threshold of them. Each further failure doubles the quarantine. A
+     * successful tuning resets the count. The quarantined status field is cleared when the
+     * quarantine expires.
+     */
+    private void recordVideoTuningResult(final int video_device_id, final boolean tuned){
+        synchronized(videoDeviceLock(video_device_id)){
+            if (video_device_id >= frontend_video_status.getValue().size() || video_device_id >= video_allocation_ids.size())
+                return;
+            videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+            int failures = tuned ? 0 : allocation_ids.tuning_failures + 1;
+            allocation_ids.tuning_failures = failures;
+            frontend_video_status.getValue().get(video_device_id).tuning_failures.setValue(failures);
+            boolean quarantined = failures >= video_quarantine_threshold;
+            if (quarantined) {
+                int doublings = Math.min(failures - video_quarantine_threshold, 30);
+                long quarantine_ms = Math.min(video_quarantine_max_ms, video_quarantine_base_ms << doublings);
+                video_device_index.quarantine(video_device_id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quarantine_ms));
+                frontend_video_status.getValue().get(video_device_id).quarantined.setValue(true);
+                scheduleVideoQuarantineExpiry(video_device_id, quarantine_ms);
+                logger.info("allocateVideo: videoDevice[" + video_device_id + "] failed tuning " + failures + " times in a row, quarantined for " + quarantine_ms + " ms");
+            }
+            // the video device may hold the values it is being tried with, so only these fields are published
+            synchronized(video_status_publish_lock){
+                VideoStatusStructType published = copyPublishedVideoStatus(video_device_id);
+                if (published != null) {
+                    published.tuning_failures.setValue(failures);
+                    if (quarantined)
+                        published.quarantined.setValue(true);
+                    replacePublishedVideoStatus(video_device_id, published);
+                }
+            }
+        }
+    }
+
+    /* assignVideoDevice finds a video device for a request whose allocation_id has already been
+     * reserved as allocation_handle and commits the allocation to it, enabling the video device if requested.
+     * Returns the video device id, or the negative code() of the FrontendAllocationReason the
+     * request could not be satisfied for.
+     */
+    private int assignVideoDevice(final videoAllocationRequest request, final int allocation_handle, final boolean enable){
+        // Next, try to allocate a new video. Only free devices (device control) or
+        // controlled devices with a suitable fps (listener) of the requested video type are visited.
+        syncVideoDeviceIndex();
+        int video_device_id = request.device_control ? assignVideoDeviceControl(request, allocation_handle, enable, -1) : assignVideoListener(request, allocation_handle);
+        // the index misses video devices whose status was edited in place without updateVideoDeviceIndex
+        if (video_device_id == FrontendAllocationReason.NO_DEVICE.code() && reindexVideoDevices())
+            video_device_id = request.device_control ? assignVideoDeviceControl(request, allocation_handle, enable, -1) : assignVideoListener(request, allocation_handle);
+        if (video_device_id == FrontendAllocationReason.NO_DEVICE.code()) {
+            String eout = "allocateVideo: NO AVAILABLE VIDEO DEVICE. Make sure that the device has an initialized frontend_video_status";
+            logger.info(eout);
+        }
+        return video_device_id;
+    }
+
+    /* reindexVideoDevices re-reads the video_type, control state and fps of every video device and
+     * updates the index entries that no longer match, for edits of frontend_video_status made in
+     * place without updateVideoDeviceIndex. Allocation calls it when the index offered no video
+     * device that could take a request, so such an edit costs one pass over the video devices
+     * instead of failing the request. Returns whether any entry changed.
+     */
+    private boolean reindexVideoDevices(){
+        syncVideoDeviceIndex();
+        int changed = 0;
+        int size = video_device_index.size();
+        for (int video_device_id = 0; video_device_id < size; video_device_id++) {
+            synchronized(videoDeviceLock(video_device_id)) {
+                String control_allocation_id = video_allocation_ids.get(video_device_id).control_allocation_id;
+                VideoStatusStructType status = frontend_video_status.getValue().get(video_device_id);
+                if (video_device_index.isIndexed(video_device_id, status.video_type.getValue(), control_allocation_id != null && !control_allocation_id.isEmpty(), status.fps.getValue()))
+                    continue;
+                indexVideoDevice(video_device_id);
+                changed++;
+            }
+        }
+        if (changed > 0)
+            logger.debug("allocateVideo: " + changed + " video devices changed outside of allocation, updated the index");
+        return changed > 0;
+    }
+
+    /* assignVideoListener attaches a listener request to the first controlled video device that
+     * can serve it. Returns the video device id, or a negative FrontendAllocationReason code.
+     */
+    private int assignVideoListener(final videoAllocationRequest request, final int allocation_handle){
+        final String video_type = request.video_type;
+        int[] listener_candidates = videoListenerCandidates(request);
+        FrontendAllocationPolicy policy = video_allocation_policy;
+        if (policy != FrontendAllocationPolicy.FIRST_FIT)
+            listener_candidates = rankVideoDevices(policy, request, listener_candidates);
+        for (int video_device_id : listener_candidates) {
+            synchronized(videoDeviceLock(video_device_id)) {
+                if (!videoDeviceIndexMatches(video_device_id, video_type, false)) {
+                    logger.debug("allocateVideo: videoDevice[" + video_device_id + "] changed outside of allocation, updating index");
+                    updateVideoDeviceIndex(video_device_id);
+                    continue;
+                }
+                if(!listenerRequestValidation(request, video_device_id)){
+                    // can't support listener request
+                    logger.debug("allocateVideo: videoDevice["+video_device_id+"] can not support listener request ");
+                    continue;
+                }
+                video_allocation_ids.get(video_device_id).listener_allocation_handles.add(allocation_handle);
+                video_allocation_handles.map(allocation_handle, video_device_id);
+                journalVideoAllocation(video_device_id, request.allocation_id, request);
+                markVideoAllocationIdCsv(video_device_id);
+                publishVideoAllocationIdCsv(video_device_id);
+                this.assignListener(request.allocation_id,video_allocation_ids.get(video_device_id).control_allocation_id);
+                if (!checkVideoTolerance(request, video_device_id))
+                    return FrontendAllocationReason.TOLERANCE.code();
+                return video_device_id;
+            }
+        }
+        return FrontendAllocationReason.NO_DEVICE.code();
+    }
+
+    /* assignVideoDeviceControl claims free video devices of the requested video type, up to
+     * video_tuning_parallelism at a time, and tunes them through the hardware pipeline. The first
+     * video device to accept the request is committed to the allocation and, if requested, enabled.
+     * Video devices are claimed in ascending video device id order, or in the order the allocation
+     * policy ranks them in. A video device the request already holds, handed over or found free
+     * while it waited, is ranked along with the free ones; if the request is satisfied before its
+     * turn comes, it is released and offered to the next waiter.
+     */
+    private int assignVideoDeviceControl(final videoAllocationRequest request, final int allocation_handle, final boolean enable, final int claimed_video_device_id){
+        final String video_type = request.video_type;
+        int last_candidate = -1;
+        int claimed = claimed_video_device_id;
+        FrontendAllocationPolicy policy = video_allocation_policy;
+        int[] ranked = null;
+        int next_ranked = 0;
+        int held = -1;
+        if (policy != FrontendAllocationPolicy.FIRST_FIT) {
+            int[] free_video_device_ids = video_device_index.freeDevices(video_type);
+            if (claimed >= 0) {
+                free_video_device_ids = Arrays.copyOf(free_video_device_ids, free_video_device_ids.length + 1);
+                free_video_device_ids[free_video_device_ids.length - 1] = claimed;
+                held = claimed;
+                claimed = -1;
+            }
+            ranked = rankVideoDevices(policy, request, free_video_device_ids);
+        }
+        try {
+            while (true) {
+                // claims the devices so no other allocation can tune them concurrently
+                int[] candidates = new int[video_tuning_parallelism];
+                int count = 0;
+                if (claimed >= 0) {
+                    candidates[count++] = claimed;
+                    claimed = -1;
+                }
+                while (count < candidates.length) {
+                    int video_device_id = -1;
+                    if (ranked == null) {
+                        video_device_id = video_device_index.claimFree(video_type, last_candidate);
+                    } else {
+                        // a ranked video device taken in the meantime is skipped
+                        while (video_device_id < 0 && next_ranked < ranked.length) {
+                            if (ranked[next_ranked] == held) {
+                                video_device_id = held;
+                                held = -1;
+                            } else if (video_device_index.claim(ranked[next_ranked])) {
+                                video_device_id = ranked[next_ranked];
+                            }
+                            next_ranked++;
+                        }
+                    }
+                    if (video_device_id < 0)
+                        break;
+                    candidates[count++] = video_device_id;
+                    last_candidate = video_device_id;
+                }
+                if (count == 0)
+                    break;
+                long tuning_start = System.nanoTime();
+                int video_device_id = tuneVideoDevices(request, candidates, count);
+                video_allocation_metrics.record("allocate.tuning", tuning_start);
+                if (video_device_id == FrontendAllocationReason.NO_DEVICE.code())
+                    continue;
+                if (video_device_id < 0)
+                    return video_device_id;
+                boolean tolerated;
+                try {
+                    synchronized(videoDeviceLock(video_device_id)) {
+                        video_allocation_ids.get(video_device_id).control_allocation_id = request.allocation_id;
+                        video_allocation_ids.get(video_device_id).control_allocation_handle = allocation_handle;
+                        indexVideoDevice(video_device_id);
+                        video_allocation_handles.map(allocation_handle, video_device_id);
+                        journalVideoAllocation(video_device_id, request.allocation_id, request);
+                        markVideoAllocationIdCsv(video_device_id);
+                        tolerated = checkVideoTolerance(request, video_device_id);
+                        if (tolerated)
+                            publishVideoStatus(video_device_id);
+                    }
+                } finally {
+                    video_device_index.release(video_device_id);
+                }
+                if (!tolerated)
+                    return FrontendAllocationReason.TOLERANCE.code();
+                if (enable) {
+                    FrontendAllocationReason enabled = enableVideoDevices(new int[]{video_device_id}, new int[]{allocation_handle}, 1);
+                    if (enabled != FrontendAllocationReason.ALLOCATED) {
+                        logger.info("allocateVideo: Failed to enable video after allocation");
+                        releaseVideoAllocation(request.allocation_id);
+                        return enabled.code();
+                    }
+                }
+                return video_device_id;
+            }
+        } finally {
+            if (held >= 0) {
+                video_device_index.release(held);
+                offerVideoDevice(held);
+            }
+        }
+        return FrontendAllocationReason.NO_DEVICE.code();
+    }
+
+    /* rankVideoDevices orders candidate video devices with an allocation policy. The retune distance
+     * of a video device is the number of tuning parameters a device control request would change.
+     * A policy that throws leaves the candidates in the order they were offered.
+     */
+    private int[] rankVideoDevices(final FrontendAllocationPolicy policy, final videoAllocationRequest request, final int[] video_device_ids){
+        List<FrontendAllocationPolicy.Candidate> candidates = new ArrayList<FrontendAllocationPolicy.Candidate>(video_device_ids.length);
+        for (int video_device_id : video_device_ids) {
+            videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+            int retune_distance = request.device_control ? Integer.bitCount(videoTuningChanges(allocation_ids.applied_tuning, request)) : 0;
+            candidates.add(new FrontendAllocationPolicy.Candidate(video_device_id, retune_distance, allocation_ids.listener_allocation_handles.size()));
+        }
+        try {
+            policy.rank(request.allocation_id, request.device_control, candidates);
+        } catch (RuntimeException e) {
+            logger.info("allocateVideo: allocation policy failed, using first fit: " + e);
+            return video_device_ids;
+        }
+        int[] ranked = new int[candidates.size()];
+        for (int idx = 0; idx < ranked.length; idx++)
+            ranked[idx] = candidates.get(idx).device_id;
+        return ranked;
+    }
+
+    /* checkVideoTolerance releases an allocation that was just committed to a video device if the
+     * fps the video device reports does not meet the requested tolerance, and returns false.
+     * Called with the video device lock held.
+     */
+    private boolean checkVideoTolerance(final videoAllocationRequest request, final int video_device_id){
+        // only check when fps was not set to don't care)
+        logger.debug(" allocateVideo - FR requested: " + request.fps + "  FR got: " + frontend_video_status.getValue().get(video_device_id).fps.getValue());
+        if( (floatingPointCompare(request.fps,0)!=0) &&
+            (floatingPointCompare(frontend_video_status.getValue().get(video_device_id).fps.getValue(),request.fps)<0 ||
+            floatingPointCompare(frontend_video_status.getValue().get(video_device_id).fps.getValue(),request.fps+request.fps * request.fps_tolerance/100.0)>0 )){
+            String eout = "allocateVideo(" + video_device_id + "): returned fr " + frontend_video_status.getValue().get(video_device_id).fps.getValue()+" does not meet tolerance criteria of " + request.fps_tolerance+" percent";
+            logger.info(eout);
+            // undo the allocation that was just committed
+            releaseVideoAllocation(request.allocation_id);
+            return false;
+        }
+        return true;
+    }
+
+    /* tuneVideoDevices tunes the claimed candidate video devices in parallel through the hardware
+     * pipeline and returns the first one that accepted the request, or NO_DEVICE.code() if none
+     * did. The returned video device stays claimed; every other candidate is released, and those
+     * that were tuned after the first success keep their tuning. If no candidate has
+     * accepted the request by the hardware deadline, the candidates still tuning are abandoned and
+     * TUNING_TIMEOUT.code() is returned.
+     */
+    private int tuneVideoDevices(final videoAllocationRequest request, final int[] candidates, final int count){
+        final String video_type = request.video_type;
+        final AtomicInteger tuned_video_device_id = new AtomicInteger(-1);
+        final BlockingQueue<Boolean> results = new LinkedBlockingQueue<Boolean>();
+        // set by whichever of the tuning and an abandoning allocation gets to release the claim first
+        final AtomicIntegerArray settled = new AtomicIntegerArray(count);
+        List<Future<Void>> tunings = new ArrayList<Future<Void>>(count);
+        long submitted = System.nanoTime();
+        for (int idx = 0; idx < count; idx++) {
+            final int video_device_id = candidates[idx];
+            final int candidate = idx;
+            tunings.add(video_hardware_pipeline.submit(video_device_id, new Callable<Void>() {
+                public Void call() {
+                    boolean accepted = false;
+                    boolean tuned = false;
+                    try {
+                        boolean indexed;
+                        synchronized(videoDeviceLock(video_device_id)) {
+                            indexed = videoDeviceIndexMatches(video_device_id, video_type, true);
+                            if (!indexed) {
+                                logger.debug("allocateVideo: videoDevice[" + video_device_id + "] changed outside of allocation, updating index");
+                                updateVideoDeviceIndex(video_device_id);
+                            }
+                        }
+                        // the video device is claimed, so it is tuned without holding its lock
+                        if (indexed) {
+                            try {
+                                accepted = tryVideoDeviceTuning(request, video_device_id);
+                            } finally {
+                                // a tuning the allocation has abandoned was counted as failed already
+                                if (settled.get(candidate) == 0)
+                                    recordVideoTuningResult(video_device_id, accepted);
+                            }
+                        }
+                        // unless another candidate accepted the request first, or the allocation gave up
+                        if (accepted)
+                            tuned = tuned_video_device_id.compareAndSet(-1, video_device_id);
+                    } catch (RuntimeException e) {
+                        logger.info("allocateVideo: videoDevice[" + video_device_id + "] failed while setting tuning: " + e.getMessage());
+                    } finally {
+                        if (!tuned && settled.compareAndSet(candidate, 0, 1)) {
+                            // the tuning it keeps is published before another allocation can claim it
+                            if (accepted)
+                                publishVideoStatus(video_device_id);
+                            video_device_index.release(video_device_id);
+                        }
+                        results.add(tuned);
+                    }
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (int idx = 0; idx < count; idx++) {
+                Boolean tuned = results.poll(video_hardware_pipeline.remaining(submitted), TimeUnit.NANOSECONDS);
+                if (tuned == null) {
+                    // stop a candidate that is still tuning from winning, unless one just has
+                    if (!tuned_video_device_id.compareAndSet(-1, -2))
+                        return tuned_video_device_id.get();
+                    for (int candidate = 0; candidate < count; candidate++) {
+                        if (settled.compareAndSet(candidate, 0, 1)) {
+                            // marked unhealthy before the claim is dropped, so it is not handed out again
+                            video_hardware_pipeline.abandon(candidates[candidate], tunings.get(candidate));
+                            // whatever the abandoned tuning leaves behind is not known
+                            invalidateVideoDeviceTuning(candidates[candidate]);
+                            recordVideoTuningResult(candidates[candidate], false);
+                            video_device_index.release(candidates[candidate]);
+                        }
+                    }
+                    logger.info("allocateVideo: TIMED OUT WHILE SETTING TUNING");
+                    return FrontendAllocationReason.TUNING_TIMEOUT.code();
+                }
+                if (tuned)
+                    return tuned_video_device_id.get();
+            }
+            return FrontendAllocationReason.NO_DEVICE.code();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // stop a candidate that is still tuning from winning, or give up the one that already has;
+            // it keeps its tuning, as a deallocated video device does
+            if (!tuned_video_device_id.compareAndSet(-1, -2)) {
+                publishVideoStatus(tuned_video_device_id.get());
+                video_device_index.release(tuned_video_device_id.get());
+            }
+            logger.info("allocateVideo: interrupted while tuning");
+            return FrontendAllocationReason.INTERRUPTED.code();
+        }
+    }
+
+    /* enableVideoDevices enables the first count video devices through the hardware pipeline, in
+     * parallel, and waits for them up to the hardware deadline. A video device is only enabled while
+     * it is still controlled by the allocation handle it was committed to. Returns ALLOCATED, or
+     * ENABLE_FAILED or ENABLE_TIMEOUT if any of them could not be enabled in time.
+     */
+    private FrontendAllocationReason enableVideoDevices(final int[] video_device_ids, final int[] allocation_handles, final int count){
+        List<Future<Boolean>> enabled = new ArrayList<Future<Boolean>>(count);
+        long submitted = System.nanoTime();
+        if (count == 0)
+            return FrontendAllocationReason.ALLOCATED;
+        for (int idx = 0; idx < count; idx++) {
+            final int video_device_id = video_device_ids[idx];
+            final int allocation_handle = allocation_handles[idx];
+            enabled.add(video_hardware_pipeline.submit(video_device_id, new Callable<Boolean>() {
+                public Boolean call() {
+                    synchronized(videoDeviceLock(video_device_id)) {
+                        if (video_allocation_ids.get(video_device_id).control_allocation_handle != allocation_handle)
+                            return false;
+                    }
+                    // a deallocation from here on queues its teardown behind this call
+                    boolean enabled = enableVideoDevice(video_device_id, true);
+                    publishVideoStatus(video_device_id);
+                    return enabled;
+                }
+            }));
+        }
+        FrontendAllocationReason reason = FrontendAllocationReason.ALLOCATED;
+        for (int idx = 0; idx < count; idx++) {
+            try {
+                if (!video_hardware_pipeline.await(video_device_ids[idx], enabled.get(idx), submitted) && reason == FrontendAllocationReason.ALLOCATED)
+                    reason = FrontendAllocationReason.ENABLE_FAILED;
+            } catch (ExecutionException e) {
+                logger.info("allocateVideo: enabling video device failed: " + e.getCause());
+                if (reason == FrontendAllocationReason.ALLOCATED)
+                    reason = FrontendAllocationReason.ENABLE_FAILED;
+            } catch (TimeoutException e) {
+                logger.info("allocateVideo: videoDevice[" + video_device_ids[idx] + "] TIMED OUT WHILE ENABLING");
+                reason = FrontendAllocationReason.ENABLE_TIMEOUT;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reason = FrontendAllocationReason.INTERRUPTED;
+            }
+        }
+        video_allocation_metrics.record("allocate.enable", submitted);
+        return reason;
+    }
+
+    /* tryVideoDeviceTuning applies a device control request to the status of a video device and
+     * calls videoDeviceSetTuning with the parameters that differ from the tuning the video device
+     * kept from its last allocation. A request identical to that tuning does not call
+     * videoDeviceSetTuning at all; the status it produced is restored instead. A different request
+     * replaces the kept tuning: in place, if the device implementation overrides the
+     * videoDeviceSetTuning that takes the changed parameters, or else after videoDeviceDeleteTuning
+     * has deleted it, with every parameter. If the video device rejects the request, the status
+     * fields the implementation did not change are restored. Called from the hardware pipeline,
+     * with the video device claimed.
+     */
+    private boolean tryVideoDeviceTuning(final videoAllocationRequest request, final int video_device_id){
+        videoTuningState applied_tuning = video_allocation_ids.get(video_device_id).applied_tuning;
+        int changed_parameters = videoTuningChanges(applied_tuning, request);
+        if (changed_parameters == 0){
+            frontend_video_status.getValue().get(video_device_id).channels.setValue(applied_tuning.tuned_channels);
+            frontend_video_status.getValue().get(video_device_id).frame_height.setValue(applied_tuning.tuned_frame_height);
+            frontend_video_status.getValue().get(video_device_id).fps.setValue(applied_tuning.tuned_fps);
+            frontend_video_status.getValue().get(video_device_id).frame_width.setValue(applied_tuning.tuned_frame_width);
+            logger.debug("allocateVideo: videoDevice["+video_device_id+"] already tuned, skipping videoDeviceSetTuning");
+            return true;
+        }
+        if (applied_tuning != null && !video_retunes_in_place){
+            video_allocation_ids.get(video_device_id).applied_tuning = null;
+            videoDeviceDeleteTuning(frontend_video_status.getValue().get(video_device_id), video_device_id);
+            changed_parameters = VIDEO_TUNING_ALL;
+        }
+        long orig_chan = frontend_video_status.getValue().get(video_device_id).channels.getValue();
+        long orig_fh = frontend_video_status.getValue().get(video_device_id).frame_height.getValue();
+        double orig_fr = frontend_video_status.getValue().get(video_device_id).fps.getValue();
+        long orig_fw = frontend_video_status.getValue().get(video_device_id).frame_width.getValue();
+        frontend_video_status.getValue().get(video_device_id).channels.setValue(request.channels);
+        frontend_video_status.getValue().get(video_device_id).frame_height.setValue(request.frame_height);
+        frontend_video_status.getValue().get(video_device_id).fps.setValue(request.fps);
+        frontend_video_status.getValue().get(video_device_id).frame_width.setValue(request.frame_width);
+        // until videoDeviceSetTuning returns, the video device may be left tuned to neither
+        video_allocation_ids.get(video_device_id).applied_tuning = null;
+        if(!videoDeviceSetTuning(request.allocation, frontend_video_status.getValue().get(video_device_id), video_device_id, changed_parameters)){
+            // didn't succeed setting tuning, try next video
+            video_allocation_ids.get(video_device_id).applied_tuning = null;
+            if (frontend_video_status.getValue().get(video_device_id).channels.getValue() == request.channels)
+                frontend_video_status.getValue().get(video_device_id).channels.setValue(orig_chan);
+            if (frontend_video_status.getValue().get(video_device_id).frame_height.getValue() == request.frame_height)
+                frontend_video_status.getValue().get(video_device_id).frame_height.setValue(orig_fh);
+            if (frontend_video_status.getValue().get(video_device_id).fps.getValue() == request.fps)
+                frontend_video_status.getValue().get(video_device_id).fps.setValue(orig_fr);
+            if (frontend_video_status.getValue().get(video_device_id).frame_width.getValue() == request.frame_width)
+                frontend_video_status.getValue().get(video_device_id).frame_width.setValue(orig_fw);
+            logger.debug("allocateVideo: videoDevice["+video_device_id+"] didn't succeed while setting tuning ");
+            return false;
+        }
+        video_allocation_ids.get(video_device_id).applied_tuning = new videoTuningState(request, frontend_video_status.getValue().get(video_device_id));
+        return true;
+    }
+
+    /* videoTuningChanges returns the VIDEO_TUNING_* flags of the request parameters that differ
+     * from the tuning last applied to a video device, or VIDEO_TUNING_ALL if it is not known.
+     */
+    private int videoTuningChanges(final videoTuningState applied_tuning, final videoAllocationRequest request){
+        if (applied_tuning == null)
+            return VIDEO_TUNING_ALL;
+        int changed_parameters = 0;
+        if (request.channels != applied_tuning.channels)
+            changed_parameters |= VIDEO_TUNING_CHANNELS;
+        if (request.frame_height != applied_tuning.frame_height)
+            changed_parameters |= VIDEO_TUNING_FRAME_HEIGHT;
+        if (request.frame_width != applied_tuning.frame_width)
+            changed_parameters |= VIDEO_TUNING_FRAME_WIDTH;
+        if (request.fps != applied_tuning.fps)
+            changed_parameters |= VIDEO_TUNING_FPS;
+        return changed_parameters;
+    }
+
+    /* invalidateVideoDeviceTuning forgets the tuning last applied to a video device, so the next
+     * device control allocation tunes it in full. The base class calls it when it deletes a tuning
+     * and when it abandons a video device that missed its hardware deadline; a device
+     * implementation whose hardware loses its configuration in any other way, for example when it
+     * is reset, must call it.
+     */
+    protected void invalidateVideoDeviceTuning(int video_device_id){
+        synchronized(videoDeviceLock(video_device_id)){
+            video_allocation_ids.get(video_device_id).applied_tuning = null;
+        }
+    }
+
+    /* allocateListener adds a listener to an existing device control allocation. A request with
+     * a missing or already used allocation id, or for a PLAYBACK video device, is rejected with an
+     * InvalidCapacity; an unknown existing allocation id returns false.
+     */
     public boolean allocateListener(frontend.FETypes.frontend_listener_allocation_struct frontend_listener_allocation) throws CF.DevicePackage.InvalidCapacity, Exception {
+        FrontendAllocationReason reason = tryAllocateListener(frontend_listener_allocation);
+        if (reason.isRejection()) {
+            String message = reason.message;
+            if (reason == FrontendAllocationReason.LISTENER_NOT_PERMITTED)
+                message = "allocateListener: listener allocations are not permitted for PLAYBACK video type";
+            throw new CF.DevicePackage.InvalidCapacity(message, new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+        }
+        return reason == FrontendAllocationReason.ALLOCATED;
+    }
+
+    /* tryAllocateListener does the work of allocateListener without throwing for a failed
+     * allocation. Returns ALLOCATED, or the reason the request was rejected or failed. As with
+     * tryAllocateVideo, the framework allocates frontend_listener_allocation through it unless a
+     * device implementation overrides allocateListener.
+     */
+    protected FrontendAllocationReason tryAllocateListener(final frontend.FETypes.frontend_listener_allocation_struct frontend_listener_allocation){
+        String reserved_allocation_id = null;
+        int reserved_handle = FrontendAllocationHandles.NO_HANDLE;
+        long start = System.nanoTime();
+        FrontendAllocationReason reason = null;
         try{
             // Check validity of allocation_id's
             if (frontend_listener_allocation.existing_allocation_id == null || 
                 frontend_listener_allocation.existing_allocation_id.getValue().isEmpty()){
                 logger.info("allocateListener: MISSING EXISTING ALLOCATION ID");
-                throw new CF.DevicePackage.InvalidCapacity("MISSING EXISTING ALLOCATION ID", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                reason = FrontendAllocationReason.MISSING_EXISTING_ALLOCATION_ID;
+                return reason;
             }
             if (frontend_listener_allocation.listener_allocation_id == null ||
                 frontend_listener_allocation.listener_allocation_id.getValue().isEmpty()){
                 logger.info("allocateListener: MISSING LISTENER ALLOCATION ID");
-                throw new CF.DevicePackage.InvalidCapacity("MISSING LISTENER ALLOCATION ID", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                reason = FrontendAllocationReason.MISSING_LISTENER_ALLOCATION_ID;
+                return reason;
             }
 
-            //synchronized(allocation_id_mapping_lock){
-                // Check if listener allocation ID has already been used
-                if(getVideoDeviceMapping(frontend_listener_allocation.listener_allocation_id.getValue()) >= 0){
-                    logger.error("allocateListener: LISTENER ALLOCATION_ID ALREADY IN USE");
-                    throw new InvalidCapacity("LISTENER ALLOCATION_ID ALREADY IN USE", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
-                }
+            // Check if listener allocation ID has already been used, reserving it if not
+            reserved_allocation_id = frontend_listener_allocation.listener_allocation_id.getValue();
+            reserved_handle = video_allocation_handles.reserve(reserved_allocation_id);
+            if(reserved_handle == FrontendAllocationHandles.NO_HANDLE){
+                logger.error("allocateListener: LISTENER ALLOCATION_ID ALREADY IN USE");
+                reason = FrontendAllocationReason.LISTENER_ALLOCATION_ID_IN_USE;
+                return reason;
+            }
+
+            // Do not allocate if existing allocation ID does not exist
+            int video_device_id = getVideoDeviceMapping(frontend_listener_allocation.existing_allocation_id.getValue());
+            if (video_device_id < 0){
+                logger.info("allocateListener: UNKNOWN CONTROL ALLOCATION ID: ["+ frontend_listener_allocation.existing_allocation_id.getValue() +"]");
+                reason = FrontendAllocationReason.UNKNOWN_CONTROL_ALLOCATION_ID;
+                return reason;
+            }
 
-                // Do not allocate if existing allocation ID does not exist
-                int video_device_id = getVideoDeviceMapping(frontend_listener_allocation.existing_allocation_id.getValue());
-                if (video_device_id < 0){
+            synchronized(videoDeviceLock(video_device_id)){
+                // the existing allocation may have been released while waiting for the device
+                if (getVideoDeviceMapping(frontend_listener_allocation.existing_allocation_id.getValue()) != video_device_id){
                     logger.info("allocateListener: UNKNOWN CONTROL ALLOCATION ID: ["+ frontend_listener_allocation.existing_allocation_id.getValue() +"]");
-                    throw new BadParameterException("UNKNOWN CONTROL ALLOCATION ID");
+                    reason = FrontendAllocationReason.UNKNOWN_CONTROL_ALLOCATION_ID;
+                    return reason;
                 }
 
                 // listener allocations are not permitted for playback
                 if(frontend_video_status.getValue().get(video_device_id).video_type.getValue().equals("PLAYBACK")){
-                    String eout = "allocateListener: listener allocations are not permitted for " + frontend_video_status.getValue().get(video_device_id).video_type.getValue() + " video type";
-                    logger.debug(eout);
-                    throw new CF.DevicePackage.InvalidCapacity(eout, new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                    logger.debug("allocateListener: listener allocations are not permitted for PLAYBACK video type");
+                    reason = FrontendAllocationReason.LISTENER_NOT_PERMITTED;
+                    return reason;
                 }
 
-                video_allocation_ids.get(video_device_id).listener_allocation_ids.add(frontend_listener_allocation.listener_allocation_id.getValue());
-                allocation_id_to_video_device_id.put(frontend_listener_allocation.listener_allocation_id.getValue(), video_device_id);
-                frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue(createAllocationIdCsv(video_device_id));
+                video_allocation_ids.get(video_device_id).listener_allocation_handles.add(reserved_handle);
+                video_allocation_handles.map(reserved_handle, video_device_id);
+                journalVideoAllocation(video_device_id, frontend_listener_allocation.listener_allocation_id.getValue(), null);
+                markVideoAllocationIdCsv(video_device_id);
+                publishVideoAllocationIdCsv(video_device_id);
                 this.assignListener(frontend_listener_allocation.listener_allocation_id.getValue(),frontend_listener_allocation.existing_allocation_id.getValue());
-                return true;
-            //}
-        }catch(CF.DevicePackage.InvalidCapacity e){
-            String exceptionMessage = e.getMessage();
-            // without the following check, a valid allocation could be deallocated due to an attempt to alloc w/ an existing alloc id
-            if (exceptionMessage != null && 
-               exceptionMessage.indexOf("ALLOCATION_ID ALREADY IN USE") == -1){
-            }
-            throw e;
-        } catch (BadParameterException e){
-            return false;
-        } catch (Exception e){
-            throw e;
+                reason = FrontendAllocationReason.ALLOCATED;
+                return reason;
+            }
+        } finally {
+            // drop the reservation unless the listener was added
+            if (reserved_handle != FrontendAllocationHandles.NO_HANDLE)
+                video_allocation_handles.releasePending(reserved_handle, reserved_allocation_id);
+            video_allocation_metrics.count(FrontendAllocationMetrics.LISTENER_ALLOCATE, reason);
+            video_allocation_metrics.record("listener_allocate", start);
         }
     }
 
     public void deallocateListener(frontend.FETypes.frontend_listener_allocation_struct frontend_listener_allocation){
         try{
+            boolean released = false;
             int video_device_id = getVideoDeviceMapping(frontend_listener_allocation.listener_allocation_id.getValue());
-            if (video_device_id < 0){
+            if (video_device_id >= 0){
+                synchronized(videoDeviceLock(video_device_id)){
+                    // the listener may have been released while waiting for the device
+                    if (getVideoDeviceMapping(frontend_listener_allocation.listener_allocation_id.getValue()) == video_device_id){
+                        // send EOS to listener connection only
+                        removeVideoDeviceMapping(video_device_id, frontend_listener_allocation.listener_allocation_id.getValue());
+                        markVideoAllocationIdCsv(video_device_id);
+                        publishVideoAllocationIdCsv(video_device_id);
+                        released = true;
+                    }
+                }
+            }
+            if (released){
+                video_allocation_metrics.count("listener_deallocate.succeeded");
+            } else {
                 logger.debug("ALLOCATION_ID NOT FOUND: [" + frontend_listener_allocation.listener_allocation_id.getValue() + "]");
-                throw new CF.DevicePackage.InvalidCapacity("ALLOCATION_ID NOT FOUND", new CF.DataType[]{new DataType("frontend_listener_allocation", frontend_listener_allocation.toAny())});
+                video_allocation_metrics.count("listener_deallocate.failed.not_found");
+                logger.warn("deallocateListener: ERROR WHEN DEALLOCATING.  SKIPPING...");
             }
-            // send EOS to listener connection only
-            removeVideoDeviceMapping(video_device_id, frontend_listener_allocation.listener_allocation_id.getValue());
-            frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue(removeListenerId(video_device_id, frontend_listener_allocation.listener_allocation_id.getValue()));
-        } catch (Exception e){
-            logger.debug("deallocateListener: ERROR WHEN DEALLOCATING.  SKIPPING...");
+        } catch (RuntimeException e){
+            logger.warn("deallocateListener: ERROR WHEN DEALLOCATING.  SKIPPING...", e);
         }
     }
     
+    /* removeListenerId returns the allocation_id_csv of a video device without the first occurrence
+     * of allocation_id, in a single pass over the csv.
+     */
     public String removeListenerId(final int video_device_id, final String allocation_id) {
-        String[] split_id = frontend_video_status.getValue().get(video_device_id).allocation_id_csv.getValue().split(",");
-        int idx;
-        for (idx=0; idx<split_id.length; idx++) {
-            if (split_id[idx].equals(allocation_id)) {
-                break;
+        String alloc_id_csv = frontend_video_status.getValue().get(video_device_id).allocation_id_csv.getValue();
+        // trailing empty ids are dropped, as with split
+        int length = alloc_id_csv.length();
+        while (length > 0 && alloc_id_csv.charAt(length-1) == ',') {
+            length--;
+        }
+        StringBuilder cleaned = new StringBuilder(length);
+        boolean removed = false;
+        boolean first = true;
+        int start = 0;
+        while (start <= length) {
+            int end = alloc_id_csv.indexOf(',', start);
+            if (end < 0 || end > length)
+                end = length;
+            String id = alloc_id_csv.substring(start, end);
+            if (!removed && id.equals(allocation_id)) {
+                removed = true;
+            } else {
+                if (!first)
+                    cleaned.append(',');
+                cleaned.append(id);
+                first = false;
             }
+            start = end + 1;
         }
-        String cleanedString = "";
-        for (int idx_i=0; idx_i<split_id.length; idx_i++) {
-            if (idx == idx_i) {
-                continue;
+        return cleaned.toString();
+    }
+
+    /* markVideoAllocationIdCsv marks the allocation_id_csv of a video device stale after its
+     * allocation ids have changed. It is rendered from them when the video device is next
+     * published, which the allocation that changed them does before it lets go of the video device
+     * lock. Called with the video device lock held.
+     */
+    protected void markVideoAllocationIdCsv(int video_device_id){
+        if (video_device_id < video_allocation_ids.size())
+            video_allocation_ids.get(video_device_id).allocation_id_csv_stale = true;
+    }
+
+    /* renderVideoAllocationIdCsv renders the allocation_id_csv of a video device into
+     * frontend_video_status if it is stale, and returns whether it was. Called with the video
+     * device lock held.
+     */
+    private boolean renderVideoAllocationIdCsv(final int video_device_id){
+        if (video_device_id < 0 || video_device_id >= frontend_video_status.getValue().size() || video_device_id >= video_allocation_ids.size())
+            return false;
+        videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+        if (!allocation_ids.allocation_id_csv_stale)
+            return false;
+        allocation_ids.allocation_id_csv_stale = false;
+        frontend_video_status.getValue().get(video_device_id).allocation_id_csv.setValue(createAllocationIdCsv(video_device_id));
+        return true;
+    }
+
+    /* publishVideoAllocationIdCsv renders a stale allocation_id_csv of a video device and publishes
+     * it to the status snapshot, without the other fields: they may hold the values an allocation
+     * is trying the video device with. Called with the video device lock held.
+     */
+    private void publishVideoAllocationIdCsv(final int video_device_id){
+        publishVideoAllocationIdCsv(video_device_id, true);
+    }
+
+    /* Without new_version, the copy is replaced but readers go on seeing the current version until
+     * newVideoStatusVersion, or any other publication, makes a new one
+     */
+    private void publishVideoAllocationIdCsv(final int video_device_id, final boolean new_version){
+        if (!renderVideoAllocationIdCsv(video_device_id))
+            return;
+        String allocation_id_csv = frontend_video_status.getValue().get(video_device_id).allocation_id_csv.getValue();
+        synchronized(video_status_publish_lock){
+            VideoStatusStructType published = copyPublishedVideoStatus(video_device_id);
+            if (published != null) {
+                published.allocation_id_csv.setValue(allocation_id_csv);
+                video_published_statuses[video_device_id] = new videoStatusElement(published);
+                if (new_version)
+                    video_status_version++;
             }
-            cleanedString += split_id[idx_i] + ",";
         }
-        cleanedString = cleanedString.replaceAll(",$","");
-        return cleanedString;
+    }
+
+    /* newVideoStatusVersion publishes the copies replaced without a new version */
+    private void newVideoStatusVersion(){
+        synchronized(video_status_publish_lock){
+            video_status_version++;
+        }
+    }
+
+    /* expireVideoQuarantine clears the quarantined status field of a video device once its
+     * quarantine has run out. It is scheduled for the end of every quarantine; a quarantine that
+     * has been extended in the meantime is left to the expiry scheduled with it.
+     */
+    private void expireVideoQuarantine(final int video_device_id){
+        synchronized(videoDeviceLock(video_device_id)){
+            if (video_device_index.isQuarantined(video_device_id) || video_device_id >= frontend_video_status.getValue().size())
+                return;
+            frontend_video_status.getValue().get(video_device_id).quarantined.setValue(false);
+            synchronized(video_status_publish_lock){
+                VideoStatusStructType published = copyPublishedVideoStatus(video_device_id);
+                if (published != null && published.quarantined.getValue()) {
+                    published.quarantined.setValue(false);
+                    replacePublishedVideoStatus(video_device_id, published);
+                }
+            }
+        }
+    }
+
+    private void scheduleVideoQuarantineExpiry(final int video_device_id, final long delay_ms){
+        synchronized(video_quarantine_timer_lock){
+            if (video_quarantine_timer == null)
+                video_quarantine_timer = Executors.newSingleThreadScheduledExecutor(FrontendHardwarePipeline.daemonThreads("FrontendVideoDevice-quarantine-"));
+            try {
+                video_quarantine_timer.schedule(new Runnable() {
+                    public void run() {
+                        expireVideoQuarantine(video_device_id);
+                    }
+                }, delay_ms, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shut down by releaseObject
+            }
+        }
+    }
+
+    /* getVideoStatusSnapshot returns frontend_video_status as of the last committed allocation
+     * change, as an unmodifiable list of copies that must not be modified. It never shows the
+     * values a video device is tried with while it is being tuned. The list is built on the first
+     * call after a change; the copies in it are shared with the snapshots before and after it, up
+     * to the next change of their video device. A device implementation should answer
+     * getVideoStatus from it.
+     */
+    protected List<VideoStatusStructType> getVideoStatusSnapshot(){
+        return currentVideoStatusSnapshot().statuses;
+    }
+
+    /* getVideoStatusVersion returns the version of the status snapshot, which increases with
+     * every change published to it.
+     */
+    protected long getVideoStatusVersion(){
+        return video_status_version;
+    }
+
+    /* publishVideoStatus copies the frontend_video_status of a video device into the status
+     * snapshot, which replaces the copy of that video device only, and renders its
+     * allocation_id_csv first if it is stale. Allocation publishes every change it commits, once,
+     * after the device functions it calls (videoDeviceEnable, videoDeviceDisable,
+     * videoDeviceSetTuning and videoDeviceDeleteTuning) have returned. A device implementation
+     * that changes the status of a video device in any other way must call it afterwards, or
+     * queries go on showing the old values. It must not be called while an allocation may be
+     * tuning the video device. If frontend_video_status has been replaced or resized, every video
+     * device is copied again.
+     */
+    protected void publishVideoStatus(int video_device_id){
+        synchronized(videoDeviceLock(video_device_id)){
+            renderVideoAllocationIdCsv(video_device_id);
+            synchronized(video_status_publish_lock){
+                List<VideoStatusStructType> statuses = frontend_video_status.getValue();
+                if (video_status_source != statuses || video_published_statuses.length != statuses.size()) {
+                    republishVideoStatus();
+                    return;
+                }
+                if (video_device_id < 0 || video_device_id >= statuses.size())
+                    return;
+                replacePublishedVideoStatus(video_device_id, copyVideoStatus(statuses.get(video_device_id)));
+            }
+        }
+    }
+
+    /* republishVideoStatus copies every video device into the status snapshot. Called with
+     * video_status_publish_lock held.
+     */
+    private void republishVideoStatus(){
+        List<VideoStatusStructType> statuses = frontend_video_status.getValue();
+        videoStatusElement[] published = new videoStatusElement[statuses.size()];
+        for (int video_device_id = 0; video_device_id < published.length; video_device_id++) {
+            published[video_device_id] = new videoStatusElement(copyVideoStatus(statuses.get(video_device_id)));
+        }
+        video_status_source = statuses;
+        video_published_statuses = published;
+        video_status_version++;
+    }
+
+    /* copyPublishedVideoStatus returns a copy of the published status of a video device to be
+     * changed and passed to replacePublishedVideoStatus, or null if it has not been published.
+     * Called with video_status_publish_lock held.
+     */
+    @SuppressWarnings("unchecked")
+    private VideoStatusStructType copyPublishedVideoStatus(final int video_device_id){
+        if (video_status_source != frontend_video_status.getValue() || video_device_id >= video_published_statuses.length)
+            return null;
+        return copyVideoStatus((VideoStatusStructType) video_published_statuses[video_device_id].status);
+    }
+
+    /* replacePublishedVideoStatus publishes a new version of the status snapshot that differs from
+     * the current one in the copy of one video device. Called with video_status_publish_lock held.
+     */
+    private void replacePublishedVideoStatus(final int video_device_id, final VideoStatusStructType status){
+        video_published_statuses[video_device_id] = new videoStatusElement(status);
+        video_status_version++;
+    }
+
+    /* currentVideoStatusSnapshot returns the status snapshot of the current version, building it
+     * from the published copies if it has not been built yet
+     */
+    private videoStatusSnapshot currentVideoStatusSnapshot(){
+        videoStatusSnapshot snapshot = video_status_snapshot;
+        if (snapshot.version == video_status_version)
+            return snapshot;
+        synchronized(video_status_publish_lock){
+            if (video_status_snapshot.version != video_status_version)
+                video_status_snapshot = new videoStatusSnapshot(video_status_version, video_published_statuses.clone());
+            return video_status_snapshot;
+        }
+    }
+
+    /* copyVideoStatus returns a copy of the status of a video device for the status snapshot. It
+     * copies the fields of default_frontend_video_status_struct_struct into a new one; a device
+     * whose status type adds fields to it must override it to create its own type and copy those
+     * fields too, and can copy the others with copyVideoStatusFields.
+     */
+    @SuppressWarnings("unchecked")
+    protected VideoStatusStructType copyVideoStatus(final VideoStatusStructType status){
+        if (status.getClass() != frontendX.FEXTypes.default_frontend_video_status_struct_struct.class)
+            throw new IllegalStateException("copyVideoStatus: " + status.getClass().getName() + " adds fields to the video status, override copyVideoStatus to copy them");
+        frontendX.FEXTypes.default_frontend_video_status_struct_struct copy = new frontendX.FEXTypes.default_frontend_video_status_struct_struct();
+        copyVideoStatusFields(status, copy);
+        return (VideoStatusStructType) copy;
+    }
+
+    protected static void copyVideoStatusFields(final frontendX.FEXTypes.default_frontend_video_status_struct_struct status, final frontendX.FEXTypes.default_frontend_video_status_struct_struct copy){
+        copy.video_type.setValue(status.video_type.getValue());
+        copy.allocation_id_csv.setValue(status.allocation_id_csv.getValue());
+        copy.channels.setValue(status.channels.getValue());
+        copy.frame_height.setValue(status.frame_height.getValue());
+        copy.frame_width.setValue(status.frame_width.getValue());
+        copy.fps.setValue(status.fps.getValue());
+        copy.enabled.setValue(status.enabled.getValue());
+        copy.quarantined.setValue(status.quarantined.getValue());
+        copy.tuning_failures.setValue(status.tuning_failures.getValue());
+    }
+
+    public void query(CF.PropertiesHolder configProperties) throws CF.UnknownProperties {
+        frontend_video_allocation_metrics.setValue(video_allocation_metrics.snapshot());
+        super.query(configProperties);
+    }
+
+    public void initialize() throws CF.LifeCyclePackage.InitializeError {
+        super.initialize();
+        rebuildVideoDeviceIndex();
+        try {
+            video_allocation_metrics.register("FrontendVideoDevice", identifier());
+        } catch (javax.management.JMException e) {
+            logger.info("initialize: could not publish the video allocation metrics over JMX: " + e.getMessage());
+        }
+    }
+
+    public void releaseObject() throws CF.LifeCyclePackage.ReleaseError {
+        super.releaseObject();
+        synchronized(video_lease_reaper_lock){
+            if (video_lease_reaper != null)
+                video_lease_reaper.shutdownNow();
+        }
+        synchronized(video_journal_timer_lock){
+            if (video_journal_timer != null)
+                video_journal_timer.shutdownNow();
+        }
+        synchronized(video_quarantine_timer_lock){
+            if (video_quarantine_timer != null)
+                video_quarantine_timer.shutdownNow();
+        }
+        FrontendAllocationJournal journal = video_allocation_journal;
+        if (journal != null)
+            journal.close();
+        // delete the tunings the free video devices kept, after the teardowns already queued
+        List<videoAllocationIdsStruct> allocation_ids = video_allocation_ids;
+        for (int video_device_id = 0; allocation_ids != null && video_device_id < allocation_ids.size(); video_device_id++) {
+            if (allocation_ids.get(video_device_id).applied_tuning != null)
+                deleteKeptVideoTuning(video_device_id);
+        }
+        // let queued teardowns finish; later hardware calls run on the calling thread
+        video_hardware_pipeline.shutdown();
+        try {
+            video_allocation_metrics.unregister();
+        } catch (javax.management.JMException e) {
+            logger.debug("releaseObject: could not withdraw the video allocation metrics from JMX: " + e.getMessage());
+        }
+    }
+
+    /* deleteKeptVideoTuning deletes the tuning a free video device kept from its last allocation,
+     * through the hardware pipeline
+     */
+    private void deleteKeptVideoTuning(final int video_device_id){
+        video_hardware_pipeline.submit(video_device_id, new Callable<Void>() {
+            public Void call() {
+                synchronized(videoDeviceLock(video_device_id)) {
+                    videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+                    String control_allocation_id = allocation_ids.control_allocation_id;
+                    if (allocation_ids.applied_tuning == null || (control_allocation_id != null && !control_allocation_id.isEmpty()))
+                        return null;
+                    allocation_ids.applied_tuning = null;
+                }
+                try {
+                    videoDeviceDeleteTuning(frontend_video_status.getValue().get(video_device_id), video_device_id);
+                } catch (RuntimeException e) {
+                    logger.info("releaseObject: videoDevice[" + video_device_id + "] failed to delete its tuning: " + e.getMessage());
+                }
+                publishVideoStatus(video_device_id);
+                return null;
+            }
+        });
     }
 
     /*****************************************************************/
@@ -464,17 +2016,36 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         return true;
     }
 
+    /* listenerRequestValidation decides whether a controlled video device can serve a listener
+     * request. Allocation calls the videoAllocationRequest version, which calls the version that
+     * takes the frontend_video_allocation_struct if a device implementation overrides that one,
+     * so existing overrides keep working; new ones should override the videoAllocationRequest
+     * version, which saves decoding the request again.
+     */
+    protected boolean listenerRequestValidation(videoAllocationRequest request, int video_device_id){
+        if (video_listener_validation_overridden)
+            return listenerRequestValidation(request.allocation, video_device_id);
+        return videoListenerRequestMatches(request, video_device_id);
+    }
+
     protected boolean listenerRequestValidation(frontendX.FEXTypes.frontend_video_allocation_struct request, int video_device_id){
+        return videoListenerRequestMatches(new videoAllocationRequest(request), video_device_id);
+    }
+
+    /* videoListenerRequestMatches is the check listenerRequestValidation makes unless it is
+     * overridden: the requested fps, within its tolerance, must be served by the video device
+     */
+    private boolean videoListenerRequestMatches(final videoAllocationRequest request, final int video_device_id){
         logger.trace("listenerRequestValidation() video_device_id " + video_device_id);
         // ensure requested values are non-negative
-        if(floatingPointCompare(request.fps.getValue(),0)<0 || floatingPointCompare(request.fps_tolerance.getValue(),0)<0)
+        if(floatingPointCompare(request.fps,0)<0 || floatingPointCompare(request.fps_tolerance,0)<0)
             return false;
 
         // ensure video frame rate meets requested tolerance
-        if( floatingPointCompare(request.fps.getValue(),frontend_video_status.getValue().get(video_device_id).fps.getValue()) > 0 )
+        if( floatingPointCompare(request.fps,frontend_video_status.getValue().get(video_device_id).fps.getValue()) > 0 )
             return false;
 
-        if(floatingPointCompare(request.fps.getValue(),0)!=0 && floatingPointCompare((request.fps.getValue()+(request.fps.getValue()*request.fps_tolerance.getValue()/100)),frontend_video_status.getValue().get(video_device_id).fps.getValue()) < 0 )
+        if(floatingPointCompare(request.fps,0)!=0 && floatingPointCompare((request.fps+(request.fps*request.fps_tolerance/100)),frontend_video_status.getValue().get(video_device_id).fps.getValue()) < 0 )
             return false;
 
         return true;
@@ -488,8 +2059,10 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
         //logger.trace("getVideoDeviceMapping() allocation_id " + allocation_id);
         int NO_VALID_VIDEO_DEVICE = -1;
 
-        if (allocation_id_to_video_device_id.containsKey(allocation_id)){
-            return allocation_id_to_video_device_id.get(allocation_id);
+        // pending reservations are also reported as not found
+        int video_device_id = video_allocation_handles.deviceOf(allocation_id);
+        if (video_device_id != FrontendAllocationHandles.NO_DEVICE){
+            return video_device_id;
         } 
         return NO_VALID_VIDEO_DEVICE;
     }
@@ -497,43 +2070,132 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
     protected boolean removeVideoDeviceMapping(int video_device_id, String allocation_id){
         logger.trace("removeVideoDeviceMapping() video_device_id " + video_device_id + ", allocation_id " + allocation_id);
         removeListener(allocation_id);
-        Iterator<String> iter = video_allocation_ids.get(video_device_id).listener_allocation_ids.iterator();
-        while(iter.hasNext()){
-            String nextString = iter.next();
-            if (nextString.equals(allocation_id)){
-                iter.remove();
-            }
-        }
-        //synchronized(allocation_id_mapping_lock){
-            if (allocation_id_to_video_device_id.containsKey(allocation_id)){
-                allocation_id_to_video_device_id.remove(allocation_id);
-                return true;
-            }
-            return false;
-        //}
+        int handle = video_allocation_handles.handleOf(allocation_id);
+        video_allocation_ids.get(video_device_id).listener_allocation_handles.remove(handle);
+        journalVideoRelease(video_device_id, allocation_id);
+        return video_allocation_handles.release(handle, video_device_id);
     }
 
     protected boolean removeVideoDeviceMapping(int video_device_id){
         logger.trace("removeVideoDeviceMapping() video_device_id " + video_device_id);
+        invalidateVideoDeviceTuning(video_device_id);
         videoDeviceDeleteTuning(frontend_video_status.getValue().get(video_device_id),video_device_id);
+        return releaseVideoDeviceMappings(video_device_id);
+    }
+
+    /* releaseVideoDeviceMappings removes the allocation id routing and all allocation ids of a
+     * video device without calling the device specific functions, and returns the video device
+     * to the free video devices. Called with the video device lock held.
+     */
+    private boolean releaseVideoDeviceMappings(int video_device_id){
         removeAllocationIdRouting(video_device_id);
 
+        // video_allocation_ids is the reverse of video_allocation_handles, so only the
+        // allocation handles of this video device are visited
         int cnt = 0;
-        //synchronized(allocation_id_mapping_lock){
-            if (allocation_id_to_video_device_id.containsValue(video_device_id)){
-                Iterator<Map.Entry<String,Integer>> iter = allocation_id_to_video_device_id.entrySet().iterator();
-                while (iter.hasNext()) {
-                    Map.Entry<String,Integer> entry = iter.next();
-                    if(video_device_id == entry.getValue()){
-                        this.removeListener(entry.getKey());
-                        iter.remove();
-                        cnt++;
-                    }
+        videoAllocationIdsStruct allocation_ids = video_allocation_ids.get(video_device_id);
+        for (int position = allocation_ids.listener_allocation_handles.first(); position != FrontendAllocationHandles.HandleList.END; position = allocation_ids.listener_allocation_handles.next(position)) {
+            int listener_handle = allocation_ids.listener_allocation_handles.handleAt(position);
+            this.removeListener(video_allocation_handles.allocationIdOf(listener_handle));
+            if (video_allocation_handles.release(listener_handle, video_device_id))
+                cnt++;
+        }
+        if (allocation_ids.control_allocation_id != null && !allocation_ids.control_allocation_id.isEmpty()) {
+            this.removeListener(allocation_ids.control_allocation_id);
+            if (video_allocation_handles.release(allocation_ids.control_allocation_handle, video_device_id))
+                cnt++;
+        }
+        allocation_ids.reset();
+        journalVideoRelease(video_device_id, null);
+        updateVideoDeviceIndex(video_device_id);
+        offerVideoDevice(video_device_id);
+        return cnt > 0;
+    }
+
+    /* rebuildVideoDeviceIndex re-reads the video_type and control state of every video device.
+     * Replacing or resizing frontend_video_status or video_allocation_ids is detected on the
+     * next allocation, which publishes the new list to the status snapshot. A device
+     * implementation that edits a video_type, control_allocation_id or fps in place outside of the
+     * allocate/deallocate paths should call updateVideoDeviceIndex (or this function): otherwise
+     * the allocator only finds the change once the index offers no video device for a request,
+     * after a pass over every video device.
+     */
+    protected void rebuildVideoDeviceIndex(){
+        synchronized(allocation_id_mapping_lock){
+            synchronized(video_device_index){
+                int size = video_device_index.reset(frontend_video_status.getValue(), video_allocation_ids);
+                for (int video_device_id = 0; video_device_id < size; video_device_id++) {
+                    indexVideoDevice(video_device_id);
+                }
+                synchronized(video_status_publish_lock){
+                    if (video_status_source != frontend_video_status.getValue() || video_published_statuses.length != frontend_video_status.getValue().size())
+                        republishVideoStatus();
                 }
             }
-            video_allocation_ids.get(video_device_id).reset();
-            return cnt > 0;
-        //}
+        }
+    }
+
+    protected void updateVideoDeviceIndex(int video_device_id){
+        if (!video_device_index.isCurrent(frontend_video_status.getValue(), video_allocation_ids)) {
+            rebuildVideoDeviceIndex();
+        } else if (video_device_id >= 0 && video_device_id < video_device_index.size()) {
+            indexVideoDevice(video_device_id);
+        }
+    }
+
+    private void syncVideoDeviceIndex(){
+        if (!video_device_index.isCurrent(frontend_video_status.getValue(), video_allocation_ids)) {
+            synchronized(allocation_id_mapping_lock){
+                if (!video_device_index.isCurrent(frontend_video_status.getValue(), video_allocation_ids))
+                    rebuildVideoDeviceIndex();
+            }
+        }
+    }
+
+    /* videoDeviceLock returns the lock guarding the allocation state of a video device: its entry in
+     * video_allocation_ids and the tuning and allocation_id_csv fields of its frontend_video_status.
+     * Locks are striped, so unrelated devices may share one. The device specific functions are
+     * called from the hardware pipeline without it, so a hung video device does not hold up others.
+     */
+    protected Object videoDeviceLock(int video_device_id){
+        return video_device_locks[video_device_id & (VIDEO_DEVICE_LOCK_STRIPES - 1)];
+    }
+
+    private void indexVideoDevice(int video_device_id){
+        String control_allocation_id = video_allocation_ids.get(video_device_id).control_allocation_id;
+        VideoStatusStructType status = frontend_video_status.getValue().get(video_device_id);
+        video_device_index.put(video_device_id,
+                               status.video_type.getValue(),
+                               control_allocation_id != null && !control_allocation_id.isEmpty(),
+                               status.fps.getValue());
+    }
+
+    /* videoListenerCandidates returns the controlled video devices of the requested video_type
+     * whose fps (as of their last control allocation or index update) lies in
+     * [fps, fps*(1+fps_tolerance/100)], lowest fps first. listenerRequestValidation makes the final
+     * decision on each candidate. A device implementation that overrides listenerRequestValidation
+     * to accept a wider range must override this function as well.
+     */
+    protected int[] videoListenerCandidates(final videoAllocationRequest request){
+        double requested_rate = request.fps;
+        double requested_tolerance = request.fps_tolerance;
+        if(floatingPointCompare(requested_rate,0)<0 || floatingPointCompare(requested_tolerance,0)<0)
+            return new int[0];
+        // widen the range by the precision used in listenerRequestValidation
+        double min_rate = requested_rate - LISTENER_FPS_MARGIN;
+        double max_rate = Double.POSITIVE_INFINITY;
+        if(floatingPointCompare(requested_rate,0)!=0)
+            max_rate = requested_rate + requested_rate*requested_tolerance/100 + LISTENER_FPS_MARGIN;
+        return video_device_index.controlledInRange(request.video_type, min_rate, max_rate);
+    }
+
+    // guards against in-place edits that were not reported through updateVideoDeviceIndex
+    private boolean videoDeviceIndexMatches(int video_device_id, String video_type, boolean device_control){
+        String control_allocation_id = video_allocation_ids.get(video_device_id).control_allocation_id;
+        boolean controlled = control_allocation_id != null && !control_allocation_id.isEmpty();
+        String indexed_type = frontend_video_status.getValue().get(video_device_id).video_type.getValue();
+        // device control requests look for free devices, listeners for controlled ones
+        return controlled != device_control && indexed_type != null && indexed_type.equals(video_type);
     }
 
     protected void assignListener(final String listen_alloc_id, final String alloc_id){
@@ -587,19 +2249,142 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
 
     /* Video Allocation IDs struct. This structure contains allocation tracking data.
      *
+     * Together the videoAllocationIdsStruct entries are the reverse of
+     * video_allocation_handles: every allocation handle mapped to a video device is either its
+     * control_allocation_handle or one of its listener_allocation_handles. Both are updated
+     * together, under the video device lock, so teardown of a video device only visits its own
+     * handles. listener_allocation_ids is a read-only view of listener_allocation_handles, kept for
+     * device implementations that read it; listeners are added and removed by allocation only, and
+     * changing the view throws UnsupportedOperationException. It used to be a list a device
+     * implementation could change.
      */
 
     public class videoAllocationIdsStruct{
         public String control_allocation_id;
         public List<String> listener_allocation_ids;
+        private int control_allocation_handle;
+        private final FrontendAllocationHandles.HandleList listener_allocation_handles;
+        // kept across allocations; see tryVideoDeviceTuning and recordVideoTuningResult
+        private volatile videoTuningState applied_tuning;
+        private int tuning_failures;
+        // set by markVideoAllocationIdCsv, cleared when the allocation_id_csv is rendered
+        private boolean allocation_id_csv_stale;
         public videoAllocationIdsStruct(){
             control_allocation_id = new String();
-            listener_allocation_ids = new ArrayList<String>();
+            listener_allocation_handles = new FrontendAllocationHandles.HandleList();
+            listener_allocation_ids = video_allocation_handles.allocationIds(listener_allocation_handles);
             reset();
         }
         public void reset(){
             control_allocation_id = "";
-            listener_allocation_ids.clear();
+            control_allocation_handle = FrontendAllocationHandles.NO_HANDLE;
+            listener_allocation_handles.clear();
+        }
+    }
+
+    /* videoStatusSnapshot is an immutable, versioned copy of frontend_video_status, made of the
+     * published copies of its video devices. Its Any is built the first time it is queried, from
+     * the Anys of the copies, which are built once per copy.
+     */
+    private class videoStatusSnapshot{
+        final long version;
+        final List<VideoStatusStructType> statuses;
+        private final videoStatusElement[] elements;
+        private volatile Any any;
+        videoStatusSnapshot(final long version, final videoStatusElement[] elements){
+            this.version = version;
+            this.elements = elements;
+            this.statuses = new AbstractList<VideoStatusStructType>() {
+                @SuppressWarnings("unchecked")
+                public VideoStatusStructType get(int index) {
+                    return (VideoStatusStructType) elements[index].status;
+                }
+                public int size() {
+                    return elements.length;
+                }
+            };
+        }
+        Any toAny(){
+            Any value = any;
+            if (value == null) {
+                Any[] element_anys = new Any[elements.length];
+                for (int idx = 0; idx < element_anys.length; idx++) {
+                    element_anys[idx] = elements[idx].toAny();
+                }
+                value = ORB.init().create_any();
+                org.omg.CORBA.AnySeqHelper.insert(value, element_anys);
+                any = value;
+            }
+            return value;
+        }
+    }
+
+    /* videoStatusElement is the published copy of the status of one video device */
+    private static final class videoStatusElement{
+        final frontendX.FEXTypes.default_frontend_video_status_struct_struct status;
+        private volatile Any any;
+        videoStatusElement(final frontendX.FEXTypes.default_frontend_video_status_struct_struct status){
+            this.status = status;
+        }
+        Any toAny(){
+            Any value = any;
+            if (value == null) {
+                value = status.toAny();
+                any = value;
+            }
+            return value;
+        }
+    }
+
+    /* videoAllocationRequest is a frontend_video_allocation decoded once into primitive fields.
+     * Allocation works on it instead of the struct; the struct is kept for the device specific
+     * functions that take it.
+     */
+    public static class videoAllocationRequest{
+        public final String allocation_id;
+        public final String video_type;
+        public final boolean device_control;
+        public final long channels;
+        public final long frame_height;
+        public final long frame_width;
+        public final double fps;
+        public final double fps_tolerance;
+        public final frontendX.FEXTypes.frontend_video_allocation_struct allocation;
+        public videoAllocationRequest(final frontendX.FEXTypes.frontend_video_allocation_struct allocation){
+            allocation_id = allocation.allocation_id.getValue();
+            video_type = allocation.video_type.getValue();
+            device_control = allocation.device_control.getValue();
+            channels = allocation.channels.getValue();
+            frame_height = allocation.frame_height.getValue();
+            frame_width = allocation.frame_width.getValue();
+            fps = allocation.fps.getValue();
+            fps_tolerance = allocation.fps_tolerance.getValue();
+            this.allocation = allocation;
+        }
+    }
+
+    /* Video tuning state. The request parameters of the tuning last applied to a video device
+     * and the status the video device reported for them.
+     */
+
+    private class videoTuningState{
+        final long channels;
+        final long frame_height;
+        final long frame_width;
+        final double fps;
+        final long tuned_channels;
+        final long tuned_frame_height;
+        final long tuned_frame_width;
+        final double tuned_fps;
+        videoTuningState(final videoAllocationRequest request, final VideoStatusStructType fts){
+            channels = request.channels;
+            frame_height = request.frame_height;
+            frame_width = request.frame_width;
+            fps = request.fps;
+            tuned_channels = fts.channels.getValue();
+            tuned_frame_height = fts.frame_height.getValue();
+            tuned_frame_width = fts.frame_width.getValue();
+            tuned_fps = fts.fps.getValue();
         }
     }
 
@@ -649,6 +2434,18 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
 
     private Class<VideoStatusStructType> frontend_video_status_class_type;
 
+    // counters and latency histograms of allocation and deallocation; rendered when queried
+    protected StructSequenceProperty<frontendX.FEXTypes.frontend_allocation_metric_struct> frontend_video_allocation_metrics =
+        new StructSequenceProperty<frontendX.FEXTypes.frontend_allocation_metric_struct> (
+            "FRONTEND.video_allocation_metrics", //id
+            "frontend_video_allocation_metrics", //name
+            frontendX.FEXTypes.frontend_allocation_metric_struct.class, //type
+            new ArrayList<frontendX.FEXTypes.frontend_allocation_metric_struct>(),
+            Mode.READONLY, //mode
+            new Kind[] { Kind.CONFIGURE } //kind
+        );
+
+    // queries are answered from the status snapshot, never from the list allocation changes in place; see publishVideoStatus
     protected StructSequenceProperty<VideoStatusStructType> frontend_video_status =
         new StructSequenceProperty<VideoStatusStructType> (
             "FRONTEND.video_status", //id
@@ -657,12 +2454,117 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
             new ArrayList<VideoStatusStructType>(),
             Mode.READONLY, //mode
             new Kind[] { Kind.CONFIGURE } //kind
-        );
+        ) {
+            public Any toAny() {
+                return currentVideoStatusSnapshot().toAny();
+            }
+        };
+
+    // allocation outcomes by reason and phase latencies, published through frontend_video_allocation_metrics and JMX
+    private final FrontendAllocationMetrics video_allocation_metrics = new FrontendAllocationMetrics();
+
+    // allocation ids interned to int handles, and the video device each handle is mapped to
+    private final FrontendAllocationHandles video_allocation_handles = new FrontendAllocationHandles();
 
-    protected Map<String, Integer> allocation_id_to_video_device_id;
+    /* allocation_id_to_video_device_id is a read-only view of video_allocation_handles: the video
+     * device each allocation id is mapped to. It is kept for device implementations that read it.
+     * It used to be a map a device implementation could change; changing it now throws
+     * UnsupportedOperationException. Use getVideoDeviceMapping instead.
+     */
+    @Deprecated
+    protected Map<String, Integer> allocation_id_to_video_device_id = video_allocation_handles.deviceMap();
 
+    // guards structural changes to the video device index
     protected Object allocation_id_mapping_lock;
 
+    // number of per-device lock stripes; must be a power of two
+    private static final int VIDEO_DEVICE_LOCK_STRIPES = 64;
+
+    private final Object[] video_device_locks = new Object[VIDEO_DEVICE_LOCK_STRIPES];
+
+    // runs the device specific functions for allocation and deallocation, in order per video device
+    // and under a deadline; a video device that misses it is left out of allocation until it responds
+    private final FrontendHardwarePipeline video_hardware_pipeline = new FrontendHardwarePipeline("FrontendVideoDevice", new FrontendHardwarePipeline.HealthListener() {
+        public void hung(int video_device_id) {
+            logger.info("videoDevice[" + video_device_id + "] missed its hardware deadline, marking it unhealthy");
+            video_device_index.setHealthy(video_device_id, false);
+        }
+        public void recovered(int video_device_id) {
+            logger.info("videoDevice[" + video_device_id + "] responded again, marking it healthy");
+            video_device_index.setHealthy(video_device_id, true);
+        }
+    });
+
+    // number of free video devices a device control allocation tunes at once
+    private volatile int video_tuning_parallelism = 1;
+
+    // whether the device implementation retunes a kept tuning in place; see tryVideoDeviceTuning
+    private boolean video_retunes_in_place;
+
+    // whether the device implementation overrides allocateVideo or allocateListener; see tryAllocateVideo
+    private boolean video_allocate_overridden;
+    private boolean video_listener_allocate_overridden;
+
+    // whether the device implementation overrides the struct version of listenerRequestValidation
+    private boolean video_listener_validation_overridden;
+
+    // order in which an allocation tries the video devices; see setVideoAllocationPolicy
+    private volatile FrontendAllocationPolicy video_allocation_policy = FrontendAllocationPolicy.FIRST_FIT;
+
+    // device control allocations waiting for a video device to be freed; see allocateVideo
+    private final FrontendAllocationWaitQueue video_wait_queue = new FrontendAllocationWaitQueue();
+    private volatile long video_allocation_wait_ms = 0;
+
+    // releases the allocations whose lease ran out; started with the first lease
+    private ScheduledExecutorService video_lease_reaper = null;
+    private final Object video_lease_reaper_lock = new Object();
+    private volatile long video_lease_reap_period_ms = 1000;
+
+    // journal the allocations are recorded in and restored from; see openVideoAllocationJournal
+    private volatile FrontendAllocationJournal video_allocation_journal = null;
+
+    // writes the journal heartbeat, or follows the journal of a primary device; started with the journal
+    private ScheduledExecutorService video_journal_timer = null;
+    private final Object video_journal_timer_lock = new Object();
+
+    // consecutive tuning failures after which a video device is quarantined, and the bounds of the quarantine
+    private volatile int video_quarantine_threshold = 3;
+    private volatile long video_quarantine_base_ms = 1000;
+    private volatile long video_quarantine_max_ms = 300000;
+
+    // clears the quarantined status field when a quarantine runs out; see expireVideoQuarantine
+    private ScheduledExecutorService video_quarantine_timer = null;
+    private final Object video_quarantine_timer_lock = new Object();
+
+    /* the published copies of frontend_video_status, the list they were copied from and their
+     * version; a copy is replaced, never modified, one video device at a time under
+     * video_status_publish_lock. video_status_snapshot is the last snapshot built from them.
+     */
+    private List<VideoStatusStructType> video_status_source = null;
+    private videoStatusElement[] video_published_statuses = new videoStatusElement[0];
+    private volatile long video_status_version = 0;
+    private volatile videoStatusSnapshot video_status_snapshot = new videoStatusSnapshot(0, new videoStatusElement[0]);
+    private final Object video_status_publish_lock = new Object();
+
+    // free video devices by video_type and controlled video devices by video_type and fps; see rebuildVideoDeviceIndex
+    private final FrontendDeviceIndex video_device_index = new FrontendDeviceIndex();
+
+    // serializes updateUsageState, so usage state changes are set in the order they happen
+    private final Object video_usage_state_lock = new Object();
+
+    // parameters passed to videoDeviceSetTuning as changed since the tuning last applied to the video device
+    protected static final int VIDEO_TUNING_CHANNELS = 0x1;
+    protected static final int VIDEO_TUNING_FRAME_HEIGHT = 0x2;
+    protected static final int VIDEO_TUNING_FRAME_WIDTH = 0x4;
+    protected static final int VIDEO_TUNING_FPS = 0x8;
+    protected static final int VIDEO_TUNING_ALL = VIDEO_TUNING_CHANNELS | VIDEO_TUNING_FRAME_HEIGHT | VIDEO_TUNING_FRAME_WIDTH | VIDEO_TUNING_FPS;
+
+    // floatingPointCompare rounds to one decimal place, so candidates within this margin may still validate
+    private static final double LISTENER_FPS_MARGIN = 0.1;
+
+    // how often a device writing its allocation journal records that it is alive, in milliseconds
+    protected static final long VIDEO_JOURNAL_HEARTBEAT_MS = 10;
+
     ///////////////////////////////
     // Device specific functions // -- to be implemented by device developer
     ///////////////////////////////
@@ -671,6 +2573,15 @@ public abstract class FrontendVideoDevice<VideoStatusStructType extends frontend
     protected abstract boolean videoDeviceSetTuning(final frontendX.FEXTypes.frontend_video_allocation_struct request, VideoStatusStructType fts, int video_device_id);
     protected abstract boolean videoDeviceDeleteTuning(VideoStatusStructType fts, int video_device_id);
 
+    /* videoDeviceSetTuning is called with the VIDEO_TUNING_* flags of the parameters that changed
+     * since the tuning the video device kept from its last allocation. Override it to retune only
+     * those, in place: the kept tuning is then not deleted first. Without an override the kept
+     * tuning is deleted with videoDeviceDeleteTuning and the full request applied.
+     */
+    protected boolean videoDeviceSetTuning(final frontendX.FEXTypes.frontend_video_allocation_struct request, VideoStatusStructType fts, int video_device_id, int changed_parameters){
+        return videoDeviceSetTuning(request, fts, video_device_id);
+    }
+
     ///////////////////////////////
     // Mapping and translation helpers. External string identifiers to internal numerical identifiers
     ///////////////////////////////
@@ -0,0 +1,168 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrontendAllocationHandlesTest {
+
+    private final FrontendAllocationHandles handles = new FrontendAllocationHandles();
+
+    @Test
+    public void reservesEachAllocationIdOnce() {
+        int handle = handles.reserve("c1");
+        assertEquals(FrontendAllocationHandles.NO_HANDLE, handles.reserve("c1"));
+        assertEquals(handle, handles.handleOf("c1"));
+        assertEquals("c1", handles.allocationIdOf(handle));
+        assertEquals(FrontendAllocationHandles.NO_DEVICE, handles.deviceOf("c1"));
+        handles.map(handle, 3);
+        assertEquals(3, handles.deviceOf("c1"));
+        assertEquals(3, handles.deviceOf(handle));
+        assertEquals(1, handles.size());
+    }
+
+    @Test
+    public void releasedHandlesAreReused() {
+        int handle = handles.reserve("c1");
+        handles.map(handle, 3);
+        assertFalse(handles.release(handle, 2));
+        assertTrue(handles.release(handle, 3));
+        assertEquals(FrontendAllocationHandles.NO_HANDLE, handles.handleOf("c1"));
+        assertEquals(handle, handles.reserve("c2"));
+        handles.map(handle, 4);
+        assertEquals(FrontendAllocationHandles.NO_DEVICE, handles.deviceOf("c1"));
+        assertEquals(4, handles.deviceOf("c2"));
+    }
+
+    @Test
+    public void releasePendingComparesTheAllocationIdReserved() {
+        String allocation_id = new String("c1");
+        int handle = handles.reserve(allocation_id);
+        assertFalse(handles.releasePending(handle, new String("c1")));
+        assertTrue(handles.releasePending(handle, allocation_id));
+        assertEquals(0, handles.size());
+        int mapped = handles.reserve(allocation_id);
+        handles.map(mapped, 1);
+        assertFalse(handles.releasePending(mapped, allocation_id));
+    }
+
+    @Test
+    public void growsPastItsInitialCapacity() {
+        for (int idx = 0; idx < 1000; idx++) {
+            handles.map(handles.reserve("c" + idx), idx);
+        }
+        for (int idx = 0; idx < 1000; idx++) {
+            assertEquals(idx, handles.deviceOf("c" + idx));
+        }
+        assertEquals(1000, handles.deviceMap().size());
+    }
+
+    @Test
+    public void leasesExpireUnlessRenewed() {
+        long ttl_ns = TimeUnit.SECONDS.toNanos(10);
+        int leased = handles.reserve("leased");
+        int kept = handles.reserve("kept");
+        handles.map(leased, 0);
+        handles.map(kept, 1);
+        assertFalse(handles.renew(kept));
+        assertTrue(handles.lease(leased, ttl_ns));
+        long now = System.nanoTime();
+        assertFalse(handles.leaseExpired(leased, now));
+        assertTrue(handles.leaseExpired(leased, now + ttl_ns));
+        assertFalse(handles.leaseExpired(kept, now + ttl_ns));
+        assertEquals("[leased]", handles.expired(now + ttl_ns).toString());
+        assertTrue(handles.renew(leased));
+        assertFalse(handles.leaseExpired(leased, now + ttl_ns / 2));
+        assertTrue(handles.lease(leased, 0));
+        assertTrue(handles.expired(now + 2 * ttl_ns).isEmpty());
+        assertTrue(handles.release(leased, 0));
+        assertFalse(handles.lease(leased, ttl_ns));
+    }
+
+    @Test
+    public void mappedHandlesGetTheDefaultLease() {
+        handles.setDefaultLease(TimeUnit.SECONDS.toNanos(10));
+        int handle = handles.reserve("c1");
+        handles.map(handle, 0);
+        assertTrue(handles.leaseExpired(handle, System.nanoTime() + TimeUnit.SECONDS.toNanos(10)));
+        // a released handle reused by another allocation id has no lease until it is mapped
+        handles.release(handle, 0);
+        handles.setDefaultLease(0);
+        handles.map(handles.reserve("c2"), 0);
+        assertTrue(handles.expired(System.nanoTime() + TimeUnit.SECONDS.toNanos(20)).isEmpty());
+    }
+
+    @Test
+    public void handleListKeepsInsertionOrder() {
+        FrontendAllocationHandles.HandleList list = new FrontendAllocationHandles.HandleList();
+        List<String> allocation_ids = handles.allocationIds(list);
+        for (int idx = 0; idx < 10; idx++) {
+            int handle = handles.reserve("l" + idx);
+            handles.map(handle, 0);
+            assertTrue(list.add(handle));
+        }
+        assertFalse(list.add(handles.handleOf("l3")));
+        assertTrue(list.remove(handles.handleOf("l3")));
+        assertFalse(list.remove(handles.handleOf("l3")));
+        assertTrue(list.remove(handles.handleOf("l0")));
+        assertTrue(list.add(handles.handleOf("l3")));
+        assertEquals("[l1, l2, l4, l5, l6, l7, l8, l9, l3]", allocation_ids.toString());
+        assertEquals("l4", allocation_ids.get(2));
+        assertEquals(9, allocation_ids.size());
+        List<String> read = new ArrayList<String>();
+        for (int position = list.first(); position != FrontendAllocationHandles.HandleList.END; position = list.next(position)) {
+            read.add(handles.allocationIdOf(list.handleAt(position)));
+        }
+        assertEquals(allocation_ids, read);
+    }
+
+    @Test
+    public void viewsAreReadOnly() {
+        handles.map(handles.reserve("c1"), 2);
+        handles.reserve("pending");
+        Map<String, Integer> device_map = handles.deviceMap();
+        assertEquals(Integer.valueOf(2), device_map.get("c1"));
+        assertNull(device_map.get("pending"));
+        assertEquals(1, device_map.size());
+        try {
+            device_map.put("c2", 1);
+            fail("deviceMap() is read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            handles.allocationIds(new FrontendAllocationHandles.HandleList()).add("c2");
+            fail("allocationIds() is read-only");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
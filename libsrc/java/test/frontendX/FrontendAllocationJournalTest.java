@@ -0,0 +1,243 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FrontendAllocationJournalTest {
+
+    // the size of the header FrontendAllocationJournal writes before the first record
+    private static final int HEADER_SIZE = 32;
+
+    private Path directory;
+    private Path path;
+    private final List<FrontendAllocationJournal> journals = new ArrayList<FrontendAllocationJournal>();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("frontendX-journal");
+        path = directory.resolve("allocations.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (FrontendAllocationJournal journal : journals) {
+            journal.close();
+        }
+        Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".compact"));
+        Files.deleteIfExists(path);
+        Files.delete(directory);
+    }
+
+    @Test
+    public void replaysTheLiveAllocations() throws IOException {
+        FrontendAllocationJournal writer = writer();
+        assertTrue(writer.control(0, "c1", new byte[] { 1, 2, 3 }));
+        assertTrue(writer.control(1, "c2", new byte[0]));
+        assertTrue(writer.listener(0, "l1"));
+        assertTrue(writer.listener(1, "l2"));
+        assertTrue(writer.release("l1"));
+        assertTrue(writer.releaseDevice(1));
+
+        List<FrontendAllocationJournal.Entry> entries = writer().entries();
+        assertEquals("[c1]", allocationIds(entries));
+        assertEquals(0, entries.get(0).device_id);
+        assertEquals(3, entries.get(0).payload.length);
+    }
+
+    @Test
+    public void tornRecordEndsTheJournal() throws IOException {
+        FrontendAllocationJournal writer = writer();
+        writer.control(0, "c1", new byte[0]);
+        writer.control(1, "c2", new byte[0]);
+        writer.close();
+        // the checksum of c2 no longer matches, as if the writer stopped in the middle of it
+        int torn = recordAfter(HEADER_SIZE);
+        corrupt(torn + 4 + 1);
+
+        FrontendAllocationJournal reopened = writer();
+        assertEquals("[c1]", allocationIds(reopened.entries()));
+        // the torn record was cleared, so a record appended in its place is read back
+        assertTrue(reopened.control(2, "c3", new byte[0]));
+        reopened.close();
+        assertEquals("[c1, c3]", allocationIds(writer().entries()));
+    }
+
+    @Test
+    public void recordWithoutItsLengthIsNotRead() throws IOException {
+        FrontendAllocationJournal writer = writer();
+        writer.control(0, "c1", new byte[0]);
+        writer.control(1, "c2", new byte[0]);
+        writer.close();
+        // the length is set last, so a record the writer did not finish has none
+        putInt(recordAfter(HEADER_SIZE), 0);
+
+        FrontendAllocationJournal reopened = writer();
+        assertEquals("[c1]", allocationIds(reopened.entries()));
+        assertTrue(reopened.control(2, "c3", new byte[0]));
+        reopened.close();
+        assertEquals("[c1, c3]", allocationIds(writer().entries()));
+    }
+
+    @Test
+    public void claimFencesThePreviousWriter() throws IOException {
+        FrontendAllocationJournal previous = writer();
+        assertTrue(previous.control(0, "c1", new byte[0]));
+        FrontendAllocationJournal current = writer();
+        assertFalse(previous.control(1, "c2", new byte[0]));
+        assertFalse(previous.heartbeat());
+        assertTrue(current.control(2, "c3", new byte[0]));
+        current.close();
+        assertEquals("[c1, c3]", allocationIds(writer().entries()));
+    }
+
+    @Test
+    public void followerTakesOverWhatTheWriterFinished() throws IOException {
+        FrontendAllocationJournal writer = writer();
+        FrontendAllocationJournal follower = follower();
+        writer.control(0, "c1", new byte[0]);
+        follower.follow();
+        assertEquals("[c1]", allocationIds(follower.entries()));
+        // recorded after the follower last read the journal, but before it was claimed
+        writer.control(1, "c2", new byte[0]);
+        assertTrue(follower.takeOver());
+        assertEquals("[c1, c2]", allocationIds(follower.entries()));
+        assertFalse(writer.control(2, "c3", new byte[0]));
+        assertTrue(follower.control(3, "c4", new byte[0]));
+        follower.close();
+        assertEquals("[c1, c2, c4]", allocationIds(writer().entries()));
+    }
+
+    @Test
+    public void takeOverFailsOnceTheWriterHeartbeats() throws IOException {
+        FrontendAllocationJournal writer = writer();
+        FrontendAllocationJournal follower = follower();
+        follower.follow();
+        assertTrue(writer.heartbeat());
+        assertFalse(follower.takeOver());
+        assertTrue(writer.control(0, "c1", new byte[0]));
+        follower.follow();
+        assertEquals("[c1]", allocationIds(follower.entries()));
+    }
+
+    @Test
+    public void compactionKeepsTheLiveAllocations() throws IOException {
+        FrontendAllocationJournal writer = writer();
+        FrontendAllocationJournal follower = follower();
+        writer.control(0, "kept", new byte[] { 7 });
+        for (int idx = 0; !writer.compactionDue(); idx++) {
+            writer.listener(0, "l" + idx);
+            writer.release("l" + idx);
+        }
+        writer.compact();
+        assertFalse(writer.compactionDue());
+        assertTrue(writer.listener(0, "after"));
+
+        follower.follow();
+        assertEquals("[kept, after]", allocationIds(follower.entries()));
+        writer.close();
+        List<FrontendAllocationJournal.Entry> entries = writer().entries();
+        assertEquals("[kept, after]", allocationIds(entries));
+        assertEquals(7, entries.get(0).payload[0]);
+    }
+
+    @Test
+    public void allocationIdTooLongIsSkipped() throws IOException {
+        char[] allocation_id = new char[0x10000];
+        Arrays.fill(allocation_id, 'x');
+        FrontendAllocationJournal writer = writer();
+        assertFalse(FrontendAllocationJournal.accepts(new String(allocation_id)));
+        assertTrue(writer.control(0, new String(allocation_id), new byte[0]));
+        assertTrue(writer.control(1, "c1", new byte[0]));
+        assertEquals("[c1]", allocationIds(writer.entries()));
+    }
+
+    private FrontendAllocationJournal writer() throws IOException {
+        FrontendAllocationJournal journal = new FrontendAllocationJournal(path);
+        journals.add(journal);
+        return journal;
+    }
+
+    private FrontendAllocationJournal follower() throws IOException {
+        FrontendAllocationJournal journal = new FrontendAllocationJournal(path, false);
+        journals.add(journal);
+        return journal;
+    }
+
+    private static String allocationIds(final List<FrontendAllocationJournal.Entry> entries) {
+        List<String> allocation_ids = new ArrayList<String>();
+        for (FrontendAllocationJournal.Entry entry : entries) {
+            allocation_ids.add(entry.allocation_id);
+        }
+        return allocation_ids.toString();
+    }
+
+    // returns the position of the record after the one at position: its length, body and crc
+    private int recordAfter(final int position) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, position);
+            return position + 4 + length.getInt(0) + 4;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void corrupt(final int position) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer value = ByteBuffer.allocate(1);
+            channel.read(value, position);
+            value.put(0, (byte) ~value.get(0));
+            value.rewind();
+            channel.write(value, position);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void putInt(final int position, final int value) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate(4);
+            bytes.putInt(0, value);
+            channel.write(bytes, position);
+        } finally {
+            channel.close();
+        }
+    }
+}
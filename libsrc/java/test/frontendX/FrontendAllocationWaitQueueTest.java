@@ -0,0 +1,126 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrontendAllocationWaitQueueTest {
+
+    private final FrontendAllocationWaitQueue queue = new FrontendAllocationWaitQueue();
+
+    @Test
+    public void offersToTheHighestPriority() {
+        FrontendAllocationWaitQueue.Waiter low = queue.enqueue("CAPTURE", 0);
+        FrontendAllocationWaitQueue.Waiter high = queue.enqueue("CAPTURE", 5);
+        assertTrue(queue.offer("CAPTURE", 1));
+        assertEquals(1, queue.poll(high));
+        assertEquals(FrontendAllocationWaitQueue.NO_DEVICE, queue.poll(low));
+    }
+
+    @Test
+    public void offersToTheLongestWaitingAmongEquals() {
+        FrontendAllocationWaitQueue.Waiter first = queue.enqueue("CAPTURE", 1);
+        FrontendAllocationWaitQueue.Waiter second = queue.enqueue("CAPTURE", 1);
+        assertTrue(queue.offer("CAPTURE", 1));
+        assertTrue(queue.offer("CAPTURE", 2));
+        assertEquals(1, queue.poll(first));
+        assertEquals(2, queue.poll(second));
+    }
+
+    @Test
+    public void agingRaisesAWaiterAheadOfLaterHigherPriorities() throws InterruptedException {
+        FrontendAllocationWaitQueue.Waiter aged = queue.enqueue("CAPTURE", 0);
+        Thread.sleep(FrontendAllocationWaitQueue.AGING_MS + 100);
+        FrontendAllocationWaitQueue.Waiter later = queue.enqueue("CAPTURE", 1);
+        FrontendAllocationWaitQueue.Waiter highest = queue.enqueue("CAPTURE", 2);
+        assertTrue(queue.offer("CAPTURE", 1));
+        assertEquals(1, queue.remove(highest));
+        // the aged waiter now has the priority of the later one, and has waited longer
+        assertTrue(queue.offer("CAPTURE", 2));
+        assertEquals(2, queue.poll(aged));
+        assertEquals(FrontendAllocationWaitQueue.NO_DEVICE, queue.poll(later));
+    }
+
+    @Test
+    public void offersOnlyToWaitersOfTheDeviceType() {
+        assertFalse(queue.offer("CAPTURE", 1));
+        FrontendAllocationWaitQueue.Waiter playback = queue.enqueue("PLAYBACK", 0);
+        assertTrue(queue.hasWaiters("PLAYBACK"));
+        assertFalse(queue.hasWaiters("CAPTURE"));
+        assertFalse(queue.offer("CAPTURE", 1));
+        assertTrue(queue.offer("PLAYBACK", 2));
+        assertEquals(2, queue.poll(playback));
+    }
+
+    @Test
+    public void waiterHoldsOneDeviceAtATime() {
+        FrontendAllocationWaitQueue.Waiter first = queue.enqueue("CAPTURE", 5);
+        FrontendAllocationWaitQueue.Waiter second = queue.enqueue("CAPTURE", 0);
+        assertTrue(queue.offer("CAPTURE", 1));
+        assertTrue(queue.offer("CAPTURE", 2));
+        // both waiters hold a device they have not taken yet
+        assertFalse(queue.offer("CAPTURE", 3));
+        assertEquals(2, queue.poll(second));
+        assertEquals(1, queue.remove(first));
+        assertTrue(queue.offer("CAPTURE", 4));
+        assertEquals(4, queue.poll(second));
+    }
+
+    @Test
+    public void removeHandsBackAnUntakenDevice() {
+        FrontendAllocationWaitQueue.Waiter waiter = queue.enqueue("CAPTURE", 0);
+        assertTrue(queue.offer("CAPTURE", 3));
+        assertEquals(3, queue.remove(waiter));
+        assertFalse(queue.hasWaiters("CAPTURE"));
+        assertFalse(queue.offer("CAPTURE", 3));
+    }
+
+    @Test
+    public void awaitReturnsTheDeviceOffered() throws InterruptedException {
+        final FrontendAllocationWaitQueue.Waiter waiter = queue.enqueue("CAPTURE", 0);
+        Thread offering = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.offer("CAPTURE", 7);
+            }
+        });
+        offering.start();
+        assertEquals(7, queue.await(waiter, TimeUnit.SECONDS.toNanos(10)));
+        offering.join();
+    }
+
+    @Test
+    public void awaitTimesOut() throws InterruptedException {
+        FrontendAllocationWaitQueue.Waiter waiter = queue.enqueue("CAPTURE", 0);
+        long start = System.nanoTime();
+        assertEquals(FrontendAllocationWaitQueue.NO_DEVICE, queue.await(waiter, TimeUnit.MILLISECONDS.toNanos(50)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+}
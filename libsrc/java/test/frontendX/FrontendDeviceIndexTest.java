@@ -0,0 +1,141 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FrontendDeviceIndexTest {
+
+    private final FrontendDeviceIndex index = new FrontendDeviceIndex();
+
+    // indexes one free device per type given
+    private void build(final String... device_types) {
+        List<String> devices = new ArrayList<String>(Arrays.asList(device_types));
+        assertEquals(device_types.length, index.reset(devices, devices));
+        for (int device_id = 0; device_id < device_types.length; device_id++) {
+            index.put(device_id, device_types[device_id], false, 0.0);
+        }
+    }
+
+    @Test
+    public void claimsTheLowestFreeDeviceOfTheType() {
+        build("CAPTURE", "PLAYBACK", "CAPTURE", "CAPTURE");
+        assertEquals(0, index.claimFree("CAPTURE", -1));
+        assertEquals(2, index.claimFree("CAPTURE", -1));
+        assertEquals(3, index.claimFree("CAPTURE", 0));
+        assertEquals(-1, index.claimFree("CAPTURE", -1));
+        assertEquals(1, index.claimFree("PLAYBACK", -1));
+        assertEquals(-1, index.claimFree("MONITOR", -1));
+        index.release(2);
+        assertEquals(2, index.claimFree("CAPTURE", -1));
+    }
+
+    @Test
+    public void claimTakesOnlyAFreeDevice() {
+        build("CAPTURE", "CAPTURE");
+        assertArrayEquals(new int[] { 0, 1 }, index.freeDevices("CAPTURE"));
+        assertTrue(index.claim(1));
+        assertFalse(index.claim(1));
+        assertFalse(index.claim(5));
+        assertArrayEquals(new int[] { 0 }, index.freeDevices("CAPTURE"));
+    }
+
+    @Test
+    public void controlledDevicesAreFoundByRate() {
+        build("CAPTURE", "CAPTURE", "CAPTURE", "PLAYBACK");
+        index.put(0, "CAPTURE", true, 30.0);
+        index.put(1, "CAPTURE", true, 25.0);
+        index.put(3, "PLAYBACK", true, 30.0);
+        assertArrayEquals(new int[] { 1, 0 }, index.controlledInRange("CAPTURE", 20.0, 40.0));
+        assertArrayEquals(new int[] { 0 }, index.controlledInRange("CAPTURE", 29.0, 31.0));
+        assertArrayEquals(new int[0], index.controlledInRange("CAPTURE", 31.0, 29.0));
+        assertArrayEquals(new int[] { 2 }, index.freeDevices("CAPTURE"));
+        assertEquals(3, index.deviceCount("CAPTURE"));
+        assertEquals(2, index.controlledCount("CAPTURE"));
+        assertEquals(3, index.controlledCount(null));
+        assertTrue(index.isIndexed(0, "CAPTURE", true, 30.0));
+        assertFalse(index.isIndexed(0, "CAPTURE", true, 25.0));
+
+        // released from device control, the device is free again
+        index.put(0, "CAPTURE", false, 0.0);
+        assertArrayEquals(new int[] { 1 }, index.controlledInRange("CAPTURE", 20.0, 40.0));
+        assertArrayEquals(new int[] { 0, 2 }, index.freeDevices("CAPTURE"));
+        assertEquals(2, index.controlledCount(null));
+    }
+
+    @Test
+    public void unhealthyDevicesAreNotHandedOut() {
+        build("CAPTURE", "CAPTURE");
+        index.setHealthy(0, false);
+        assertEquals(1, index.claimFree("CAPTURE", -1));
+        index.release(1);
+        assertFalse(index.claim(0));
+        index.setHealthy(0, true);
+        assertEquals(0, index.claimFree("CAPTURE", -1));
+    }
+
+    @Test
+    public void quarantinedDevicesAreSkippedUntilTheQuarantineEnds() throws InterruptedException {
+        build("CAPTURE", "CAPTURE", "CAPTURE");
+        index.quarantine(0, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        index.quarantine(1, System.nanoTime() + TimeUnit.SECONDS.toNanos(60));
+        assertTrue(index.isQuarantined(0));
+        assertArrayEquals(new int[] { 2 }, index.freeDevices("CAPTURE"));
+        assertFalse(index.claim(0));
+        Thread.sleep(150);
+        assertFalse(index.isQuarantined(0));
+        assertEquals(0, index.claimFree("CAPTURE", -1));
+        index.clearQuarantine(1);
+        assertEquals(1, index.claimFree("CAPTURE", -1));
+    }
+
+    @Test
+    public void claimsHealthAndQuarantineSurviveARebuild() {
+        build("CAPTURE", "CAPTURE", "CAPTURE");
+        assertEquals(0, index.claimFree("CAPTURE", -1));
+        index.setHealthy(1, false);
+        index.quarantine(2, System.nanoTime() + TimeUnit.SECONDS.toNanos(60));
+        build("CAPTURE", "CAPTURE", "CAPTURE");
+        assertArrayEquals(new int[0], index.freeDevices("CAPTURE"));
+        index.release(0);
+        assertArrayEquals(new int[] { 0 }, index.freeDevices("CAPTURE"));
+    }
+
+    @Test
+    public void isCurrentUntilTheSequencesChange() {
+        List<String> status = new ArrayList<String>(Arrays.asList("CAPTURE", "CAPTURE"));
+        List<String> allocation_ids = new ArrayList<String>(status);
+        index.reset(status, allocation_ids);
+        assertTrue(index.isCurrent(status, allocation_ids));
+        assertFalse(index.isCurrent(new ArrayList<String>(status), allocation_ids));
+        allocation_ids.add("CAPTURE");
+        assertFalse(index.isCurrent(status, allocation_ids));
+    }
+}
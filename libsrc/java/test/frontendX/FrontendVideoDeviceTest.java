@@ -0,0 +1,155 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import static frontendX.TestVideoDevice.request;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FrontendVideoDeviceTest {
+
+    @Test
+    public void batchAllocatesAllOrNothing() throws Exception {
+        TestVideoDevice device = new TestVideoDevice(2);
+        List<FEXTypes.frontend_video_allocation_struct> batch = new ArrayList<FEXTypes.frontend_video_allocation_struct>(Arrays.asList(
+            request("b1", true, 30), request("b1l", false, 30), request("b2", true, 25), request("b3", true, 30)));
+        assertFalse(device.allocateVideoBatch(batch));
+        for (FEXTypes.frontend_video_allocation_struct request : batch) {
+            assertEquals(-1, device.getVideoDeviceMapping(request.allocation_id.getValue()));
+        }
+        assertFalse(device.calls.contains("enable0") || device.calls.contains("enable1"));
+        assertEquals(CF.DevicePackage.UsageType.IDLE, device.getUsageState());
+
+        batch.remove(3);
+        assertTrue(device.allocateVideoBatch(batch));
+        int b1 = device.getVideoDeviceMapping("b1");
+        assertEquals(b1, device.getVideoDeviceMapping("b1l"));
+        assertEquals(1 - b1, device.getVideoDeviceMapping("b2"));
+        assertEquals(CF.DevicePackage.UsageType.BUSY, device.getUsageState());
+        device.deallocateVideoBatch(batch);
+        assertEquals(-1, device.getVideoDeviceMapping("b1"));
+        assertEquals(CF.DevicePackage.UsageType.IDLE, device.getUsageState());
+    }
+
+    @Test
+    public void batchRollsBackWhenATuningFails() throws Exception {
+        TestVideoDevice device = new TestVideoDevice(2);
+        device.failing_devices.add(1);
+        assertTrue(device.allocateVideo(request("c1", true, 30)));
+        device.deallocateVideo(request("c1", true, 30));
+        List<FEXTypes.frontend_video_allocation_struct> batch = Arrays.asList(request("b1", true, 30), request("b2", true, 30));
+        assertFalse(device.allocateVideoBatch(batch));
+        assertEquals(-1, device.getVideoDeviceMapping("b1"));
+        assertEquals(-1, device.getVideoDeviceMapping("b2"));
+        // the video device the batch rolled back is free for the next request
+        assertTrue(device.allocateVideo(request("c2", true, 30)));
+        assertEquals(0, device.getVideoDeviceMapping("c2"));
+    }
+
+    @Test
+    public void expiredLeasesAreReaped() throws Exception {
+        TestVideoDevice device = new TestVideoDevice(3);
+        device.setVideoLeaseReapPeriod(20);
+        assertTrue(device.allocateVideo(request("kept", true, 30)));
+        assertTrue(device.allocateVideo(request("leased", true, 30)));
+        assertTrue(device.allocateVideo(request("renewed", true, 25)));
+        assertTrue(device.allocateVideo(request("listener", false, 30)));
+        assertFalse(device.renewVideoAllocation("kept"));
+        assertTrue(device.leaseVideoAllocation("leased", 100));
+        assertTrue(device.leaseVideoAllocation("renewed", 100));
+        assertTrue(device.leaseVideoAllocation("listener", 100));
+        assertFalse(device.leaseVideoAllocation("unknown", 100));
+        int leased = device.getVideoDeviceMapping("leased");
+        for (int idx = 0; idx < 6; idx++) {
+            Thread.sleep(50);
+            assertTrue(device.renewVideoAllocation("renewed"));
+        }
+        assertEquals(-1, device.getVideoDeviceMapping("leased"));
+        assertEquals(-1, device.getVideoDeviceMapping("listener"));
+        assertTrue(device.calls.contains("disable" + leased));
+        assertTrue(device.getVideoDeviceMapping("renewed") >= 0);
+        assertTrue(device.getVideoDeviceMapping("kept") >= 0);
+    }
+
+    @Test
+    public void quarantineDoublesWithEveryFailure() throws Exception {
+        TestVideoDevice device = new TestVideoDevice(2);
+        device.setVideoQuarantinePolicy(2, 100, 1000);
+        device.failing_devices.add(0);
+        FEXTypes.default_frontend_video_status_struct_struct failing = device.frontend_video_status.getValue().get(0);
+        for (int idx = 0; idx < 2; idx++) {
+            allocateAndRelease(device, "c" + idx);
+        }
+        assertTrue(failing.quarantined.getValue());
+        assertEquals(2, failing.tuning_failures.getValue().intValue());
+        device.calls.clear();
+        allocateAndRelease(device, "skipped");
+        assertFalse(device.calls.contains("tune0"));
+
+        // once its quarantine of 100 ms ends, the video device fails again and is quarantined for 200 ms
+        Thread.sleep(200);
+        assertFalse(failing.quarantined.getValue());
+        device.calls.clear();
+        allocateAndRelease(device, "retried");
+        assertTrue(device.calls.contains("tune0"));
+        assertTrue(failing.quarantined.getValue());
+        Thread.sleep(80);
+        device.calls.clear();
+        allocateAndRelease(device, "still_skipped");
+        assertFalse(device.calls.contains("tune0"));
+        Thread.sleep(250);
+        assertFalse(failing.quarantined.getValue());
+
+        device.failing_devices.clear();
+        device.calls.clear();
+        assertTrue(device.allocateVideo(request("tuned", true, 30)));
+        assertEquals(0, device.getVideoDeviceMapping("tuned"));
+        assertEquals(0, failing.tuning_failures.getValue().intValue());
+    }
+
+    @Test
+    public void clearingTheQuarantineResetsTheFailures() throws Exception {
+        TestVideoDevice device = new TestVideoDevice(2);
+        device.setVideoQuarantinePolicy(1, 60000, 60000);
+        device.failing_devices.add(0);
+        allocateAndRelease(device, "c1");
+        FEXTypes.default_frontend_video_status_struct_struct failing = device.frontend_video_status.getValue().get(0);
+        assertTrue(failing.quarantined.getValue());
+        device.clearVideoDeviceQuarantine(0);
+        assertEquals(0, failing.tuning_failures.getValue().intValue());
+        device.failing_devices.clear();
+        assertTrue(device.allocateVideo(request("c2", true, 30)));
+        assertEquals(0, device.getVideoDeviceMapping("c2"));
+    }
+
+    // allocates a device control request, which the video device that does not fail takes, and releases it
+    private static void allocateAndRelease(final TestVideoDevice device, final String allocation_id) throws Exception {
+        assertTrue(device.allocateVideo(request(allocation_id, true, 30)));
+        assertEquals(1, device.getVideoDeviceMapping(allocation_id));
+        device.deallocateVideo(request(allocation_id, true, 30));
+    }
+}
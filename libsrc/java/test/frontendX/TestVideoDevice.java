@@ -0,0 +1,88 @@
+/*
+ * This file is protected by Copyright. Please refer to the COPYRIGHT file
+ * distributed with this source distribution.
+ *
+ * This file is part of Frontend Interfaces X.
+ *
+ * Frontend Interfaces X is free software: you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as published by the
+ * Free Software Foundation, either version 3 of the License, or (at your
+ * option) any later version.
+ *
+ * Frontend Interfaces X is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser General Public License
+ * for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package frontendX;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/* TestVideoDevice is an in-memory FrontendVideoDevice for the tests. Every video device is a
+ * CAPTURE device; the hooks record what they were called for, and tuning the video devices in
+ * failing_devices fails.
+ */
+class TestVideoDevice extends FrontendVideoDevice<FEXTypes.default_frontend_video_status_struct_struct> {
+
+    final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    final Set<Integer> failing_devices = Collections.synchronizedSet(new HashSet<Integer>());
+
+    TestVideoDevice(final int video_devices) {
+        List<FEXTypes.default_frontend_video_status_struct_struct> status = new ArrayList<FEXTypes.default_frontend_video_status_struct_struct>();
+        video_allocation_ids = new ArrayList<videoAllocationIdsStruct>();
+        for (int idx = 0; idx < video_devices; idx++) {
+            FEXTypes.default_frontend_video_status_struct_struct video_status = new FEXTypes.default_frontend_video_status_struct_struct();
+            video_status.video_type.setValue("CAPTURE");
+            video_status.allocation_id_csv.setValue("");
+            status.add(video_status);
+            video_allocation_ids.add(new videoAllocationIdsStruct());
+        }
+        frontend_video_status.setValue(status);
+    }
+
+    static FEXTypes.frontend_video_allocation_struct request(final String allocation_id, final boolean device_control, final double fps) {
+        FEXTypes.frontend_video_allocation_struct request = new FEXTypes.frontend_video_allocation_struct();
+        request.allocation_id.setValue(allocation_id);
+        request.video_type.setValue("CAPTURE");
+        request.device_control.setValue(device_control);
+        request.fps.setValue(fps);
+        request.channels.setValue(1);
+        request.frame_height.setValue(10);
+        request.frame_width.setValue(10);
+        return request;
+    }
+
+    protected int serviceFunction() {
+        return NOOP;
+    }
+
+    protected void videoDeviceEnable(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        fts.enabled.setValue(true);
+        calls.add("enable" + video_device_id);
+    }
+
+    protected void videoDeviceDisable(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        fts.enabled.setValue(false);
+        calls.add("disable" + video_device_id);
+    }
+
+    protected boolean videoDeviceSetTuning(FEXTypes.frontend_video_allocation_struct request, FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        calls.add("tune" + video_device_id);
+        return !failing_devices.contains(video_device_id);
+    }
+
+    protected boolean videoDeviceDeleteTuning(FEXTypes.default_frontend_video_status_struct_struct fts, int video_device_id) {
+        calls.add("delete" + video_device_id);
+        return true;
+    }
+
+    protected void removeAllocationIdRouting(int video_device_id) {
+    }
+}
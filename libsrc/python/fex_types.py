@@ -118,14 +118,24 @@ class default_frontend_audio_status_struct_struct(object):
                               name="enabled",
                               type_="boolean",
                               )
+    quarantined = simple_property(id_="FRONTEND::audio_status::quarantined",
+                                  name="quarantined",
+                                  type_="boolean",
+                                  )
+    tuning_failures = simple_property(id_="FRONTEND::audio_status::tuning_failures",
+                                      name="tuning_failures",
+                                      type_="long",
+                                      )
 
-    def __init__(self, audio_type="", allocation_id_csv="", full_bandwidth_channels=0, low_frequency_effect_channels=0, sample_rate=0.0, enabled=False):
+    def __init__(self, audio_type="", allocation_id_csv="", full_bandwidth_channels=0, low_frequency_effect_channels=0, sample_rate=0.0, enabled=False, quarantined=False, tuning_failures=0):
         self.audio_type = audio_type
         self.allocation_id_csv = allocation_id_csv
         self.full_bandwidth_channels = full_bandwidth_channels
         self.low_frequency_effect_channels = low_frequency_effect_channels
         self.sample_rate = sample_rate
         self.enabled = enabled
+        self.quarantined = quarantined
+        self.tuning_failures = tuning_failures
 
     def __str__(self):
         """Return a string representation of this structure"""
@@ -136,6 +146,8 @@ class default_frontend_audio_status_struct_struct(object):
         d["low_frequency_effect_channels"] = self.low_frequency_effect_channels
         d["sample_rate"] = self.sample_rate
         d["enabled"] = self.enabled
+        d["quarantined"] = self.quarantined
+        d["tuning_failures"] = self.tuning_failures
         return str(d)
 
     def getId(self):
@@ -152,7 +164,7 @@ class default_frontend_audio_status_struct_struct(object):
         return retval
 
     def getMembers(self):
-        return [("FRONTEND::audio_status::audio_type",self.audio_type),("FRONTEND::audio_status::allocation_id_csv",self.allocation_id_csv),("FRONTEND::audio_status::full_bandwidth_channels",self.full_bandwidth_channels),("FRONTEND::audio_status::low_frequency_effect_channels",self.low_frequency_effect_channels),("FRONTEND::audio_status::sample_rate",self.sample_rate),("FRONTEND::audio_status::enabled",self.enabled)]
+        return [("FRONTEND::audio_status::audio_type",self.audio_type),("FRONTEND::audio_status::allocation_id_csv",self.allocation_id_csv),("FRONTEND::audio_status::full_bandwidth_channels",self.full_bandwidth_channels),("FRONTEND::audio_status::low_frequency_effect_channels",self.low_frequency_effect_channels),("FRONTEND::audio_status::sample_rate",self.sample_rate),("FRONTEND::audio_status::enabled",self.enabled),("FRONTEND::audio_status::quarantined",self.quarantined),("FRONTEND::audio_status::tuning_failures",self.tuning_failures)]
 
 class frontend_video_allocation(object):
     video_type = simple_property(id_="FRONTEND::video_allocation::video_type",
@@ -265,8 +277,18 @@ class default_frontend_video_status_struct_struct(object):
                               type_="boolean",
                               defvalue=False,
                               )
+    quarantined = simple_property(id_="FRONTEND::video_status::quarantined",
+                                  name="quarantined",
+                                  type_="boolean",
+                                  defvalue=False,
+                                  )
+    tuning_failures = simple_property(id_="FRONTEND::video_status::tuning_failures",
+                                      name="tuning_failures",
+                                      type_="long",
+                                      defvalue=0,
+                                      )
 
-    def __init__(self, video_type="", allocation_id_csv="", channels=0, frame_height=0, frame_width=0, fps=0.0, enabled=False):
+    def __init__(self, video_type="", allocation_id_csv="", channels=0, frame_height=0, frame_width=0, fps=0.0, enabled=False, quarantined=False, tuning_failures=0):
         self.video_type = video_type
         self.allocation_id_csv = allocation_id_csv
         self.channels = channels
@@ -274,6 +296,8 @@ class default_frontend_video_status_struct_struct(object):
         self.frame_width = frame_width
         self.fps = fps
         self.enabled = enabled
+        self.quarantined = quarantined
+        self.tuning_failures = tuning_failures
 
     def __str__(self):
         """Return a string representation of this structure"""
@@ -285,6 +309,8 @@ class default_frontend_video_status_struct_struct(object):
         d["frame_width"] = self.frame_width
         d["fps"] = self.fps
         d["enabled"] = self.enabled
+        d["quarantined"] = self.quarantined
+        d["tuning_failures"] = self.tuning_failures
         return str(d)
 
     def getId(self):
@@ -301,4 +327,4 @@ class default_frontend_video_status_struct_struct(object):
         return retval
 
     def getMembers(self):
-        return [("FRONTEND::video_status::video_type",self.video_type),("FRONTEND::video_status::allocation_id_csv",self.allocation_id_csv),("FRONTEND::video_status::channels",self.channels),("FRONTEND::video_status::frame_height",self.frame_height),("FRONTEND::video_status::frame_width",self.frame_width),("FRONTEND::video_status::fps",self.fps)]
+        return [("FRONTEND::video_status::video_type",self.video_type),("FRONTEND::video_status::allocation_id_csv",self.allocation_id_csv),("FRONTEND::video_status::channels",self.channels),("FRONTEND::video_status::frame_height",self.frame_height),("FRONTEND::video_status::frame_width",self.frame_width),("FRONTEND::video_status::fps",self.fps),("FRONTEND::video_status::quarantined",self.quarantined),("FRONTEND::video_status::tuning_failures",self.tuning_failures)]